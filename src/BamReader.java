@@ -0,0 +1,291 @@
+/*
+ * Decodes the header and alignment records of a BAM file straight from the binary format
+ */
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+public class BamReader {
+
+	// CIGAR operations in the order of their binary codes
+	static final String CIGAR_OPS = "MIDNSHP=X";
+
+	BgzfReader in;
+	ExecutorService pool;
+
+	// The SAM header text and the reference sequences listed in the binary header
+	String headerText;
+	String[] refNames;
+	int[] refLengths;
+
+	// Contig ids in the reference index for each BAM reference id
+	int[] contigIds;
+
+	// The current record, not including its leading block size
+	byte[] rec = new byte[1024];
+	int recLength;
+
+	// Scratch space for the block size of each record
+	byte[] sizeBuf = new byte[4];
+
+	// Number of records read so far
+	int count = 0;
+
+	// Fields of the current record
+	int refId, pos, flag, nameLength, cigarLength, seqLength, mateRefId, matePos;
+	int refLength, queryLength, numMatches;
+
+	BamReader(String fn, int threads) throws IOException {
+		pool = Executors.newFixedThreadPool(Math.max(threads, 1), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "bgzf-inflate");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		in = new BgzfReader(fn, pool, threads);
+		readHeader();
+	}
+
+	/*
+	 * Reads a BAM file from a BGZF reader which is already open, using its thread
+	 * pool
+	 */
+	BamReader(BgzfReader in) throws IOException {
+		this.in = in;
+		readHeader();
+	}
+
+	/*
+	 * Reads the magic number, header text, and reference list
+	 */
+	void readHeader() throws IOException {
+		byte[] magic = new byte[4];
+		if (!in.readFully(magic, 0, 4) || magic[0] != 'B' || magic[1] != 'A' || magic[2] != 'M' || magic[3] != 1) {
+			throw new IOException("Not a BAM file");
+		}
+		int textLength = in.readInt();
+		byte[] text = new byte[textLength];
+		in.readFully(text, 0, textLength);
+
+		// The text may be padded with NULs
+		int end = 0;
+		while (end < textLength && text[end] != 0) {
+			end++;
+		}
+		headerText = new String(text, 0, end, "UTF-8");
+
+		int numRefs = in.readInt();
+		refNames = new String[numRefs];
+		refLengths = new int[numRefs];
+		for (int i = 0; i < numRefs; i++) {
+			int nameLength = in.readInt();
+			byte[] name = new byte[nameLength];
+			in.readFully(name, 0, nameLength);
+			refNames[i] = new String(name, 0, nameLength - 1, "UTF-8");
+			refLengths[i] = in.readInt();
+		}
+	}
+
+	/*
+	 * Adds the references of this file to a reference index, remembering the
+	 * contig id of each one
+	 */
+	void addReferences(ReferenceIndex refs) {
+		contigIds = new int[refNames.length];
+		for (int i = 0; i < refNames.length; i++) {
+			contigIds[i] = refs.add(refNames[i], refLengths[i]);
+		}
+	}
+
+	/*
+	 * Moves to the next record, returning false if there are no more
+	 */
+	boolean next() throws IOException {
+		if (!in.readFully(sizeBuf, 0, 4)) {
+			return false;
+		}
+		recLength = BgzfReader.getInt(sizeBuf, 0);
+		if (recLength > rec.length) {
+			rec = new byte[Math.max(recLength, rec.length * 2)];
+		}
+		in.readFully(rec, 0, recLength);
+		count++;
+		return true;
+	}
+
+	/*
+	 * Decodes the fixed-length fields and the CIGAR of the current record
+	 */
+	void parse() {
+		refId = BgzfReader.getInt(rec, 0);
+		pos = BgzfReader.getInt(rec, 4);
+		nameLength = rec[8] & 0xff;
+		cigarLength = (rec[12] & 0xff) | ((rec[13] & 0xff) << 8);
+		flag = (rec[14] & 0xff) | ((rec[15] & 0xff) << 8);
+		seqLength = BgzfReader.getInt(rec, 16);
+		mateRefId = BgzfReader.getInt(rec, 20);
+		matePos = BgzfReader.getInt(rec, 24);
+
+		refLength = 0;
+		queryLength = 0;
+		numMatches = 0;
+		int cigarStart = 32 + nameLength, numOps = cigarLength;
+		int longCigar = longCigarOffset(rec, 0, recLength);
+		if (longCigar != -1) {
+			numOps = BgzfReader.getInt(rec, longCigar);
+			cigarStart = longCigar + 4;
+		}
+		for (int i = 0; i < numOps; i++) {
+			int op = BgzfReader.getInt(rec, cigarStart + 4 * i);
+			int len = op >>> 4;
+			char type = CIGAR_OPS.charAt(op & 0xf);
+			if (type == 'M' || type == 'D' || type == 'N' || type == '=' || type == 'X') {
+				refLength += len;
+			}
+			if (type == 'M' || type == 'I' || type == 'S' || type == '=' || type == 'X') {
+				queryLength += len;
+			}
+			if (type == 'M' || type == '=') {
+				numMatches += len;
+			}
+		}
+	}
+
+	/*
+	 * Where the CIGAR operations of a record are kept in its CG tag, as the offset
+	 * of their count with the operations following it, or -1 if they are in the
+	 * CIGAR field as usual. Records with more than 65535 operations have the
+	 * placeholder CIGAR kSmN, where k is the query length and m is the reference
+	 * length, and the real operations in a CG:B,I tag.
+	 */
+	static int longCigarOffset(byte[] rec, int off, int len) {
+		int nameLength = rec[off + 8] & 0xff;
+		int cigarLength = (rec[off + 12] & 0xff) | ((rec[off + 13] & 0xff) << 8);
+		if (cigarLength != 2) {
+			return -1;
+		}
+		int cigarStart = off + 32 + nameLength;
+		int first = BgzfReader.getInt(rec, cigarStart), second = BgzfReader.getInt(rec, cigarStart + 4);
+		int seqLength = BgzfReader.getInt(rec, off + 16);
+		if (CIGAR_OPS.charAt(first & 0xf) != 'S' || CIGAR_OPS.charAt(second & 0xf) != 'N'
+				|| (seqLength != 0 && first >>> 4 != seqLength)) {
+			return -1;
+		}
+
+		// Look through the optional fields after the sequence and qualities
+		int end = off + len;
+		int i = cigarStart + 8 + (seqLength + 1) / 2 + seqLength;
+		while (i + 3 <= end) {
+			char type = (char) rec[i + 2];
+			if (rec[i] == 'C' && rec[i + 1] == 'G' && type == 'B' && i + 8 <= end && rec[i + 3] == 'I') {
+				return i + 4;
+			}
+			i += 3;
+			if (type == 'A' || type == 'c' || type == 'C') {
+				i += 1;
+			} else if (type == 's' || type == 'S') {
+				i += 2;
+			} else if (type == 'i' || type == 'I' || type == 'f') {
+				i += 4;
+			} else if (type == 'Z' || type == 'H') {
+				while (i < end && rec[i] != 0) {
+					i++;
+				}
+				i++;
+			} else if (type == 'B' && i + 5 <= end) {
+				char subtype = (char) rec[i];
+				int count = BgzfReader.getInt(rec, i + 1);
+				int size = (subtype == 'c' || subtype == 'C') ? 1 : (subtype == 's' || subtype == 'S') ? 2 : 4;
+				long skip = 5 + (long) count * size;
+				if (count < 0 || i + skip > end) {
+					return -1;
+				}
+				i += (int) skip;
+			} else {
+				return -1;
+			}
+		}
+		return -1;
+	}
+
+	/*
+	 * The contig id of the current record, or -1 if it has no reference
+	 */
+	int contig() {
+		if (refId < 0) {
+			return -1;
+		}
+		return contigIds[refId];
+	}
+
+	/*
+	 * The contig id of the mate of the current record, or -1 if it has no reference
+	 */
+	int mateContig() {
+		if (mateRefId < 0) {
+			return -1;
+		}
+		return contigIds[mateRefId];
+	}
+
+	/*
+	 * 1-based start of the mate
+	 */
+	int mateStart() {
+		return matePos + 1;
+	}
+
+	/*
+	 * 1-based start and end positions on the reference, where the end is exclusive
+	 */
+	int start() {
+		return pos + 1;
+	}
+
+	int end() {
+		return pos + 1 + refLength;
+	}
+
+	int strand() {
+		return (flag & 16) != 0 ? 1 : 0;
+	}
+
+	double qual() {
+		return ReadStore.qual(numMatches, queryLength);
+	}
+
+	/*
+	 * The read name, not including the terminating NUL
+	 */
+	String name() {
+		return new String(rec, 32, nameLength - 1);
+	}
+
+	/*
+	 * Copies the header and the records marked as used from one BAM file to a
+	 * coordinate-sorted BAM file
+	 */
+	static void writeKept(String inFn, String outFn, RecordIndex.KeptFlags used, int threads) throws IOException {
+		BamReader reader = new BamReader(inFn, threads);
+		BamWriter writer = new BamWriter(outFn, reader.refNames, reader.refLengths, threads);
+		writer.addHeaderLine(reader.headerText);
+		while (reader.next()) {
+			if (used.next()) {
+				writer.addRecord(reader.rec, reader.recLength);
+			}
+		}
+		reader.close();
+		writer.close();
+	}
+
+	void close() throws IOException {
+		in.close();
+		if (pool != null) {
+			pool.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,878 @@
+/*
+ * Writes kept alignments to a coordinate-sorted BAM file along with a BAI index, compressing blocks on a thread pool
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+public class BamWriter {
+
+	// Bases in the order of their 4-bit codes
+	static final String SEQ_CODES = "=ACMGRSVTWYHKDBN";
+
+	// The bin holding an index's metadata for each reference
+	static final int METADATA_BIN = 37450;
+
+	// Size of the windows of the linear index
+	static final int LINEAR_SHIFT = 14;
+
+	String fn;
+	int threads;
+
+	// Header lines and references to write
+	StringBuilder headerText = new StringBuilder();
+	String[] refNames;
+	int[] refLengths;
+	HashMap<String, Integer> refIds = new HashMap<String, Integer>();
+
+	// Records waiting to be written, packed one after another without their block
+	// sizes, along with where each one starts and its position in coordinate
+	// order
+	byte[] buf = new byte[1 << 16];
+	int bufLength = 0;
+	int[] recStarts = new int[1024];
+	long[] keys = new long[1024];
+	int numBuffered = 0;
+
+	// The most bytes of records to hold in memory before writing them out
+	long maxBufferBytes = Math.min(256L << 20, Runtime.getRuntime().maxMemory() / 4);
+
+	// Whether or not the records so far were added in sorted order
+	boolean sorted = true;
+	long lastKey = Long.MIN_VALUE;
+
+	// The output and its index, once records have been written to it
+	BgzfWriter out;
+	IndexBuilder index;
+	ExecutorService pool;
+
+	// Temporary BAM files of sorted records, in the order the records were added,
+	// and where to put them
+	ArrayList<File> runs = new ArrayList<File>();
+	File tmpDir;
+
+	// The most runs to read at once when merging them
+	static final int MAX_FAN_IN = 64;
+
+	// Scratch space for encoding a SAM line
+	byte[] enc = new byte[1024];
+	int encLength = 0;
+
+	BamWriter(String fn, String[] refNames, int[] refLengths, int threads) {
+		this.fn = fn;
+		this.refNames = refNames;
+		this.refLengths = refLengths;
+		this.threads = threads;
+		for (int i = 0; i < refNames.length; i++) {
+			refIds.put(refNames[i], i);
+		}
+	}
+
+	/*
+	 * Makes a writer for the references in a reference index
+	 */
+	static BamWriter forReferences(String fn, ReferenceIndex refs, int threads) {
+		String[] names = new String[refs.size()];
+		int[] lengths = new int[refs.size()];
+		for (int c = 0; c < refs.size(); c++) {
+			names[c] = refs.name(c);
+			lengths[c] = refs.arraySize(c) - 1;
+		}
+		return new BamWriter(fn, names, lengths, threads);
+	}
+
+	void addHeaderLine(String line) {
+		if (out != null) {
+			throw new IllegalStateException("Header lines must be added before records are written");
+		}
+		headerText.append(line).append('\n');
+	}
+
+	/*
+	 * Adds a binary record, not including its leading block size. Records are
+	 * written straight to the output while they come in sorted order, and
+	 * otherwise sorted in batches which are merged at the end.
+	 */
+	void addRecord(byte[] rec, int len) throws IOException {
+		long key = sortKey(rec, 0);
+		if (key < lastKey) {
+			sorted = false;
+		}
+		lastKey = key;
+
+		if (numBuffered > 0 && bufLength + len > maxBufferBytes) {
+			flushBuffer();
+		}
+		if (bufLength + len > buf.length) {
+			buf = Arrays.copyOf(buf, (int) Math.min(Integer.MAX_VALUE - 8, Math.max(bufLength + len, 2L * buf.length)));
+		}
+		if (numBuffered == recStarts.length) {
+			recStarts = Arrays.copyOf(recStarts, numBuffered * 2);
+			keys = Arrays.copyOf(keys, numBuffered * 2);
+		}
+		System.arraycopy(rec, 0, buf, bufLength, len);
+		recStarts[numBuffered] = bufLength;
+		keys[numBuffered] = key;
+		numBuffered++;
+		bufLength += len;
+	}
+
+	/*
+	 * The length of a buffered record
+	 */
+	int bufferedLength(int i) {
+		return (i + 1 < numBuffered ? recStarts[i + 1] : bufLength) - recStarts[i];
+	}
+
+	/*
+	 * The position of a record in coordinate order, with reads that have no
+	 * reference at the end
+	 */
+	static long sortKey(byte[] rec, int off) {
+		int refId = BgzfReader.getInt(rec, off);
+		int pos = BgzfReader.getInt(rec, off + 4);
+		if (refId < 0) {
+			return Long.MAX_VALUE;
+		}
+		return ((long) refId << 32) + pos + 1;
+	}
+
+	/*
+	 * Writes out the buffered records - straight to the output if every record so
+	 * far has been in order, and otherwise sorted into a new run
+	 */
+	void flushBuffer() throws IOException {
+		if (sorted && runs.isEmpty()) {
+			if (out == null) {
+				openOutput();
+			}
+			for (int i = 0; i < numBuffered; i++) {
+				writeRecord(out, index, buf, recStarts[i], bufferedLength(i));
+			}
+		} else {
+			if (out != null) {
+				// Records already written are out of order with later ones, so the output so
+				// far becomes the first run
+				File outFile = new File(fn).getAbsoluteFile();
+				File f = File.createTempFile("records", ".bam", outFile.getParentFile());
+				f.deleteOnExit();
+				out.close();
+				out = null;
+				index = null;
+				if (!f.delete() || !outFile.renameTo(f)) {
+					throw new IOException("Could not move " + fn + " to " + f + " to sort it");
+				}
+				runs.add(f);
+			}
+			BgzfWriter run = openRun();
+			int[] order = ReadStore.ascendingOrder(keys, numBuffered);
+			for (int i : order) {
+				writeRecord(run, null, buf, recStarts[i], bufferedLength(i));
+			}
+			run.close();
+		}
+		numBuffered = 0;
+		bufLength = 0;
+	}
+
+	ExecutorService pool() {
+		if (pool == null) {
+			pool = Executors.newFixedThreadPool(Math.max(threads, 1), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "bgzf-deflate");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return pool;
+	}
+
+	/*
+	 * Starts the output file with its header
+	 */
+	void openOutput() throws IOException {
+		out = new BgzfWriter(fn, pool(), threads);
+		writeHeader(out, finalHeader());
+		index = new IndexBuilder(refNames.length);
+	}
+
+	/*
+	 * Starts a new temporary file for a sorted run of records
+	 */
+	BgzfWriter openRun() throws IOException {
+		File f = File.createTempFile("records", ".bam", tmpDir);
+		f.deleteOnExit();
+		runs.add(f);
+		BgzfWriter run = new BgzfWriter(f.getPath(), pool(), threads);
+		writeHeader(run, "");
+		return run;
+	}
+
+	void writeHeader(BgzfWriter w, String text) throws IOException {
+		byte[] magic = new byte[] { 'B', 'A', 'M', 1 };
+		w.write(magic, 0, 4);
+		byte[] textBytes = text.getBytes("UTF-8");
+		w.writeInt(textBytes.length);
+		w.write(textBytes, 0, textBytes.length);
+		w.writeInt(refNames.length);
+		for (int i = 0; i < refNames.length; i++) {
+			byte[] name = (refNames[i] + "\0").getBytes("UTF-8");
+			w.writeInt(name.length);
+			w.write(name, 0, name.length);
+			w.writeInt(refLengths[i]);
+		}
+		w.flushBlock();
+	}
+
+	/*
+	 * Writes a record with its block size, adding it to the index if one is given
+	 */
+	static void writeRecord(BgzfWriter w, IndexBuilder idx, byte[] rec, int off, int len) throws IOException {
+		long start = w.position();
+		w.writeInt(len);
+		w.write(rec, off, len);
+		if (idx != null) {
+			idx.add(rec, off, len, start, w.position());
+		}
+	}
+
+	/*
+	 * Copies the header and the records marked as used from a SAM file to a
+	 * coordinate-sorted BAM file
+	 */
+	static void writeKeptSam(String inFn, String outFn, RecordIndex.KeptFlags used, ReferenceIndex refs, int threads)
+			throws IOException {
+		BamWriter writer = forReferences(outFn, refs, threads);
+		RecordTokenizer tokenizer = new RecordTokenizer(inFn, false);
+		while (tokenizer.next()) {
+			if (tokenizer.isSamHeader()) {
+				writer.addHeaderLine(tokenizer.line());
+			} else if (used.next()) {
+				writer.addSamRecord(tokenizer.line());
+			}
+		}
+		tokenizer.close();
+		writer.close();
+	}
+
+	/*
+	 * Encodes a SAM alignment line as a binary record and adds it
+	 */
+	void addSamRecord(String line) throws IOException {
+		String[] tokens = line.split("\t");
+		encLength = 0;
+
+		String name = tokens[0];
+		int flag = Integer.parseInt(tokens[1]);
+		int refId = refId(tokens[2]);
+		int pos = Integer.parseInt(tokens[3]) - 1;
+		int mapq = Integer.parseInt(tokens[4]);
+		String cigar = tokens[5];
+		int nextRefId = tokens[6].equals("=") ? refId : refId(tokens[6]);
+		int nextPos = Integer.parseInt(tokens[7]) - 1;
+		int tlen = Integer.parseInt(tokens[8]);
+		String seq = tokens[9].equals("*") ? "" : tokens[9];
+		String qual = tokens[10];
+
+		// Parse the CIGAR into binary operations
+		int[] ops = new int[16];
+		int numOps = 0, refLength = 0, queryLength = 0, curLen = 0;
+		if (!cigar.equals("*")) {
+			for (int i = 0; i < cigar.length(); i++) {
+				char c = cigar.charAt(i);
+				if (c >= '0' && c <= '9') {
+					curLen = curLen * 10 + (c - '0');
+				} else {
+					int op = BamReader.CIGAR_OPS.indexOf(c);
+					if (op == -1) {
+						throw new IllegalArgumentException("Invalid CIGAR operation " + c + " in read " + name);
+					}
+					if (numOps == ops.length) {
+						ops = Arrays.copyOf(ops, numOps * 2);
+					}
+					ops[numOps++] = (curLen << 4) | op;
+					if (c == 'M' || c == 'D' || c == 'N' || c == '=' || c == 'X') {
+						refLength += curLen;
+					}
+					if (c == 'M' || c == 'I' || c == 'S' || c == '=' || c == 'X') {
+						queryLength += curLen;
+					}
+					curLen = 0;
+				}
+			}
+		}
+		// Too many operations for the CIGAR field, so it gets a placeholder and the
+		// operations go in a CG tag
+		boolean longCigar = numOps > 0xffff;
+
+		byte[] nameBytes = name.getBytes();
+		putInt(refId);
+		putInt(pos);
+		put8(nameBytes.length + 1);
+		put8(mapq);
+		put16(pos < 0 ? 4680 : reg2bin(pos, pos + Math.max(refLength, 1)));
+		put16(longCigar ? 2 : numOps);
+		put16(flag);
+		putInt(seq.length());
+		putInt(nextRefId);
+		putInt(nextPos);
+		putInt(tlen);
+		putBytes(nameBytes);
+		put8(0);
+		if (longCigar) {
+			putInt((queryLength << 4) | BamReader.CIGAR_OPS.indexOf('S'));
+			putInt((refLength << 4) | BamReader.CIGAR_OPS.indexOf('N'));
+		} else {
+			for (int i = 0; i < numOps; i++) {
+				putInt(ops[i]);
+			}
+		}
+
+		// Sequence is packed two bases per byte
+		for (int i = 0; i < seq.length(); i += 2) {
+			int hi = baseCode(seq.charAt(i));
+			int lo = i + 1 < seq.length() ? baseCode(seq.charAt(i + 1)) : 0;
+			put8((hi << 4) | lo);
+		}
+		for (int i = 0; i < seq.length(); i++) {
+			put8(qual.equals("*") ? 0xff : qual.charAt(i) - 33);
+		}
+
+		for (int i = 11; i < tokens.length; i++) {
+			putTag(tokens[i]);
+		}
+		if (longCigar) {
+			put8('C');
+			put8('G');
+			put8('B');
+			put8('I');
+			putInt(numOps);
+			for (int i = 0; i < numOps; i++) {
+				putInt(ops[i]);
+			}
+		}
+
+		addRecord(enc, encLength);
+	}
+
+	int refId(String name) {
+		if (name.equals("*")) {
+			return -1;
+		}
+		Integer id = refIds.get(name);
+		if (id == null) {
+			throw new IllegalArgumentException("Unknown reference " + name);
+		}
+		return id;
+	}
+
+	static int baseCode(char c) {
+		int code = SEQ_CODES.indexOf(Character.toUpperCase(c));
+		return code == -1 ? 15 : code;
+	}
+
+	/*
+	 * Encodes an optional field of the form TAG:TYPE:VALUE
+	 */
+	void putTag(String field) {
+		put8(field.charAt(0));
+		put8(field.charAt(1));
+		char type = field.charAt(3);
+		String val = field.substring(5);
+		if (type == 'A') {
+			put8('A');
+			put8(val.charAt(0));
+		} else if (type == 'i') {
+			putInteger(Long.parseLong(val));
+		} else if (type == 'f') {
+			put8('f');
+			putInt(Float.floatToIntBits(Float.parseFloat(val)));
+		} else if (type == 'Z' || type == 'H') {
+			put8(type);
+			putBytes(val.getBytes());
+			put8(0);
+		} else if (type == 'B') {
+			String[] vals = val.split(",");
+			char subtype = vals[0].charAt(0);
+			put8('B');
+			put8(subtype);
+			putInt(vals.length - 1);
+			for (int i = 1; i < vals.length; i++) {
+				if (subtype == 'f') {
+					putInt(Float.floatToIntBits(Float.parseFloat(vals[i])));
+				} else {
+					long x = Long.parseLong(vals[i]);
+					if (subtype == 'c' || subtype == 'C') {
+						put8((int) x);
+					} else if (subtype == 's' || subtype == 'S') {
+						put16((int) x);
+					} else {
+						putInt((int) x);
+					}
+				}
+			}
+		} else {
+			throw new IllegalArgumentException("Unknown optional field type in " + field);
+		}
+	}
+
+	/*
+	 * Writes an integer field using the smallest type which holds it
+	 */
+	void putInteger(long x) {
+		if (x < 0) {
+			if (x >= Byte.MIN_VALUE) {
+				put8('c');
+				put8((int) x);
+			} else if (x >= Short.MIN_VALUE) {
+				put8('s');
+				put16((int) x);
+			} else {
+				put8('i');
+				putInt((int) x);
+			}
+		} else if (x <= 0xff) {
+			put8('C');
+			put8((int) x);
+		} else if (x <= 0xffff) {
+			put8('S');
+			put16((int) x);
+		} else {
+			put8('I');
+			putInt((int) x);
+		}
+	}
+
+	void put8(int val) {
+		if (encLength == enc.length) {
+			enc = Arrays.copyOf(enc, enc.length * 2);
+		}
+		enc[encLength++] = (byte) val;
+	}
+
+	void put16(int val) {
+		put8(val);
+		put8(val >> 8);
+	}
+
+	void putInt(int val) {
+		put16(val);
+		put16(val >> 16);
+	}
+
+	void putBytes(byte[] bytes) {
+		for (byte b : bytes) {
+			put8(b);
+		}
+	}
+
+	/*
+	 * The smallest bin of the BAI binning scheme holding the 0-based interval
+	 * [beg, end)
+	 */
+	static int reg2bin(int beg, int end) {
+		end--;
+		if (beg >> 14 == end >> 14) {
+			return ((1 << 15) - 1) / 7 + (beg >> 14);
+		}
+		if (beg >> 17 == end >> 17) {
+			return ((1 << 12) - 1) / 7 + (beg >> 17);
+		}
+		if (beg >> 20 == end >> 20) {
+			return ((1 << 9) - 1) / 7 + (beg >> 20);
+		}
+		if (beg >> 23 == end >> 23) {
+			return ((1 << 6) - 1) / 7 + (beg >> 23);
+		}
+		if (beg >> 26 == end >> 26) {
+			return ((1 << 3) - 1) / 7 + (beg >> 26);
+		}
+		return 0;
+	}
+
+	/*
+	 * The number of reference bases covered by a binary record
+	 */
+	static int refLength(byte[] rec, int off, int len) {
+		int nameLength = rec[off + 8] & 0xff;
+		int cigarStart = off + 32 + nameLength;
+		int cigarLength = (rec[off + 12] & 0xff) | ((rec[off + 13] & 0xff) << 8);
+		int longCigar = BamReader.longCigarOffset(rec, off, len);
+		if (longCigar != -1) {
+			cigarLength = BgzfReader.getInt(rec, longCigar);
+			cigarStart = longCigar + 4;
+		}
+		int res = 0;
+		for (int i = 0; i < cigarLength; i++) {
+			int op = BgzfReader.getInt(rec, cigarStart + 4 * i);
+			char type = BamReader.CIGAR_OPS.charAt(op & 0xf);
+			if (type == 'M' || type == 'D' || type == 'N' || type == '=' || type == 'X') {
+				res += op >>> 4;
+			}
+		}
+		return res;
+	}
+
+	/*
+	 * The header text, marked as coordinate-sorted and with @SQ lines added for
+	 * any references which don't have one
+	 */
+	String finalHeader() {
+		String[] lines = headerText.toString().split("\n");
+		StringBuilder res = new StringBuilder();
+		HashSet<String> listed = new HashSet<String>();
+		boolean hasHd = false;
+		for (String line : lines) {
+			if (line.length() == 0) {
+				continue;
+			}
+			if (line.startsWith("@HD")) {
+				hasHd = true;
+				line = line.replaceAll("\tSO:[^\t]*", "") + "\tSO:coordinate";
+			}
+			if (line.startsWith("@SQ")) {
+				for (String field : line.split("\t")) {
+					if (field.startsWith("SN:")) {
+						listed.add(field.substring(3));
+					}
+				}
+			}
+			res.append(line).append('\n');
+		}
+		if (!hasHd) {
+			res.insert(0, "@HD\tVN:1.6\tSO:coordinate\n");
+		}
+		for (int i = 0; i < refNames.length; i++) {
+			if (!listed.contains(refNames[i])) {
+				res.append("@SQ\tSN:" + refNames[i] + "\tLN:" + refLengths[i] + "\n");
+			}
+		}
+		return res.toString();
+	}
+
+	/*
+	 * Writes out the remaining records, merging the sorted runs if there are any,
+	 * then writes the index
+	 */
+	void close() throws IOException {
+		try {
+			if (runs.isEmpty() && (sorted || out == null)) {
+				// Everything left is in memory, so it can be sorted there if needed
+				if (out == null) {
+					openOutput();
+				}
+				int[] order = sorted ? null : ReadStore.ascendingOrder(keys, numBuffered);
+				for (int i = 0; i < numBuffered; i++) {
+					int r = order == null ? i : order[i];
+					writeRecord(out, index, buf, recStarts[r], bufferedLength(r));
+				}
+				numBuffered = 0;
+				bufLength = 0;
+			} else {
+				flushBuffer();
+				buf = null;
+				mergeRuns();
+			}
+			out.close();
+			index.write(fn + ".bai", out);
+		} finally {
+			if (pool != null) {
+				pool.shutdownNow();
+			}
+			for (File f : runs) {
+				f.delete();
+			}
+		}
+	}
+
+	/*
+	 * Merges the sorted runs into the output, first merging groups of them into
+	 * bigger runs if there are too many to read at once
+	 */
+	void mergeRuns() throws IOException {
+		while (runs.size() > MAX_FAN_IN) {
+			ArrayList<File> merged = new ArrayList<File>();
+			for (int i = 0; i < runs.size(); i += MAX_FAN_IN) {
+				List<File> group = runs.subList(i, Math.min(i + MAX_FAN_IN, runs.size()));
+				if (group.size() == 1) {
+					merged.add(group.get(0));
+					continue;
+				}
+				File f = File.createTempFile("records", ".bam", tmpDir);
+				f.deleteOnExit();
+				merged.add(f);
+				BgzfWriter w = new BgzfWriter(f.getPath(), pool(), threads);
+				writeHeader(w, "");
+				merge(group, w, null);
+				w.close();
+				for (File g : group) {
+					g.delete();
+				}
+			}
+			runs = merged;
+		}
+		openOutput();
+		merge(runs, out, index);
+	}
+
+	/*
+	 * Merges sorted runs into one writer, with ties going to the earlier run so
+	 * that records at the same position stay in the order they were added
+	 */
+	void merge(List<File> group, BgzfWriter w, IndexBuilder idx) throws IOException {
+		PriorityQueue<Run> queue = new PriorityQueue<Run>(group.size(), new Comparator<Run>() {
+			@Override
+			public int compare(Run a, Run b) {
+				int res = Long.compare(a.key, b.key);
+				return res != 0 ? res : Integer.compare(a.id, b.id);
+			}
+		});
+		for (int i = 0; i < group.size(); i++) {
+			Run run = new Run(new BamReader(new BgzfReader(group.get(i).getPath(), pool(), 1)), i);
+			if (run.next()) {
+				queue.add(run);
+			}
+		}
+		while (!queue.isEmpty()) {
+			Run run = queue.poll();
+			writeRecord(w, idx, run.reader.rec, 0, run.reader.recLength);
+			if (run.next()) {
+				queue.add(run);
+			}
+		}
+	}
+
+	/*
+	 * A run being read back, holding the position of its next record
+	 */
+	static class Run {
+		BamReader reader;
+		int id;
+		long key;
+
+		Run(BamReader reader, int id) {
+			this.reader = reader;
+			this.id = id;
+		}
+
+		boolean next() throws IOException {
+			if (!reader.next()) {
+				reader.in.close();
+				return false;
+			}
+			key = sortKey(reader.rec, 0);
+			return true;
+		}
+	}
+
+	/*
+	 * Builds a BAI index from the records in the order they are written
+	 */
+	static class IndexBuilder {
+		// For each reference, the chunks of file positions in each bin as pairs of
+		// start and end
+		ArrayList<TreeMap<Integer, LongList>> bins = new ArrayList<TreeMap<Integer, LongList>>();
+
+		// For each reference, the first file position of a record overlapping each
+		// 16 kbp window
+		LongList[] linear;
+
+		// For each reference, the file positions of its first and last records and
+		// the number of mapped and unmapped reads
+		long[] firstPos, lastPos, numMapped, numUnmapped;
+
+		// Number of reads with no reference
+		long numNoCoord = 0;
+
+		// The bin and reference of the last record, to extend its chunk
+		int lastRef = -1, lastBin = -1;
+
+		IndexBuilder(int numRefs) {
+			linear = new LongList[numRefs];
+			firstPos = new long[numRefs];
+			lastPos = new long[numRefs];
+			numMapped = new long[numRefs];
+			numUnmapped = new long[numRefs];
+			for (int i = 0; i < numRefs; i++) {
+				bins.add(new TreeMap<Integer, LongList>());
+				linear[i] = new LongList();
+				firstPos[i] = -1;
+			}
+		}
+
+		/*
+		 * Adds a record which was written between the given positions of the BGZF
+		 * writer
+		 */
+		void add(byte[] rec, int off, int len, long start, long end) {
+			int refId = BgzfReader.getInt(rec, off);
+			if (refId < 0) {
+				numNoCoord++;
+				return;
+			}
+			int pos = BgzfReader.getInt(rec, off + 4);
+			int bin = (rec[off + 10] & 0xff) | ((rec[off + 11] & 0xff) << 8);
+			int flag = (rec[off + 14] & 0xff) | ((rec[off + 15] & 0xff) << 8);
+			int recEnd = pos + Math.max(refLength(rec, off, len), 1);
+
+			if ((flag & 4) != 0) {
+				numUnmapped[refId]++;
+			} else {
+				numMapped[refId]++;
+			}
+			if (firstPos[refId] == -1) {
+				firstPos[refId] = start;
+			}
+			lastPos[refId] = end;
+
+			// Extend the last chunk if this record directly follows it in the same bin
+			LongList chunks = bins.get(refId).get(bin);
+			if (chunks == null) {
+				chunks = new LongList();
+				bins.get(refId).put(bin, chunks);
+			}
+			if (refId == lastRef && bin == lastBin && chunks.size > 0) {
+				chunks.vals[chunks.size - 1] = end;
+			} else {
+				chunks.add(start);
+				chunks.add(end);
+			}
+			lastRef = refId;
+			lastBin = bin;
+
+			// Fill in the linear index for windows this record is the first to overlap
+			LongList windows = linear[refId];
+			int lastWindow = (recEnd - 1) >> LINEAR_SHIFT;
+			while (windows.size <= lastWindow) {
+				windows.add(-1);
+			}
+			for (int w = Math.max(pos, 0) >> LINEAR_SHIFT; w <= lastWindow; w++) {
+				if (windows.vals[w] == -1) {
+					windows.vals[w] = start;
+				}
+			}
+		}
+
+		/*
+		 * Writes the index, resolving positions into virtual offsets now that the
+		 * BGZF file is complete
+		 */
+		void write(String indexFn, BgzfWriter bgzf) throws IOException {
+			LittleEndianOutput out = new LittleEndianOutput(new FileOutputStream(new File(indexFn)));
+			out.write(new byte[] { 'B', 'A', 'I', 1 });
+			out.writeInt(linear.length);
+			for (int r = 0; r < linear.length; r++) {
+				TreeMap<Integer, LongList> refBins = bins.get(r);
+				boolean hasReads = firstPos[r] != -1;
+				out.writeInt(refBins.size() + (hasReads ? 1 : 0));
+				for (int bin : refBins.keySet()) {
+					LongList chunks = refBins.get(bin);
+					out.writeInt(bin);
+					out.writeInt(chunks.size / 2);
+					for (int i = 0; i < chunks.size; i++) {
+						out.writeLong(bgzf.resolve(chunks.vals[i]));
+					}
+				}
+				if (hasReads) {
+					out.writeInt(METADATA_BIN);
+					out.writeInt(2);
+					out.writeLong(bgzf.resolve(firstPos[r]));
+					out.writeLong(bgzf.resolve(lastPos[r]));
+					out.writeLong(numMapped[r]);
+					out.writeLong(numUnmapped[r]);
+				}
+
+				// Windows with no reads take the offset of the next window which has them
+				LongList windows = linear[r];
+				out.writeInt(windows.size);
+				long[] offsets = new long[windows.size];
+				long next = 0;
+				for (int w = windows.size - 1; w >= 0; w--) {
+					if (windows.vals[w] != -1) {
+						next = bgzf.resolve(windows.vals[w]);
+					}
+					offsets[w] = next;
+				}
+				for (long offset : offsets) {
+					out.writeLong(offset);
+				}
+			}
+			out.writeLong(numNoCoord);
+			out.close();
+		}
+	}
+
+	/*
+	 * A growable list of longs
+	 */
+	static class LongList {
+		long[] vals = new long[4];
+		int size = 0;
+
+		void add(long val) {
+			if (size == vals.length) {
+				vals = Arrays.copyOf(vals, size * 2);
+			}
+			vals[size++] = val;
+		}
+	}
+
+	/*
+	 * Writes little-endian numbers to a buffered stream
+	 */
+	static class LittleEndianOutput {
+		OutputStream out;
+		byte[] buf = new byte[1 << 16];
+		int len = 0;
+
+		LittleEndianOutput(OutputStream out) {
+			this.out = out;
+		}
+
+		void write(byte[] bytes) throws IOException {
+			for (byte b : bytes) {
+				write8(b);
+			}
+		}
+
+		void write8(int val) throws IOException {
+			if (len == buf.length) {
+				out.write(buf, 0, len);
+				len = 0;
+			}
+			buf[len++] = (byte) val;
+		}
+
+		void writeInt(int val) throws IOException {
+			for (int i = 0; i < 4; i++) {
+				write8(val >> (8 * i));
+			}
+		}
+
+		void writeLong(long val) throws IOException {
+			for (int i = 0; i < 8; i++) {
+				write8((int) (val >> (8 * i)));
+			}
+		}
+
+		void close() throws IOException {
+			out.write(buf, 0, len);
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,218 @@
+/*
+ * Reads a BGZF-compressed file (such as a BAM file), inflating blocks ahead of the reader on a thread pool
+ */
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+public class BgzfReader {
+
+	// Length of the fixed part of a BGZF block header
+	static final int HEADER_LENGTH = 18;
+
+	FileChannel channel;
+	ExecutorService pool;
+
+	// Offset in the file of the next block to submit for inflating
+	long nextBlockOffset = 0;
+
+	// Blocks which are being inflated, in file order
+	ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+
+	// How many blocks to keep in flight at once
+	int lookahead;
+
+	// The current inflated block and the position in it
+	byte[] cur = new byte[0];
+	int curPos = 0;
+
+	// Scratch space for reading little-endian numbers
+	byte[] numBuf = new byte[8];
+
+	BgzfReader(String fn, ExecutorService pool, int threads) throws IOException {
+		channel = new FileInputStream(new File(fn)).getChannel();
+		this.pool = pool;
+		lookahead = 4 * Math.max(threads, 1);
+	}
+
+	/*
+	 * Reads the next compressed block from the file and submits it to be inflated,
+	 * returning false at the end of the file
+	 */
+	boolean submitNext() throws IOException {
+		if (nextBlockOffset >= channel.size()) {
+			return false;
+		}
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		readAt(header, nextBlockOffset);
+		if ((header.get(0) & 0xff) != 31 || (header.get(1) & 0xff) != 139 || (header.get(3) & 4) == 0) {
+			throw new IOException("Invalid BGZF block at offset " + nextBlockOffset);
+		}
+		int extraLength = (header.get(10) & 0xff) | ((header.get(11) & 0xff) << 8);
+
+		// Find the BC subfield which gives the size of the block
+		ByteBuffer extra = ByteBuffer.allocate(extraLength);
+		readAt(extra, nextBlockOffset + 12);
+		int blockSize = -1;
+		for (int i = 0; i + 4 <= extraLength;) {
+			int subLength = (extra.get(i + 2) & 0xff) | ((extra.get(i + 3) & 0xff) << 8);
+			if (extra.get(i) == 'B' && extra.get(i + 1) == 'C') {
+				blockSize = ((extra.get(i + 4) & 0xff) | ((extra.get(i + 5) & 0xff) << 8)) + 1;
+			}
+			i += 4 + subLength;
+		}
+		if (blockSize == -1) {
+			throw new IOException("BGZF block at offset " + nextBlockOffset + " has no block size");
+		}
+
+		final byte[] block = new byte[blockSize];
+		ByteBuffer blockBuf = ByteBuffer.wrap(block);
+		readAt(blockBuf, nextBlockOffset);
+		final int dataStart = 12 + extraLength;
+		final long offset = nextBlockOffset;
+		nextBlockOffset += blockSize;
+
+		pending.add(pool.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws Exception {
+				return inflate(block, dataStart, offset);
+			}
+		}));
+		return true;
+	}
+
+	/*
+	 * Inflates the compressed data in a block and checks it against the block's
+	 * checksum
+	 */
+	static byte[] inflate(byte[] block, int dataStart, long offset) throws IOException {
+		int n = block.length;
+		int inflatedSize = (block[n - 4] & 0xff) | ((block[n - 3] & 0xff) << 8) | ((block[n - 2] & 0xff) << 16)
+				| ((block[n - 1] & 0xff) << 24);
+		long crc = ((block[n - 8] & 0xffL) | ((block[n - 7] & 0xffL) << 8) | ((block[n - 6] & 0xffL) << 16)
+				| ((block[n - 5] & 0xffL) << 24));
+		byte[] res = new byte[inflatedSize];
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(block, dataStart, n - 8 - dataStart);
+			int done = 0;
+			while (done < inflatedSize && !inflater.finished()) {
+				int got = inflater.inflate(res, done, inflatedSize - done);
+				if (got == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				done += got;
+			}
+			if (done != inflatedSize) {
+				throw new IOException("Truncated BGZF block at offset " + offset);
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt BGZF block at offset " + offset, e);
+		} finally {
+			inflater.end();
+		}
+		CRC32 check = new CRC32();
+		check.update(res, 0, inflatedSize);
+		if (check.getValue() != crc) {
+			throw new IOException("Checksum mismatch in BGZF block at offset " + offset);
+		}
+		return res;
+	}
+
+	void readAt(ByteBuffer buf, long offset) throws IOException {
+		while (buf.hasRemaining()) {
+			int got = channel.read(buf, offset + buf.position());
+			if (got == -1) {
+				throw new EOFException("Unexpected end of BGZF file");
+			}
+		}
+	}
+
+	/*
+	 * Moves to the next non-empty inflated block, returning false at the end of
+	 * the file
+	 */
+	boolean nextBlock() throws IOException {
+		while (curPos >= cur.length) {
+			while (pending.size() < lookahead && submitNext()) {
+			}
+			if (pending.isEmpty()) {
+				return false;
+			}
+			try {
+				cur = pending.poll().get();
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			} catch (ExecutionException e) {
+				throw new IOException(e.getCause());
+			}
+			curPos = 0;
+		}
+		return true;
+	}
+
+	/*
+	 * Reads up to len bytes, returning the number read or -1 at the end of the file
+	 */
+	int read(byte[] b, int off, int len) throws IOException {
+		if (!nextBlock()) {
+			return -1;
+		}
+		int n = Math.min(len, cur.length - curPos);
+		System.arraycopy(cur, curPos, b, off, n);
+		curPos += n;
+		return n;
+	}
+
+	/*
+	 * Reads exactly len bytes, returning false if the file ended before any bytes
+	 * were read
+	 */
+	boolean readFully(byte[] b, int off, int len) throws IOException {
+		int done = 0;
+		while (done < len) {
+			int got = read(b, off + done, len - done);
+			if (got == -1) {
+				if (done == 0) {
+					return false;
+				}
+				throw new EOFException("Unexpected end of BGZF file");
+			}
+			done += got;
+		}
+		return true;
+	}
+
+	/*
+	 * Reads a little-endian 32-bit integer
+	 */
+	int readInt() throws IOException {
+		if (!readFully(numBuf, 0, 4)) {
+			throw new EOFException("Unexpected end of BGZF file");
+		}
+		return getInt(numBuf, 0);
+	}
+
+	static int getInt(byte[] b, int i) {
+		return (b[i] & 0xff) | ((b[i + 1] & 0xff) << 8) | ((b[i + 2] & 0xff) << 16) | ((b[i + 3] & 0xff) << 24);
+	}
+
+	void close() throws IOException {
+		for (Future<byte[]> f : pending) {
+			f.cancel(true);
+		}
+		channel.close();
+	}
+}
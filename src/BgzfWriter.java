@@ -0,0 +1,218 @@
+/*
+ * Writes a BGZF-compressed file (such as a BAM file) in independently compressed blocks, optionally compressing them on a thread pool
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+public class BgzfWriter {
+
+	// Maximum amount of uncompressed data in a block, leaving room for the
+	// compressed data to fit in 64 KB even if it doesn't shrink
+	static final int MAX_BLOCK_DATA = 0xff00;
+
+	// The empty block which marks the end of a BGZF file
+	static final byte[] EOF_BLOCK = new byte[] { 31, -117, 8, 4, 0, 0, 0, 0, 0, -1, 6, 0, 66, 67, 2, 0, 27, 0, 3,
+			0, 0, 0, 0, 0, 0, 0, 0, 0 };
+
+	OutputStream out;
+
+	// Data which hasn't been compressed into a block yet
+	byte[] buf = new byte[MAX_BLOCK_DATA];
+	int bufLength = 0;
+
+	// Number of compressed bytes written so far
+	long compressedOffset = 0;
+
+	// Thread pool for compressing blocks, or null to compress them as they fill
+	ExecutorService pool;
+
+	// Blocks which are being compressed, in file order
+	ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+
+	// How many blocks to keep in flight at once
+	int lookahead;
+
+	// Number of blocks started so far, and the offset in the file of each one
+	// which has been written, for resolving virtual offsets once the file is done
+	int numBlocks = 0, numWritten = 0;
+	long[] blockOffsets = new long[64];
+
+	BgzfWriter(String fn) throws IOException {
+		this(fn, null, 1);
+	}
+
+	BgzfWriter(String fn, ExecutorService pool, int threads) throws IOException {
+		out = new FileOutputStream(new File(fn));
+		this.pool = pool;
+		lookahead = 4 * Math.max(threads, 1);
+	}
+
+	void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int n = Math.min(len, MAX_BLOCK_DATA - bufLength);
+			System.arraycopy(b, off, buf, bufLength, n);
+			bufLength += n;
+			off += n;
+			len -= n;
+			if (bufLength == MAX_BLOCK_DATA) {
+				flushBlock();
+			}
+		}
+	}
+
+	/*
+	 * Writes a little-endian 32-bit integer
+	 */
+	void writeInt(int val) throws IOException {
+		write(new byte[] { (byte) val, (byte) (val >> 8), (byte) (val >> 16), (byte) (val >> 24) }, 0, 4);
+	}
+
+	/*
+	 * The position the next byte will be written to, as a block number in the
+	 * upper bits and the offset within the block in the lower 16 bits - turned
+	 * into a BGZF virtual offset by resolve() once the file is closed
+	 */
+	long position() {
+		return ((long) numBlocks << 16) | bufLength;
+	}
+
+	/*
+	 * The BGZF virtual offset of a position from position(), which can only be
+	 * called after the file is closed
+	 */
+	long resolve(long position) {
+		return (blockOffsets[(int) (position >>> 16)] << 16) | (position & 0xffff);
+	}
+
+	/*
+	 * Compresses any buffered data into a block and writes it out, or queues it to
+	 * be compressed if using a thread pool
+	 */
+	void flushBlock() throws IOException {
+		if (bufLength == 0) {
+			return;
+		}
+		numBlocks++;
+		if (pool == null) {
+			writeBlock(compressBlock(buf, bufLength));
+		} else {
+			final byte[] data = Arrays.copyOf(buf, bufLength);
+			pending.add(pool.submit(new Callable<byte[]>() {
+				@Override
+				public byte[] call() throws Exception {
+					return compressBlock(data, data.length);
+				}
+			}));
+			while (pending.size() >= lookahead) {
+				writePending();
+			}
+		}
+		bufLength = 0;
+	}
+
+	/*
+	 * Waits for the oldest queued block to be compressed and writes it out
+	 */
+	void writePending() throws IOException {
+		try {
+			writeBlock(pending.poll().get());
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+
+	void writeBlock(byte[] block) throws IOException {
+		addBlockOffset(compressedOffset);
+		out.write(block);
+		compressedOffset += block.length;
+	}
+
+	void addBlockOffset(long offset) {
+		if (blockOffsets.length == numWritten) {
+			blockOffsets = Arrays.copyOf(blockOffsets, numWritten * 2);
+		}
+		blockOffsets[numWritten++] = offset;
+	}
+
+	/*
+	 * Compresses data into a complete BGZF block, including its header and footer
+	 */
+	static byte[] compressBlock(byte[] data, int len) {
+		byte[] compressed = deflate(data, len, Deflater.DEFAULT_COMPRESSION);
+		if (compressed == null) {
+			// Incompressible data - store it as is
+			compressed = deflate(data, len, Deflater.NO_COMPRESSION);
+		}
+		int blockSize = 18 + compressed.length + 8;
+		byte[] block = new byte[blockSize];
+		byte[] header = new byte[] { 31, -117, 8, 4, 0, 0, 0, 0, 0, -1, 6, 0, 66, 67, 2, 0,
+				(byte) (blockSize - 1), (byte) ((blockSize - 1) >> 8) };
+		System.arraycopy(header, 0, block, 0, 18);
+		System.arraycopy(compressed, 0, block, 18, compressed.length);
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, len);
+		putInt(block, blockSize - 8, (int) crc.getValue());
+		putInt(block, blockSize - 4, len);
+		return block;
+	}
+
+	/*
+	 * Deflates data without a zlib header, returning null if the result doesn't
+	 * fit in a block
+	 */
+	static byte[] deflate(byte[] data, int len, int level) {
+		Deflater deflater = new Deflater(level, true);
+		try {
+			deflater.setInput(data, 0, len);
+			deflater.finish();
+			byte[] res = new byte[65536 - 26];
+			int n = 0;
+			while (!deflater.finished()) {
+				if (n == res.length) {
+					return null;
+				}
+				n += deflater.deflate(res, n, res.length - n);
+			}
+			byte[] trimmed = new byte[n];
+			System.arraycopy(res, 0, trimmed, 0, n);
+			return trimmed;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	static void putInt(byte[] b, int i, int val) {
+		b[i] = (byte) val;
+		b[i + 1] = (byte) (val >> 8);
+		b[i + 2] = (byte) (val >> 16);
+		b[i + 3] = (byte) (val >> 24);
+	}
+
+	/*
+	 * Writes any remaining data followed by the end-of-file marker
+	 */
+	void close() throws IOException {
+		flushBlock();
+		while (!pending.isEmpty()) {
+			writePending();
+		}
+
+		// Positions at the very end of the data point to the end-of-file marker
+		addBlockOffset(compressedOffset);
+		out.write(EOF_BLOCK);
+		out.close();
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * Buffers and coverage arrays handed back by finished runs, so that runs on many samples in one process can reuse them instead of allocating new ones
+ */
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class BufferPool {
+
+	// The most memory to hold on to for reuse, in bytes
+	static final long MAX_POOLED_BYTES = Runtime.getRuntime().maxMemory() / 8;
+
+	// Free direct buffers for reading input files
+	static ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	// Free int arrays, by length - runs on the same reference need the same
+	// lengths
+	static ConcurrentHashMap<Integer, ConcurrentLinkedQueue<int[]>> intArrays = new ConcurrentHashMap<Integer, ConcurrentLinkedQueue<int[]>>();
+
+	// The memory held in the pool right now
+	static AtomicLong pooledBytes = new AtomicLong();
+
+	/*
+	 * A cleared direct buffer with at least the given capacity
+	 */
+	static ByteBuffer takeBuffer(int capacity) {
+		ByteBuffer buf = buffers.poll();
+		if (buf == null) {
+			return ByteBuffer.allocateDirect(capacity);
+		}
+		pooledBytes.addAndGet(-buf.capacity());
+		if (buf.capacity() < capacity) {
+			return ByteBuffer.allocateDirect(capacity);
+		}
+		buf.clear();
+		return buf;
+	}
+
+	static void giveBuffer(ByteBuffer buf) {
+		if (pooledBytes.addAndGet(buf.capacity()) > MAX_POOLED_BYTES) {
+			pooledBytes.addAndGet(-buf.capacity());
+			return;
+		}
+		buffers.add(buf);
+	}
+
+	/*
+	 * An int array of the given length filled with zeroes
+	 */
+	static int[] takeInts(int length) {
+		ConcurrentLinkedQueue<int[]> free = intArrays.get(length);
+		int[] res = free == null ? null : free.poll();
+		if (res == null) {
+			return new int[length];
+		}
+		pooledBytes.addAndGet(-4L * length);
+		Arrays.fill(res, 0);
+		return res;
+	}
+
+	static void giveInts(int[] vals) {
+		if (pooledBytes.addAndGet(4L * vals.length) > MAX_POOLED_BYTES) {
+			pooledBytes.addAndGet(-4L * vals.length);
+			return;
+		}
+		ConcurrentLinkedQueue<int[]> free = intArrays.get(vals.length);
+		if (free == null) {
+			intArrays.putIfAbsent(vals.length, new ConcurrentLinkedQueue<int[]>());
+			free = intArrays.get(vals.length);
+		}
+		free.add(vals);
+	}
+}
@@ -0,0 +1,214 @@
+/*
+ * Periodic snapshots of read selection progress, written in the background, so that a run which is interrupted can resume where it left off
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+public class Checkpoint {
+
+	// Identifies the file and its layout, which changes whenever the format does
+	static final long MAGIC = 0x4e43434b50540000L;
+	static final int VERSION = 1;
+
+	// The snapshot file and the input it describes
+	String fn;
+	File input;
+
+	// The order in which reads are considered and which ones have been kept
+	int[] order;
+	boolean[] used;
+
+	// The number of reads on each contig which have already been considered, in
+	// the order they appear in the read order
+	AtomicIntegerArray progress;
+
+	// Settings which must match for a snapshot to be resumed
+	int threshold;
+	boolean evenStrand;
+
+	ScheduledExecutorService timer;
+
+	Checkpoint(String fn, String inputFn, int[] order, int numContigs, int threshold, boolean evenStrand) {
+		this.fn = fn;
+		this.input = new File(inputFn);
+		this.order = order;
+		this.used = new boolean[order.length];
+		this.progress = new AtomicIntegerArray(numContigs);
+		this.threshold = threshold;
+		this.evenStrand = evenStrand;
+	}
+
+	/*
+	 * Reads a snapshot, making sure it was taken for the same input and settings
+	 */
+	static Checkpoint load(String fn, String inputFn, int numReads, int numContigs, int threshold, boolean evenStrand)
+			throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fn)));
+		try {
+			if (in.readLong() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException(fn + " is not a checkpoint file");
+			}
+			File input = new File(inputFn);
+			if (in.readLong() != input.length() || in.readLong() != lastModified(input)) {
+				throw new IOException("Checkpoint " + fn + " was made for a different version of " + inputFn);
+			}
+			if (in.readInt() != threshold || in.readBoolean() != evenStrand || in.readInt() != numReads
+					|| in.readInt() != numContigs) {
+				throw new IOException("Checkpoint " + fn + " was made with different settings");
+			}
+
+			int[] order = new int[numReads];
+			for (int i = 0; i < numReads; i++) {
+				order[i] = in.readInt();
+			}
+			Checkpoint checkpoint = new Checkpoint(fn, inputFn, order, numContigs, threshold, evenStrand);
+			for (int c = 0; c < numContigs; c++) {
+				checkpoint.progress.set(c, in.readInt());
+			}
+			for (int i = 0; i < numReads; i += 64) {
+				long bits = in.readLong();
+				for (int j = 0; j < 64 && i + j < numReads; j++) {
+					checkpoint.used[i + j] = (bits & (1L << j)) != 0;
+				}
+			}
+			return checkpoint;
+		} finally {
+			in.close();
+		}
+	}
+
+	/*
+	 * Starts writing a snapshot every given number of seconds on a background
+	 * thread, printing a warning to the given stream when one can't be written
+	 */
+	void start(int seconds, final PrintStream out) {
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "checkpoint");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		timer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					write();
+				} catch (IOException e) {
+					out.println("Warning: could not write checkpoint " + fn + ": " + e.getMessage());
+				}
+			}
+		}, seconds, seconds, TimeUnit.SECONDS);
+	}
+
+	/*
+	 * Marks the first reads of a contig as considered - called after their kept
+	 * flags are set so that a snapshot never counts a read as considered without
+	 * its flag
+	 */
+	void advance(int contig, int count) {
+		progress.lazySet(contig, count);
+	}
+
+	/*
+	 * Writes a snapshot of the current progress, replacing the old one once it is
+	 * complete. Kept flags are copied after the progress, so any reads kept past
+	 * the recorded progress are simply considered again when resuming.
+	 */
+	synchronized void write() throws IOException {
+		int numContigs = progress.length();
+		int[] done = new int[numContigs];
+		for (int c = 0; c < numContigs; c++) {
+			done[c] = progress.get(c);
+		}
+
+		File tmp = new File(fn + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeLong(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(input.length());
+			out.writeLong(lastModified(input));
+			out.writeInt(threshold);
+			out.writeBoolean(evenStrand);
+			out.writeInt(order.length);
+			out.writeInt(numContigs);
+			for (int r : order) {
+				out.writeInt(r);
+			}
+			for (int c = 0; c < numContigs; c++) {
+				out.writeInt(done[c]);
+			}
+			for (int i = 0; i < used.length; i += 64) {
+				long bits = 0;
+				for (int j = 0; j < 64 && i + j < used.length; j++) {
+					if (used[i + j]) {
+						bits |= 1L << j;
+					}
+				}
+				out.writeLong(bits);
+			}
+		} finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), new File(fn).toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/*
+	 * Stops taking snapshots and waits for one being written to finish
+	 */
+	void stop() throws InterruptedException {
+		if (timer != null) {
+			timer.shutdown();
+			timer.awaitTermination(1, TimeUnit.MINUTES);
+		}
+	}
+
+	/*
+	 * Stops taking snapshots and removes the snapshot file, once the run has
+	 * finished and there is nothing to resume
+	 */
+	void finish() throws InterruptedException {
+		stop();
+		synchronized (this) {
+			new File(fn).delete();
+		}
+	}
+
+	/*
+	 * Stops taking snapshots after the run failed, writing one last snapshot so
+	 * that resuming loses none of the progress made. Problems are only reported,
+	 * so that they don't hide the failure.
+	 */
+	void abandon(PrintStream out) {
+		try {
+			stop();
+			write();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			out.println("Warning: could not write checkpoint " + fn + ": " + e.getMessage());
+		}
+	}
+
+	static long lastModified(File f) throws IOException {
+		return Files.getLastModifiedTime(f.toPath()).toMillis();
+	}
+}
@@ -0,0 +1,300 @@
+/*
+ * Per-position coverage of a single contig, both overall and on each strand, before and after downsampling
+ */
+
+import java.util.Arrays;
+
+public class ContigCoverage {
+
+	// Number of per-position counters kept for each contig
+	static final int NUM_COUNTERS = 8;
+
+	// Number of positions, which is one more than the contig length since
+	// positions are 1-based
+	int size;
+
+	// Whether or not the counters are compact, saturating ones
+	boolean compact;
+
+	// Total coverage of each position, overall and on each strand
+	CoverageCounter cov;
+	CoverageCounter[] strandCov;
+
+	// How much coverage we want on each strand of each position when evening out
+	// strands - only filled in by computeDesired()
+	CoverageCounter[] desiredStrandCov;
+
+	// The coverage of each position by kept reads (plus coverage from other
+	// samples), overall and on each strand
+	CoverageCounter readCov;
+	CoverageCounter[] strandCovSoFar;
+
+	// With compact counters, the starts and ends of reads on each strand are
+	// collected and swept over in order, since saturating counts can't be used as
+	// running sums
+	IntList[] starts, ends;
+	IntList[] keptStarts, keptEnds;
+
+	ContigCoverage(int size) {
+		this(size, false, 0);
+	}
+
+	ContigCoverage(int size, boolean compact, int threshold) {
+		this.size = size;
+		this.compact = compact;
+		cov = CoverageCounter.create(size, compact, threshold);
+		readCov = cov.empty();
+		strandCov = new CoverageCounter[] { cov.empty(), cov.empty() };
+		strandCovSoFar = new CoverageCounter[] { cov.empty(), cov.empty() };
+		if (compact) {
+			starts = new IntList[] { new IntList(), new IntList() };
+			ends = new IntList[] { new IntList(), new IntList() };
+			keptStarts = new IntList[] { new IntList(), new IntList() };
+			keptEnds = new IntList[] { new IntList(), new IntList() };
+		}
+	}
+
+	/*
+	 * Makes a tracker which shares the total and desired coverage of another one
+	 * but has its own copy of the kept coverage, for running another selection
+	 * over the same reads
+	 */
+	ContigCoverage(ContigCoverage totals) {
+		size = totals.size;
+		compact = totals.compact;
+		cov = totals.cov;
+		strandCov = totals.strandCov;
+		desiredStrandCov = totals.desiredStrandCov;
+		readCov = totals.readCov.copy();
+		strandCovSoFar = new CoverageCounter[] { cov.empty(), cov.empty() };
+		if (compact) {
+			keptStarts = new IntList[] { new IntList(), new IntList() };
+			keptEnds = new IntList[] { new IntList(), new IntList() };
+		}
+	}
+
+	/*
+	 * Counts a read covering [start, end) towards total coverage - add +1 to
+	 * represent coverage going up at start and -1 to represent coverage down at
+	 * end, and take cumulative sums in finishTotals()
+	 */
+	void addRead(int start, int end, int strand) {
+		if (compact) {
+			starts[strand].add(start);
+			ends[strand].add(end);
+			return;
+		}
+		cov.add(start, 1);
+		strandCov[strand].add(start, 1);
+		if (end < size) {
+			cov.add(end, -1);
+			strandCov[strand].add(end, -1);
+		}
+	}
+
+	/*
+	 * Turns the counts from addRead() into the actual coverage of each position
+	 */
+	void finishTotals() {
+		if (compact) {
+			for (int j = 0; j < 2; j++) {
+				sweep(strandCov[j], starts[j].sorted(), ends[j].sorted());
+			}
+			sweep(cov, IntList.merge(starts[0], starts[1]), IntList.merge(ends[0], ends[1]));
+			starts = ends = null;
+			return;
+		}
+		for (int i = 1; i < size; i++) {
+			cov.add(i, cov.get(i - 1));
+			strandCov[0].add(i, strandCov[0].get(i - 1));
+			strandCov[1].add(i, strandCov[1].get(i - 1));
+		}
+	}
+
+	/*
+	 * Computes how much coverage we want for each strand at each position while
+	 * evening out the strands as much as possible, replacing any computed for
+	 * another threshold
+	 */
+	void computeDesired(int threshold) {
+		releaseDesired();
+		desiredStrandCov = new CoverageCounter[] { cov.empty(), cov.empty() };
+		for (int i = 0; i < size; i++) {
+			int plus = strandCov[0].get(i), minus = strandCov[1].get(i);
+			if (plus == 0 && minus == 0) {
+				continue;
+			}
+			desiredStrandCov[0].set(i, desired(plus, minus, threshold, 0));
+			desiredStrandCov[1].set(i, desired(plus, minus, threshold, 1));
+		}
+	}
+
+	/*
+	 * The coverage wanted from one strand at a position with the given coverage
+	 * on each strand, evening out the strands as much as possible
+	 */
+	static int desired(int plus, int minus, int threshold, int strand) {
+		int own = strand == 0 ? plus : minus, other = strand == 0 ? minus : plus;
+
+		// If they split the needed coverage exactly in half they'll each get this much
+		int half = (threshold / 2);
+
+		// If this strand is less than half, take everything, and if the other strand
+		// is less than half, take extra from this one
+		if (own <= half) {
+			return own;
+		} else if (other <= half) {
+			return Math.min(threshold - other, own);
+		}
+
+		// If there is plenty of coverage, require half of the threshold from each
+		// strand
+		return half;
+	}
+
+	/*
+	 * Hands all of the counters back for reuse by later runs once nothing needs
+	 * them. Trackers made from this one for other selections share its total and
+	 * desired coverage, so they have to release their own kept coverage first.
+	 */
+	void release() {
+		releaseKept();
+		cov.release();
+		for (int j = 0; j < 2; j++) {
+			strandCov[j].release();
+		}
+		releaseDesired();
+	}
+
+	/*
+	 * Hands back only the kept coverage, which is all a tracker made for another
+	 * selection over the same reads owns
+	 */
+	void releaseKept() {
+		readCov.release();
+		for (int j = 0; j < 2; j++) {
+			strandCovSoFar[j].release();
+		}
+	}
+
+	void releaseDesired() {
+		if (desiredStrandCov != null) {
+			for (int j = 0; j < 2; j++) {
+				desiredStrandCov[j].release();
+			}
+			desiredStrandCov = null;
+		}
+	}
+
+	/*
+	 * Counts a kept read covering [start, end) in the same way as addRead()
+	 */
+	void addKeptRead(int start, int end, int strand) {
+		if (compact) {
+			keptStarts[strand].add(start);
+			keptEnds[strand].add(end);
+			return;
+		}
+		strandCovSoFar[strand].add(start, 1);
+		if (end < size) {
+			strandCovSoFar[strand].add(end, -1);
+		}
+	}
+
+	/*
+	 * Turns the counts from addKeptRead() into the kept coverage of each position,
+	 * adding it to any coverage already in readCov from other samples
+	 */
+	void finishKept() {
+		if (compact) {
+			for (int j = 0; j < 2; j++) {
+				sweep(strandCovSoFar[j], keptStarts[j].sorted(), keptEnds[j].sorted());
+			}
+			CoverageCounter kept = cov.empty();
+			sweep(kept, IntList.merge(keptStarts[0], keptStarts[1]), IntList.merge(keptEnds[0], keptEnds[1]));
+			for (int i = 0; i < size; i++) {
+				int val = kept.get(i);
+				if (val != 0) {
+					readCov.add(i, val);
+				}
+			}
+			keptStarts = keptEnds = null;
+			return;
+		}
+		for (int i = 0; i < size; i++) {
+			if (i > 0) {
+				strandCovSoFar[0].add(i, strandCovSoFar[0].get(i - 1));
+				strandCovSoFar[1].add(i, strandCovSoFar[1].get(i - 1));
+			}
+			readCov.add(i, strandCovSoFar[0].get(i) + strandCovSoFar[1].get(i));
+		}
+	}
+
+	/*
+	 * The coverage of a position by the reads kept in this run, not counting
+	 * coverage from other samples, once finishKept() has been called
+	 */
+	int keptCoverage(int i) {
+		return strandCovSoFar[0].get(i) + strandCovSoFar[1].get(i);
+	}
+
+	/*
+	 * Sets each position of a counter to the number of intervals covering it, given
+	 * sorted interval starts and ends, skipping over uncovered regions
+	 */
+	void sweep(CoverageCounter counter, int[] sortedStarts, int[] sortedEnds) {
+		int n = sortedStarts.length;
+		int s = 0, e = 0, depth = 0;
+		int i = 0;
+		while (i < size && (s < n || depth > 0)) {
+			if (depth == 0) {
+				i = sortedStarts[s];
+			}
+			while (s < n && sortedStarts[s] == i) {
+				depth++;
+				s++;
+			}
+			while (e < n && sortedEnds[e] == i) {
+				depth--;
+				e++;
+			}
+
+			// Fill in up to the next position where the depth changes
+			int next = Math.min(size, Math.min(s < n ? sortedStarts[s] : size, e < n ? sortedEnds[e] : size));
+			if (depth > 0) {
+				for (int j = i; j < next; j++) {
+					counter.set(j, depth);
+				}
+			}
+			i = next;
+		}
+	}
+
+	/*
+	 * A growable list of ints
+	 */
+	static class IntList {
+		int[] vals = new int[16];
+		int size = 0;
+
+		void add(int val) {
+			if (size == vals.length) {
+				vals = Arrays.copyOf(vals, size * 2);
+			}
+			vals[size++] = val;
+		}
+
+		int[] sorted() {
+			int[] res = Arrays.copyOf(vals, size);
+			Arrays.sort(res);
+			return res;
+		}
+
+		static int[] merge(IntList a, IntList b) {
+			int[] res = Arrays.copyOf(a.vals, a.size + b.size);
+			System.arraycopy(b.vals, 0, res, a.size, b.size);
+			Arrays.sort(res);
+			return res;
+		}
+	}
+}
@@ -0,0 +1,161 @@
+/*
+ * Runs independent per-contig work on a thread pool, starting with the largest groups of contigs
+ */
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class ContigScheduler {
+
+	/*
+	 * The work to do for one group of contigs
+	 */
+	interface Task {
+		void run(int group) throws Exception;
+	}
+
+	// Union-find parent of each contig, for joining contigs whose work can't be
+	// separated (such as those sharing read pairs)
+	int[] parent;
+
+	// The group of each contig, the number of groups, and the contigs in each
+	// group, filled in by groups()
+	int[] group;
+	int numGroups;
+	ContigCoverage.IntList[] contigs;
+
+	// The items to process for each group, in the order they should be processed
+	ContigCoverage.IntList[] items;
+
+	// Estimated amount of work for each group
+	long[] work;
+
+	ContigScheduler(int numContigs) {
+		parent = new int[numContigs];
+		for (int c = 0; c < numContigs; c++) {
+			parent[c] = c;
+		}
+	}
+
+	int find(int c) {
+		while (parent[c] != c) {
+			parent[c] = parent[parent[c]];
+			c = parent[c];
+		}
+		return c;
+	}
+
+	/*
+	 * Makes sure two contigs are processed by the same task
+	 */
+	void join(int a, int b) {
+		parent[find(a)] = find(b);
+	}
+
+	/*
+	 * Assigns each contig to a group, numbering the groups from 0
+	 */
+	void groups() {
+		int n = parent.length;
+		group = new int[n];
+		int[] rootGroup = new int[n];
+		numGroups = 0;
+		for (int c = 0; c < n; c++) {
+			rootGroup[c] = -1;
+		}
+		for (int c = 0; c < n; c++) {
+			int root = find(c);
+			if (rootGroup[root] == -1) {
+				rootGroup[root] = numGroups++;
+			}
+			group[c] = rootGroup[root];
+		}
+		items = new ContigCoverage.IntList[numGroups];
+		contigs = new ContigCoverage.IntList[numGroups];
+		for (int g = 0; g < numGroups; g++) {
+			items[g] = new ContigCoverage.IntList();
+			contigs[g] = new ContigCoverage.IntList();
+		}
+		for (int c = 0; c < n; c++) {
+			contigs[group[c]].add(c);
+		}
+		work = new long[numGroups];
+	}
+
+	/*
+	 * The items of a group which are on one of its contigs, in order, given the
+	 * contig of every item
+	 */
+	ContigCoverage.IntList itemsOn(int g, int contig, int[] itemContig) {
+		if (contigs[g].size == 1) {
+			return items[g];
+		}
+		ContigCoverage.IntList res = new ContigCoverage.IntList();
+		for (int i = 0; i < items[g].size; i++) {
+			if (itemContig[items[g].vals[i]] == contig) {
+				res.add(items[g].vals[i]);
+			}
+		}
+		return res;
+	}
+
+	/*
+	 * Adds an item on the given contig to its group's list, along with an estimate
+	 * of how much work it takes
+	 */
+	void add(int contig, int item, long itemWork) {
+		int g = group[contig];
+		items[g].add(item);
+		work[g] += itemWork;
+	}
+
+	/*
+	 * Runs the task for every group on a pool of threads, submitting the groups
+	 * with the most work first so that the large ones don't finish last
+	 */
+	void run(int threads, final Task task) throws Exception {
+		double[] keys = new double[numGroups];
+		for (int g = 0; g < numGroups; g++) {
+			keys[g] = work[g];
+		}
+		int[] order = ReadStore.descendingOrder(keys, numGroups);
+
+		if (threads <= 1 || numGroups <= 1) {
+			for (int g : order) {
+				task.run(g);
+			}
+			return;
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, numGroups));
+		try {
+			ArrayList<Future<Object>> results = new ArrayList<Future<Object>>();
+			for (final int g : order) {
+				results.add(pool.submit(new Callable<Object>() {
+					@Override
+					public Object call() throws Exception {
+						task.run(g);
+						return null;
+					}
+				}));
+			}
+			for (Future<Object> f : results) {
+				try {
+					f.get();
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof Exception) {
+						throw (Exception) cause;
+					}
+					throw e;
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,212 @@
+/*
+ * A per-position coverage count for one contig, either as a plain int array or as compact saturating cells allocated in pages
+ */
+
+public abstract class CoverageCounter {
+
+	// Number of positions
+	int size;
+
+	/*
+	 * The count at position i
+	 */
+	abstract int get(int i);
+
+	/*
+	 * Sets the count at position i, saturating if it is too large to store
+	 */
+	abstract void set(int i, int val);
+
+	/*
+	 * A counter of the same kind and size with all counts 0
+	 */
+	abstract CoverageCounter empty();
+
+	/*
+	 * Hands any memory this counter uses back for reuse - it can't be used
+	 * afterwards
+	 */
+	void release() {
+	}
+
+	/*
+	 * Adds delta to the count at position i
+	 */
+	void add(int i, int delta) {
+		set(i, get(i) + delta);
+	}
+
+	/*
+	 * A copy of this counter
+	 */
+	CoverageCounter copy() {
+		CoverageCounter res = empty();
+		for (int i = 0; i < size; i++) {
+			int val = get(i);
+			if (val != 0) {
+				res.set(i, val);
+			}
+		}
+		return res;
+	}
+
+	/*
+	 * Makes a counter for the given number of positions. Compact counters only
+	 * store counts up to the smallest cell size holding the threshold, and only
+	 * allocate memory for regions with nonzero coverage.
+	 */
+	static CoverageCounter create(int size, boolean compact, int threshold) {
+		if (!compact) {
+			return new IntArray(size);
+		} else if (threshold <= PagedByte.MAX) {
+			return new PagedByte(size);
+		} else if (threshold <= PagedShort.MAX) {
+			return new PagedShort(size);
+		}
+		return new IntArray(size);
+	}
+
+	/*
+	 * Whether compact counters should be used for a reference of the given total
+	 * length, which is when plain int arrays for all of the coverage information
+	 * would take up more than a quarter of the available memory
+	 */
+	static boolean shouldCompact(long totalLength, int threshold) {
+		long intBytes = totalLength * ContigCoverage.NUM_COUNTERS * 4;
+		return threshold <= PagedShort.MAX && intBytes > Runtime.getRuntime().maxMemory() / 4;
+	}
+
+	/*
+	 * Exact counts in an int array
+	 */
+	static class IntArray extends CoverageCounter {
+		int[] vals;
+
+		IntArray(int size) {
+			this.size = size;
+			vals = BufferPool.takeInts(size);
+		}
+
+		void release() {
+			if (vals != null) {
+				BufferPool.giveInts(vals);
+				vals = null;
+			}
+		}
+
+		int get(int i) {
+			return vals[i];
+		}
+
+		void set(int i, int val) {
+			vals[i] = val;
+		}
+
+		void add(int i, int delta) {
+			vals[i] += delta;
+		}
+
+		CoverageCounter empty() {
+			return new IntArray(size);
+		}
+
+		CoverageCounter copy() {
+			IntArray res = new IntArray(size);
+			System.arraycopy(vals, 0, res.vals, 0, size);
+			return res;
+		}
+	}
+
+	// Number of positions in each page of a paged counter
+	static final int PAGE_BITS = 16;
+	static final int PAGE_SIZE = 1 << PAGE_BITS;
+	static final int PAGE_MASK = PAGE_SIZE - 1;
+
+	/*
+	 * Counts from 0 to 255 in one byte per position, allocated in pages
+	 */
+	static class PagedByte extends CoverageCounter {
+		static final int MAX = 255;
+
+		byte[][] pages;
+
+		PagedByte(int size) {
+			this.size = size;
+			pages = new byte[(size + PAGE_SIZE - 1) >> PAGE_BITS][];
+		}
+
+		int get(int i) {
+			byte[] page = pages[i >> PAGE_BITS];
+			return page == null ? 0 : (page[i & PAGE_MASK] & 0xff);
+		}
+
+		void set(int i, int val) {
+			byte[] page = pages[i >> PAGE_BITS];
+			if (page == null) {
+				if (val <= 0) {
+					return;
+				}
+				page = pages[i >> PAGE_BITS] = new byte[PAGE_SIZE];
+			}
+			page[i & PAGE_MASK] = (byte) Math.max(0, Math.min(val, MAX));
+		}
+
+		CoverageCounter empty() {
+			return new PagedByte(size);
+		}
+
+		CoverageCounter copy() {
+			PagedByte res = new PagedByte(size);
+			for (int p = 0; p < pages.length; p++) {
+				if (pages[p] != null) {
+					res.pages[p] = pages[p].clone();
+				}
+			}
+			return res;
+		}
+	}
+
+	/*
+	 * Counts from 0 to 65535 in two bytes per position, allocated in pages
+	 */
+	static class PagedShort extends CoverageCounter {
+		static final int MAX = 65535;
+
+		char[][] pages;
+
+		PagedShort(int size) {
+			this.size = size;
+			pages = new char[(size + PAGE_SIZE - 1) >> PAGE_BITS][];
+		}
+
+		int get(int i) {
+			char[] page = pages[i >> PAGE_BITS];
+			return page == null ? 0 : page[i & PAGE_MASK];
+		}
+
+		void set(int i, int val) {
+			char[] page = pages[i >> PAGE_BITS];
+			if (page == null) {
+				if (val <= 0) {
+					return;
+				}
+				page = pages[i >> PAGE_BITS] = new char[PAGE_SIZE];
+			}
+			page[i & PAGE_MASK] = (char) Math.max(0, Math.min(val, MAX));
+		}
+
+		CoverageCounter empty() {
+			return new PagedShort(size);
+		}
+
+		CoverageCounter copy() {
+			PagedShort res = new PagedShort(size);
+			for (int p = 0; p < pages.length; p++) {
+				if (pages[p] != null) {
+					res.pages[p] = pages[p].clone();
+				}
+			}
+			return res;
+		}
+	}
+}
@@ -0,0 +1,299 @@
+/*
+ * A memory-mapped file of cumulative coverage from previous samples, shared between runs which may be updating it at the same time
+ */
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+
+public class CoverageFile {
+
+	// Identifies the file and its layout - the original format had no header and
+	// one signed byte per position
+	static final long MAGIC = 0x3256434e4f43434eL;
+	static final int VERSION = 2;
+
+	// Size of the file header: magic number, version, and bytes per counter
+	static final int HEADER_SIZE = 16;
+	static final int COUNTER_BYTES = 4;
+
+	// Counters are mapped in chunks of this many positions so that no mapping
+	// needs to be larger than 2 GB
+	static final int CHUNK_BITS = 28;
+	static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+	// Atomic access to the little-endian ints in a mapped chunk
+	static final VarHandle COUNTER = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+	// File locks are held by the whole process, so runs in the same process (such
+	// as server jobs) take turns setting up their files before locking them
+	static final Object SETUP_LOCK = new Object();
+
+	RandomAccessFile file;
+
+	// The mapped counters of each contig of the current run, in chunks
+	MappedByteBuffer[][] chunks;
+
+	// The number of positions stored for each contig
+	int[] sizes;
+
+	/*
+	 * Opens a coverage file, creating it if needed and adding sections for any
+	 * contigs it doesn't have yet. Only this setup is done while holding a lock on
+	 * the file - counters are updated atomically afterwards, so runs sharing the
+	 * file don't wait for each other or lose each other's updates. Warnings are
+	 * printed to the given stream.
+	 */
+	CoverageFile(String fn, ReferenceIndex refs, PrintStream out) throws IOException {
+		file = new RandomAccessFile(fn, "rw");
+		FileChannel channel = file.getChannel();
+		HashMap<String, long[]> sections;
+		synchronized (SETUP_LOCK) {
+			sections = setUp(channel, refs, out);
+		}
+
+		chunks = new MappedByteBuffer[refs.size()][];
+		sizes = new int[refs.size()];
+		for (int c = 0; c < refs.size(); c++) {
+			long[] section = sections.get(refs.name(c));
+			int size = (int) section[1];
+			if (size != refs.arraySize(c)) {
+				out.println("Warning: contig " + refs.name(c) + " has length " + (size - 1) + " in coverage file "
+						+ fn + " but " + (refs.arraySize(c) - 1) + " in the input, so only the shared positions are used");
+				size = Math.min(size, refs.arraySize(c));
+			}
+			sizes[c] = size;
+			chunks[c] = new MappedByteBuffer[(size + CHUNK_SIZE - 1) / CHUNK_SIZE];
+			for (int k = 0; k < chunks[c].length; k++) {
+				long length = (long) Math.min(CHUNK_SIZE, size - k * CHUNK_SIZE) * COUNTER_BYTES;
+				chunks[c][k] = channel.map(FileChannel.MapMode.READ_WRITE,
+						section[0] + (long) k * CHUNK_SIZE * COUNTER_BYTES, length);
+				chunks[c][k].order(ByteOrder.LITTLE_ENDIAN);
+			}
+		}
+	}
+
+	/*
+	 * The coverage of a position from all samples which have updated the file so
+	 * far, or 0 if the file doesn't cover it
+	 */
+	int get(int contig, int i) {
+		if (i >= sizes[contig]) {
+			return 0;
+		}
+		return (int) COUNTER.getVolatile(chunks[contig][i >>> CHUNK_BITS], (i & (CHUNK_SIZE - 1)) * COUNTER_BYTES);
+	}
+
+	/*
+	 * Atomically adds to the coverage of a position, saturating rather than
+	 * overflowing
+	 */
+	void add(int contig, int i, int delta) {
+		if (delta == 0 || i >= sizes[contig]) {
+			return;
+		}
+		MappedByteBuffer chunk = chunks[contig][i >>> CHUNK_BITS];
+		int offset = (i & (CHUNK_SIZE - 1)) * COUNTER_BYTES;
+		while (true) {
+			int old = (int) COUNTER.getVolatile(chunk, offset);
+			int val = (int) Math.max(0, Math.min(Integer.MAX_VALUE, (long) old + delta));
+			if (val == old || COUNTER.compareAndSet(chunk, offset, old, val)) {
+				return;
+			}
+		}
+	}
+
+	/*
+	 * Adds the coverage in the file to each contig's read coverage
+	 */
+	void addTo(ContigCoverage[] coverage) {
+		for (int c = 0; c < coverage.length; c++) {
+			for (int i = 0; i < sizes[c]; i++) {
+				int val = get(c, i);
+				if (val != 0) {
+					coverage[c].readCov.add(i, val);
+				}
+			}
+		}
+	}
+
+	/*
+	 * Adds the coverage of the reads kept in this run to the file
+	 */
+	void addKept(ContigCoverage[] coverage) {
+		for (int c = 0; c < coverage.length; c++) {
+			for (int i = 0; i < sizes[c]; i++) {
+				add(c, i, coverage[c].keptCoverage(i));
+			}
+		}
+	}
+
+	void close() throws IOException {
+		chunks = null;
+		file.close();
+	}
+
+	/*
+	 * Under a lock on the file, adds the header and any missing contig sections,
+	 * and returns where each contig's counters are
+	 */
+	static HashMap<String, long[]> setUp(FileChannel channel, ReferenceIndex refs, PrintStream out)
+			throws IOException {
+		FileLock lock = channel.lock();
+		try {
+			if (channel.size() > 0 && !hasHeader(channel)) {
+				upgrade(channel, refs, out);
+			}
+			if (channel.size() == 0) {
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+				header.putLong(MAGIC);
+				header.putInt(VERSION);
+				header.putInt(COUNTER_BYTES);
+				header.flip();
+				writeFully(channel, header, 0);
+			}
+			HashMap<String, long[]> sections = readSections(channel);
+			for (int c = 0; c < refs.size(); c++) {
+				if (!sections.containsKey(refs.name(c))) {
+					sections.put(refs.name(c), appendSection(channel, refs.name(c), refs.arraySize(c)));
+				}
+			}
+			return sections;
+		} finally {
+			lock.release();
+		}
+	}
+
+	static boolean hasHeader(FileChannel channel) throws IOException {
+		if (channel.size() < HEADER_SIZE) {
+			return false;
+		}
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(channel, header, 0);
+		header.flip();
+		if (header.getLong() != MAGIC) {
+			return false;
+		}
+		int version = header.getInt();
+		if (version != VERSION || header.getInt() != COUNTER_BYTES) {
+			throw new IOException("Unsupported coverage file version " + version);
+		}
+		return true;
+	}
+
+	/*
+	 * Finds where the counters for each contig start in the file, and how many
+	 * positions they cover. Each contig's section is the length of its name, the
+	 * name padded to a multiple of 4 bytes, the number of positions, and then one
+	 * counter per position.
+	 */
+	static HashMap<String, long[]> readSections(FileChannel channel) throws IOException {
+		HashMap<String, long[]> sections = new HashMap<String, long[]>();
+		long pos = HEADER_SIZE;
+		ByteBuffer buf = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+		while (pos < channel.size()) {
+			int nameLength = readInt(channel, buf, pos);
+			ByteBuffer name = ByteBuffer.allocate(nameLength);
+			readFully(channel, name, pos + 4);
+			pos += 4 + padded(nameLength);
+			int size = readInt(channel, buf, pos);
+			pos += 4;
+			sections.put(new String(name.array(), "UTF-8"), new long[] { pos, size });
+			pos += (long) size * COUNTER_BYTES;
+		}
+		if (pos != channel.size()) {
+			throw new IOException("Truncated coverage file");
+		}
+		return sections;
+	}
+
+	/*
+	 * Adds an all-zero section for a contig to the end of the file, returning
+	 * where its counters start and how many there are
+	 */
+	static long[] appendSection(FileChannel channel, String name, int size) throws IOException {
+		byte[] nameBytes = name.getBytes("UTF-8");
+		ByteBuffer buf = ByteBuffer.allocate(8 + padded(nameBytes.length)).order(ByteOrder.LITTLE_ENDIAN);
+		buf.putInt(nameBytes.length);
+		buf.put(nameBytes);
+		buf.position(4 + padded(nameBytes.length));
+		buf.putInt(size);
+		buf.flip();
+		long pos = channel.size();
+		writeFully(channel, buf, pos);
+		long countersStart = pos + buf.capacity();
+
+		// Extending the file fills the counters with zeroes
+		ByteBuffer last = ByteBuffer.allocate(1);
+		writeFully(channel, last, countersStart + (long) size * COUNTER_BYTES - 1);
+		return new long[] { countersStart, size };
+	}
+
+	/*
+	 * Rewrites a file in the original format in the current format. The original
+	 * format was one byte per position of a single genome, padded to the maximum
+	 * genome length, so its counts go to the first contig and every other contig
+	 * starts from zero.
+	 */
+	static void upgrade(FileChannel channel, ReferenceIndex refs, PrintStream out) throws IOException {
+		int n = refs.size() == 0 ? 0 : (int) Math.min(channel.size(), refs.arraySize(0));
+		ByteBuffer old = ByteBuffer.allocate(n);
+		readFully(channel, old, 0);
+		old.flip();
+		out.println("Converting coverage file to version " + VERSION);
+		channel.truncate(0);
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.putLong(MAGIC);
+		header.putInt(VERSION);
+		header.putInt(COUNTER_BYTES);
+		header.flip();
+		writeFully(channel, header, 0);
+		for (int c = 0; c < refs.size(); c++) {
+			long[] section = appendSection(channel, refs.name(c), refs.arraySize(c));
+			if (c == 0) {
+				ByteBuffer counters = ByteBuffer.allocate(n * COUNTER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+				for (int i = 0; i < n; i++) {
+					counters.putInt(old.get() & 0xff);
+				}
+				counters.flip();
+				writeFully(channel, counters, section[0]);
+			}
+		}
+	}
+
+	static int padded(int length) {
+		return (length + 3) & ~3;
+	}
+
+	static int readInt(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+		buf.clear();
+		readFully(channel, buf, pos);
+		buf.flip();
+		return buf.getInt();
+	}
+
+	static void readFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+		while (buf.hasRemaining()) {
+			int read = channel.read(buf, pos);
+			if (read < 0) {
+				throw new IOException("Truncated coverage file");
+			}
+			pos += read;
+		}
+	}
+
+	static void writeFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+		while (buf.hasRemaining()) {
+			pos += channel.write(buf, pos);
+		}
+	}
+}
@@ -0,0 +1,243 @@
+/*
+ * An interface for normalizing coverage from other Java code, taking alignments from memory or a channel instead of files. Like the rest of the tool it is in the default package, which code in a named package can't import, so callers need to be in the default package too.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Random;
+
+public class CoverageNormalizer {
+
+	/*
+	 * Settings for normalization, with the same defaults as the command line
+	 */
+	public static class Config {
+		// The coverage to require at each base
+		public int threshold = 50;
+
+		// Whether or not to prioritize reads with higher alignment quality rather
+		// than considering them in a random order
+		public boolean qualSort = false;
+
+		// Whether or not to try to get even coverage between the strands
+		public boolean evenStrand = false;
+
+		// Seed for shuffling reads, or -1 for a different shuffle each time
+		public int seed = -1;
+
+		// How to check whether a read covers a position which needs more coverage
+		public String engine = "segtree";
+
+		// An upper bound on the length of contigs whose length isn't given
+		public int maxLen = 31000;
+
+		// Number of threads to select reads on different contigs with
+		public int threads = Runtime.getRuntime().availableProcessors();
+	}
+
+	/*
+	 * What normalization needs to know about an alignment
+	 */
+	public interface Alignment {
+		// The contig the read is aligned to, or null or "*" if it is unaligned
+		String contig();
+
+		// The first reference position covered (1-based), and one past the last
+		int start();
+
+		int end();
+
+		// Whether the read is aligned to the reverse strand
+		boolean reverse();
+
+		// The length of the read and the number of its bases matching the
+		// reference, which give its alignment quality
+		int queryLength();
+
+		int matches();
+	}
+
+	/*
+	 * Receives the records which are kept
+	 */
+	public interface Sink<T> {
+		void accept(T record) throws IOException;
+	}
+
+	Config config;
+
+	// Contigs with known lengths - each call starts from these, and adds any
+	// others seen in its alignments to its own copy
+	ReferenceIndex knownRefs;
+
+	public CoverageNormalizer(Config config) {
+		this.config = config;
+		knownRefs = new ReferenceIndex(config.maxLen);
+	}
+
+	/*
+	 * Gives the length of a contig, so that its coverage isn't bounded by maxLen
+	 */
+	public void addReference(String name, int length) {
+		knownRefs.add(name, length);
+	}
+
+	/*
+	 * The contigs with known lengths, for one call to add others to
+	 */
+	ReferenceIndex references() {
+		ReferenceIndex refs = new ReferenceIndex(config.maxLen);
+		for (int c = 0; c < knownRefs.size(); c++) {
+			refs.add(knownRefs.name(c), knownRefs.arraySize(c) - 1);
+		}
+		return refs;
+	}
+
+	/*
+	 * Decides which alignments to keep, returning true for each kept one in the
+	 * order they were given
+	 */
+	public boolean[] select(Iterator<? extends Alignment> alignments) {
+		ReadStore reads = new ReadStore();
+		ReferenceIndex refs = references();
+		while (alignments.hasNext()) {
+			add(reads, refs, alignments.next());
+		}
+		return select(reads, refs);
+	}
+
+	/*
+	 * Passes the alignments which are kept to the sink, in the order they were
+	 * given. All alignments are held in memory until the last one has been seen.
+	 */
+	public <T extends Alignment> void normalize(Iterator<T> alignments, Sink<? super T> sink) throws IOException {
+		ReadStore reads = new ReadStore();
+		ReferenceIndex refs = references();
+		ArrayList<T> records = new ArrayList<T>();
+		while (alignments.hasNext()) {
+			T record = alignments.next();
+			records.add(record);
+			add(reads, refs, record);
+		}
+		boolean[] used = select(reads, refs);
+		for (int i = 0; i < records.size(); i++) {
+			if (used[i]) {
+				sink.accept(records.get(i));
+			}
+		}
+	}
+
+	/*
+	 * Decides which records to keep from SAM or Rampart CSV text, returning true
+	 * for each kept record (not counting header lines) in the order they were read
+	 */
+	public boolean[] select(ReadableByteChannel in, boolean csv) throws IOException {
+		return parse(in, csv, null, null);
+	}
+
+	/*
+	 * Copies header lines and the records which are kept from SAM or Rampart CSV
+	 * text to the output. Header lines are written right away, and records are
+	 * held in memory until the input has been read.
+	 */
+	public void normalize(ReadableByteChannel in, boolean csv, OutputStream out) throws IOException {
+		ArrayList<byte[]> records = new ArrayList<byte[]>();
+		boolean[] used = parse(in, csv, out, records);
+		for (int i = 0; i < records.size(); i++) {
+			if (used[i]) {
+				out.write(records.get(i));
+			}
+		}
+		out.flush();
+	}
+
+	/*
+	 * Reads records from the input and decides which to keep, writing header lines
+	 * to out and saving the text of each record in records if they are given
+	 */
+	boolean[] parse(ReadableByteChannel in, boolean csv, OutputStream out, ArrayList<byte[]> records)
+			throws IOException {
+		ReadStore reads = new ReadStore();
+		ReferenceIndex refs = references();
+		RecordTokenizer tokenizer = new RecordTokenizer(in, csv);
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		while (tokenizer.next()) {
+			if (tokenizer.isHeader()) {
+				if (!csv) {
+					refs.parseHeader(tokenizer.line());
+				}
+				if (out != null) {
+					tokenizer.writeLine(out);
+				}
+				continue;
+			}
+			if (records != null) {
+				line.reset();
+				tokenizer.writeLine(line);
+				records.add(line.toByteArray());
+			}
+
+			tokenizer.parse();
+			int contig = tokenizer.contig(refs);
+			int start = 0, end = 0;
+			if (contig != -1) {
+				start = tokenizer.start();
+				end = Math.min(tokenizer.end(), refs.arraySize(contig));
+			}
+			reads.add(reads.size, contig, start, end, tokenizer.strand(), tokenizer.queryLength,
+					tokenizer.numMatches);
+		}
+		tokenizer.close();
+		return select(reads, refs);
+	}
+
+	void add(ReadStore reads, ReferenceIndex refs, Alignment alignment) {
+		String name = alignment.contig();
+		int contig = name == null ? -1 : refs.id(name);
+		int start = 0, end = 0;
+		if (contig != -1) {
+			start = alignment.start();
+			end = Math.min(alignment.end(), refs.arraySize(contig));
+		}
+		reads.add(reads.size, contig, start, end, alignment.reverse() ? 1 : 0, alignment.queryLength(),
+				alignment.matches());
+	}
+
+	/*
+	 * Runs the same selection as the command line on reads which have been
+	 * collected
+	 */
+	boolean[] select(ReadStore reads, ReferenceIndex refs) {
+		NormalizeCoverage settings = new NormalizeCoverage();
+		settings.COV_THRESHOLD = config.threshold;
+		settings.thresholds = new int[] { config.threshold };
+		settings.QUAL_SORT = config.qualSort;
+		settings.evenStrand = config.evenStrand;
+		settings.logStats = false;
+
+		long totalLength = 0;
+		for (int c = 0; c < refs.size(); c++) {
+			totalLength += refs.arraySize(c);
+		}
+		boolean compact = CoverageCounter.shouldCompact(totalLength, config.threshold);
+		String engine = compact ? "linear" : config.engine;
+
+		ContigCoverage[] coverage = settings.totalCoverage(reads, refs, compact);
+		int[] order = settings.readOrder(reads, config.seed == -1 ? new Random() : new Random(config.seed));
+		try {
+			return settings.selectReads(reads, order, coverage, engine, totalLength, config.threads);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		} finally {
+			for (ContigCoverage cc : coverage) {
+				cc.release();
+			}
+		}
+	}
+}
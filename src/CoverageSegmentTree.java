@@ -0,0 +1,89 @@
+/*
+ * Segment tree over reference positions supporting adding to a range and querying the minimum of a range
+ */
+
+public class CoverageSegmentTree {
+
+	// Number of positions covered by the tree
+	int n;
+
+	// Minimum of each subtree, including any pending additions at the node itself
+	int[] min;
+
+	// Amount added to every position under each node which hasn't been pushed to
+	// its children
+	int[] lazy;
+
+	/*
+	 * Builds a tree whose initial values are the first n values of init
+	 */
+	CoverageSegmentTree(int[] init, int n) {
+		this.n = n;
+		min = new int[4 * Math.max(n, 1)];
+		lazy = new int[4 * Math.max(n, 1)];
+		if (n > 0) {
+			build(1, 0, n - 1, init);
+		}
+	}
+
+	void build(int node, int lo, int hi, int[] init) {
+		if (lo == hi) {
+			min[node] = init[lo];
+			return;
+		}
+		int mid = (lo + hi) >>> 1;
+		build(2 * node, lo, mid, init);
+		build(2 * node + 1, mid + 1, hi, init);
+		min[node] = Math.min(min[2 * node], min[2 * node + 1]);
+	}
+
+	/*
+	 * The minimum value over positions [from, to)
+	 */
+	int min(int from, int to) {
+		if (from >= to) {
+			return Integer.MAX_VALUE;
+		}
+		return min(1, 0, n - 1, from, to - 1);
+	}
+
+	int min(int node, int lo, int hi, int from, int to) {
+		if (from <= lo && hi <= to) {
+			return min[node];
+		}
+		int mid = (lo + hi) >>> 1;
+		int res = Integer.MAX_VALUE;
+		if (from <= mid) {
+			res = Math.min(res, min(2 * node, lo, mid, from, to));
+		}
+		if (to > mid) {
+			res = Math.min(res, min(2 * node + 1, mid + 1, hi, from, to));
+		}
+		return res + lazy[node];
+	}
+
+	/*
+	 * Adds delta to every position in [from, to)
+	 */
+	void add(int from, int to, int delta) {
+		if (from < to) {
+			add(1, 0, n - 1, from, to - 1, delta);
+		}
+	}
+
+	void add(int node, int lo, int hi, int from, int to, int delta) {
+		if (from <= lo && hi <= to) {
+			min[node] += delta;
+			lazy[node] += delta;
+			return;
+		}
+		int mid = (lo + hi) >>> 1;
+		if (from <= mid) {
+			add(2 * node, lo, mid, from, to, delta);
+		}
+		if (to > mid) {
+			add(2 * node + 1, mid + 1, hi, from, to, delta);
+		}
+		min[node] = Math.min(min[2 * node], min[2 * node + 1]) + lazy[node];
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * Total and kept coverage of sorted input, worked out just behind the reads as they arrive, so that streaming runs can report on coverage without an array per contig
+ */
+
+import java.io.IOException;
+
+public class CoverageSweep {
+
+	// Channels of coverage followed at each position: total and kept coverage on
+	// each strand, and the number of reads whose decision is still open
+	static final int TOTAL = 0, KEPT = 2, OPEN = 4;
+
+	// A channel which isn't a running total, but counts the open reads starting or
+	// ending at each position, so that listeners can tell when the set of open
+	// reads changes even if their number doesn't
+	static final int OPEN_EVENTS = 5;
+
+	static final int NUM_CHANNELS = 6;
+
+	/*
+	 * Gets the coverage of each position once no read still to come can cover it
+	 */
+	interface Listener {
+		/*
+		 * Called for each position of a contig in order, with the depth of each
+		 * channel there
+		 */
+		void position(int contig, int pos, int[] depth) throws IOException;
+
+		/*
+		 * Called once every position of a contig has been passed on
+		 */
+		void contigDone(int contig) throws IOException;
+	}
+
+	ReferenceIndex refs;
+	Listener listener;
+
+	// The contig being swept and its size, and the next position to pass on
+	int contig = -1, size = 0, pos = 0;
+
+	// Changes in each channel at the positions from pos onwards, in ring buffers
+	// long enough to hold the longest read seen
+	int[][] delta = new int[NUM_CHANNELS][1024];
+	int mask = 1023;
+
+	// Depth of each channel at the last position passed on
+	int[] depth = new int[NUM_CHANNELS];
+
+	CoverageSweep(ReferenceIndex refs, Listener listener) {
+		this.refs = refs;
+		this.listener = listener;
+	}
+
+	/*
+	 * Passes on every position before the given one, finishing the current contig
+	 * first if the position is on another one
+	 */
+	void moveTo(int c, int s) throws IOException {
+		if (c != contig) {
+			finish();
+			contig = c;
+			size = refs.arraySize(c);
+			pos = 0;
+		}
+		advance(Math.min(s, size));
+	}
+
+	/*
+	 * Passes on the rest of the current contig
+	 */
+	void finish() throws IOException {
+		if (contig == -1) {
+			return;
+		}
+		advance(size);
+		listener.contigDone(contig);
+		for (int ch = 0; ch < NUM_CHANNELS; ch++) {
+			depth[ch] = 0;
+		}
+		contig = -1;
+	}
+
+	void advance(int target) throws IOException {
+		for (; pos < target; pos++) {
+			int i = pos & mask;
+			for (int ch = 0; ch < OPEN_EVENTS; ch++) {
+				depth[ch] += delta[ch][i];
+				delta[ch][i] = 0;
+			}
+			depth[OPEN_EVENTS] = delta[OPEN_EVENTS][i];
+			delta[OPEN_EVENTS][i] = 0;
+			listener.position(contig, pos, depth);
+		}
+	}
+
+	/*
+	 * Adds count to a channel over the part of [start, end) on the current contig
+	 * which hasn't been passed on yet
+	 */
+	void add(int channel, int start, int end, int count) {
+		start = Math.max(start, pos);
+		end = Math.min(end, size);
+		if (start >= end) {
+			return;
+		}
+		reserve(end + 1);
+		delta[channel][start & mask] += count;
+		if (end < size) {
+			delta[channel][end & mask] -= count;
+		}
+	}
+
+	/*
+	 * Marks a change in the set of open reads at a position which hasn't been
+	 * passed on yet
+	 */
+	void mark(int p) {
+		if (p >= pos && p < size) {
+			reserve(p + 1);
+			delta[OPEN_EVENTS][p & mask]++;
+		}
+	}
+
+	/*
+	 * Grows the ring buffers so that they reach the given position
+	 */
+	void reserve(int end) {
+		if (end - pos <= mask + 1) {
+			return;
+		}
+		int n = mask + 1;
+		while (end - pos > n) {
+			n *= 2;
+		}
+		int[][] grown = new int[NUM_CHANNELS][n];
+		for (int ch = 0; ch < NUM_CHANNELS; ch++) {
+			for (int p = pos; p < pos + mask + 1; p++) {
+				grown[ch][p & (n - 1)] = delta[ch][p & mask];
+			}
+		}
+		delta = grown;
+		mask = n - 1;
+	}
+}
@@ -0,0 +1,377 @@
+/*
+ * Sorts the reads of an input in any order by position using a bounded amount of memory, writing sorted runs of compact binary records to temporary files and merging them into the streaming selection
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+public class ExternalSort {
+
+	// Memory used for each buffered read: its fields, its sort key, and the
+	// arrays used for sorting
+	static final int BYTES_PER_READ = 49;
+
+	// Size of each read in a run file: contig, start, span, strand, read length,
+	// matches, file offset, and line length
+	static final int RECORD_BYTES = 33;
+
+	// Size of the buffer for reading each run while merging
+	static final int MERGE_BUFFER = 1 << 16;
+
+	// Most runs to merge at once - with more, groups of runs are first merged into
+	// longer ones
+	static final int MAX_FAN_IN = 64;
+
+	// Number of reads the buffer starts out with room for
+	static final int INITIAL_CAPACITY = 1024;
+
+	NormalizeCoverage settings;
+
+	// Where to write runs, and the most space they may take up in bytes, or 0 for
+	// no limit
+	File tmpDir;
+	long maxTmpBytes;
+	long tmpBytes = 0;
+
+	// Files of reads sorted by position, in the order they were written
+	ArrayList<File> runs = new ArrayList<File>();
+
+	// Reads which have been read but not yet written to a run, in arrays which
+	// grow as needed up to the capacity
+	int capacity, size = 0;
+	int[] contig, start, span, readLength, matches, lineLength;
+	byte[] strand;
+	long[] offset;
+
+	ExternalSort(NormalizeCoverage settings) {
+		this.settings = settings;
+		tmpDir = settings.tmpDir.length() == 0 ? null : new File(settings.tmpDir);
+		maxTmpBytes = settings.tmpSpace * 1024L * 1024L;
+
+		// Leave room in the heap for everything else
+		long memory = Math.min(settings.sortMemory * 1024L * 1024L, Runtime.getRuntime().maxMemory() / 2);
+		capacity = (int) Math.max(INITIAL_CAPACITY, Math.min(Integer.MAX_VALUE - 8, memory / BYTES_PER_READ));
+		allocate(INITIAL_CAPACITY);
+	}
+
+	/*
+	 * Gives the buffer room for the given number of reads, keeping the ones in it
+	 */
+	void allocate(int n) {
+		if (contig == null) {
+			contig = new int[n];
+			start = new int[n];
+			span = new int[n];
+			readLength = new int[n];
+			matches = new int[n];
+			lineLength = new int[n];
+			strand = new byte[n];
+			offset = new long[n];
+			return;
+		}
+		contig = Arrays.copyOf(contig, n);
+		start = Arrays.copyOf(start, n);
+		span = Arrays.copyOf(span, n);
+		readLength = Arrays.copyOf(readLength, n);
+		matches = Arrays.copyOf(matches, n);
+		lineLength = Arrays.copyOf(lineLength, n);
+		strand = Arrays.copyOf(strand, n);
+		offset = Arrays.copyOf(offset, n);
+	}
+
+	/*
+	 * Normalizes an input which doesn't need to be sorted, in the same way as
+	 * streaming mode would on the input sorted by position, with reads at the same
+	 * position kept in input order. Only the kept reads are held in memory at the
+	 * end, and they are written out in the order they appear in the input.
+	 */
+	static void run(NormalizeCoverage settings) throws Exception {
+		StreamingNormalizer normalizer = new StreamingNormalizer(settings);
+		ExternalSort sorter = new ExternalSort(settings);
+
+		// Header lines and kept reads, by where they are in the input
+		RecordIndex kept = new RecordIndex();
+		try {
+			sorter.read(normalizer, kept);
+			sorter.merge(normalizer, kept);
+		} finally {
+			for (File f : sorter.runs) {
+				f.delete();
+			}
+		}
+
+		kept.sortRecords();
+		boolean[] used = new boolean[kept.size];
+		Arrays.fill(used, true);
+		kept.writeKept(settings.fn, settings.outputFilename(), RecordIndex.flags(used));
+
+		normalizer.finish();
+	}
+
+	/*
+	 * Reads the input, writing a sorted run whenever the buffer fills up. Reads
+	 * which don't cover anything are passed straight to the normalizer for its
+	 * statistics.
+	 */
+	void read(StreamingNormalizer normalizer, RecordIndex kept) throws IOException {
+		boolean inputCsv = settings.INPUT_CSV;
+		RecordTokenizer input = new RecordTokenizer(settings.fn, inputCsv);
+		ReferenceIndex refs = normalizer.refs;
+		while (input.next()) {
+			if (input.isHeader()) {
+				kept.addHeader(input.offset, input.length);
+				if (!inputCsv) {
+					refs.parseHeader(input.line());
+				}
+				continue;
+			}
+
+			input.parse();
+			int c = input.contig(refs);
+			int s = 0, e = 0;
+			if (c != -1) {
+				s = input.start();
+				e = Math.min(input.end(), refs.arraySize(c));
+			}
+			if (e <= s) {
+				normalizer.offer(c, s, e, input.strand(), input.queryLength, input.numMatches, input.lineCount,
+						input.offset, input.length);
+				continue;
+			}
+
+			if (size == capacity) {
+				writeRun();
+			} else if (size == contig.length) {
+				allocate((int) Math.min(capacity, 2L * size));
+			}
+			contig[size] = c;
+			start[size] = s;
+			span[size] = e - s;
+			strand[size] = (byte) input.strand();
+			readLength[size] = input.queryLength;
+			matches[size] = input.numMatches;
+			offset[size] = input.offset;
+			lineLength[size] = input.length;
+			size++;
+		}
+		input.close();
+	}
+
+	/*
+	 * The order of the buffered reads by position, keeping reads at the same
+	 * position in input order
+	 */
+	int[] sortedOrder() {
+		long[] keys = new long[size];
+		for (int i = 0; i < size; i++) {
+			keys[i] = key(contig[i], start[i]);
+		}
+		return ReadStore.ascendingOrder(keys, size);
+	}
+
+	static long key(int c, int s) {
+		return ((long) c << 32) | (s & 0xffffffffL);
+	}
+
+	/*
+	 * Sorts the buffered reads and writes them to a new temporary file
+	 */
+	void writeRun() throws IOException {
+		reserveTmp((long) size * RECORD_BYTES);
+		int[] order = sortedOrder();
+		File f = createRun();
+		runs.add(f);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), MERGE_BUFFER));
+		for (int i : order) {
+			writeRecord(out, contig[i], start[i], span[i], strand[i], readLength[i], matches[i], offset[i],
+					lineLength[i]);
+		}
+		out.close();
+		size = 0;
+	}
+
+	/*
+	 * Counts more temporary space as used, failing if it is more than allowed
+	 */
+	void reserveTmp(long bytes) throws IOException {
+		tmpBytes += bytes;
+		if (maxTmpBytes > 0 && tmpBytes > maxTmpBytes) {
+			throw new IOException("Sorting " + settings.fn + " needs more than tmp_space=" + settings.tmpSpace
+					+ " MB of temporary space - increase tmp_space or sort_memory");
+		}
+	}
+
+	File createRun() throws IOException {
+		File f = File.createTempFile("reads", ".run", tmpDir);
+		f.deleteOnExit();
+		return f;
+	}
+
+	static void writeRecord(DataOutputStream out, int contig, int start, int span, int strand, int readLength,
+			int matches, long offset, int lineLength) throws IOException {
+		out.writeInt(contig);
+		out.writeInt(start);
+		out.writeInt(span);
+		out.writeByte(strand);
+		out.writeInt(readLength);
+		out.writeInt(matches);
+		out.writeLong(offset);
+		out.writeInt(lineLength);
+	}
+
+	/*
+	 * Passes all of the reads to the normalizer in order of position, either
+	 * straight from the buffer if they all fit in memory, or by merging the runs
+	 */
+	void merge(StreamingNormalizer normalizer, final RecordIndex kept) throws IOException {
+		normalizer.keptReads = new StreamingNormalizer.KeptReads() {
+			@Override
+			public void keep(long offset, int length) {
+				kept.addRecord(offset, length);
+			}
+		};
+		if (runs.size() == 0) {
+			for (int i : sortedOrder()) {
+				normalizer.offer(contig[i], start[i], start[i] + span[i], strand[i], readLength[i], matches[i], 0,
+						offset[i], lineLength[i]);
+			}
+			normalizer.selection.finish();
+			return;
+		}
+
+		if (size > 0) {
+			writeRun();
+		}
+
+		// Free the buffer before merging
+		contig = start = span = readLength = matches = lineLength = null;
+		strand = null;
+		offset = null;
+		settings.out.println("Merging " + runs.size() + " sorted runs of reads");
+		reduceRuns();
+
+		PriorityQueue<Run> queue = openRuns(runs);
+		while (!queue.isEmpty()) {
+			Run run = queue.poll();
+			normalizer.offer(run.contig, run.start, run.start + run.span, run.strand, run.readLength, run.matches, 0,
+					run.offset, run.lineLength);
+			if (run.next()) {
+				queue.add(run);
+			}
+		}
+		normalizer.selection.finish();
+	}
+
+	/*
+	 * Merges groups of consecutive runs into longer runs until there are few enough
+	 * to merge at once. Since the groups are consecutive, reads at the same
+	 * position still come out in input order.
+	 */
+	void reduceRuns() throws IOException {
+		while (runs.size() > MAX_FAN_IN) {
+			ArrayList<File> merged = new ArrayList<File>();
+			for (int from = 0; from < runs.size(); from += MAX_FAN_IN) {
+				List<File> group = runs.subList(from, Math.min(runs.size(), from + MAX_FAN_IN));
+				if (group.size() == 1) {
+					merged.add(group.get(0));
+					continue;
+				}
+
+				// The merged run is written before the group is deleted, so it needs
+				// space of its own for a while
+				long groupBytes = 0;
+				for (File f : group) {
+					groupBytes += f.length();
+				}
+				reserveTmp(groupBytes);
+				File f = createRun();
+				merged.add(f);
+				DataOutputStream out = new DataOutputStream(
+						new BufferedOutputStream(new FileOutputStream(f), MERGE_BUFFER));
+				PriorityQueue<Run> queue = openRuns(group);
+				while (!queue.isEmpty()) {
+					Run run = queue.poll();
+					writeRecord(out, run.contig, run.start, run.span, run.strand, run.readLength, run.matches,
+							run.offset, run.lineLength);
+					if (run.next()) {
+						queue.add(run);
+					}
+				}
+				out.close();
+				for (File g : group) {
+					g.delete();
+				}
+				tmpBytes -= groupBytes;
+			}
+			runs = merged;
+		}
+	}
+
+	/*
+	 * Opens runs for merging, with the next read from each one in a queue and ties
+	 * going to the earlier run so that reads at the same position stay in input
+	 * order
+	 */
+	static PriorityQueue<Run> openRuns(List<File> files) throws IOException {
+		PriorityQueue<Run> queue = new PriorityQueue<Run>(Math.max(files.size(), 1), new Comparator<Run>() {
+			@Override
+			public int compare(Run a, Run b) {
+				int res = Long.compare(key(a.contig, a.start), key(b.contig, b.start));
+				return res != 0 ? res : Integer.compare(a.id, b.id);
+			}
+		});
+		for (int i = 0; i < files.size(); i++) {
+			Run run = new Run(files.get(i), i);
+			if (run.next()) {
+				queue.add(run);
+			}
+		}
+		return queue;
+	}
+
+	/*
+	 * A run file being read back, holding its next read
+	 */
+	static class Run {
+		int id;
+		DataInputStream in;
+		long remaining;
+
+		int contig, start, span, strand, readLength, matches, lineLength;
+		long offset;
+
+		Run(File f, int id) throws IOException {
+			this.id = id;
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), MERGE_BUFFER));
+			remaining = f.length() / RECORD_BYTES;
+		}
+
+		boolean next() throws IOException {
+			if (remaining == 0) {
+				in.close();
+				return false;
+			}
+			remaining--;
+			contig = in.readInt();
+			start = in.readInt();
+			span = in.readInt();
+			strand = in.readByte();
+			readLength = in.readInt();
+			matches = in.readInt();
+			offset = in.readLong();
+			lineLength = in.readInt();
+			return true;
+		}
+	}
+}
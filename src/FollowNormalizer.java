@@ -0,0 +1,201 @@
+/*
+ * Normalizes reads as they are written to a file (or stdin) during a sequencing run, deciding on each read as soon as it arrives
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+
+public class FollowNormalizer {
+
+	// How long to wait before checking a file for more reads
+	static final int POLL_MILLIS = 200;
+
+	/*
+	 * Whether a contig's selection and reporting counters should be compact ones,
+	 * which is decided per contig since contigs may turn up during the run
+	 */
+	static boolean compact(NormalizeCoverage settings, int size) {
+		return settings.compactCoverage || CoverageCounter.shouldCompact(size, settings.COV_THRESHOLD);
+	}
+
+	/*
+	 * Reads records as they are appended to the input, keeping a read if any base
+	 * it covers has less than the threshold coverage from the reads kept so far,
+	 * in the order they arrive. Kept reads are written out at the end of each
+	 * batch of newly arrived records, and the time taken for each batch is
+	 * reported. Stops at the end of stdin, or once a file hasn't grown for the
+	 * timeout.
+	 */
+	static void run(NormalizeCoverage settings) throws Exception {
+		// Selection state for each contig, which lasts for the whole run, along with
+		// total and kept coverage used for reporting
+		ArrayList<CoverageCounter> selected = new ArrayList<CoverageCounter>();
+		ArrayList<ContigCoverage> coverage = new ArrayList<ContigCoverage>();
+		try {
+			follow(settings, selected, coverage);
+		} finally {
+			for (CoverageCounter counter : selected) {
+				counter.release();
+			}
+			for (ContigCoverage cc : coverage) {
+				cc.release();
+			}
+		}
+	}
+
+	static void follow(NormalizeCoverage settings, ArrayList<CoverageCounter> selected,
+			ArrayList<ContigCoverage> coverage) throws Exception {
+		int threshold = settings.COV_THRESHOLD;
+		boolean inputCsv = settings.INPUT_CSV;
+
+		if (settings.coverageFn != null && settings.coverageFn.length() > 0) {
+			settings.out.println("Warning: covfile is not supported in follow mode and will be ignored");
+		}
+		if (settings.evenStrand) {
+			settings.out.println("Warning: --even_strand needs the total coverage in advance and is ignored in follow mode");
+		}
+		if (settings.QUAL_SORT) {
+			settings.out.println("Warning: reads are considered in the order they arrive in follow mode");
+		}
+
+		boolean stdin = NormalizeCoverage.isStdin(settings.fn);
+		RecordTokenizer input;
+		if (stdin) {
+			input = new RecordTokenizer(Channels.newChannel(System.in), inputCsv);
+		} else {
+			input = new RecordTokenizer(new FileInputStream(new File(settings.fn)).getChannel(), inputCsv);
+			input.follow = true;
+		}
+		BufferedOutputStream out = new BufferedOutputStream(
+				new FileOutputStream(new File(settings.outputFilename())));
+
+		ReferenceIndex refs = new ReferenceIndex(settings.MAX_LEN);
+		ArrayList<ReadSelector> selectors = new ArrayList<ReadSelector>();
+
+		double totalQual = 0, usedTotalQual = 0;
+		int totalCount = 0, usedCount = 0;
+		int totalBases = 0, usedBases = 0;
+
+		// Reads seen and kept in the current batch, and when it started
+		int batch = 0, batchCount = 0, batchUsed = 0;
+		long batchStart = 0;
+		long totalLatency = 0, maxLatency = 0;
+
+		long lastInput = System.currentTimeMillis();
+		long timeout = settings.followTimeout * 1000L;
+
+		while (true) {
+			if (!input.next()) {
+				if (!input.follow) {
+					break;
+				}
+
+				// Nothing more has been written yet
+				if (System.currentTimeMillis() - lastInput >= timeout) {
+					// Any unterminated last line is a complete record at this point
+					input.follow = false;
+					continue;
+				}
+				Thread.sleep(POLL_MILLIS);
+				continue;
+			}
+			long now = System.currentTimeMillis();
+			lastInput = now;
+			if (batchStart == 0) {
+				batchStart = now;
+			}
+
+			if (input.isHeader()) {
+				input.writeLine(out);
+				if (!inputCsv) {
+					refs.parseHeader(input.line());
+				}
+			} else {
+				input.parse();
+				int contig = input.contig(refs);
+				int start = 0, end = 0;
+				if (contig != -1) {
+					start = input.start();
+					end = Math.min(input.end(), refs.arraySize(contig));
+				}
+				int strand = input.strand();
+				double qual = input.qual();
+
+				totalCount++;
+				batchCount++;
+				totalQual += qual;
+				totalBases += end - start;
+
+				// Reads which don't cover anything (e.g., unmapped) are never kept
+				if (end > start) {
+					while (coverage.size() < refs.size()) {
+						int size = refs.arraySize(coverage.size());
+						boolean compact = compact(settings, size);
+						coverage.add(new ContigCoverage(size, compact, threshold));
+						selected.add(CoverageCounter.create(size, compact, threshold));
+						selectors.add(ReadSelector.create(compact ? "linear" : settings.engine,
+								selected.get(selected.size() - 1), threshold, null));
+					}
+
+					ContigCoverage cc = coverage.get(contig);
+					cc.addRead(start, end, strand);
+					ReadSelector selector = selectors.get(contig);
+					if (selector.wantRead(start, end, strand)) {
+						selector.keepRead(start, end, strand);
+						cc.addKeptRead(start, end, strand);
+						input.writeLine(out);
+
+						usedCount++;
+						batchUsed++;
+						usedTotalQual += qual;
+						usedBases += end - start;
+					}
+				}
+			}
+
+			// The batch ends once every record read so far has been handled
+			if (!input.lineBuffered()) {
+				out.flush();
+				if (batchCount > 0) {
+					long latency = System.currentTimeMillis() - batchStart;
+					batch++;
+					totalLatency += latency;
+					maxLatency = Math.max(maxLatency, latency);
+					settings.out.println("Batch " + batch + ": " + batchCount + " reads, " + batchUsed + " kept ("
+							+ usedCount + " of " + totalCount + " so far), latency " + latency + " ms");
+				}
+				batchCount = batchUsed = 0;
+				batchStart = 0;
+			}
+		}
+		input.close();
+		out.close();
+
+		if (batch > 0) {
+			settings.out.printf("Batches: %d, mean latency %.1f ms, max latency %d ms\n", batch,
+					(double) totalLatency / batch, maxLatency);
+		}
+
+		// Make sure contigs with no reads are included too
+		while (coverage.size() < refs.size()) {
+			int size = refs.arraySize(coverage.size());
+			coverage.add(new ContigCoverage(size, compact(settings, size), threshold));
+		}
+		ContigCoverage[] coverageArray = coverage.toArray(new ContigCoverage[0]);
+		for (ContigCoverage cc : coverageArray) {
+			cc.finishTotals();
+			cc.finishKept();
+		}
+
+		settings.printStats(totalCount, usedCount, totalQual, usedTotalQual, totalBases, usedBases, refs,
+				coverageArray, settings.out);
+
+		if (settings.logStats) {
+			settings.writeCoverageLogs(coverageArray);
+		}
+	}
+}
@@ -0,0 +1,263 @@
+/*
+ * A long-running server which accepts normalization jobs over local HTTP and runs them in a warm JVM with a limit on how many run at once
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class NormalizationServer {
+
+	// The port to listen on, only on the loopback interface
+	static int port = 8765;
+
+	// The most jobs to run at the same time - others wait in a queue
+	static int maxJobs = Runtime.getRuntime().availableProcessors();
+
+	// How many finished jobs to remember, and for how many seconds - older ones
+	// and their output are forgotten
+	static int keepJobs = 100;
+	static int jobTtl = 3600;
+
+	// Every job submitted and not yet forgotten, by ID, and the finished ones in
+	// the order they finished
+	static ConcurrentSkipListMap<Integer, Job> jobs = new ConcurrentSkipListMap<Integer, Job>();
+	static ArrayDeque<Job> finishedJobs = new ArrayDeque<Job>();
+	static AtomicInteger nextId = new AtomicInteger(1);
+
+	static ExecutorService pool;
+
+	/*
+	 * Prints out usage instructions
+	 */
+	static void usage() {
+		System.out.println("Usage: java -cp src NormalizationServer [args]");
+		System.out.println("  Example: java -cp src NormalizationServer port=8765 max_jobs=4");
+		System.out.println();
+		System.out.println("Optional args:");
+		System.out.println("  port      (int) [8765]   - the local port to listen on");
+		System.out.println("  max_jobs  (int) [#cores] - the number of jobs to run at once, each with #cores / max_jobs threads unless threads is given");
+		System.out.println("  keep_jobs (int) [100]    - the number of finished jobs to keep the status and output of");
+		System.out.println("  job_ttl   (int) [3600]   - the seconds to keep the status and output of a finished job");
+		System.out.println();
+		System.out.println("Endpoints:");
+		System.out.println("  POST /jobs      - submit a job, with NormalizeCoverage arguments as the body; returns the job ID");
+		System.out.println("  GET  /jobs      - list running, queued and recently finished jobs with their status and timings");
+		System.out.println("  GET  /jobs/<id> - the status, timings, and output of one job");
+		System.out.println();
+	}
+
+	/*
+	 * Parses command line arguments
+	 */
+	static void parseArgs(String[] args) {
+		for (String s : args) {
+			int equalsIdx = s.indexOf('=');
+			if (equalsIdx == -1) {
+				continue;
+			}
+			String key = s.substring(0, equalsIdx).toLowerCase();
+			String val = s.substring(1 + equalsIdx);
+			if (key.equals("port")) {
+				port = Integer.parseInt(val);
+			} else if (key.equals("max_jobs")) {
+				maxJobs = Integer.parseInt(val);
+			} else if (key.equals("keep_jobs")) {
+				keepJobs = Integer.parseInt(val);
+			} else if (key.equals("job_ttl")) {
+				jobTtl = Integer.parseInt(val);
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0 && (args[0].equalsIgnoreCase("-h") || args[0].equalsIgnoreCase("--help"))) {
+			usage();
+			System.exit(0);
+		}
+		parseArgs(args);
+
+		pool = Executors.newFixedThreadPool(Math.max(1, maxJobs));
+		HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/jobs", new JobHandler());
+		server.start();
+		System.out.println("Listening on http://localhost:" + port + "/jobs with up to " + maxJobs + " jobs at once");
+	}
+
+	/*
+	 * A submitted job and what has happened to it so far
+	 */
+	static class Job implements Runnable {
+		int id;
+		String[] args;
+		volatile String status = "queued";
+		volatile int exitStatus = -1;
+
+		// When the job was submitted, started, and finished
+		volatile long submitted, started, finished;
+
+		// Everything the job printed, including any error
+		ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+		Job(int id, String[] args) {
+			this.id = id;
+			this.args = args;
+			submitted = System.currentTimeMillis();
+		}
+
+		/*
+		 * Runs NormalizeCoverage with the job's arguments, keeping what it prints
+		 */
+		@Override
+		public void run() {
+			started = System.currentTimeMillis();
+			status = "running";
+			NormalizeCoverage normalizer = new NormalizeCoverage();
+			normalizer.out = new PrintStream(log, true);
+			try {
+				// Jobs run side by side, so each one's logs are named after its output
+				normalizer.parseArgs(args);
+				normalizer.useOutputLogPrefix();
+				exitStatus = normalizer.run(args);
+				status = exitStatus == 0 ? "done" : "failed";
+			} catch (Throwable e) {
+				e.printStackTrace(normalizer.out);
+				status = "failed";
+			} finally {
+				normalizer.out.flush();
+				finished = System.currentTimeMillis();
+				addFinished(this);
+			}
+		}
+
+		/*
+		 * Milliseconds spent waiting to start and running, so far if not finished
+		 */
+		long waitTime() {
+			return (started == 0 ? System.currentTimeMillis() : started) - submitted;
+		}
+
+		long runTime() {
+			if (started == 0) {
+				return 0;
+			}
+			return (finished == 0 ? System.currentTimeMillis() : finished) - started;
+		}
+
+		String summary() {
+			return id + "\t" + status + "\t" + exitStatus + "\t" + waitTime() + "\t" + runTime() + "\t"
+					+ String.join(" ", args);
+		}
+	}
+
+	/*
+	 * Remembers a finished job, forgetting the oldest ones if there are too many
+	 */
+	static synchronized void addFinished(Job job) {
+		finishedJobs.add(job);
+		evict();
+	}
+
+	/*
+	 * Forgets finished jobs beyond the most to keep or older than the TTL
+	 */
+	static synchronized void evict() {
+		long cutoff = System.currentTimeMillis() - jobTtl * 1000L;
+		while (!finishedJobs.isEmpty() && (finishedJobs.size() > keepJobs || finishedJobs.peek().finished < cutoff)) {
+			jobs.remove(finishedJobs.poll().id);
+		}
+	}
+
+	/*
+	 * Handles submitting jobs and reporting on them
+	 */
+	static class JobHandler implements HttpHandler {
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				String path = exchange.getRequestURI().getPath();
+				String method = exchange.getRequestMethod();
+				if (method.equals("POST") && path.equals("/jobs")) {
+					String body = new String(readAll(exchange.getRequestBody()), "UTF-8").trim();
+					ArrayList<String> args = new ArrayList<String>();
+					boolean threadsGiven = false;
+					for (String token : body.split("\\s+")) {
+						if (token.length() > 0) {
+							args.add(token);
+							threadsGiven |= token.toLowerCase().startsWith("threads=");
+						}
+					}
+
+					// Jobs share the cores unless told how many threads to use
+					if (!threadsGiven) {
+						args.add("threads="
+								+ NormalizeCoverage.sampleThreads(Runtime.getRuntime().availableProcessors(), maxJobs));
+					}
+					Job job = new Job(nextId.getAndIncrement(), args.toArray(new String[0]));
+					jobs.put(job.id, job);
+					pool.submit(job);
+					respond(exchange, 202, job.id + "\n");
+				} else if (method.equals("GET") && (path.equals("/jobs") || path.equals("/jobs/"))) {
+					evict();
+					StringBuilder res = new StringBuilder("id\tstatus\texit\twait_ms\trun_ms\targs\n");
+					for (Job job : jobs.values()) {
+						res.append(job.summary() + "\n");
+					}
+					respond(exchange, 200, res.toString());
+				} else if (method.equals("GET") && path.startsWith("/jobs/")) {
+					evict();
+					Job job = null;
+					try {
+						job = jobs.get(Integer.parseInt(path.substring("/jobs/".length())));
+					} catch (NumberFormatException e) {
+					}
+					if (job == null) {
+						respond(exchange, 404, "No such job\n");
+						return;
+					}
+					String log = job.log.toString("UTF-8");
+					respond(exchange, 200, "id\t" + job.id + "\nstatus\t" + job.status + "\nexit\t" + job.exitStatus
+							+ "\nwait_ms\t" + job.waitTime() + "\nrun_ms\t" + job.runTime() + "\nargs\t"
+							+ String.join(" ", job.args) + "\n\n" + log);
+				} else {
+					respond(exchange, 404, "Unknown request " + method + " " + path + "\n");
+				}
+			} finally {
+				exchange.close();
+			}
+		}
+
+		static byte[] readAll(InputStream in) throws IOException {
+			ByteArrayOutputStream res = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			int read;
+			while ((read = in.read(buf)) != -1) {
+				res.write(buf, 0, read);
+			}
+			return res.toByteArray();
+		}
+
+		static void respond(HttpExchange exchange, int code, String body) throws IOException {
+			byte[] bytes = body.getBytes("UTF-8");
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+			exchange.sendResponseHeaders(code, bytes.length);
+			OutputStream out = exchange.getResponseBody();
+			out.write(bytes);
+			out.close();
+		}
+	}
+}
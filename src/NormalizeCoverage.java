@@ -1,44 +1,132 @@
 /*
- * Takes a sorted SAM file and downsamples the reads in a way that tries to get close to uniform coverage
+ * Takes a SAM file and downsamples the reads in a way that tries to get close to uniform coverage
  */
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
 import java.io.PrintWriter;
-import java.io.RandomAccessFile;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.Scanner;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public class NormalizeCoverage {
 
 	// Maximum length allowed - make sure it's longer than genome length
-	static int MAX_LEN = 31000;
+	int MAX_LEN = 31000;
 
 	// The amount of coverage we want to keep everywhere
-	static int COV_THRESHOLD = 50;
+	int COV_THRESHOLD = 50;
+
+	// All of the thresholds to downsample to if more than one was given
+	int[] thresholds = new int[] { 50 };
 
 	// Whether or not to sort by quality values
-	static boolean QUAL_SORT = false;
+	boolean QUAL_SORT = false;
+
+	// Seed for shuffling reads, or -1 for a different shuffle each run
+	int RAND_SEED = -1;
 
-	static int RAND_SEED = -1;
+	// Number of independently shuffled downsamples to make from one parse of the
+	// input
+	int replicates = 1;
 
 	// Whether or not to use Rampart-style CSV files in place of SAM files
-	static boolean INPUT_CSV = false;
+	boolean INPUT_CSV = false;
 
 	// Input and output filenames
-	static String fn = "", ofn = "";
+	String fn = "", ofn = "";
 
 	// File containing the cumulative coverage information with one byte per
 	// position
-	static String coverageFn = "";
+	String coverageFn = "";
 
 	// Whether or not to perform logging
-	static boolean logStats = true;
+	boolean logStats = true;
 
 	// Whether or not to prioritize keeping strand coverage even
-	static boolean evenStrand = false;
+	boolean evenStrand = false;
+
+	// Whether or not to make a single pass over coordinate-sorted input
+	boolean streaming = false;
+
+	// Whether or not to sort the input by position on disk before streaming
+	// through it, how much memory to use for sorting in MB, where to put the
+	// sorted runs, and the most space they can use in MB (0 for no limit)
+	boolean externalSort = false;
+	int sortMemory = 512;
+	String tmpDir = "";
+	int tmpSpace = 0;
+
+	// How to check whether a read covers a position which needs more coverage
+	String engine = "segtree";
+
+	// Whether or not to always use compact, saturating coverage counters rather
+	// than only for large references
+	boolean compactCoverage = false;
+
+	// Whether or not to write the kept reads as a sorted, indexed BAM file even
+	// if the output filename doesn't end in .bam
+	boolean bamOutput = false;
+
+	// Whether or not to keep the parsed reads in a binary file next to the input,
+	// and load them from it instead of parsing the input when it is up to date
+	boolean useCache = false;
+
+	// With pre-thinning, the candidate coverage to keep at each position of the
+	// genome as a multiple of the threshold (0 for no pre-thinning), and the size
+	// of the windows the candidates are sampled from
+	int prethin = 0;
+	int prethinWindow = 1000;
+
+	// The candidates kept by pre-thinning and where they are in the input
+	WindowReservoir reservoir;
+
+	// Whether or not to select reads in windows of the genome on multiple threads
+	boolean parallel = false;
+
+	// The size of the windows used for parallel selection, or 0 to pick one
+	// based on the genome size, number of threads, and read lengths
+	int windowSize = 0;
+
+	// Whether or not to keep reading the input as it grows, deciding on each read
+	// as it arrives
+	boolean follow = false;
+
+	// How many seconds to wait for the input to grow before finishing in follow
+	// mode
+	int followTimeout = 60;
+
+	// File to write snapshots of selection progress to, how often to write them
+	// in seconds, and the snapshot to resume from (which is also kept up to date)
+	String checkpointFn = "";
+	int checkpointInterval = 60;
+	String resumeFn = "";
+
+	// Number of threads to use for parallel selection and for compressing and
+	// decompressing BAM files
+	int threads = Runtime.getRuntime().availableProcessors();
+
+	// A file listing samples to normalize, one per line, and how many of them
+	// to run at once
+	String manifestFn = "";
+	int maxJobs = Runtime.getRuntime().availableProcessors();
+
+	// Where to print statistics and messages
+	PrintStream out = System.out;
+
+	// Prepended to the names of the logging files
+	String logPrefix = "";
 
 	/*
 	 * Prints out usage instructions
@@ -48,20 +136,52 @@ public class NormalizeCoverage {
 		System.out.println("  Example: java -cp src NormalizeCoverage input=jhu004.sam");
 		System.out.println();
 		System.out.println("Required args:");
-		System.out.println("  input (String) - a SAM file with the alignments of all of the reads");
+		System.out.println("  input (String) - a SAM or BAM file with the alignments of all of the reads");
 		System.out.println();
 		System.out.println("Optional args:");
 		System.out.println(
 				"  coverage_threshold (int)    [50]    - the coverage to require at each base (if original coverage is high enough)");
-		System.out.println("  genome_max_len     (int)    [31000] - an upper bound on the genome length");
+		System.out.println(
+				"                                        a comma-separated list writes one output per threshold plus a stats table");
+		System.out.println("  genome_max_len     (int)    [31000] - an upper bound on the length of contigs without an @SQ header line");
 		System.out.println("  output             (String) []      - the file to write downsampled reads to");
 		System.out.println("  covfile            (String) []      - the file containing coverage from other samples");
+		System.out.println("  engine             (String) [segtree] - how to select reads: segtree (range queries) or linear (per-base scan)");
+		System.out.println("  threads            (int)    [#cores] - the number of threads to use for parallel selection and BAM compression");
+		System.out.println("  window_size        (int)    [auto]  - the size of the genome windows used with --parallel");
+		System.out.println("  replicates         (int)    [1]     - the number of downsamples to make, written to output_1, output_2, ...");
+		System.out.println("  seed               (int)    [random] - the random seed for shuffling reads (replicate i uses seed+i-1)");
+		System.out.println("  sort_memory        (int)    [512]   - with --external_sort, the MB of memory to sort reads in before writing them to disk");
+		System.out.println("  tmp_dir            (String) [system] - the directory for sorted runs of reads with --external_sort");
+		System.out.println("  tmp_space          (int)    [0]     - the most MB of sorted runs to write to tmp_dir (0 for no limit)");
+		System.out.println("  follow_timeout     (int)    [60]    - with --follow, the seconds to wait for more input before finishing");
+		System.out.println("  checkpoint         (String) []      - a file to save selection progress to periodically, removed when the run finishes");
+		System.out.println("  checkpoint_interval (int)   [60]    - the seconds between checkpoints");
+		System.out.println("  resume             (String) []      - a checkpoint to continue an interrupted run from (and keep updating)");
+		System.out.println("  manifest           (String) []      - a TSV file of samples (input, then optionally output and threshold) to normalize instead of input");
+		System.out.println("  max_jobs           (int)    [#cores] - with a manifest, the number of samples to normalize at once");
+		System.out.println("  prethin            (int)    [0]     - keep a random sample of the reads overlapping each window covering it about this many times the threshold, and select from those");
+		System.out.println("  prethin_window     (int)    [1000]  - the size of the windows used for prethin");
 		System.out.println("  --qual_sort                         - prioritize reads with higher alignment quality");
 		System.out
 				.println("  --input_csv                         - expect the input to be a Rampart-formatted CSV file");
 		System.out.println("  --no_logging                        - don't produce logging files");
 		System.out.println(
 				"  --even_strand                       - tries to get even coverage between the strands when possible");
+		System.out.println(
+				"  --streaming                         - read coordinate-sorted input once, deciding on reads as it moves past them (kept coverage can overshoot the threshold in places)");
+		System.out.println(
+				"  --external_sort                     - sort unsorted SAM or CSV input by position on disk, then normalize it as with --streaming");
+		System.out.println(
+				"  --compact_coverage                  - store coverage in saturating counters (automatic for large references)");
+		System.out.println(
+				"  --parallel                          - select reads in genome windows on multiple threads (output differs from a sequential run)");
+		System.out.println(
+				"  --bam_output                        - write a coordinate-sorted BAM file and BAI index (also used if output ends in .bam)");
+		System.out.println(
+				"  --cache                             - save parsed reads to <input>.ncidx and load them from it on later runs");
+		System.out.println(
+				"  --follow                            - keep reading the input as it grows (or stdin if input=-), writing kept reads right away");
 
 		System.out.println();
 	}
@@ -69,7 +189,7 @@ public class NormalizeCoverage {
 	/*
 	 * Parses command line arguments
 	 */
-	static void parseArgs(String[] args) {
+	void parseArgs(String[] args) {
 		for (String str : args) {
 			String s = str;
 			int equalsIdx = s.indexOf('=');
@@ -86,6 +206,27 @@ public class NormalizeCoverage {
 				if (s.endsWith("even_strand")) {
 					evenStrand = true;
 				}
+				if (s.endsWith("streaming")) {
+					streaming = true;
+				}
+				if (s.endsWith("external_sort")) {
+					externalSort = true;
+				}
+				if (s.endsWith("compact_coverage")) {
+					compactCoverage = true;
+				}
+				if (s.endsWith("bam_output")) {
+					bamOutput = true;
+				}
+				if (s.endsWith("parallel")) {
+					parallel = true;
+				}
+				if (s.endsWith("cache")) {
+					useCache = true;
+				}
+				if (s.endsWith("follow")) {
+					follow = true;
+				}
 			} else {
 				String key = s.substring(0, equalsIdx).toLowerCase();
 				String val = s.substring(1 + equalsIdx);
@@ -97,210 +238,695 @@ public class NormalizeCoverage {
 				} else if (key.equals("covfile")) {
 					coverageFn = val;
 				} else if (key.equals("coverage_threshold")) {
-					COV_THRESHOLD = Integer.parseInt(val);
+					// A comma-separated list gives one output per threshold
+					String[] tokens = val.split(",");
+					thresholds = new int[tokens.length];
+					for (int i = 0; i < tokens.length; i++) {
+						thresholds[i] = Integer.parseInt(tokens[i].trim());
+						COV_THRESHOLD = Math.max(i == 0 ? 0 : COV_THRESHOLD, thresholds[i]);
+					}
 				} else if (key.equals("genome_max_len")) {
 					MAX_LEN = Integer.parseInt(val);
+				} else if (key.equals("engine")) {
+					engine = val;
+				} else if (key.equals("threads")) {
+					threads = Integer.parseInt(val);
+				} else if (key.equals("window_size")) {
+					windowSize = Integer.parseInt(val);
+				} else if (key.equals("replicates")) {
+					replicates = Integer.parseInt(val);
+				} else if (key.equals("seed")) {
+					RAND_SEED = Integer.parseInt(val);
+				} else if (key.equals("follow_timeout")) {
+					followTimeout = Integer.parseInt(val);
+				} else if (key.equals("checkpoint")) {
+					checkpointFn = val;
+				} else if (key.equals("checkpoint_interval")) {
+					checkpointInterval = Integer.parseInt(val);
+				} else if (key.equals("manifest")) {
+					manifestFn = val;
+				} else if (key.equals("max_jobs")) {
+					maxJobs = Integer.parseInt(val);
+				} else if (key.equals("prethin")) {
+					prethin = Integer.parseInt(val);
+				} else if (key.equals("prethin_window")) {
+					prethinWindow = Integer.parseInt(val);
+				} else if (key.equals("sort_memory")) {
+					sortMemory = Integer.parseInt(val);
+				} else if (key.equals("tmp_dir")) {
+					tmpDir = val;
+				} else if (key.equals("tmp_space")) {
+					tmpSpace = Integer.parseInt(val);
+				} else if (key.equals("resume")) {
+					resumeFn = val;
+					checkpointFn = val;
 				}
 			}
 		}
 	}
 
 	public static void main(String[] args) throws Exception {
+		int status = new NormalizeCoverage().run(args);
+		if (status != 0) {
+			System.exit(status);
+		}
+	}
+
+	/*
+	 * Runs normalization with the given command line arguments, returning the exit
+	 * status
+	 */
+	int run(String[] args) throws Exception {
 		// Print help menu for -h or --help
 		if (args.length == 0 || args[0].equalsIgnoreCase("-h") || args[0].equalsIgnoreCase("--help")) {
 			usage();
-			System.exit(0);
+			return 0;
 		} else {
 			parseArgs(args);
 		}
 
+		if (manifestFn.length() > 0) {
+			return runManifest(args);
+		}
+
+		if (isStdin(fn) && (!follow || ofn.length() == 0)) {
+			out.println("\nReading from stdin needs --follow and an output filename\n");
+			return 1;
+		}
+
 		// Check that input file actually exists
-		if (!new File(fn).exists()) {
-			System.out.println("\nInput file " + fn + " does not exist!\n");
-			System.exit(1);
+		if (!isStdin(fn) && !new File(fn).exists()) {
+			out.println("\nInput file " + fn + " does not exist!\n");
+			return 1;
 		}
 
-		Scanner input = new Scanner(new FileInputStream(new File(fn)));
+		boolean bamInput = isBam(fn);
 
-		// Get the reference intervals for all reads
-		ArrayList<Read> reads = new ArrayList<Read>();
-		int lineIdx = 0;
-		while (input.hasNext()) {
-			String line = input.nextLine();
+		// External sorting feeds the sorted reads into streaming mode
+		if (externalSort) {
+			streaming = true;
+		}
+		if (streaming && (bamInput || isBam(outputFilename()))) {
+			out.println("\nStreaming mode does not support BAM input or output\n");
+			return 1;
+		}
+		if (INPUT_CSV && isBam(outputFilename())) {
+			out.println("\nCSV input can't be written as BAM\n");
+			return 1;
+		}
+		if (thresholds.length > 1 && (replicates > 1 || streaming)) {
+			out.println("\nMultiple thresholds can't be combined with replicates or streaming mode\n");
+			return 1;
+		}
+		if (bamInput && !isBam(outputFilename())) {
+			out.println("\nBAM input can only be written to BAM output\n");
+			return 1;
+		}
 
-			// Ignore SAM header lines
-			boolean isReadLine = true;
-			if (!INPUT_CSV && line.startsWith("@")) {
-				isReadLine = false;
-			}
+		if (follow && (bamInput || isBam(outputFilename()) || streaming || thresholds.length > 1 || replicates > 1)) {
+			out.println("\nFollow mode can't be combined with BAM files, streaming mode, multiple thresholds, or replicates\n");
+			return 1;
+		}
 
-			// Ignore first line in CSV
-			if (INPUT_CSV && lineIdx == 0) {
-				isReadLine = false;
-			}
+		if (checkpointFn.length() > 0
+				&& (parallel || streaming || follow || thresholds.length > 1 || replicates > 1)) {
+			out.println("\nCheckpoints can't be combined with --parallel, streaming or follow mode, multiple thresholds, or replicates\n");
+			return 1;
+		}
 
-			// Increment line number
-			lineIdx++;
+		if (prethin > 0 && (useCache || checkpointFn.length() > 0 || streaming || follow)) {
+			out.println("\nPre-thinning can't be combined with --cache, checkpoints, or streaming or follow mode\n");
+			return 1;
+		}
 
-			if (!isReadLine) {
-				continue;
+		if (streaming) {
+			StreamingNormalizer.run(this);
+			return 0;
+		}
+
+		if (follow) {
+			FollowNormalizer.run(this);
+			return 0;
+		}
+
+		// Get the reference intervals for all reads, and where each one is in the file
+		ReadStore reads = new ReadStore();
+		RecordIndex index = new RecordIndex();
+		ReferenceIndex refs = new ReferenceIndex(MAX_LEN);
+		if (prethin > 0) {
+			reservoir = new WindowReservoir(refs, prethinWindow, prethin * COV_THRESHOLD,
+					RAND_SEED == -1 ? new Random() : new Random(RAND_SEED));
+		}
+		if (bamInput) {
+			loadBam(reads, refs);
+		} else if (useCache && ReadCache.load(fn, INPUT_CSV, MAX_LEN, reads, index, refs)) {
+			out.println("Loaded reads from " + ReadCache.cacheFile(fn));
+		} else {
+			RecordTokenizer tokenizer = new RecordTokenizer(fn, INPUT_CSV);
+			while (tokenizer.next()) {
+				// Ignore SAM header lines and the first line in CSV, other than getting contig
+				// lengths
+				if (tokenizer.isHeader()) {
+					index.addHeader(tokenizer.offset, tokenizer.length);
+					if (!INPUT_CSV) {
+						refs.parseHeader(tokenizer.line());
+					}
+					continue;
+				}
+				// Parse out the contig, start and end on reference, read length, quality
+				// score, and strand
+				tokenizer.parse();
+				int contig = tokenizer.contig(refs);
+				int start = 0, end = 0;
+				if (contig != -1) {
+					start = tokenizer.start();
+					end = Math.min(tokenizer.end(), refs.arraySize(contig));
+				}
+
+				// Add the read to the store, or offer it as a candidate when pre-thinning
+				if (reservoir != null) {
+					reservoir.add(tokenizer.offset, tokenizer.length, contig, start, end, tokenizer.strand(),
+							tokenizer.queryLength, tokenizer.numMatches);
+				} else {
+					index.addRecord(tokenizer.offset, tokenizer.length);
+					reads.add(reads.size, contig, start, end, tokenizer.strand(), tokenizer.queryLength,
+							tokenizer.numMatches);
+				}
 			}
+			tokenizer.close();
 
-			// Initialize read fields: start and end on reference, read length, and quality
-			// score
-			int[] startEnd = new int[2];
-			int rl = 0;
-			double qual = 0.0;
-			int strand = 0;
+			// Save what was parsed so later runs on the same input can skip parsing
+			if (useCache) {
+				ReadCache.save(fn, INPUT_CSV, MAX_LEN, reads, index, refs);
+			}
+		}
 
-			if (INPUT_CSV) {
-				// CSV format - parse fields
-				String[] tokens = line.split(",");
+		// Only the candidates are selected from
+		if (reservoir != null) {
+			reservoir.finish();
+			reads = reservoir.reads;
+			out.println("Pre-thinning kept " + reads.size + " of " + reservoir.totalReads + " aligned reads as candidates ("
+					+ reservoir.fullWindows + " windows had more than enough for " + reservoir.depth
+					+ " candidates per position)");
+		}
 
-				startEnd = new int[] { Integer.parseInt(tokens[6]), Integer.parseInt(tokens[7]) };
-				rl = Integer.parseInt(tokens[1]);
-				qual = 1.0 * Integer.parseInt(tokens[8]) / rl;
-			} else {
-				// SAM format - parse fields
-				String[] tokens = line.split("\t");
+		// Use compact coverage counters if the reference is too big for int arrays
+		long totalLength = 0;
+		for (int c = 0; c < refs.size(); c++) {
+			totalLength += refs.arraySize(c);
+		}
+		boolean compact = compactCoverage || CoverageCounter.shouldCompact(totalLength, COV_THRESHOLD);
+		String selectionEngine = engine;
+		if (compact) {
+			out.println("Using compact coverage counters for reference of length " + totalLength);
 
-				startEnd = refInterval(line);
-				rl = cigarQueryLength(tokens[5]);
-				qual = 1.0 * cigarNumMatches(tokens[5]) / rl;
+			// The segment tree needs several ints per position, so scan instead
+			selectionEngine = "linear";
+		}
+
+		// Coverage arrays for each contig
+		ContigCoverage[] coverage = totalCoverage(reads, refs, compact);
+
+		try {
+			return normalize(reads, refs, index, bamInput, coverage, selectionEngine, totalLength);
+		} finally {
+			for (ContigCoverage cc : coverage) {
+				cc.release();
+			}
+		}
+	}
 
-				strand = (Integer.parseInt(tokens[1]) & 16) > 0 ? 1 : 0;
+	/*
+	 * Selects reads given the total coverage of each contig, writing the output and
+	 * logging files, and returns the exit status
+	 */
+	int normalize(ReadStore reads, ReferenceIndex refs, RecordIndex index, boolean bamInput, ContigCoverage[] coverage,
+			String selectionEngine, long totalLength) throws Exception {
+		// If we have a coverage file, add the data there to the read coverage arrays
+		CoverageFile coverageFile = null;
+		if (coverageFn != null && coverageFn.length() > 0) {
+			coverageFile = new CoverageFile(coverageFn, refs, out);
+			coverageFile.addTo(coverage);
+			if (thresholds.length > 1 || replicates > 1) {
+				coverageFile.close();
 			}
+		}
 
-			// Add the read to the list
-			reads.add(new Read(reads.size(), startEnd[0], startEnd[1], strand, rl, qual));
+		if (thresholds.length > 1) {
+			runThresholds(reads, refs, index, bamInput, coverage, selectionEngine, totalLength);
+			return 0;
 		}
 
-		int n = reads.size();
+		if (replicates > 1) {
+			runReplicates(reads, refs, index, bamInput, coverage, selectionEngine, totalLength);
+			return 0;
+		}
 
-		// This will be filled with total coverage of each position
-		int[] cov = new int[MAX_LEN];
+		// The order in which to consider reads, and the progress made with them in an
+		// earlier run if resuming
+		int[] order;
+		Checkpoint checkpoint = null;
+		if (resumeFn.length() > 0 && new File(resumeFn).exists()) {
+			checkpoint = Checkpoint.load(resumeFn, fn, reads.size, coverage.length, COV_THRESHOLD, evenStrand);
+			order = checkpoint.order;
+			out.println("Resuming from checkpoint " + resumeFn);
+		} else {
+			order = readOrder(reads, RAND_SEED == -1 ? new Random() : new Random(RAND_SEED));
+			if (checkpointFn.length() > 0) {
+				checkpoint = new Checkpoint(checkpointFn, fn, order, coverage.length, COV_THRESHOLD, evenStrand);
+			}
+		}
+		if (checkpoint != null) {
+			checkpoint.start(checkpointInterval, out);
+		}
 
-		int[][] strandCov = new int[2][MAX_LEN];
+		// The checkpoint is only removed once the run is complete, and otherwise kept
+		// to resume from
+		boolean complete = false;
+		try {
+			// True for reads we want to keep
+			boolean[] used = selectReads(reads, order, coverage, selectionEngine, totalLength, threads, checkpoint);
 
-		// Add +1 to represent coverage going up at start and -1 to represent coverage
-		// down at end
-		for (int i = 0; i < n; i++) {
-			Read r = reads.get(i);
-			cov[r.start]++;
-			cov[r.end]--;
+			printRunStats(reads, order, used, refs, coverage, out);
 
-			strandCov[r.strand][r.start]++;
-			strandCov[r.strand][r.end]--;
-		}
+			// Write out the reads we want to keep, copying them straight from the input
+			writeOutput(outputFilename(), used, index, refs, bamInput, threads);
 
-		// Now each element of cov will be coverage(i) - coverage(i-1),
-		// so take the cumulative sum to make it actual coverage
-		for (int i = 1; i < cov.length; i++) {
-			cov[i] += cov[i - 1];
-			strandCov[0][i] += strandCov[0][i - 1];
-			strandCov[1][i] += strandCov[1][i - 1];
+			// Add the coverage of the kept reads to the coverage file if one was provided
+			if (coverageFile != null) {
+				coverageFile.addKept(coverage);
+				coverageFile.close();
+			}
+
+			if (logStats) {
+				writeCoverageLogs(coverage);
+				writeLengthLogs(reads, order, used);
+			}
+			complete = true;
+		} finally {
+			if (checkpoint != null) {
+				if (complete) {
+					checkpoint.finish();
+				} else {
+					checkpoint.abandon(out);
+				}
+			}
 		}
 
-		// Compute how much coverage we want for each strand at each position while
-		// evening out the strands as much as possible
-		int[][] desiredStrandCov = new int[2][MAX_LEN];
-		for (int i = 0; i < MAX_LEN; i++) {
-			// If they split the needed coverage exactly in half they'll each get this much
-			int half = (COV_THRESHOLD / 2);
+		return 0;
+	}
 
-			// If both less than deal half, take everything
-			if (strandCov[0][i] <= half && strandCov[1][i] <= half) {
-				desiredStrandCov[0][i] = strandCov[0][i];
-				desiredStrandCov[1][i] = strandCov[1][i];
+	/*
+	 * Normalizes every sample listed in the manifest on a pool of threads, with the
+	 * other arguments applying to all of them. Each line has an input file,
+	 * optionally followed by an output file and threshold, separated by tabs.
+	 * Statistics for each sample are printed in order as they finish, and logging
+	 * files are named after each sample's output.
+	 */
+	int runManifest(String[] args) throws Exception {
+		ArrayList<String> shared = new ArrayList<String>();
+		boolean threadsGiven = false;
+		for (String arg : args) {
+			if (!arg.toLowerCase().startsWith("manifest=")) {
+				shared.add(arg);
 			}
+			threadsGiven |= arg.toLowerCase().startsWith("threads=");
+		}
 
-			// If + strand is less than half, take extra from - strand
-			else if (strandCov[0][i] <= half) {
-				desiredStrandCov[0][i] = strandCov[0][i];
-				desiredStrandCov[1][i] = Math.min(COV_THRESHOLD - strandCov[0][i], strandCov[1][i]);
+		// Samples share the cores unless told how many threads each should use
+		if (!threadsGiven) {
+			shared.add("threads=" + sampleThreads(threads, maxJobs));
+		}
+
+		ArrayList<String[]> samples = new ArrayList<String[]>();
+		BufferedReader reader = new BufferedReader(new FileReader(manifestFn));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (line.trim().length() == 0 || line.startsWith("#") || line.startsWith("input\t")) {
+				continue;
+			}
+			String[] fields = line.split("\t");
+			ArrayList<String> sampleArgs = new ArrayList<String>(shared);
+			sampleArgs.add("input=" + fields[0].trim());
+			if (fields.length > 1 && fields[1].trim().length() > 0) {
+				sampleArgs.add("output=" + fields[1].trim());
+			}
+			if (fields.length > 2 && fields[2].trim().length() > 0) {
+				sampleArgs.add("coverage_threshold=" + fields[2].trim());
+			}
+			samples.add(sampleArgs.toArray(new String[0]));
+		}
+		reader.close();
+
+		final String[] logs = new String[samples.size()];
+		int failed = 0;
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(maxJobs, samples.size())));
+		try {
+			ArrayList<Future<Integer>> results = new ArrayList<Future<Integer>>();
+			for (int i = 0; i < samples.size(); i++) {
+				final int sampleIdx = i;
+				final String[] sampleArgs = samples.get(i);
+				results.add(pool.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() {
+						ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+						NormalizeCoverage sample = new NormalizeCoverage();
+						sample.out = new PrintStream(bytes);
+						int status;
+						try {
+							sample.parseArgs(sampleArgs);
+							sample.useOutputLogPrefix();
+							status = sample.run(sampleArgs);
+						} catch (Exception e) {
+							e.printStackTrace(sample.out);
+							status = 1;
+						}
+						sample.out.close();
+						logs[sampleIdx] = "Sample " + sample.fn + (status == 0 ? "" : " failed") + "\n" + bytes.toString();
+						return status;
+					}
+				}));
 			}
 
-			// If - strand is less than half, take extra from + strand
-			else if (strandCov[1][i] <= half) {
-				desiredStrandCov[1][i] = strandCov[1][i];
-				desiredStrandCov[0][i] = Math.min(COV_THRESHOLD - strandCov[1][i], strandCov[0][i]);
+			// Print each sample's output in order as it finishes
+			for (int i = 0; i < results.size(); i++) {
+				if (results.get(i).get() != 0) {
+					failed++;
+				}
+				out.print(logs[i]);
 			}
+		} finally {
+			pool.shutdownNow();
+		}
+
+		if (failed > 0) {
+			out.println(failed + " of " + samples.size() + " samples failed");
+			return 1;
+		}
+		return 0;
+	}
+
+	/*
+	 * The number of threads each of several jobs running at once gets, sharing
+	 * the given total
+	 */
+	static int sampleThreads(int threads, int maxJobs) {
+		return Math.max(1, threads / Math.max(1, maxJobs));
+	}
 
-			// If there is plenty of coverage, require half of the threshold from each
-			// strand
-			else {
-				desiredStrandCov[0][i] = desiredStrandCov[1][i] = half;
+	/*
+	 * Makes the coverage arrays for each contig and fills in the total coverage of
+	 * each position, along with the desired coverage of each strand if needed
+	 */
+	ContigCoverage[] totalCoverage(ReadStore reads, ReferenceIndex refs, boolean compact) {
+		ContigCoverage[] coverage = new ContigCoverage[refs.size()];
+		for (int c = 0; c < refs.size(); c++) {
+			coverage[c] = new ContigCoverage(refs.arraySize(c), compact, COV_THRESHOLD);
+		}
+		for (int i = 0; i < reads.size; i++) {
+			if (reads.contig[i] != -1) {
+				coverage[reads.contig[i]].addRead(reads.start[i], reads.end[i], reads.strand[i]);
+			}
+		}
+		for (ContigCoverage cc : coverage) {
+			cc.finishTotals();
+			if (evenStrand) {
+				cc.computeDesired(COV_THRESHOLD);
 			}
 		}
+		return coverage;
+	}
 
+	/*
+	 * The order in which to consider reads - by decreasing quality if sorting by
+	 * quality, and otherwise shuffled with the given random number generator
+	 */
+	int[] readOrder(ReadStore reads, Random rand) {
 		if (QUAL_SORT) {
-			Collections.sort(reads, new Comparator<Read>() {
+			return ReadOrdering.byQuality(reads);
+		}
+		return ReadOrdering.shuffled(reads.size, rand);
+	}
+
+	/*
+	 * Decides which reads to keep, considering them in the given order, and fills
+	 * in the kept coverage of each contig
+	 */
+	boolean[] selectReads(ReadStore reads, int[] order, ContigCoverage[] coverage, String selectionEngine,
+			long totalLength, int threads) throws Exception {
+		return selectReads(reads, order, coverage, selectionEngine, totalLength, threads, null);
+	}
 
+	/*
+	 * Decides which reads to keep as above, recording progress in a checkpoint if
+	 * one is given and continuing from the progress already recorded there
+	 */
+	boolean[] selectReads(ReadStore reads, int[] order, ContigCoverage[] coverage, String selectionEngine,
+			long totalLength, int threads, final Checkpoint checkpoint) throws Exception {
+		boolean[] used = checkpoint != null ? checkpoint.used : new boolean[reads.size];
+		if (parallel) {
+			// Select within windows of each contig on separate threads, then reconcile
+			// reads crossing window boundaries
+			int size = windowSize > 0 ? windowSize : WindowedSelection.defaultWindowSize(reads, totalLength, threads);
+			WindowedSelection selection = new WindowedSelection(reads, coverage, selectionEngine, COV_THRESHOLD, size);
+			selection.select(order, used, threads);
+			for (int r : order) {
+				if (reads.contig[r] != -1 && used[reads.index[r]]) {
+					coverage[reads.contig[r]].addKeptRead(reads.start[r], reads.end[r], reads.strand[r]);
+				}
+			}
+		} else {
+			// Contigs are independent, so select reads on each one on its own thread
+			ContigScheduler scheduler = new ContigScheduler(coverage.length);
+			scheduler.groups();
+			for (int r : order) {
+				if (reads.contig[r] != -1) {
+					scheduler.add(reads.contig[r], r, reads.end[r] - reads.start[r]);
+				}
+			}
+			final ContigScheduler groups = scheduler;
+			final ReadStore store = reads;
+			final ContigCoverage[] contigCoverage = coverage;
+			final String contigEngine = selectionEngine;
+			final boolean[] kept = used;
+			scheduler.run(threads, new ContigScheduler.Task() {
 				@Override
-				public int compare(Read a, Read b) {
-					return Double.compare(b.qual, a.qual);
+				public void run(int g) {
+					ContigCoverage.IntList members = groups.contigs[g];
+					for (int i = 0; i < members.size; i++) {
+						int c = members.vals[i];
+						ContigCoverage.IntList contigReads = groups.itemsOn(g, c, store.contig);
+						if (checkpoint != null) {
+							selectContig(store, contigReads, contigCoverage[c], contigEngine, kept, checkpoint, c);
+						} else {
+							selectContig(store, contigReads, contigCoverage[c], contigEngine, kept);
+						}
+					}
 				}
 			});
-		} else {
-			Collections.shuffle(reads);
+		}
+		for (ContigCoverage cc : coverage) {
+			cc.finishKept();
+		}
+		return used;
+	}
+
+	/*
+	 * Runs several independently shuffled selections over the same reads on a
+	 * thread pool, writing one output file for each and printing their statistics
+	 * in order
+	 */
+	void runReplicates(final ReadStore reads, final ReferenceIndex refs, final RecordIndex index,
+			final boolean bamInput, final ContigCoverage[] coverage, final String selectionEngine,
+			final long totalLength) throws Exception {
+		if (coverageFn != null && coverageFn.length() > 0) {
+			out.println("Coverage file " + coverageFn + " will not be updated when running replicates");
 		}
 
-		// The coverage so far of each position by reads we choose to keep
-		int[] readCov = new int[MAX_LEN];
-		int[][] strandCovSoFar = new int[2][MAX_LEN];
+		// Replicate i uses seed + i - 1, so each one can be reproduced on its own
+		final long baseSeed = RAND_SEED == -1 ? new Random().nextInt() : RAND_SEED;
+
+		final ContigCoverage[][] replicateCoverage = new ContigCoverage[replicates][];
+		final int[][] replicateOrder = new int[replicates][];
+		final boolean[][] replicateUsed = new boolean[replicates][];
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, replicates)));
+		try {
+			ArrayList<Future<String>> results = new ArrayList<Future<String>>();
+			for (int rep = 0; rep < replicates; rep++) {
+				final int replicate = rep;
+				results.add(pool.submit(new Callable<String>() {
+					@Override
+					public String call() throws Exception {
+						long seed = baseSeed + replicate;
+						ContigCoverage[] repCoverage = new ContigCoverage[coverage.length];
+						replicateCoverage[replicate] = repCoverage;
+						for (int c = 0; c < coverage.length; c++) {
+							repCoverage[c] = new ContigCoverage(coverage[c]);
+						}
+						int[] order = readOrder(reads, new Random(seed));
+						boolean[] used = selectReads(reads, order, repCoverage, selectionEngine, totalLength, 1);
+
+						ByteArrayOutputStream statsBytes = new ByteArrayOutputStream();
+						PrintStream statsOut = new PrintStream(statsBytes);
+						statsOut.println("Replicate " + (replicate + 1) + " (seed " + seed + ")");
+						printRunStats(reads, order, used, refs, repCoverage, statsOut);
+						statsOut.close();
+
+						writeOutput(numberedFilename(outputFilename(), replicate + 1), used, index, refs, bamInput, 1);
+
+						replicateOrder[replicate] = order;
+						replicateUsed[replicate] = used;
+						return statsBytes.toString();
+					}
+				}));
+			}
 
-		// Initialize reader for coverage file
-		RandomAccessFile coverageFileReader = null;
-		if (coverageFn != null && coverageFn.length() > 0 && new File(coverageFn).exists()) {
-			if (new File(coverageFn).length() > 0) {
-				coverageFileReader = new RandomAccessFile(coverageFn, "r");
+			// Print the statistics in order as each replicate finishes
+			for (Future<String> f : results) {
+				try {
+					out.print(f.get());
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof Exception) {
+						throw (Exception) cause;
+					}
+					throw e;
+				}
+			}
+
+			// Logging files describe the first replicate
+			if (logStats) {
+				writeCoverageLogs(replicateCoverage[0]);
+				writeLengthLogs(reads, replicateOrder[0], replicateUsed[0]);
+			}
+		} finally {
+			// Wait for any replicates still running after a failure before handing
+			// back their kept coverage - the totals are shared and released by run()
+			pool.shutdownNow();
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			for (ContigCoverage[] repCoverage : replicateCoverage) {
+				if (repCoverage != null) {
+					for (ContigCoverage cc : repCoverage) {
+						if (cc != null) {
+							cc.releaseKept();
+						}
+					}
+				}
 			}
 		}
+	}
 
-		// If we have a coverage file, add the data there to the read coverage array
-		if (coverageFileReader != null) {
-			byte[] buf = new byte[MAX_LEN];
-			coverageFileReader.seek(0);
-			coverageFileReader.read(buf);
-			for (int i = 0; i < MAX_LEN; i++)
-				readCov[i] += buf[i];
+	/*
+	 * Downsamples to each of several thresholds using one read ordering, writing
+	 * one output file for each and a table comparing them. Without strand
+	 * evening or windows, a read skipped at some threshold is also skipped at
+	 * every lower one, since any position it covers that had fewer reads kept at
+	 * the lower threshold would have been below that threshold as well. The
+	 * thresholds are therefore run from largest to smallest, each only
+	 * considering the reads kept at the previous one. Logging files are written
+	 * for each threshold, with the threshold added to their prefix.
+	 */
+	void runThresholds(ReadStore reads, ReferenceIndex refs, RecordIndex index, boolean bamInput,
+			ContigCoverage[] coverage, String selectionEngine, long totalLength) throws Exception {
+		if (coverageFn != null && coverageFn.length() > 0) {
+			out.println("Coverage file " + coverageFn + " will not be updated when using multiple thresholds");
 		}
 
-		// True for reads we want to keep
-		boolean[] used = new boolean[n];
+		int[] order = readOrder(reads, RAND_SEED == -1 ? new Random() : new Random(RAND_SEED));
 
-		// Go through the reads, and if there's some position covered by it that's
-		// below coverage threshold, take the read
-		for (Read r : reads) {
-			// Whether or not we want this read
-			boolean wantRead = false;
-			for (int i = r.start; i < r.end; i++) {
-				// If using strand, check if we need more coverage for this strand anywhere
-				// along the length of the read
-				if (evenStrand) {
-					wantRead |= strandCovSoFar[r.strand][i] < desiredStrandCov[r.strand][i];
+		int[] sorted = thresholds.clone();
+		Arrays.sort(sorted);
+		boolean nested = !parallel && !evenStrand;
+		int[] candidates = order.clone();
+		HashMap<Integer, RunStats> results = new HashMap<Integer, RunStats>();
+		for (int t = sorted.length - 1; t >= 0; t--) {
+			int threshold = sorted[t];
+			if (results.containsKey(threshold)) {
+				continue;
+			}
+			COV_THRESHOLD = threshold;
+
+			ContigCoverage[] thresholdCoverage = new ContigCoverage[coverage.length];
+			boolean[] used;
+			try {
+				for (int c = 0; c < coverage.length; c++) {
+					if (evenStrand) {
+						coverage[c].computeDesired(threshold);
+					}
+					thresholdCoverage[c] = new ContigCoverage(coverage[c]);
 				}
-
-				// If not using strand, see if we still need overall coverage anywhere along the
-				// length of the read
-				else {
-					wantRead |= readCov[i] < COV_THRESHOLD;
+				used = selectReads(reads, nested ? candidates : order, thresholdCoverage, selectionEngine, totalLength,
+						threads);
+
+				out.println("Threshold " + threshold);
+				results.put(threshold, printRunStats(reads, order, used, refs, thresholdCoverage, out));
+				writeOutput(numberedFilename(outputFilename(), threshold), used, index, refs, bamInput, threads);
+
+				if (logStats) {
+					String prefix = logPrefix;
+					logPrefix = prefix + threshold + "_";
+					try {
+						writeCoverageLogs(thresholdCoverage);
+						writeLengthLogs(reads, order, used);
+					} finally {
+						logPrefix = prefix;
+					}
+				}
+			} finally {
+				// Only the kept coverage belongs to this threshold - the totals are
+				// released by run()
+				for (ContigCoverage cc : thresholdCoverage) {
+					if (cc != null) {
+						cc.releaseKept();
+					}
 				}
 			}
 
-			// If the minimum is low enough, take the read and add its coverage
-			if (wantRead) {
-				// System.out.println(r.start+" "+r.end+" "+r.strand);
-				used[r.index] = true;
-				for (int i = r.start; i < r.end; i++) {
-					readCov[i]++;
-					strandCovSoFar[r.strand][i]++;
+			// Only reads kept at this threshold can be kept at lower ones
+			if (nested) {
+				int numKept = 0;
+				for (int r : candidates) {
+					if (used[reads.index[r]]) {
+						candidates[numKept++] = r;
+					}
 				}
+				candidates = Arrays.copyOf(candidates, numKept);
 			}
 		}
 
-		// Calculate some statistics
+		// Print the table of statistics for all thresholds and write it to a file
+		String tableFn = numberedFilename(outputFilename(), "thresholds");
+		tableFn = tableFn.substring(0, tableFn.lastIndexOf('.')) + ".tsv";
+		PrintWriter tableOut = new PrintWriter(new File(tableFn));
+		out.println(RunStats.header());
+		tableOut.println(RunStats.header());
+		for (int threshold : sorted) {
+			if (results.containsKey(threshold)) {
+				out.println(results.get(threshold).row());
+				tableOut.println(results.remove(threshold).row());
+			}
+		}
+		tableOut.close();
+	}
 
+	/*
+	 * An output filename with a number or label added before the extension, for
+	 * runs which produce several outputs
+	 */
+	static String numberedFilename(String filename, Object label) {
+		int dot = filename.lastIndexOf('.');
+		if (dot <= filename.lastIndexOf('/')) {
+			return filename + "_" + label;
+		}
+		return filename.substring(0, dot) + "_" + label + filename.substring(dot);
+	}
+
+	/*
+	 * Computes statistics comparing the kept reads to all of them, and prints them
+	 * along with any coverage warnings
+	 */
+	RunStats printRunStats(ReadStore reads, int[] order, boolean[] used, ReferenceIndex refs,
+			ContigCoverage[] coverage, PrintStream out) {
 		// Total quality score of all reads
 		double totalQual = 0;
 
@@ -308,7 +934,7 @@ public class NormalizeCoverage {
 		double usedTotalQual = 0;
 
 		// Total number of reads
-		int totalCount = n;
+		int totalCount = reads.size;
 
 		// Total number of used reads
 		int usedCount = 0;
@@ -319,280 +945,425 @@ public class NormalizeCoverage {
 		// Total number of bases across all used reads
 		int usedBases = 0;
 
-		// Minimum coverage in full dataset (ignoring first and last 50 bp)
-		int minCov = 987654321;
-
-		// Minimum coverage among kept reads (ignoring first and last 50 bp)
-		int totalMin = 987654321;
-
-		// Min coverage on each strand across full dataset
-		int minFullPlusCov = 987654321, minFullMinusCov = 987654321;
-
-		// Min coverage on each strand among kept reads
-		int minSamplePlusCov = 987654321, minSampleMinusCov = 987654321;
-
 		// Compute the statistics outlined above
-		for (int i = 0; i < n; i++) {
-			Read r = reads.get(i);
-			totalBases += r.end - r.start;
-			totalQual += r.qual;
-			if (used[r.index]) {
-				usedTotalQual += r.qual;
+		for (int r : order) {
+			totalBases += reads.end[r] - reads.start[r];
+			totalQual += reads.qual(r);
+			if (used[reads.index[r]]) {
+				usedTotalQual += reads.qual(r);
 				usedCount++;
-				usedBases += r.end - r.start;
+				usedBases += reads.end[r] - reads.start[r];
 			}
 		}
 
-		// Check for min coverage outside of first/last 50 bp and see if it's similar to
-		// old minimum
-		for (int i = 50; i < MAX_LEN - 50; i++) {
-			if (cov[i] > 0) {
-				minCov = Math.min(minCov, cov[i]);
-				totalMin = Math.min(totalMin, readCov[i]);
+		// With pre-thinning, the reads are only the candidates, so the totals are of
+		// every record
+		if (reservoir != null) {
+			totalCount = reservoir.numRecords;
+			totalQual = reservoir.totalQual;
+			totalBases = reservoir.totalBases;
+		}
 
-				minFullPlusCov = Math.min(minFullPlusCov, strandCov[0][i]);
-				minFullMinusCov = Math.min(minFullMinusCov, strandCov[1][i]);
-				minSamplePlusCov = Math.min(minSamplePlusCov, strandCovSoFar[0][i]);
-				minSampleMinusCov = Math.min(minSampleMinusCov, strandCovSoFar[1][i]);
-			}
+		return printStats(totalCount, usedCount, totalQual, usedTotalQual, totalBases, usedBases, refs, coverage, out);
+	}
 
-			if (cov[i] >= COV_THRESHOLD && readCov[i] < COV_THRESHOLD) {
-				System.out.println("Coverage dropped below threshold at position " + i + "; " + "Old coverage=" + cov[i]
-						+ ", New coverage=" + readCov[i]);
+	/*
+	 * Writes out the reads we want to keep, copying them straight from the input
+	 */
+	void writeOutput(String outFn, boolean[] used, RecordIndex index, ReferenceIndex refs, boolean bamInput,
+			int threads) throws Exception {
+		// With pre-thinning, used only covers the candidates, so find the kept ones in
+		// the input
+		if (reservoir != null) {
+			if (bamInput || isBam(outFn)) {
+				used = reservoir.usedRecords(used);
+			} else {
+				index = reservoir.keptIndex(used, index);
+				used = new boolean[index.size];
+				Arrays.fill(used, true);
 			}
+		}
+		if (bamInput) {
+			BamReader.writeKept(fn, outFn, RecordIndex.flags(used), threads);
+		} else if (isBam(outFn)) {
+			BamWriter.writeKeptSam(fn, outFn, RecordIndex.flags(used), refs, threads);
+		} else {
+			index.writeKept(fn, outFn, RecordIndex.flags(used));
+		}
+	}
 
-			for (int j = 0; j < 2; j++) {
-				if (evenStrand && desiredStrandCov[j][i] > strandCovSoFar[j][i]) {
-					System.out.println("Insufficient sample coverage on " + (j == 0 ? "+" : "-")
-							+ " strand at position " + i + " ;" + " wanted " + desiredStrandCov[j][i]
-							+ " but only kept " + strandCovSoFar[j][i]);
-				}
+	/*
+	 * Prints out the read length in the whole dataset and in the sample
+	 */
+	void writeLengthLogs(ReadStore reads, int[] order, boolean[] used) throws Exception {
+		String allLengthsFn = logPrefix + "lengths_all.txt";
+		String sampleLengthsFn = logPrefix + "lengths_sample.txt";
+		PrintWriter allLengthsOut = new PrintWriter(new File(allLengthsFn));
+		PrintWriter sampleLengthsOut = new PrintWriter(new File(sampleLengthsFn));
+		for (int r : order) {
+			allLengthsOut.println(reads.readLength[r]);
+			if (used[reads.index[r]]) {
+				sampleLengthsOut.println(reads.readLength[r]);
 			}
 		}
+		allLengthsOut.close();
+		sampleLengthsOut.close();
+	}
 
-		// Check for any differences in coverage in the 50 bases on each end, which I'm
-		// assuming to have lower coverage
-		for (int i = 0; i < 50; i++) {
-			if (cov[i] != readCov[i]) {
-				System.out.println("Uneven coverage near ends at position " + i + "; " + "Old coverage =" + cov[i]
-						+ ", New coverage=" + readCov[i]);
-			}
-			if (cov[MAX_LEN - i - 1] != readCov[MAX_LEN - i - 1]) {
-				System.out.println("Uneven coverage near ends at position " + (MAX_LEN - i - 1) + "; "
-						+ "Old coverage =" + cov[MAX_LEN - i - 1] + ", New coverage=" + readCov[MAX_LEN - i - 1]);
+	/*
+	 * Goes through the reads on one contig in order, and if there's some position
+	 * covered by a read that's below coverage threshold, takes the read
+	 */
+	void selectContig(ReadStore reads, ContigCoverage.IntList contigReads, ContigCoverage cc, String engine,
+			boolean[] used) {
+		ReadSelector selector = ReadSelector.create(engine, cc.readCov, COV_THRESHOLD, cc.desiredStrandCov);
+		for (int i = 0; i < contigReads.size; i++) {
+			int r = contigReads.vals[i];
+			int start = reads.start[r], end = reads.end[r], strand = reads.strand[r];
+			if (selector.wantRead(start, end, strand)) {
+				used[reads.index[r]] = true;
+				selector.keepRead(start, end, strand);
+				cc.addKeptRead(start, end, strand);
 			}
 		}
+	}
 
-		// Output statistics
-		System.out.println("Total read count (unfiltered): " + totalCount);
-		System.out.println("Downsampled read count: " + usedCount);
-
-		System.out
-				.println("Overall average alignment accuracy: " + String.format("%.6f", 1.0 * totalQual / totalCount));
-		System.out.println(
-				"Downsampled average alignment accuracy: " + String.format("%.6f", 1.0 * usedTotalQual / usedCount));
-		System.out.println("Total bases covered (unfiltered): " + totalBases);
-		System.out.println("Downsampled bases covered: " + usedBases);
-
-		System.out.println("Old min coverage: " + minCov);
-		System.out.println("Downsampled min coverage: " + totalMin);
+	/*
+	 * Selects reads on a contig as above, skipping the reads already considered
+	 * according to a checkpoint - their kept coverage is added back without
+	 * deciding on them again - and recording progress after each read
+	 */
+	void selectContig(ReadStore reads, ContigCoverage.IntList contigReads, ContigCoverage cc, String engine,
+			boolean[] used, Checkpoint checkpoint, int contig) {
+		ReadSelector selector = ReadSelector.create(engine, cc.readCov, COV_THRESHOLD, cc.desiredStrandCov);
+		int done = Math.min(checkpoint.progress.get(contig), contigReads.size);
+		for (int i = 0; i < contigReads.size; i++) {
+			int r = contigReads.vals[i];
+			int start = reads.start[r], end = reads.end[r], strand = reads.strand[r];
+			if (i < done) {
+				if (used[reads.index[r]]) {
+					selector.keepRead(start, end, strand);
+					cc.addKeptRead(start, end, strand);
+				}
+				continue;
+			}
 
-		System.out.println("Old min + strand coverage: " + minFullPlusCov);
-		System.out.println("Downsampled min + strand coverage: " + minSamplePlusCov);
+			// The snapshot may have caught reads kept after its recorded progress
+			used[reads.index[r]] = false;
+			if (selector.wantRead(start, end, strand)) {
+				used[reads.index[r]] = true;
+				selector.keepRead(start, end, strand);
+				cc.addKeptRead(start, end, strand);
+			}
+			checkpoint.advance(contig, i + 1);
+		}
+	}
 
-		System.out.println("Old min - strand coverage: " + minFullMinusCov);
-		System.out.println("Downsampled min - strand coverage: " + minSampleMinusCov);
+	/*
+	 * Whether or not a file should be read as BAM rather than SAM
+	 */
+	static boolean isBam(String filename) {
+		return filename.toLowerCase().endsWith(".bam");
+	}
 
-		// Go through reads and make file with filtered reads
+	/*
+	 * Whether the input should be read from stdin rather than a file
+	 */
+	static boolean isStdin(String filename) {
+		return filename.equals("-");
+	}
 
-		input = new Scanner(new FileInputStream(new File(fn)));
+	/*
+	 * Reads the reference intervals of all reads from a BAM file
+	 */
+	void loadBam(ReadStore reads, ReferenceIndex refs) throws Exception {
+		BamReader reader = new BamReader(fn, threads);
+		reader.addReferences(refs);
+		while (reader.next()) {
+			reader.parse();
+			int contig = reader.contig();
+			int start = 0, end = 0;
+			if (contig != -1) {
+				start = reader.start();
+				end = Math.min(reader.end(), refs.arraySize(contig));
+			}
+			if (reservoir != null) {
+				reservoir.add(0, 0, contig, start, end, reader.strand(), reader.queryLength, reader.numMatches);
+			} else {
+				reads.add(reads.size, contig, start, end, reader.strand(), reader.queryLength, reader.numMatches);
+			}
+		}
+		reader.close();
+	}
 
-		// Generate output filename
+	/*
+	 * Gets the output filename, generating one from the input filename if none was
+	 * given
+	 */
+	String outputFilename() {
 		if (ofn.length() == 0) {
-			String suff = INPUT_CSV ? ".csv" : ".sam";
-			if (fn.endsWith(suff)) {
+			String inSuff = INPUT_CSV ? ".csv" : isBam(fn) ? ".bam" : ".sam";
+			String suff = INPUT_CSV ? ".csv" : (isBam(fn) || bamOutput) ? ".bam" : ".sam";
+			if (fn.endsWith(inSuff)) {
 				ofn = fn.substring(0, fn.length() - 4) + ".covfiltered" + suff;
 			} else {
 				ofn = fn + ".covfiltered" + suff;
 			}
 		}
+		return ofn;
+	}
 
-		// Write out the reads we want to keep
-		PrintWriter out = new PrintWriter(new File(ofn));
-		int readIndex = 0;
-		lineIdx = 0;
-		while (input.hasNext()) {
-			String line = input.nextLine();
-			if (!INPUT_CSV && line.startsWith("@")) {
-				out.println(line);
-				lineIdx++;
-				continue;
-			}
-			if (INPUT_CSV && lineIdx == 0) {
-				out.println(line);
-				lineIdx++;
-				continue;
-			}
-			lineIdx++;
-			if (used[readIndex]) {
-				out.println(line);
-			}
-			readIndex++;
-		}
-
-		// Output coverage at each base if a coverage file was provided
-		if (coverageFn != null && coverageFn.length() > 0) {
-			coverageFileReader = new RandomAccessFile(coverageFn, "rw");
-			byte[] toWrite = new byte[MAX_LEN];
-			for (int i = 0; i < MAX_LEN; i++) {
-				toWrite[i] = (byte) Math.min(readCov[i], COV_THRESHOLD);
-			}
-			coverageFileReader.write(toWrite, 0, MAX_LEN);
-			coverageFileReader.close();
-		}
+	/*
+	 * Names the log files after the output file, so that runs in the same process
+	 * and directory don't overwrite each other's logs
+	 */
+	void useOutputLogPrefix() {
+		String outFn = outputFilename();
+		int dot = outFn.lastIndexOf('.');
+		logPrefix = (dot > outFn.lastIndexOf('/') ? outFn.substring(0, dot) : outFn) + "_";
+	}
 
-		if (logStats) {
-			// Print the old and new coverage of each base
-			String coverageReadableFn = "coverage.txt";
-			PrintWriter coverageReadableOut = new PrintWriter(new File(coverageReadableFn));
-
-			String strandBiasSampleFn = "strandbiassample.txt";
-			String strandBiasFullFn = "strandbiasfull.txt";
-			PrintWriter strandBiasSampleOut = new PrintWriter(new File(strandBiasSampleFn));
-			PrintWriter strandBiasFullOut = new PrintWriter(new File(strandBiasFullFn));
-
-			for (int i = 0; i < MAX_LEN; i++) {
-				if (cov[i] > 0) {
-					coverageReadableOut.println(cov[i] + " " + readCov[i]);
-					strandBiasSampleOut.println(1.0 * strandCovSoFar[0][i] / readCov[i]);
-					strandBiasFullOut.println(1.0 * strandCov[0][i] / cov[i]);
+	/*
+	 * Prints the summary statistics comparing the full dataset to the kept reads,
+	 * along with warnings about positions where the coverage guarantee was not met
+	 */
+	RunStats printStats(int totalCount, int usedCount, double totalQual, double usedTotalQual, int totalBases,
+			int usedBases, ReferenceIndex refs, ContigCoverage[] coverage, PrintStream out) {
+		CoverageChecks checks = new CoverageChecks(out);
+		for (int c = 0; c < coverage.length; c++) {
+			ContigCoverage cc = coverage[c];
+			CoverageCounter readCov = cc.readCov;
+			CoverageCounter[] strandCovSoFar = cc.strandCovSoFar;
+			CoverageCounter[] desiredStrandCov = cc.desiredStrandCov;
+			int len = cc.size;
+
+			// Only name the contig in messages if there's more than one
+			String contigLabel = coverage.length > 1 ? (refs.name(c) + ":") : "";
+
+			for (int i = 50; i < len - 50; i++) {
+				checks.position(contigLabel, i, oldCoverage(cc, c, i), readCov.get(i), oldStrandCoverage(cc, c, i, 0),
+						oldStrandCoverage(cc, c, i, 1), strandCovSoFar[0].get(i), strandCovSoFar[1].get(i));
+
+				for (int j = 0; j < 2; j++) {
+					if (desiredStrandCov != null && desiredStrandCov[j].get(i) > strandCovSoFar[j].get(i)) {
+						out.println("Insufficient sample coverage on " + (j == 0 ? "+" : "-")
+								+ " strand at position " + contigLabel + i + " ;" + " wanted "
+								+ desiredStrandCov[j].get(i) + " but only kept " + strandCovSoFar[j].get(i));
+					}
 				}
 			}
-			coverageReadableOut.close();
-			strandBiasSampleOut.close();
-			strandBiasFullOut.close();
 
-			// Print out the read length in the whole dataset and in the sample
-			String allLengthsFn = "lengths_all.txt";
-			String sampleLengthsFn = "lengths_sample.txt";
-			PrintWriter allLengthsOut = new PrintWriter(new File(allLengthsFn));
-			PrintWriter sampleLengthsOut = new PrintWriter(new File(sampleLengthsFn));
-			for (int i = 0; i < n; i++) {
-				allLengthsOut.println(reads.get(i).readLength);
-				if (used[reads.get(i).index]) {
-					sampleLengthsOut.println(reads.get(i).readLength);
-				}
+			int[][] ends = new int[4][Math.min(50, len)];
+			for (int i = 0; i < ends[0].length; i++) {
+				ends[0][i] = oldCoverage(cc, c, i);
+				ends[1][i] = readCov.get(i);
+				ends[2][i] = oldCoverage(cc, c, len - i - 1);
+				ends[3][i] = readCov.get(len - i - 1);
 			}
-			allLengthsOut.close();
-			sampleLengthsOut.close();
+			checks.ends(contigLabel, len, ends);
 		}
-
-		input.close();
-		out.close();
+		return checks.print(totalCount, usedCount, totalQual, usedTotalQual, totalBases, usedBases);
 	}
 
 	/*
-	 * Read represented by line number in the SAM file and start/end positions in
-	 * the reference
+	 * The coverage of all reads at a position of a contig, which with pre-thinning
+	 * includes the reads which weren't candidates
 	 */
-	static class Read implements Comparable<Read> {
-		int index, start, end;
-		int strand;
-		int readLength;
-		double qual;
-
-		Read(int ii, int ss, int ee, int str, int rl, double qq) {
-			index = ii;
-			start = ss;
-			end = ee;
-			strand = str;
-			readLength = rl;
-			qual = qq;
-		}
-
-		@Override
-		public int compareTo(Read o) {
-			return start - o.start;
-		}
+	int oldCoverage(ContigCoverage cc, int c, int i) {
+		return reservoir != null ? reservoir.totalCoverage(c, i) : cc.cov.get(i);
 	}
 
 	/*
-	 * Gets the (start, end) in the reference of a SAM-format line
+	 * The coverage of all reads on one strand at a position of a contig, which with
+	 * pre-thinning includes the reads which weren't candidates
 	 */
-	static int[] refInterval(String line) {
-		String[] tokens = line.split("\t");
-		int start = Integer.parseInt(tokens[3]);
-
-		String cigar = tokens[5];
-		int end = start + cigarRefLength(cigar);
-		return new int[] { start, end };
+	int oldStrandCoverage(ContigCoverage cc, int c, int i, int strand) {
+		if (reservoir == null) {
+			return cc.strandCov[strand].get(i);
+		}
+		int plus = reservoir.plusCoverage(c, i);
+		return strand == 0 ? plus : reservoir.totalCoverage(c, i) - plus;
 	}
 
 	/*
-	 * Whether or not a CIGAR character consumes the reference
+	 * The minimum coverage before and after downsampling, gathered one position at
+	 * a time, along with warnings about positions where the coverage guarantee was
+	 * not met
 	 */
-	static boolean consumesReference(char c) {
-		return c == 'M' || c == 'D' || c == 'N' || c == '=' || c == 'X';
-	}
+	class CoverageChecks {
+		PrintStream out;
 
-	static int cigarNumMatches(String s) {
-		int curLen = 0;
-		int res = 0;
-		for (int i = 0; i < s.length(); i++) {
-			char c = s.charAt(i);
-			if (c >= '0' && c <= '9') {
-				curLen = curLen * 10 + (c - '0');
-			} else {
-				if (c == 'M' || c == '=') {
-					res += curLen;
+		// Minimum coverage in full dataset (ignoring first and last 50 bp)
+		int minCov = 987654321;
+
+		// Minimum coverage among kept reads (ignoring first and last 50 bp)
+		int totalMin = 987654321;
+
+		// Number of positions where coverage dropped below the threshold
+		long belowThreshold = 0;
+
+		// Min coverage on each strand across full dataset
+		int minFullPlusCov = 987654321, minFullMinusCov = 987654321;
+
+		// Min coverage on each strand among kept reads
+		int minSamplePlusCov = 987654321, minSampleMinusCov = 987654321;
+
+		CoverageChecks(PrintStream out) {
+			this.out = out;
+		}
+
+		/*
+		 * Checks a position outside of the first and last 50 bp for min coverage, and
+		 * whether the kept coverage is still at the threshold
+		 */
+		void position(String contigLabel, int i, int cov, int readCov, int plus, int minus, int keptPlus,
+				int keptMinus) {
+			if (cov > 0) {
+				minCov = Math.min(minCov, cov);
+				totalMin = Math.min(totalMin, readCov);
+
+				minFullPlusCov = Math.min(minFullPlusCov, plus);
+				minFullMinusCov = Math.min(minFullMinusCov, minus);
+				minSamplePlusCov = Math.min(minSamplePlusCov, keptPlus);
+				minSampleMinusCov = Math.min(minSampleMinusCov, keptMinus);
+			}
+
+			if (cov >= COV_THRESHOLD && readCov < COV_THRESHOLD) {
+				belowThreshold++;
+				out.println("Coverage dropped below threshold at position " + contigLabel + i + "; "
+						+ "Old coverage=" + cov + ", New coverage=" + readCov);
+			}
+		}
+
+		/*
+		 * Checks for any differences in coverage in the 50 bases on each end of a
+		 * contig, which I'm assuming to have lower coverage, given the old and new
+		 * coverage counting in from the start and in from the end
+		 */
+		void ends(String contigLabel, int len, int[][] ends) {
+			for (int i = 0; i < ends[0].length; i++) {
+				if (ends[0][i] != ends[1][i]) {
+					out.println("Uneven coverage near ends at position " + contigLabel + i + "; "
+							+ "Old coverage =" + ends[0][i] + ", New coverage=" + ends[1][i]);
+				}
+				if (ends[2][i] != ends[3][i]) {
+					out.println("Uneven coverage near ends at position " + contigLabel + (len - i - 1) + "; "
+							+ "Old coverage =" + ends[2][i] + ", New coverage=" + ends[3][i]);
 				}
-				curLen = 0;
 			}
 		}
-		return res;
+
+		/*
+		 * Prints the statistics once every position has been checked
+		 */
+		RunStats print(int totalCount, int usedCount, double totalQual, double usedTotalQual, int totalBases,
+				int usedBases) {
+			// Output statistics
+			out.println("Total read count (unfiltered): " + totalCount);
+			out.println("Downsampled read count: " + usedCount);
+
+			out.println("Overall average alignment accuracy: " + String.format("%.6f", 1.0 * totalQual / totalCount));
+			out.println(
+					"Downsampled average alignment accuracy: " + String.format("%.6f", 1.0 * usedTotalQual / usedCount));
+			out.println("Total bases covered (unfiltered): " + totalBases);
+			out.println("Downsampled bases covered: " + usedBases);
+
+			out.println("Old min coverage: " + minCov);
+			out.println("Downsampled min coverage: " + totalMin);
+
+			out.println("Old min + strand coverage: " + minFullPlusCov);
+			out.println("Downsampled min + strand coverage: " + minSamplePlusCov);
+
+			out.println("Old min - strand coverage: " + minFullMinusCov);
+			out.println("Downsampled min - strand coverage: " + minSampleMinusCov);
+
+			RunStats res = new RunStats();
+			res.threshold = COV_THRESHOLD;
+			res.totalCount = totalCount;
+			res.usedCount = usedCount;
+			res.totalQual = totalQual;
+			res.usedTotalQual = usedTotalQual;
+			res.totalBases = totalBases;
+			res.usedBases = usedBases;
+			res.minCov = minCov;
+			res.usedMinCov = totalMin;
+			res.belowThreshold = belowThreshold;
+			return res;
+		}
 	}
 
 	/*
-	 * Whether or not a CIGAR character consumes the reference
+	 * Summary statistics of one run, for comparing runs with different thresholds
 	 */
-	static boolean consumesQuery(char c) {
-		return c == 'M' || c == 'I' || c == 'S' || c == '=' || c == 'X';
+	static class RunStats {
+		int threshold;
+		int totalCount, usedCount;
+		double totalQual, usedTotalQual;
+		int totalBases, usedBases;
+		int minCov, usedMinCov;
+		long belowThreshold;
+
+		static String header() {
+			return "threshold\ttotal_reads\tkept_reads\ttotal_accuracy\tkept_accuracy\ttotal_bases\tkept_bases"
+					+ "\told_min_coverage\tnew_min_coverage\tpositions_below_threshold";
+		}
+
+		String row() {
+			return threshold + "\t" + totalCount + "\t" + usedCount + "\t" + String.format("%.6f", totalQual / totalCount)
+					+ "\t" + String.format("%.6f", usedTotalQual / usedCount) + "\t" + totalBases + "\t" + usedBases
+					+ "\t" + minCov + "\t" + usedMinCov + "\t" + belowThreshold;
+		}
 	}
 
-	static int cigarQueryLength(String s) {
-		int curLen = 0;
-		int res = 0;
-		for (int i = 0; i < s.length(); i++) {
-			char c = s.charAt(i);
-			if (c >= '0' && c <= '9') {
-				curLen = curLen * 10 + (c - '0');
-			} else {
-				if (consumesQuery(c)) {
-					res += curLen;
-				}
-				curLen = 0;
+	/*
+	 * Writes the old and new coverage of each base, along with strand bias before
+	 * and after downsampling, to the logging files
+	 */
+	void writeCoverageLogs(ContigCoverage[] coverage) throws Exception {
+		CoverageLogs logs = new CoverageLogs();
+		for (int c = 0; c < coverage.length; c++) {
+			ContigCoverage cc = coverage[c];
+			for (int i = 0; i < cc.size; i++) {
+				logs.position(oldCoverage(cc, c, i), cc.readCov.get(i), oldStrandCoverage(cc, c, i, 0),
+						cc.strandCovSoFar[0].get(i));
 			}
 		}
-		return res;
+		logs.close();
 	}
 
 	/*
-	 * Gets the length of reference spanned by a cigar string
+	 * The logging files of the old and new coverage of each base and the strand
+	 * bias before and after downsampling, written one position at a time
 	 */
-	static int cigarRefLength(String s) {
-		int curLen = 0;
-		int res = 0;
-		for (int i = 0; i < s.length(); i++) {
-			char c = s.charAt(i);
-			if (c >= '0' && c <= '9') {
-				curLen = curLen * 10 + (c - '0');
-			} else {
-				if (consumesReference(c)) {
-					res += curLen;
-				}
-				curLen = 0;
+	class CoverageLogs {
+		PrintWriter coverageReadableOut, strandBiasSampleOut, strandBiasFullOut;
+
+		CoverageLogs() throws IOException {
+			// Print the old and new coverage of each base
+			String coverageReadableFn = logPrefix + "coverage.txt";
+			coverageReadableOut = new PrintWriter(new File(coverageReadableFn));
+
+			String strandBiasSampleFn = logPrefix + "strandbiassample.txt";
+			String strandBiasFullFn = logPrefix + "strandbiasfull.txt";
+			strandBiasSampleOut = new PrintWriter(new File(strandBiasSampleFn));
+			strandBiasFullOut = new PrintWriter(new File(strandBiasFullFn));
+		}
+
+		/*
+		 * Logs a position given its old and new coverage overall and on the + strand
+		 */
+		void position(int cov, int readCov, int plus, int keptPlus) {
+			if (cov > 0) {
+				coverageReadableOut.println(cov + " " + readCov);
+				strandBiasSampleOut.println(1.0 * keptPlus / readCov);
+				strandBiasFullOut.println(1.0 * plus / cov);
 			}
 		}
-		return res;
+
+		void close() {
+			coverageReadableOut.close();
+			strandBiasSampleOut.close();
+			strandBiasFullOut.close();
+		}
 	}
 }
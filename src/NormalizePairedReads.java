@@ -3,29 +3,50 @@
  */
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.PrintWriter;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.Scanner;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Random;
 
 public class NormalizePairedReads {
 
 	// Maximum length allowed - make sure it's longer than genome length
-	static int MAX_LEN = 31000;
+	int MAX_LEN = 31000;
 
 	// The amount of coverage we want to keep everywhere
-	static int COV_THRESHOLD = 50;
+	int COV_THRESHOLD = 50;
 
 	// Whether or not to sort by quality values
-	static boolean QUAL_SORT = false;
+	boolean QUAL_SORT = false;
 
-	static int RAND_SEED = -1;
+	// Seed for shuffling pairs, or -1 for a different shuffle each run
+	int RAND_SEED = -1;
 
 	// Input and output filenames
-	static String fn = "", ofn = "";
+	String fn = "", ofn = "";
+
+	// How to check whether a read covers a position which needs more coverage
+	String engine = "segtree";
+
+	// Whether or not to write the kept reads as a sorted, indexed BAM file even
+	// if the output filename doesn't end in .bam
+	boolean bamOutput = false;
+
+	// Number of threads to use for selecting pairs on separate contigs and for
+	// compressing and decompressing BAM files
+	int threads = Runtime.getRuntime().availableProcessors();
+
+	// Whether to read coordinate-sorted input once, deciding on reads in a sliding
+	// window and holding on past it only to reads whose mates are still undecided
+	boolean streaming = false;
+
+	// With streaming, the most reads to hold outside the selection window while
+	// waiting for their mates before spilling some to disk, and where to put them
+	int maxPending = 1000000;
+	String tmpDir = "";
+
+	// Where to print statistics and messages
+	PrintStream out = System.out;
 
 	/*
 	 * Prints out usage instructions
@@ -35,20 +56,27 @@ public class NormalizePairedReads {
 		System.out.println("  Example: java -cp src NormalizePairedReads input=jhu004.sam");
 		System.out.println();
 		System.out.println("Required args:");
-		System.out.println("  input (String) - a SAM file with the alignments of all of the reads");
+		System.out.println("  input (String) - a SAM or BAM file with the alignments of all of the reads");
 		System.out.println();
 		System.out.println("Optional args:");
 		System.out.println("  coverage_threshold (int)    [50]    - the coverage to require at each base (if original coverage is high enough)");
-		System.out.println("  genome_max_len     (int)    [31000] - an upper bound on the genome length");
+		System.out.println("  genome_max_len     (int)    [31000] - an upper bound on the length of contigs without an @SQ header line");
 		System.out.println("  output             (String) []      - the file to write downsampled reads to");
+		System.out.println("  engine             (String) [segtree] - how to select reads: segtree (range queries) or linear (per-base scan)");
+		System.out.println("  threads            (int)    [#cores] - the number of threads to use for separate contigs and for BAM compression");
+		System.out.println("  max_pending        (int)    [1000000] - with --streaming, the most reads to hold outside the window while waiting for their mates");
+		System.out.println("  tmp_dir            (String) [system] - the directory for reads spilled to disk when more are waiting");
+		System.out.println("  seed               (int)    [random] - the random seed for shuffling pairs");
 		System.out.println("  --qual_sort                         - prioritize reads with higher alignment quality");
+		System.out.println("  --bam_output                        - write a coordinate-sorted BAM file and BAI index (also used if output ends in .bam)");
+		System.out.println("  --streaming                         - read coordinate-sorted input once, deciding on pairs as it moves past them");
 		System.out.println();
 	}
 
 	/*
 	 * Parses command line arguments
 	 */
-	static void parseArgs(String[] args) {
+	void parseArgs(String[] args) {
 		for (String str : args) {
 			String s = str;
 			int equalsIdx = s.indexOf('=');
@@ -56,6 +84,12 @@ public class NormalizePairedReads {
 				if (s.endsWith("qual_sort")) {
 					QUAL_SORT = true;
 				}
+				if (s.endsWith("bam_output")) {
+					bamOutput = true;
+				}
+				if (s.endsWith("streaming")) {
+					streaming = true;
+				}
 			} else {
 				String key = s.substring(0, equalsIdx).toLowerCase();
 				String val = s.substring(1 + equalsIdx);
@@ -68,153 +102,229 @@ public class NormalizePairedReads {
 					COV_THRESHOLD = Integer.parseInt(val);
 				} else if (key.equals("genome_max_len")) {
 					MAX_LEN = Integer.parseInt(val);
+				} else if (key.equals("engine")) {
+					engine = val;
+				} else if (key.equals("threads")) {
+					threads = Integer.parseInt(val);
+				} else if (key.equals("max_pending")) {
+					maxPending = Integer.parseInt(val);
+				} else if (key.equals("tmp_dir")) {
+					tmpDir = val;
+				} else if (key.equals("seed")) {
+					RAND_SEED = Integer.parseInt(val);
 				}
 			}
 		}
 	}
 
 	public static void main(String[] args) throws Exception {
+		int status = new NormalizePairedReads().run(args);
+		if (status != 0) {
+			System.exit(status);
+		}
+	}
+
+	/*
+	 * Runs normalization with the given command line arguments, returning the exit
+	 * status
+	 */
+	int run(String[] args) throws Exception {
 		// Print help menu for -h or --help
 		if (args.length == 0 || args[0].equalsIgnoreCase("-h") || args[0].equalsIgnoreCase("--help")) {
 			usage();
-			System.exit(0);
+			return 0;
 		} else {
 			parseArgs(args);
 		}
 
 		// Check that input file actually exists
 		if (!new File(fn).exists()) {
-			System.out.println("\nInput file " + fn + " does not exist!\n");
-			System.exit(1);
+			out.println("\nInput file " + fn + " does not exist!\n");
+			return 1;
 		}
 
-		Scanner input = new Scanner(new FileInputStream(new File(fn)));
+		boolean bamInput = NormalizeCoverage.isBam(fn);
 
-		// Get the reference intervals for all reads
-		HashMap<String, ReadPair> readMap = new HashMap<String, ReadPair>();
-		
-		int lineCount = 0;
-		while (input.hasNext()) {
-			String line = input.nextLine();
-
-			// Ignore SAM header lines
-			boolean isReadLine = true;
-			if (line.startsWith("@")) {
-				isReadLine = false;
+		// Generate output filename
+		if (ofn.length() == 0) {
+			String inSuff = bamInput ? ".bam" : ".sam";
+			String suff = (bamInput || bamOutput) ? ".bam" : ".sam";
+			if (fn.endsWith(inSuff)) {
+				ofn = fn.substring(0, fn.length() - 4) + ".covfiltered" + suff;
+			} else {
+				ofn = fn + ".covfiltered" + suff;
 			}
+		}
 
-			if (!isReadLine) {
-				continue;
-			}
-			
-			lineCount++;
-			
-			// SAM format - parse fields
-			String[] tokens = line.split("\t");
-			
-			int flag = Integer.parseInt(tokens[1]);
-			if((flag & 4) > 0 || (flag & 256) > 0 || (flag & 2048) > 0)
-			{
-				// Unmapped or secondary or supplementary alignment - ignore
-				continue;
+		if (bamInput && !NormalizeCoverage.isBam(ofn)) {
+			out.println("\nBAM input can only be written to BAM output\n");
+			return 1;
+		}
+
+		if (streaming) {
+			if (QUAL_SORT) {
+				out.println("Warning: pairs are considered in order of position in streaming mode");
 			}
+			ReferenceIndex refs = new ReferenceIndex(MAX_LEN);
+			PairedStreamingNormalizer normalizer = new PairedStreamingNormalizer(refs, COV_THRESHOLD, maxPending, tmpDir,
+					out);
+			RecordIndex.KeptFlags used = normalizer.run(fn, bamInput, threads);
+			normalizer.printStats();
+			writeKept(bamInput, null, used, refs);
+			return 0;
+		}
 
-			// Initialize read fields: start and end on reference, read length, and quality
-			// score
-			int[] startEnd = new int[2];
-			int rl = 0;
-			double qual = 0.0;
-			
-			startEnd = NormalizeCoverage.refInterval(line);
-			rl = NormalizeCoverage.cigarQueryLength(tokens[5]);
-			qual = 1.0 * NormalizeCoverage.cigarNumMatches(tokens[5]) / rl;
+		// Get the reference intervals for all reads, grouping them by name
+		ReadStore store = new ReadStore();
+		ReadPairs pairs = new ReadPairs();
+		ReadNameTable names = new ReadNameTable();
 
-			// Add the read to the list
-			String readName = tokens[0];
-			if(!readMap.containsKey(readName))
+		// Where each line is in the file
+		RecordIndex index = new RecordIndex();
+
+		// Contigs and their lengths
+		ReferenceIndex refs = new ReferenceIndex(MAX_LEN);
+		
+		// Number of alignment records in the file
+		int lineCount = 0;
+		if (bamInput)
+		{
+			BamReader reader = new BamReader(fn, threads);
+			reader.addReferences(refs);
+			while (reader.next())
 			{
-				readMap.put(readName, new ReadPair());
+				reader.parse();
+				int contig = reader.contig();
+				if((reader.flag & 4) > 0 || (reader.flag & 256) > 0 || (reader.flag & 2048) > 0 || contig == -1)
+				{
+					// Unmapped or secondary or supplementary alignment - ignore
+					continue;
+				}
+				int end = Math.min(reader.end(), refs.arraySize(contig));
+
+				// Add the read to the store and to the pair with its name
+				int pair = names.getOrAdd(reader.rec, 32, reader.nameLength - 1, pairs.size);
+				if(pair == pairs.size)
+				{
+					pairs.add();
+				}
+				int read = store.add(reader.count-1, contig, reader.start(), end, reader.strand(), reader.queryLength, reader.numMatches);
+				pairs.addRead(pair, read);
 			}
-			readMap.get(readName).addRead(lineCount-1, startEnd[0], startEnd[1], rl, qual);
+			lineCount = reader.count;
+			reader.close();
 		}
-		
-		ArrayList<ReadPair> reads = new ArrayList<ReadPair>();
-		for(String s : readMap.keySet())
+		else
 		{
-			reads.add(readMap.get(s));
+			RecordTokenizer tokenizer = new RecordTokenizer(fn, false);
+			while (tokenizer.next()) {
+				// Ignore SAM header lines
+				if (tokenizer.isSamHeader()) {
+					index.addHeader(tokenizer.offset, tokenizer.length);
+					refs.parseHeader(tokenizer.line());
+					continue;
+				}
+			
+				lineCount++;
+				index.addRecord(tokenizer.offset, tokenizer.length);
+			
+				// SAM format - parse fields
+				tokenizer.parse();
+			
+				int flag = tokenizer.flag;
+				int contig = tokenizer.contig(refs);
+				if((flag & 4) > 0 || (flag & 256) > 0 || (flag & 2048) > 0 || contig == -1)
+				{
+					// Unmapped or secondary or supplementary alignment - ignore
+					continue;
+				}
+				int end = Math.min(tokenizer.end(), refs.arraySize(contig));
+
+				// Add the read to the store and to the pair with its name
+				int pair = names.getOrAdd(tokenizer.nameBytes(), 0, tokenizer.nameEnd - tokenizer.nameStart, pairs.size);
+				if(pair == pairs.size)
+				{
+					pairs.add();
+				}
+				int read = store.add(lineCount-1, contig, tokenizer.start(), end, tokenizer.strand(), tokenizer.queryLength, tokenizer.numMatches);
+				pairs.addRead(pair, read);
+			}
+			tokenizer.close();
 		}
+		names = null;
 
-		int n = reads.size();
+		// Pairs are numbered in the order their first read appears in the file
+		int n = pairs.size;
 
-		// This will be filled with total coverage of each position
-		int[] cov = new int[MAX_LEN];
+		// This will be filled with total coverage of each position on each contig
+		int[][] cov = new int[refs.size()][];
+		for (int c = 0; c < refs.size(); c++) {
+			cov[c] = new int[refs.arraySize(c)];
+		}
 
 		// Add +1 to represent coverage going up at start and -1 to represent coverage
 		// down at end
-		for (ReadPair r : reads)
+		for (int i = 0; i<store.size; i++)
 		{
-			for(int i = 0; i<r.starts.size(); i++)
-			{
-				cov[r.starts.get(i)]++;
-				cov[r.ends.get(i)]--;
-			}
+			addInterval(cov[store.contig[i]], store.start[i], store.end[i]);
 		}
 
 		// Now each element of cov will be coverage(i) - coverage(i-1),
 		// so take the cumulative sum to make it actual coverage
-		for (int i = 1; i < cov.length; i++) {
-			cov[i] += cov[i - 1];
-		}
+		prefixSums(cov);
 
+		// The order in which to consider pairs
+		int[] order;
 		if (QUAL_SORT) {
-			Collections.sort(reads, new Comparator<ReadPair>() {
-
-				@Override
-				public int compare(ReadPair a, ReadPair b) {
-					double aQual = 0.0;
-					for(double q : a.quals) aQual += q;
-					double bQual = 0.0;
-					for(double q : b.quals) bQual += q;
-					return Double.compare(bQual, aQual);
-				}
-			});
+			order = ReadOrdering.byTotalQuality(store, pairs.first, pairs.next, n);
 		} else {
-			Collections.shuffle(reads);
+			order = ReadOrdering.shuffled(n, RAND_SEED == -1 ? new Random() : new Random(RAND_SEED));
 		}
 
 		// The coverage so far of each position by reads we choose to keep
-		int[] readCov = new int[MAX_LEN];
+		int[][] readCov = new int[refs.size()][];
+		ReadSelector[] selectors = new ReadSelector[refs.size()];
+		for (int c = 0; c < refs.size(); c++) {
+			readCov[c] = new int[refs.arraySize(c)];
+			selectors[c] = ReadSelector.create(engine, new CoverageCounter.IntArray(refs.arraySize(c)), COV_THRESHOLD, null);
+		}
 
 		// True for reads we want to keep
-		boolean[] used = new boolean[lineCount];
-
-		// Go through the reads, and if there's some position covered by it that's
-		// below coverage threshold, take the read
-		for (ReadPair r : reads) {
-			// Whether or not we want this read
-			boolean wantRead = false;
-			for(int i = 0; i<r.starts.size(); i++)
-			{
-				for(int j = r.starts.get(i); j < r.ends.get(i); j++)
-				{
-					wantRead |= readCov[j] < COV_THRESHOLD;
-				}
+		final boolean[] used = new boolean[lineCount];
+
+		// Pairs with mates on different contigs tie those contigs together - each
+		// resulting group of contigs is selected on its own thread
+		ContigScheduler scheduler = new ContigScheduler(refs.size());
+		for (int pair = 0; pair < n; pair++) {
+			int first = pairs.first[pair];
+			for (int r = pairs.next[first]; r != -1; r = pairs.next[r]) {
+				scheduler.join(store.contig[first], store.contig[r]);
 			}
-
-			// If the minimum is low enough, take the read and add its coverage
-			if (wantRead)
-			{
-				for(int i = 0; i<r.starts.size(); i++)
-				{
-					used[r.indices.get(i)] = true;
-					for (int j = r.starts.get(i); j < r.ends.get(i); j++)
-					{
-						readCov[j]++;
-					}
-				}
+		}
+		scheduler.groups();
+		for (int pair : order) {
+			long work = 0;
+			for (int r = pairs.first[pair]; r != -1; r = pairs.next[r]) {
+				work += store.end[r] - store.start[r];
 			}
+			scheduler.add(store.contig[pairs.first[pair]], pair, work);
 		}
 
+		final ContigCoverage.IntList[] groupPairs = scheduler.items;
+		final ReadStore reads = store;
+		final ReadPairs readPairs = pairs;
+		final ReadSelector[] contigSelectors = selectors;
+		final int[][] keptCov = readCov;
+		scheduler.run(threads, new ContigScheduler.Task() {
+			@Override
+			public void run(int g) {
+				selectPairs(reads, readPairs, groupPairs[g], contigSelectors, keptCov, used);
+			}
+		});
+
+		// Turn the kept read endpoints into the coverage of each position
+		prefixSums(readCov);
+
 		// Calculate some statistics
 
 		// Total quality score of all reads
@@ -235,122 +345,194 @@ public class NormalizePairedReads {
 		// Total number of bases across all used reads
 		int usedBases = 0;
 
-		// Minimum coverage in full dataset (ignoring first and last 50 bp)
-		int fullMinCov = 987654321;
-
-		// Minimum coverage among kept reads (ignoring first and last 50 bp)
-		int sampleMinCov = 987654321;
-
 		// Compute the statistics outlined above
-		for (int i = 0; i < n; i++) {
-			ReadPair r = reads.get(i);
-			for(int j = 0; j<r.starts.size(); j++)
+		for (int o : order) {
+			for(int r = pairs.first[o]; r != -1; r = pairs.next[r])
 			{
-				totalBases += r.ends.get(j) - r.starts.get(j);
-				totalQual += r.quals.get(j);
+				totalBases += store.end[r] - store.start[r];
+				totalQual += store.qual(r);
 				totalCount++;
-				if (used[r.indices.get(j)])
+				if (used[store.index[r]])
 				{
-					usedTotalQual += r.quals.get(j);
+					usedTotalQual += store.qual(r);
 					usedCount++;
-					usedBases += r.ends.get(j) - r.starts.get(j);
+					usedBases += store.end[r] - store.start[r];
 				}
 			}
 		}
 
-		// Check for min coverage outside of first/last 50 bp and see if it's similar to
-		// old minimum
-		for (int i = 50; i < MAX_LEN - 50; i++) {
-			if (cov[i] > 0) {
-				fullMinCov = Math.min(fullMinCov, cov[i]);
-				sampleMinCov = Math.min(sampleMinCov, readCov[i]);
+		printStats(refs, cov, readCov, totalCount, usedCount, totalQual, usedTotalQual, totalBases, usedBases);
+		writeKept(bamInput, index, RecordIndex.flags(used), refs);
+		return 0;
+	}
+
+	/*
+	 * Goes through a group's pairs in order, and if there's some position covered
+	 * by one of a pair's reads that's below coverage threshold, takes both reads
+	 */
+	static void selectPairs(ReadStore store, ReadPairs pairs, ContigCoverage.IntList pairList,
+			ReadSelector[] selectors, int[][] readCov, boolean[] used) {
+		for (int i = 0; i < pairList.size; i++) {
+			int pair = pairList.vals[i];
+
+			// Whether or not we want this read
+			boolean wantRead = false;
+			for(int r = pairs.first[pair]; r != -1 && !wantRead; r = pairs.next[r])
+			{
+				wantRead = selectors[store.contig[r]].wantRead(store.start[r], store.end[r], 0);
 			}
 
-			if (cov[i] >= COV_THRESHOLD && readCov[i] < COV_THRESHOLD) {
-				System.out.println("Coverage dropped below threshold at position " + i + "; " + "Old coverage=" + cov[i]
-						+ ", New coverage=" + readCov[i]);
+			// If the minimum is low enough, take the read and add its coverage
+			if (wantRead)
+			{
+				for(int r = pairs.first[pair]; r != -1; r = pairs.next[r])
+				{
+					used[store.index[r]] = true;
+					selectors[store.contig[r]].keepRead(store.start[r], store.end[r], 0);
+					addInterval(readCov[store.contig[r]], store.start[r], store.end[r]);
+				}
 			}
+		}
+	}
 
+	/*
+	 * Prints how many reads and bases were kept and the minimum coverage before and
+	 * after, and any positions where coverage was brought below the threshold
+	 */
+	void printStats(ReferenceIndex refs, int[][] cov, int[][] readCov, int totalCount, int usedCount,
+			double totalQual, double usedTotalQual, int totalBases, int usedBases) {
+		// Minimum coverage in full dataset and among kept reads (ignoring first and
+		// last 50 bp)
+		int[] minCov = new int[] { 987654321, 987654321 };
+
+		for (int c = 0; c < refs.size(); c++) {
+			checkContig(refs, c, cov[c], readCov[c], COV_THRESHOLD, minCov, out);
 		}
+		printSummary(minCov, totalCount, usedCount, totalQual, usedTotalQual, totalBases, usedBases, out);
+	}
 
-		// Output statistics
-		System.out.println("Total read count (unfiltered): " + totalCount);
-		System.out.println("Downsampled read count: " + usedCount);
+	/*
+	 * Checks for min coverage of a contig outside of first/last 50 bp, updating the
+	 * minimums before and after, and prints any positions where coverage was
+	 * brought below the threshold
+	 */
+	static void checkContig(ReferenceIndex refs, int c, int[] cov, int[] readCov, int threshold, int[] minCov,
+			PrintStream out) {
+		// Only name the contig in messages if there's more than one
+		String contigLabel = refs.size() > 1 ? (refs.name(c) + ":") : "";
+		for (int i = 50; i < cov.length - 50; i++) {
+			if (cov[i] > 0) {
+				minCov[0] = Math.min(minCov[0], cov[i]);
+				minCov[1] = Math.min(minCov[1], readCov[i]);
+			}
 
-		System.out
-				.println("Overall average alignment accuracy: " + String.format("%.6f", 1.0 * totalQual / totalCount));
-		System.out.println(
-				"Downsampled average alignment accuracy: " + String.format("%.6f", 1.0 * usedTotalQual / usedCount));
-		System.out.println("Total bases covered (unfiltered): " + totalBases);
-		System.out.println("Downsampled bases covered: " + usedBases);
+			if (cov[i] >= threshold && readCov[i] < threshold) {
+				out.println("Coverage dropped below threshold at position " + contigLabel + i + "; "
+						+ "Old coverage=" + cov[i] + ", New coverage=" + readCov[i]);
+			}
+		}
+	}
 
-		System.out.println("Old min coverage: " + fullMinCov);
-		System.out.println("Downsampled min coverage: " + sampleMinCov);
+	/*
+	 * Prints the read, quality and base totals and the minimum coverage before and
+	 * after
+	 */
+	static void printSummary(int[] minCov, int totalCount, int usedCount, double totalQual, double usedTotalQual,
+			int totalBases, int usedBases, PrintStream out) {
+		int fullMinCov = minCov[0], sampleMinCov = minCov[1];
 
-		// Go through reads and make file with filtered reads
+		// Output statistics
+		out.println("Total read count (unfiltered): " + totalCount);
+		out.println("Downsampled read count: " + usedCount);
 
-		input = new Scanner(new FileInputStream(new File(fn)));
+		out.println(
+				"Overall average alignment accuracy: " + String.format("%.6f", 1.0 * totalQual / totalCount));
+		out.println(
+				"Downsampled average alignment accuracy: " + String.format("%.6f", 1.0 * usedTotalQual / usedCount));
+		out.println("Total bases covered (unfiltered): " + totalBases);
+		out.println("Downsampled bases covered: " + usedBases);
 
-		// Generate output filename
-		if (ofn.length() == 0) {
-			String suff = ".sam";
-			if (fn.endsWith(suff)) {
-				ofn = fn.substring(0, fn.length() - 4) + ".covfiltered" + suff;
-			} else {
-				ofn = fn + ".covfiltered" + suff;
-			}
+		out.println("Old min coverage: " + fullMinCov);
+		out.println("Downsampled min coverage: " + sampleMinCov);
+	}
+
+	/*
+	 * Writes out the reads we want to keep, copying them straight from the input.
+	 * Without a record index, the input is read again to find them.
+	 */
+	void writeKept(boolean bamInput, RecordIndex index, RecordIndex.KeptFlags used, ReferenceIndex refs)
+			throws IOException {
+		if (bamInput) {
+			BamReader.writeKept(fn, ofn, used, threads);
+		} else if (NormalizeCoverage.isBam(ofn)) {
+			BamWriter.writeKeptSam(fn, ofn, used, refs, threads);
+		} else if (index != null) {
+			index.writeKept(fn, ofn, used);
+		} else {
+			RecordIndex.copyKept(fn, ofn, used);
 		}
+	}
 
-		// Write out the reads we want to keep
-		PrintWriter out = new PrintWriter(new File(ofn));
-		int readIndex = 0;
-		while (input.hasNext()) {
-			String line = input.nextLine();
-			if (line.startsWith("@")) {
-				out.println(line);
-				continue;
-			}
-			if (used[readIndex]) {
-				out.println(line);
+	/*
+	 * Turns each array of differences into the running totals
+	 */
+	static void prefixSums(int[][] diffs) {
+		for (int[] diff : diffs) {
+			for (int i = 1; i < diff.length; i++) {
+				diff[i] += diff[i - 1];
 			}
-			readIndex++;
 		}
-
-		input.close();
-		out.close();
 	}
 
 	/*
-	 * Read represented by line number in the SAM file and start/end positions in
-	 * the reference
+	 * Adds +1 at the start of an interval and -1 at its end, if the end is within
+	 * the array
 	 */
-	static class ReadPair implements Comparable<ReadPair> {
-		ArrayList<Integer> indices;
-		ArrayList<Integer> starts;
-		ArrayList<Integer> ends;
-		ArrayList<Double> quals;
-		ArrayList<Integer> readLengths;
-		
-		ReadPair()
-		{
-			indices = new ArrayList<Integer>();
-			starts = new ArrayList<Integer>();
-			ends = new ArrayList<Integer>();
-			quals = new ArrayList<Double>();
-			readLengths = new ArrayList<Integer>();
+	static void addInterval(int[] diff, int start, int end) {
+		diff[start]++;
+		if (end < diff.length) {
+			diff[end]--;
 		}
+	}
 
-		void addRead(int ii, int ss, int ee, int rl, double qq) {
-			indices.add(ii);
-			starts.add(ss);
-			ends.add(ee);
-			readLengths.add(rl);
-			quals.add(qq);
+	/*
+	 * Groups of reads in the read store which share a name, each stored as a linked
+	 * list through the store in the order the reads appear in the file
+	 */
+	static class ReadPairs {
+		// First and last read in each pair
+		int[] first = new int[1024], last = new int[1024];
+		int size = 0;
+
+		// The next read in the same pair as each read in the store, or -1
+		int[] next = new int[1024];
+
+		/*
+		 * Makes a new empty pair and returns its index
+		 */
+		int add() {
+			if (size == first.length) {
+				first = Arrays.copyOf(first, size * 2);
+				last = Arrays.copyOf(last, size * 2);
+			}
+			first[size] = last[size] = -1;
+			return size++;
 		}
 
-		@Override
-		public int compareTo(ReadPair o) {
-			return starts.get(0) - o.starts.get(0);
+		/*
+		 * Adds the read at the given position in the store to the end of a pair
+		 */
+		void addRead(int pair, int read) {
+			if (read >= next.length) {
+				next = Arrays.copyOf(next, Math.max(read + 1, next.length * 2));
+			}
+			next[read] = -1;
+			if (first[pair] == -1) {
+				first[pair] = read;
+			} else {
+				next[last[pair]] = read;
+			}
+			last[pair] = read;
 		}
 	}
 }
@@ -0,0 +1,872 @@
+/*
+ * Single-pass normalization of read pairs in coordinate-sorted input, deciding on reads within a sliding window and holding on beyond it only to reads whose mate is still to come according to their RNEXT and PNEXT fields
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+public class PairedStreamingNormalizer implements CoverageSweep.Listener, SweepSelection.Decisions {
+
+	int threshold;
+
+	// The most reads to hold in memory after they leave the window while waiting
+	// for their mates before spilling the ones whose mates are furthest away to
+	// disk
+	int maxPending;
+
+	// Where to write spilled reads
+	File tmpDir;
+
+	ReferenceIndex refs;
+
+	// Where to print messages and statistics
+	PrintStream out;
+
+	// The file of kept flags, written in record order as each read is seen -
+	// reads waiting for their mates are written as not kept, and set later if
+	// their pair is kept
+	File flagsFile;
+	FlagWriter flags;
+
+	// Reads waiting to be decided on, each with its record number as its ID and
+	// the slot of its pair as its other value, or -1 if it isn't waiting for its
+	// mate or linked to a read that is
+	SweepSelection selection;
+
+	// Total and kept coverage just behind the reads which have left the window,
+	// along with the number of reads there still waiting on their mates, checked
+	// as the selection moves past each position
+	CoverageSweep sweep;
+
+	// Positions the sweep has passed which are covered by reads still waiting on
+	// their mates, in runs where the same waiting reads cover every position. The
+	// kept coverage there is already at the threshold, or the waiting reads would
+	// have been kept, so no warnings can come from them, but it goes up if the
+	// waiting reads are kept. Each run holds its lowest kept coverage when it was
+	// passed, the number of waiting reads covering it, and how many of those have
+	// since been kept. Runs are in sweep order, keyed by the order contigs were
+	// seen in and the start of the run, and are dropped once they can't lower the
+	// minimum.
+	long[] runKey = new long[1024];
+	int[] runEnd = new int[1024], runMin = new int[1024], runOpen = new int[1024], runAdded = new int[1024];
+	int numRuns = 0;
+	boolean runActive = false;
+	int[] contigRank = new int[0];
+	int numContigs = 0;
+
+	// Minimum coverage in full dataset and among kept reads, over the positions
+	// passed so far
+	int[] minCov = new int[] { 987654321, 987654321 };
+
+	double totalQual = 0, usedTotalQual = 0;
+	int totalCount = 0, usedCount = 0;
+	int totalBases = 0, usedBases = 0;
+
+	// Contig and start of the last read seen, used to make sure the input is
+	// sorted
+	int lastContig = -1, lastStart = 0;
+	boolean[] finished = new boolean[0];
+
+	// Reads waiting for their mates, by name, stored in slots of the arrays below,
+	// and how many of them have left the window
+	HashMap<String, Integer> pending = new HashMap<String, Integer>();
+	int numOutside = 0;
+
+	// For each slot: where the mate is expected (contig and start), the first
+	// read's record number and interval, its length and matches, and whether the
+	// pair has already been kept. Slots also hold the sequence numbers of the
+	// first read in the window (or -1 if it was spilled) and of the mate once it
+	// arrives (or -1 until then), and the number of heap entries and reads in the
+	// window which still refer to them.
+	long[] mateKey = new long[1024];
+	int[] record = new int[1024], contig = new int[1024], start = new int[1024], end = new int[1024];
+	int[] length = new int[1024], matches = new int[1024];
+	boolean[] kept = new boolean[1024];
+	String[] names = new String[1024];
+	long[] firstSeq = new long[1024], mateSeq = new long[1024];
+	int[] uses = new int[1024];
+
+	// Slots not in use, and the number of slots ever used
+	int[] freeSlots = new int[1024];
+	int numFree = 0, numSlots = 0;
+
+	// Slots in use, as a min-heap on where the mate is expected so that reads
+	// whose mates never arrive can be let go once the input is past that point
+	int[] heap = new int[1024];
+	int heapSize = 0;
+
+	// Files of spilled reads, each sorted by where the mate is expected
+	ArrayList<SpillRun> spills = new ArrayList<SpillRun>();
+	int numSpilled = 0;
+
+	PairedStreamingNormalizer(ReferenceIndex refs, int threshold, int maxPending, String tmpDir, PrintStream out) {
+		this.refs = refs;
+		this.out = out;
+		this.threshold = threshold;
+		this.maxPending = Math.max(maxPending, 2);
+		this.tmpDir = tmpDir.length() == 0 ? null : new File(tmpDir);
+		selection = new SweepSelection(refs, threshold, false, this);
+		sweep = new CoverageSweep(refs, this);
+	}
+
+	/*
+	 * Reads a SAM or BAM file once, deciding on each pair once the input has moved
+	 * past both mates, and returns which records are kept. Coverage problems are printed
+	 * as the input moves past each position.
+	 */
+	RecordIndex.KeptFlags run(String fn, boolean bamInput, int threads) throws IOException {
+		flagsFile = File.createTempFile("kept", ".flags", tmpDir);
+		flagsFile.deleteOnExit();
+		flags = new FlagWriter(flagsFile);
+		int numRecords = 0;
+		if (bamInput) {
+			BamReader reader = new BamReader(fn, threads);
+			reader.addReferences(refs);
+			while (reader.next()) {
+				reader.parse();
+				int flag = reader.flag;
+				int c = reader.contig();
+				if ((flag & 4) > 0 || (flag & 256) > 0 || (flag & 2048) > 0 || c == -1) {
+					continue;
+				}
+				String name = hasMappedMate(flag) ? reader.name() : null;
+				add(reader.count - 1, c, reader.start(), reader.end(), reader.queryLength, reader.numMatches,
+						reader.mateContig(), reader.mateStart(), name);
+			}
+			numRecords = reader.count;
+			reader.close();
+		} else {
+			RecordTokenizer tokenizer = new RecordTokenizer(fn, false);
+			while (tokenizer.next()) {
+				if (tokenizer.isSamHeader()) {
+					refs.parseHeader(tokenizer.line());
+					continue;
+				}
+				numRecords++;
+				tokenizer.parse();
+				int flag = tokenizer.flag;
+				int c = tokenizer.contig(refs);
+				if ((flag & 4) > 0 || (flag & 256) > 0 || (flag & 2048) > 0 || c == -1) {
+					continue;
+				}
+				String name = null;
+				int mateContig = -1, mateStart = 0;
+				if (hasMappedMate(flag)) {
+					tokenizer.parseMate();
+					name = tokenizer.name();
+					mateContig = tokenizer.mateContig(refs);
+					mateStart = tokenizer.matePos;
+				}
+				add(numRecords - 1, c, tokenizer.start(), tokenizer.end(), tokenizer.queryLength,
+						tokenizer.numMatches, mateContig, mateStart, name);
+			}
+			tokenizer.close();
+		}
+
+		selection.finish();
+
+		// Reads whose mates never turned up stand on their own
+		for (int i = 0; i < heapSize; i++) {
+			int slot = heap[i];
+			if (names[slot] != null && !kept[slot]) {
+				resolve(record[slot], contig[slot], start[slot], end[slot], length[slot], matches[slot], false);
+			}
+		}
+		for (SpillRun run : spills) {
+			while (run.hasNext) {
+				if (!run.kept) {
+					resolve(run.record, run.contig, run.start, run.end, run.length, run.matches, false);
+				}
+				run.next();
+			}
+		}
+		spills.clear();
+		flags.advanceTo(numRecords);
+		flags.close();
+		sweep.finish();
+		if (numSpilled > 0) {
+			out.println("Spilled " + numSpilled + " reads waiting for distant mates to disk");
+		}
+		return new FlagReader(flagsFile, numRecords);
+	}
+
+	static boolean hasMappedMate(int flag) {
+		return (flag & 1) != 0 && (flag & 8) == 0;
+	}
+
+	/*
+	 * Handles the next aligned read, adding it to the window of reads waiting to be
+	 * decided on. Keeping either read of a pair keeps the other: right away if it's
+	 * in the window, as soon as it arrives if it's still to come, or by setting its
+	 * flag if it has already left the window. A first read which leaves the window
+	 * without being kept waits for its mate to be decided on.
+	 */
+	void add(int rec, int c, int s, int e, int rl, int numMatches, int mateContig, int mateStart,
+			String name) throws IOException {
+		if (finished.length < refs.size()) {
+			finished = Arrays.copyOf(finished, refs.size());
+			contigRank = Arrays.copyOf(contigRank, refs.size());
+		}
+		e = Math.min(e, refs.arraySize(c));
+
+		// Records skipped since the last read are never kept, and this one isn't
+		// unless it's kept later
+		flags.advanceTo(rec + 1);
+
+		if (c != lastContig) {
+			if (finished[c]) {
+				throw new IllegalArgumentException("Input must be sorted by position in streaming mode, but record "
+						+ (rec + 1) + " is on contig " + refs.name(c) + " after reads on other contigs");
+			}
+			if (lastContig != -1) {
+				finished[lastContig] = true;
+			}
+			contigRank[c] = numContigs++;
+			lastContig = c;
+			lastStart = 0;
+		}
+		if (s < lastStart) {
+			throw new IllegalArgumentException("Input must be sorted by position in streaming mode, but record "
+					+ (rec + 1) + " starts at " + s + " after a read starting at " + lastStart);
+		}
+		lastStart = s;
+
+		long key = key(c, s);
+		release(key);
+
+		totalCount++;
+		totalQual += ReadStore.qual(numMatches, rl);
+		totalBases += e - s;
+
+		// The second read of a pair is linked to the first before the window moves
+		// on, so that the first still waits for it if it leaves the window now
+		Integer mate = name == null ? null : pending.remove(name);
+		if (mate != null) {
+			int slot = mate;
+			names[slot] = null;
+			if (!selection.inWindow(firstSeq[slot])) {
+				numOutside--;
+			}
+			mateSeq[slot] = selection.tail;
+			uses[slot]++;
+		}
+		long seq = selection.add(c, s, e, 0, rl, numMatches, rec, mate == null ? -1 : mate);
+		sweep.add(CoverageSweep.TOTAL, s, e, 1);
+
+		if (mate != null) {
+			if (kept[mate]) {
+				selection.keep(seq);
+			}
+		} else {
+			// Wait for the mate if it comes later in the input
+			long mateAt = key(mateContig, mateStart);
+			if (name != null && mateContig != -1 && mateAt >= key) {
+				selection.aux[selection.index(seq)] = addPending(name, mateAt, rec, c, s, e, rl, numMatches, false,
+						seq);
+			}
+		}
+
+		if (numOutside > maxPending) {
+			spill(key);
+		}
+	}
+
+	/*
+	 * Orders positions by contig and then start
+	 */
+	static long key(int c, int s) {
+		return ((long) c << 32) | (s & 0xffffffffL);
+	}
+
+	/*
+	 * Marks a read as kept and adds its coverage
+	 */
+	void keep(int rec, int c, int s, int e, int rl, int numMatches) throws IOException {
+		flags.set(rec);
+		if (c == sweep.contig) {
+			sweep.add(CoverageSweep.KEPT, s, e, 1);
+		}
+		usedCount++;
+		usedTotalQual += ReadStore.qual(numMatches, rl);
+		usedBases += e - s;
+	}
+
+	/*
+	 * Keeps a read in the window along with its mate
+	 */
+	@Override
+	public void kept(int i) throws IOException {
+		keep((int) selection.id[i], selection.sweep.contig, selection.start[i], selection.end[i],
+				selection.readLength[i], selection.matches[i]);
+		int slot = selection.aux[i];
+		if (slot == -1 || kept[slot]) {
+			return;
+		}
+		kept[slot] = true;
+		if (selection.id[i] == record[slot]) {
+			// The mate is kept once it's in the window, if it isn't already
+			if (selection.inWindow(mateSeq[slot])) {
+				selection.keep(mateSeq[slot]);
+			}
+		} else if (selection.inWindow(firstSeq[slot])) {
+			selection.keep(firstSeq[slot]);
+		} else {
+			resolve(record[slot], contig[slot], start[slot], end[slot], length[slot], matches[slot], true);
+		}
+	}
+
+	/*
+	 * Lets go of a read once the window has passed it. A first read which wasn't
+	 * kept starts waiting if its mate is in the window or still to come, and when
+	 * a second read wasn't kept, neither is the first.
+	 */
+	@Override
+	public void released(int i) throws IOException {
+		int slot = selection.aux[i];
+		if (slot == -1) {
+			return;
+		}
+		if (selection.id[i] == record[slot]) {
+			if (names[slot] != null) {
+				numOutside++;
+			}
+			if (!kept[slot] && (names[slot] != null || mateSeq[slot] != -1)) {
+				sweep.add(CoverageSweep.OPEN, start[slot], end[slot], 1);
+				sweep.mark(start[slot]);
+				sweep.mark(end[slot]);
+			}
+		} else if (!kept[slot]) {
+			resolve(record[slot], contig[slot], start[slot], end[slot], length[slot], matches[slot], false);
+		}
+		free(slot);
+	}
+
+	@Override
+	public void passed(int c, int pos) throws IOException {
+		sweep.moveTo(c, pos);
+	}
+
+	/*
+	 * Decides on a read which was waiting for its mate. The part of it the sweep
+	 * hasn't reached is no longer waiting, and the runs it covers in the part the
+	 * sweep has passed get its coverage if it's kept.
+	 */
+	void resolve(int rec, int c, int s, int e, int rl, int numMatches, boolean keep) throws IOException {
+		int passed = e;
+		if (c == sweep.contig) {
+			passed = Math.min(e, sweep.pos);
+			sweep.add(CoverageSweep.OPEN, s, e, -1);
+			sweep.mark(Math.max(s, sweep.pos));
+		}
+		if (s < passed) {
+			resolveRuns(c, s, passed, keep);
+		}
+		if (keep) {
+			keep(rec, c, s, e, rl, numMatches);
+		}
+	}
+
+	/*
+	 * Counts a decided read in the runs within [s, e) of a contig, and folds the
+	 * kept coverage of runs with no more reads waiting into the minimum
+	 */
+	void resolveRuns(int c, int s, int e, boolean keep) {
+		long from = key(contigRank[c], s), to = key(contigRank[c], e);
+		int lo = 0, hi = numRuns;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (runKey[mid] < from) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		for (int i = lo; i < numRuns && runKey[i] < to; i++) {
+			if (runOpen[i] == 0) {
+				continue;
+			}
+			if (keep) {
+				runAdded[i]++;
+			}
+			if (--runOpen[i] == 0) {
+				minCov[1] = Math.min(minCov[1], runMin[i] + runAdded[i]);
+			}
+		}
+	}
+
+	/*
+	 * Checks each position once the input has moved past it, for min coverage
+	 * outside of the first and last 50 bp and for coverage brought below the
+	 * threshold
+	 */
+	@Override
+	public void position(int c, int pos, int[] depth) {
+		int len = refs.arraySize(c);
+		if (pos < 50 || pos >= len - 50) {
+			runActive = false;
+			return;
+		}
+		int cov = depth[CoverageSweep.TOTAL], readCov = depth[CoverageSweep.KEPT];
+		if (cov > 0) {
+			minCov[0] = Math.min(minCov[0], cov);
+		}
+		if (depth[CoverageSweep.OPEN] == 0) {
+			runActive = false;
+			if (cov > 0) {
+				minCov[1] = Math.min(minCov[1], readCov);
+			}
+			if (cov >= threshold && readCov < threshold) {
+				// Only name the contig in messages if there's more than one
+				String contigLabel = refs.size() > 1 ? (refs.name(c) + ":") : "";
+				out.println("Coverage dropped below threshold at position " + contigLabel + pos + "; "
+						+ "Old coverage=" + cov + ", New coverage=" + readCov);
+			}
+		} else if (runActive && depth[CoverageSweep.OPEN_EVENTS] == 0) {
+			runMin[numRuns - 1] = Math.min(runMin[numRuns - 1], readCov);
+			runEnd[numRuns - 1] = pos + 1;
+		} else {
+			startRun(key(contigRank[c], pos), pos + 1, readCov, depth[CoverageSweep.OPEN]);
+		}
+	}
+
+	@Override
+	public void contigDone(int c) {
+		runActive = false;
+	}
+
+	/*
+	 * Adds a run of positions covered by waiting reads, first letting go of runs
+	 * which are decided or can't lower the minimum if there's no room
+	 */
+	void startRun(long key, int end, int min, int open) {
+		if (numRuns == runKey.length) {
+			int n = 0;
+			for (int i = 0; i < numRuns; i++) {
+				if (runOpen[i] > 0 && runMin[i] < minCov[1]) {
+					runKey[n] = runKey[i];
+					runEnd[n] = runEnd[i];
+					runMin[n] = runMin[i];
+					runOpen[n] = runOpen[i];
+					runAdded[n] = runAdded[i];
+					n++;
+				}
+			}
+			numRuns = n;
+			if (numRuns > runKey.length / 2) {
+				int size = runKey.length * 2;
+				runKey = Arrays.copyOf(runKey, size);
+				runEnd = Arrays.copyOf(runEnd, size);
+				runMin = Arrays.copyOf(runMin, size);
+				runOpen = Arrays.copyOf(runOpen, size);
+				runAdded = Arrays.copyOf(runAdded, size);
+			}
+		}
+		runKey[numRuns] = key;
+		runEnd[numRuns] = end;
+		runMin[numRuns] = min;
+		runOpen[numRuns] = open;
+		runAdded[numRuns] = 0;
+		numRuns++;
+		runActive = true;
+	}
+
+	/*
+	 * Lets go of reads whose mates were expected before the given position, and
+	 * brings back spilled reads whose mates are expected by then
+	 */
+	void release(long key) throws IOException {
+		while (heapSize > 0 && mateKey[heap[0]] < key) {
+			int slot = popHeap();
+			if (names[slot] != null) {
+				// The mate never arrived, so the read stands on its own, and is decided
+				// on by the window if it's still there
+				pending.remove(names[slot]);
+				names[slot] = null;
+				if (!selection.inWindow(firstSeq[slot])) {
+					numOutside--;
+					if (!kept[slot]) {
+						resolve(record[slot], contig[slot], start[slot], end[slot], length[slot], matches[slot],
+								false);
+					}
+				}
+			}
+			free(slot);
+		}
+		for (int i = spills.size() - 1; i >= 0; i--) {
+			SpillRun run = spills.get(i);
+			while (run.hasNext && run.mateKey <= key) {
+				addPending(run.name, run.mateKey, run.record, run.contig, run.start, run.end, run.length,
+						run.matches, run.kept, -1);
+				run.next();
+			}
+			if (!run.hasNext) {
+				spills.remove(i);
+			}
+		}
+	}
+
+	/*
+	 * Holds on to a first read until its mate arrives, given its sequence number
+	 * in the window, and returns its slot
+	 */
+	int addPending(String name, long mateAt, int rec, int c, int s, int e, int rl, int numMatches, boolean k,
+			long seq) {
+		int slot;
+		if (numFree > 0) {
+			slot = freeSlots[--numFree];
+		} else {
+			if (numSlots == mateKey.length) {
+				growSlots();
+			}
+			slot = numSlots++;
+		}
+		names[slot] = name;
+		mateKey[slot] = mateAt;
+		record[slot] = rec;
+		contig[slot] = c;
+		start[slot] = s;
+		end[slot] = e;
+		length[slot] = rl;
+		matches[slot] = numMatches;
+		kept[slot] = k;
+		firstSeq[slot] = seq;
+		mateSeq[slot] = -1;
+		uses[slot] = 1;
+		if (selection.inWindow(seq)) {
+			uses[slot]++;
+		} else {
+			numOutside++;
+		}
+		pending.put(name, slot);
+		pushHeap(slot);
+		return slot;
+	}
+
+	/*
+	 * Lets go of one use of a slot, freeing it once nothing refers to it
+	 */
+	void free(int slot) {
+		if (--uses[slot] == 0) {
+			freeSlots[numFree++] = slot;
+		}
+	}
+
+	void growSlots() {
+		int n = mateKey.length * 2;
+		mateKey = Arrays.copyOf(mateKey, n);
+		record = Arrays.copyOf(record, n);
+		contig = Arrays.copyOf(contig, n);
+		start = Arrays.copyOf(start, n);
+		end = Arrays.copyOf(end, n);
+		length = Arrays.copyOf(length, n);
+		matches = Arrays.copyOf(matches, n);
+		kept = Arrays.copyOf(kept, n);
+		names = Arrays.copyOf(names, n);
+		firstSeq = Arrays.copyOf(firstSeq, n);
+		mateSeq = Arrays.copyOf(mateSeq, n);
+		uses = Arrays.copyOf(uses, n);
+		freeSlots = Arrays.copyOf(freeSlots, n);
+		heap = Arrays.copyOf(heap, n);
+	}
+
+	/*
+	 * Writes the half of the waiting reads outside the window whose mates are
+	 * furthest away to a new file, sorted by where the mate is expected, and
+	 * rebuilds the heap from the rest. Reads whose mates are expected at the
+	 * current position stay in memory.
+	 */
+	void spill(long key) throws IOException {
+		int n = 0;
+		long[] keys = new long[numOutside];
+		for (int i = 0; i < heapSize; i++) {
+			if (names[heap[i]] != null && !selection.inWindow(firstSeq[heap[i]])) {
+				keys[n++] = mateKey[heap[i]];
+			}
+		}
+		Arrays.sort(keys, 0, n);
+		long cutoff = Math.max(keys[n / 2], key + 1);
+
+		ArrayList<Integer> spilled = new ArrayList<Integer>();
+		int remaining = 0;
+		for (int i = 0; i < heapSize; i++) {
+			int slot = heap[i];
+			if (names[slot] != null && !selection.inWindow(firstSeq[slot]) && mateKey[slot] >= cutoff) {
+				spilled.add(slot);
+			} else if (names[slot] != null) {
+				heap[remaining++] = slot;
+			} else {
+				free(slot);
+			}
+		}
+		heapSize = remaining;
+		for (int i = heapSize / 2 - 1; i >= 0; i--) {
+			siftDown(i);
+		}
+		if (spilled.size() == 0) {
+			return;
+		}
+
+		int[] order = new int[spilled.size()];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = spilled.get(i);
+		}
+		sortByMateKey(order);
+
+		File f = File.createTempFile("pairs", ".spill", tmpDir);
+		f.deleteOnExit();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+		for (int slot : order) {
+			out.writeUTF(names[slot]);
+			out.writeLong(mateKey[slot]);
+			out.writeInt(record[slot]);
+			out.writeInt(contig[slot]);
+			out.writeInt(start[slot]);
+			out.writeInt(end[slot]);
+			out.writeInt(length[slot]);
+			out.writeInt(matches[slot]);
+			out.writeBoolean(kept[slot]);
+			pending.remove(names[slot]);
+			names[slot] = null;
+			numOutside--;
+			free(slot);
+		}
+		out.close();
+		numSpilled += order.length;
+		spills.add(new SpillRun(f));
+	}
+
+	/*
+	 * Sorts slots by where their mates are expected
+	 */
+	void sortByMateKey(int[] slots) {
+		long[] sortKeys = new long[slots.length];
+		for (int i = 0; i < slots.length; i++) {
+			sortKeys[i] = mateKey[slots[i]];
+		}
+		Integer[] idx = new Integer[slots.length];
+		for (int i = 0; i < idx.length; i++) {
+			idx[i] = i;
+		}
+		final long[] k = sortKeys;
+		Arrays.sort(idx, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.compare(k[a], k[b]);
+			}
+		});
+		int[] res = new int[slots.length];
+		for (int i = 0; i < idx.length; i++) {
+			res[i] = slots[idx[i]];
+		}
+		System.arraycopy(res, 0, slots, 0, slots.length);
+	}
+
+	void pushHeap(int slot) {
+		int i = heapSize++;
+		heap[i] = slot;
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (mateKey[heap[parent]] <= mateKey[heap[i]]) {
+				break;
+			}
+			int tmp = heap[parent];
+			heap[parent] = heap[i];
+			heap[i] = tmp;
+			i = parent;
+		}
+	}
+
+	int popHeap() {
+		int res = heap[0];
+		heap[0] = heap[--heapSize];
+		siftDown(0);
+		return res;
+	}
+
+	void siftDown(int i) {
+		while (true) {
+			int smallest = i;
+			for (int child = 2 * i + 1; child <= 2 * i + 2 && child < heapSize; child++) {
+				if (mateKey[heap[child]] < mateKey[heap[smallest]]) {
+					smallest = child;
+				}
+			}
+			if (smallest == i) {
+				return;
+			}
+			int tmp = heap[smallest];
+			heap[smallest] = heap[i];
+			heap[i] = tmp;
+			i = smallest;
+		}
+	}
+
+	/*
+	 * Prints the same totals as a run which holds all reads in memory - positions
+	 * with low coverage were already printed as each contig was finished
+	 */
+	void printStats() {
+		NormalizePairedReads.printSummary(minCov, totalCount, usedCount, totalQual, usedTotalQual, totalBases,
+				usedBases, out);
+	}
+
+	/*
+	 * Writes a kept flag for each record in order, 64 records to a long, holding
+	 * the most recent ones in memory. Flags of reads kept once their mate turns up
+	 * may already be in the file, and are set there.
+	 */
+	static class FlagWriter {
+		RandomAccessFile file;
+		long[] buf = new long[8192];
+		ByteBuffer bytes = ByteBuffer.allocate(8 * 8192);
+
+		// The index of the first long in the buffer, and the number of records so far
+		long bufStart = 0;
+		int numRecords = 0;
+
+		FlagWriter(File f) throws IOException {
+			file = new RandomAccessFile(f, "rw");
+			file.setLength(0);
+		}
+
+		/*
+		 * Adds flags for records which aren't kept up to the given number of records
+		 */
+		void advanceTo(int n) throws IOException {
+			while (numRecords < n) {
+				if ((numRecords >>> 6) - bufStart == buf.length) {
+					write(buf.length);
+				}
+				numRecords++;
+			}
+		}
+
+		/*
+		 * Marks a record which has already been added as kept
+		 */
+		void set(int rec) throws IOException {
+			long idx = rec >>> 6, bit = 1L << (rec & 63);
+			if (idx >= bufStart) {
+				buf[(int) (idx - bufStart)] |= bit;
+			} else {
+				file.seek(idx * 8);
+				long val = file.readLong();
+				file.seek(idx * 8);
+				file.writeLong(val | bit);
+			}
+		}
+
+		/*
+		 * Writes the first n longs of the buffer to the end of the file
+		 */
+		void write(int n) throws IOException {
+			bytes.clear();
+			bytes.asLongBuffer().put(buf, 0, n);
+			file.seek(bufStart * 8);
+			file.write(bytes.array(), 0, n * 8);
+			bufStart += n;
+			Arrays.fill(buf, 0);
+		}
+
+		void close() throws IOException {
+			write((int) ((numRecords + 63L) / 64 - bufStart));
+			file.close();
+		}
+	}
+
+	/*
+	 * Reads the kept flags back from their file in record order, deleting the file
+	 * after the last one
+	 */
+	static class FlagReader implements RecordIndex.KeptFlags {
+		File f;
+		DataInputStream in;
+		int remaining;
+		long bits;
+		int numBits = 0;
+
+		FlagReader(File f, int numRecords) throws IOException {
+			this.f = f;
+			remaining = numRecords;
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+		}
+
+		@Override
+		public boolean next() throws IOException {
+			if (numBits == 0) {
+				bits = in.readLong();
+				numBits = 64;
+			}
+			boolean res = (bits & 1) != 0;
+			bits >>>= 1;
+			numBits--;
+			if (--remaining == 0) {
+				in.close();
+				f.delete();
+			}
+			return res;
+		}
+	}
+
+	/*
+	 * A file of spilled reads being read back in order of where their mates are
+	 * expected, holding the next read
+	 */
+	static class SpillRun {
+		File f;
+		DataInputStream in;
+
+		boolean hasNext;
+		String name;
+		long mateKey;
+		int record, contig, start, end, length, matches;
+		boolean kept;
+
+		SpillRun(File f) throws IOException {
+			this.f = f;
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+			next();
+		}
+
+		void next() throws IOException {
+			try {
+				name = in.readUTF();
+			} catch (EOFException e) {
+				close();
+				return;
+			}
+			mateKey = in.readLong();
+			record = in.readInt();
+			contig = in.readInt();
+			start = in.readInt();
+			end = in.readInt();
+			length = in.readInt();
+			matches = in.readInt();
+			kept = in.readBoolean();
+			hasNext = true;
+		}
+
+		void close() throws IOException {
+			hasNext = false;
+			if (in != null) {
+				in.close();
+				in = null;
+				f.delete();
+			}
+		}
+	}
+}
@@ -0,0 +1,268 @@
+/*
+ * A binary sidecar file (input + ".ncidx") holding the parsed reads of a SAM or CSV file, so later runs on the same input can map it instead of parsing the text again
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+public class ReadCache {
+
+	static final String EXTENSION = ".ncidx";
+
+	// Identifies the file and its layout, which changes whenever the format does
+	static final long MAGIC = 0x4e4349445800L;
+	static final int VERSION = 1;
+
+	// Columns are mapped in chunks of this many values so that no mapping needs to
+	// be larger than 2 GB
+	static final int CHUNK_BITS = 26;
+	static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+	// Bytes stored for each read: its offset, its length and six other int
+	// columns, and its strand
+	static final int BYTES_PER_READ = 8 + 7 * 4 + 1;
+
+	// Size of the buffer columns are written through
+	static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+	static File cacheFile(String fn) {
+		return new File(fn + EXTENSION);
+	}
+
+	/*
+	 * Fills in the reads, record positions, and contigs from the cache for an input
+	 * file, returning false if there is no cache, it was made from a different
+	 * version of the input or with different settings, or it is truncated or
+	 * corrupt. Nothing is filled in unless the whole cache is usable.
+	 */
+	static boolean load(String fn, boolean csv, int maxLen, ReadStore reads, RecordIndex index, ReferenceIndex refs)
+			throws IOException {
+		File cache = cacheFile(fn);
+		if (!cache.exists()) {
+			return false;
+		}
+		RandomAccessFile file = new RandomAccessFile(cache, "r");
+		try {
+			return load(file.getChannel(), new File(fn), csv, maxLen, reads, index, refs);
+		} catch (IOException | RuntimeException e) {
+			// The input is parsed again and the cache rewritten
+			return false;
+		} finally {
+			file.close();
+		}
+	}
+
+	static boolean load(FileChannel channel, File input, boolean csv, int maxLen, ReadStore reads, RecordIndex index,
+			ReferenceIndex refs) throws IOException {
+		long fileSize = channel.size();
+		if (fileSize < 45) {
+			return false;
+		}
+		// The header is mapped first, and then each column separately in chunks so that
+		// no mapping needs to be larger than 2 GB
+		MappedByteBuffer header = map(channel, 0, Math.min(fileSize, Integer.MAX_VALUE));
+		if (header.getLong() != MAGIC || header.getInt() != VERSION || header.getLong() != input.length()
+				|| header.getLong() != lastModified(input) || header.get() != (csv ? 1 : 0)
+				|| header.getInt() != maxLen) {
+			return false;
+		}
+
+		int numContigs = header.getInt();
+		if (numContigs < 0 || numContigs > header.remaining() / 8) {
+			return false;
+		}
+		String[] names = new String[numContigs];
+		int[] lengths = new int[numContigs];
+		for (int c = 0; c < numContigs; c++) {
+			int nameLength = header.getInt();
+			if (nameLength < 0 || nameLength > header.remaining()) {
+				return false;
+			}
+			byte[] name = new byte[nameLength];
+			header.get(name);
+			names[c] = new String(name, "UTF-8");
+			lengths[c] = header.getInt();
+		}
+
+		int numHeaders = header.getInt();
+		if (numHeaders < 0 || numHeaders > header.remaining() / 12) {
+			return false;
+		}
+		long[] headerOffsets = new long[numHeaders];
+		int[] headerLengths = new int[numHeaders];
+		for (int i = 0; i < numHeaders; i++) {
+			headerOffsets[i] = header.getLong();
+			headerLengths[i] = header.getInt();
+		}
+
+		// Make sure the columns are all there before reading any of them
+		int n = header.getInt();
+		long pos = header.position();
+		if (n < 0 || pos + (long) BYTES_PER_READ * n != fileSize) {
+			return false;
+		}
+
+		// The record positions are only read in order when writing the output, so
+		// they stay in the mapped file
+		LongBuffer[] offsets = new LongBuffer[numChunks(n)];
+		for (int k = 0; k < offsets.length; k++) {
+			offsets[k] = map(channel, pos + 8L * k * CHUNK_SIZE, 8L * chunkLength(n, k)).asLongBuffer();
+		}
+		pos += 8L * n;
+		IntBuffer[] recordLengths = new IntBuffer[numChunks(n)];
+		for (int k = 0; k < recordLengths.length; k++) {
+			recordLengths[k] = map(channel, pos + 4L * k * CHUNK_SIZE, 4L * chunkLength(n, k)).asIntBuffer();
+		}
+		pos += 4L * n;
+
+		// Selection visits reads in any order, so their columns are read into memory
+		int[][] intColumns = new int[6][];
+		for (int j = 0; j < intColumns.length; j++) {
+			intColumns[j] = new int[Math.max(n, 1)];
+			for (int k = 0; k < numChunks(n); k++) {
+				map(channel, pos + 4L * k * CHUNK_SIZE, 4L * chunkLength(n, k)).asIntBuffer().get(intColumns[j],
+						k * CHUNK_SIZE, chunkLength(n, k));
+			}
+			pos += 4L * n;
+		}
+		byte[] strand = new byte[Math.max(n, 1)];
+		for (int k = 0; k < numChunks(n); k++) {
+			map(channel, pos + (long) k * CHUNK_SIZE, chunkLength(n, k)).get(strand, k * CHUNK_SIZE,
+					chunkLength(n, k));
+		}
+
+		for (int c = 0; c < numContigs; c++) {
+			refs.add(names[c], lengths[c]);
+		}
+		for (int i = 0; i < numHeaders; i++) {
+			index.addHeader(headerOffsets[i], headerLengths[i]);
+		}
+		index.mappedOffsets = offsets;
+		index.mappedLengths = recordLengths;
+		index.size = n;
+		reads.index = intColumns[0];
+		reads.contig = intColumns[1];
+		reads.start = intColumns[2];
+		reads.end = intColumns[3];
+		reads.readLength = intColumns[4];
+		reads.matches = intColumns[5];
+		reads.strand = strand;
+		reads.size = n;
+		return true;
+	}
+
+	static int numChunks(int n) {
+		return (int) (((long) n + CHUNK_SIZE - 1) / CHUNK_SIZE);
+	}
+
+	/*
+	 * The number of values in a chunk of a column of n values
+	 */
+	static int chunkLength(int n, int k) {
+		return Math.min(CHUNK_SIZE, n - k * CHUNK_SIZE);
+	}
+
+	static MappedByteBuffer map(FileChannel channel, long pos, long length) throws IOException {
+		return channel.map(FileChannel.MapMode.READ_ONLY, pos, length);
+	}
+
+	/*
+	 * Writes the cache for an input file, replacing any old one once the new one
+	 * is complete so that other runs never see a partial file
+	 */
+	static void save(String fn, boolean csv, int maxLen, ReadStore reads, RecordIndex index, ReferenceIndex refs)
+			throws IOException {
+		File input = new File(fn);
+		File cache = cacheFile(fn);
+		File tmp = new File(cache.getPath() + ".tmp" + ProcessHandle.current().pid());
+
+		int n = reads.size;
+		long headerSize = 8 + 4 + 8 + 8 + 1 + 4 + 4 + 4 + 12L * index.numHeaders + 4;
+		byte[][] names = new byte[refs.size()][];
+		for (int c = 0; c < refs.size(); c++) {
+			names[c] = refs.name(c).getBytes("UTF-8");
+			headerSize += 8 + names[c].length;
+		}
+
+		RandomAccessFile file = new RandomAccessFile(tmp, "rw");
+		try {
+			file.setLength(headerSize + (long) BYTES_PER_READ * n);
+			FileChannel channel = file.getChannel();
+			ByteBuffer header = ByteBuffer.allocate((int) headerSize);
+			header.putLong(MAGIC);
+			header.putInt(VERSION);
+			header.putLong(input.length());
+			header.putLong(lastModified(input));
+			header.put((byte) (csv ? 1 : 0));
+			header.putInt(maxLen);
+			header.putInt(refs.size());
+			for (int c = 0; c < refs.size(); c++) {
+				header.putInt(names[c].length);
+				header.put(names[c]);
+				header.putInt(refs.arraySize(c) - 1);
+			}
+			header.putInt(index.numHeaders);
+			for (int i = 0; i < index.numHeaders; i++) {
+				header.putLong(index.headerOffsets[i]);
+				header.putInt(index.headerLengths[i]);
+			}
+			header.putInt(n);
+			header.flip();
+			long pos = write(channel, header, 0);
+
+			// Columns go through a small buffer a piece at a time
+			ByteBuffer column = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+			for (int i = 0; i < n; i += WRITE_BUFFER_SIZE / 8) {
+				int count = Math.min(n - i, WRITE_BUFFER_SIZE / 8);
+				column.clear();
+				column.asLongBuffer().put(index.offsets, i, count);
+				column.limit(8 * count);
+				pos = write(channel, column, pos);
+			}
+			int[][] intColumns = new int[][] { index.lengths, reads.index, reads.contig, reads.start, reads.end,
+					reads.readLength, reads.matches };
+			for (int[] vals : intColumns) {
+				for (int i = 0; i < n; i += WRITE_BUFFER_SIZE / 4) {
+					int count = Math.min(n - i, WRITE_BUFFER_SIZE / 4);
+					column.clear();
+					column.asIntBuffer().put(vals, i, count);
+					column.limit(4 * count);
+					pos = write(channel, column, pos);
+				}
+			}
+			for (int i = 0; i < n; i += WRITE_BUFFER_SIZE) {
+				int count = Math.min(n - i, WRITE_BUFFER_SIZE);
+				column.clear();
+				column.put(reads.strand, i, count);
+				column.flip();
+				pos = write(channel, column, pos);
+			}
+		} finally {
+			file.close();
+		}
+		Files.move(tmp.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/*
+	 * Writes the rest of a buffer at a position, returning the position after it
+	 */
+	static long write(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+		while (buf.hasRemaining()) {
+			pos += channel.write(buf, pos);
+		}
+		return pos;
+	}
+
+	static long lastModified(File f) throws IOException {
+		return Files.getLastModifiedTime(f.toPath()).toMillis();
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * Maps read names to pair IDs using 64-bit fingerprints in flat arrays, so that the names themselves don't need to be kept in memory. Since the names aren't kept, the mapping is probabilistic: two different names are only told apart by their hashes, which is wrong far too rarely to matter at any realistic number of reads.
+ */
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+public class ReadNameTable {
+
+	// Marks an empty slot in the table
+	static final int EMPTY = -1;
+
+	// Fingerprint of the name in each slot, along with an independent check value
+	// which includes the name length. Two different names are taken for the same
+	// one only if both of these match, which for n names has a chance of about
+	// n^2 / 2^97 (about 1 in 10^11 for a billion reads), so the names themselves
+	// aren't compared.
+	long[] fingerprints;
+	int[] checks;
+
+	// The pair ID in each slot, or EMPTY
+	int[] ids;
+
+	// Number of names in the table, and the number it can hold before growing
+	int size;
+	int capacity;
+
+	// Names whose fingerprint is already used by a different name, looked up
+	// exactly
+	HashMap<String, Integer> collisions = new HashMap<String, Integer>();
+
+	// Fingerprint and check value of the last name hashed
+	long fingerprint;
+	int check;
+
+	ReadNameTable() {
+		allocate(1 << 16);
+	}
+
+	void allocate(int slots) {
+		fingerprints = new long[slots];
+		checks = new int[slots];
+		ids = new int[slots];
+		Arrays.fill(ids, EMPTY);
+		capacity = slots / 2;
+	}
+
+	/*
+	 * The ID of the pair with the given name, or the given new ID if the name
+	 * hasn't been seen before, assuming no other name has the same fingerprint and
+	 * check value
+	 */
+	int getOrAdd(byte[] name, int offset, int length, int newId) {
+		hash(name, offset, length);
+		int mask = ids.length - 1;
+		int slot = (int) fingerprint & mask;
+		while (ids[slot] != EMPTY) {
+			if (fingerprints[slot] == fingerprint) {
+				if (checks[slot] == check) {
+					return ids[slot];
+				}
+
+				// Two different names with the same fingerprint - the fingerprint stays with
+				// the first one and any others go to the exact map
+				String key = new String(name, offset, length);
+				Integer id = collisions.get(key);
+				if (id == null) {
+					collisions.put(key, newId);
+					return newId;
+				}
+				return id;
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		fingerprints[slot] = fingerprint;
+		checks[slot] = check;
+		ids[slot] = newId;
+		if (++size > capacity) {
+			grow();
+		}
+		return newId;
+	}
+
+	/*
+	 * Doubles the number of slots, placing every name again
+	 */
+	void grow() {
+		long[] oldFingerprints = fingerprints;
+		int[] oldChecks = checks, oldIds = ids;
+		allocate(oldIds.length * 2);
+		int mask = ids.length - 1;
+		for (int i = 0; i < oldIds.length; i++) {
+			if (oldIds[i] == EMPTY) {
+				continue;
+			}
+			int slot = (int) oldFingerprints[i] & mask;
+			while (ids[slot] != EMPTY) {
+				slot = (slot + 1) & mask;
+			}
+			fingerprints[slot] = oldFingerprints[i];
+			checks[slot] = oldChecks[i];
+			ids[slot] = oldIds[i];
+		}
+	}
+
+	/*
+	 * Computes two independent hashes of a name: a 64-bit fingerprint (FNV-1a with
+	 * a final mix so that the low bits can pick the slot), and a 32-bit check
+	 * value which also includes the length
+	 */
+	void hash(byte[] name, int offset, int length) {
+		long h = 0xcbf29ce484222325L;
+		int g = length;
+		for (int i = offset; i < offset + length; i++) {
+			h = (h ^ (name[i] & 0xff)) * 0x100000001b3L;
+			g = g * 0x9e3779b1 + name[i];
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		fingerprint = h;
+		check = (g ^ (g >>> 16)) * 0x85ebca6b ^ length;
+	}
+}
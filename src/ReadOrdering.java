@@ -0,0 +1,110 @@
+/*
+ * Orders for considering reads, as permutations of their positions in primitive arrays: a seeded shuffle, or a radix sort by decreasing alignment quality which takes linear time
+ */
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class ReadOrdering {
+
+	// Number of bits of the sort key handled in each pass of the radix sort
+	static final int DIGIT_BITS = 16;
+	static final int DIGIT_MASK = (1 << DIGIT_BITS) - 1;
+
+	/*
+	 * The positions 0, 1, ..., n-1 in a random order (Fisher-Yates), which is the
+	 * same for the same seed
+	 */
+	static int[] shuffled(int n, Random rand) {
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+		}
+		for (int i = n - 1; i > 0; i--) {
+			int j = rand.nextInt(i + 1);
+			int tmp = order[i];
+			order[i] = order[j];
+			order[j] = tmp;
+		}
+		return order;
+	}
+
+	/*
+	 * The reads in the store sorted by decreasing alignment quality, with ties
+	 * kept in the order they were read
+	 */
+	static int[] byQuality(ReadStore reads) {
+		int n = reads.size;
+		long[] keys = new long[n];
+		for (int i = 0; i < n; i++) {
+			keys[i] = descendingKey(reads.qual(i));
+		}
+		return sortedOrder(keys, n);
+	}
+
+	/*
+	 * Groups of reads sorted by decreasing total alignment quality, where the reads
+	 * in group i are first[i], next[first[i]], ... until -1, with ties kept in
+	 * group order
+	 */
+	static int[] byTotalQuality(ReadStore reads, int[] first, int[] next, int n) {
+		long[] keys = new long[n];
+		for (int i = 0; i < n; i++) {
+			double total = 0;
+			for (int r = first[i]; r != -1; r = next[r]) {
+				total += reads.qual(r);
+			}
+			keys[i] = descendingKey(total);
+		}
+		return sortedOrder(keys, n);
+	}
+
+	/*
+	 * A key which sorts in increasing unsigned order as the value decreases, using
+	 * all of the bits of the value so that no two different qualities are merged.
+	 * Values are ordered the same way as Double.compare.
+	 */
+	static long descendingKey(double value) {
+		long bits = Double.doubleToLongBits(value);
+		return ~(bits ^ ((bits >> 63) | Long.MIN_VALUE));
+	}
+
+	/*
+	 * The positions 0, 1, ..., n-1 sorted by increasing unsigned key with a least
+	 * significant digit radix sort. Each pass is stable, so ties stay in their
+	 * original order. Passes where every key has the same digit are skipped.
+	 */
+	static int[] sortedOrder(long[] keys, int n) {
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+		}
+		int[] tmp = new int[n];
+		int[] counts = new int[DIGIT_MASK + 1];
+		for (int shift = 0; shift < 64; shift += DIGIT_BITS) {
+			Arrays.fill(counts, 0);
+			for (int i = 0; i < n; i++) {
+				counts[(int) (keys[i] >>> shift) & DIGIT_MASK]++;
+			}
+			if (n == 0 || counts[(int) (keys[0] >>> shift) & DIGIT_MASK] == n) {
+				continue;
+			}
+
+			// Turn the counts into where each digit's reads go
+			int total = 0;
+			for (int d = 0; d <= DIGIT_MASK; d++) {
+				int count = counts[d];
+				counts[d] = total;
+				total += count;
+			}
+			for (int i = 0; i < n; i++) {
+				int idx = order[i];
+				tmp[counts[(int) (keys[idx] >>> shift) & DIGIT_MASK]++] = idx;
+			}
+			int[] swap = order;
+			order = tmp;
+			tmp = swap;
+		}
+		return order;
+	}
+}
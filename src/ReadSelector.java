@@ -0,0 +1,126 @@
+/*
+ * Decides whether a read is still needed given the reads kept so far, with interchangeable implementations
+ */
+
+public abstract class ReadSelector {
+
+	/*
+	 * Whether or not a read covering [start, end) on the given strand covers some
+	 * position which still needs more coverage
+	 */
+	abstract boolean wantRead(int start, int end, int strand);
+
+	/*
+	 * Records that a read covering [start, end) on the given strand was kept
+	 */
+	abstract void keepRead(int start, int end, int strand);
+
+	/*
+	 * Makes a selector with the given engine name. Until a read is kept, the
+	 * coverage of each position is taken from initialCov. If desiredStrandCov is
+	 * non-null, reads are wanted based on how much coverage their own strand still
+	 * needs rather than the overall threshold.
+	 */
+	static ReadSelector create(String engine, CoverageCounter initialCov, int threshold,
+			CoverageCounter[] desiredStrandCov) {
+		if (engine.equalsIgnoreCase("linear")) {
+			return new LinearScan(initialCov, threshold, desiredStrandCov);
+		} else if (engine.equalsIgnoreCase("segtree")) {
+			return new RangeMin(initialCov, threshold, desiredStrandCov);
+		}
+		throw new IllegalArgumentException("Unknown selection engine: " + engine);
+	}
+
+	/*
+	 * Checks and updates every base covered by a read
+	 */
+	static class LinearScan extends ReadSelector {
+		int threshold;
+		CoverageCounter readCov;
+		CoverageCounter[] strandCovSoFar;
+		CoverageCounter[] desiredStrandCov;
+
+		LinearScan(CoverageCounter initialCov, int threshold, CoverageCounter[] desiredStrandCov) {
+			this.threshold = threshold;
+			this.desiredStrandCov = desiredStrandCov;
+			readCov = initialCov.copy();
+			strandCovSoFar = new CoverageCounter[] { initialCov.empty(), initialCov.empty() };
+		}
+
+		boolean wantRead(int start, int end, int strand) {
+			for (int i = start; i < end; i++) {
+				// If using strand, check if we need more coverage for this strand anywhere
+				// along the length of the read
+				if (desiredStrandCov != null) {
+					if (strandCovSoFar[strand].get(i) < desiredStrandCov[strand].get(i)) {
+						return true;
+					}
+				}
+
+				// If not using strand, see if we still need overall coverage anywhere along the
+				// length of the read
+				else if (readCov.get(i) < threshold) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		void keepRead(int start, int end, int strand) {
+			for (int i = start; i < end; i++) {
+				readCov.add(i, 1);
+				strandCovSoFar[strand].add(i, 1);
+			}
+		}
+	}
+
+	/*
+	 * Keeps the coverage still needed at each position in a segment tree so that
+	 * checking and keeping a read each take logarithmic time in the genome length
+	 */
+	static class RangeMin extends ReadSelector {
+		int threshold;
+
+		// Kept coverage of each position when strand is ignored
+		CoverageSegmentTree readCov;
+
+		// Kept minus desired coverage of each position on each strand
+		CoverageSegmentTree[] strandSurplus;
+
+		RangeMin(CoverageCounter initialCov, int threshold, CoverageCounter[] desiredStrandCov) {
+			this.threshold = threshold;
+			int n = initialCov.size;
+			if (desiredStrandCov != null) {
+				strandSurplus = new CoverageSegmentTree[2];
+				for (int j = 0; j < 2; j++) {
+					int[] init = new int[n];
+					for (int i = 0; i < n; i++) {
+						init[i] = -desiredStrandCov[j].get(i);
+					}
+					strandSurplus[j] = new CoverageSegmentTree(init, n);
+				}
+			} else {
+				int[] init = new int[n];
+				for (int i = 0; i < n; i++) {
+					init[i] = initialCov.get(i);
+				}
+				readCov = new CoverageSegmentTree(init, n);
+			}
+		}
+
+		boolean wantRead(int start, int end, int strand) {
+			if (strandSurplus != null) {
+				return strandSurplus[strand].min(start, end) < 0;
+			}
+			return readCov.min(start, end) < threshold;
+		}
+
+		void keepRead(int start, int end, int strand) {
+			if (strandSurplus != null) {
+				strandSurplus[strand].add(start, end, 1);
+			} else {
+				readCov.add(start, end, 1);
+			}
+		}
+	}
+}
@@ -0,0 +1,173 @@
+/*
+ * Columnar storage of read alignments using primitive arrays, so that no objects are needed per read
+ */
+
+import java.util.Arrays;
+
+public class ReadStore {
+
+	// Index of the record in the input file (among non-header lines)
+	int[] index;
+
+	// Contig the read is aligned to (-1 if unaligned), and start and end
+	// (exclusive) on that contig
+	int[] contig;
+	int[] start, end;
+
+	// 0 for forward strand, 1 for reverse strand
+	byte[] strand;
+
+	// Number of query bases in the alignment
+	int[] readLength;
+
+	// Number of matching bases, which along with read length gives alignment
+	// accuracy
+	int[] matches;
+
+	// Number of reads stored
+	int size = 0;
+
+	ReadStore() {
+		this(1024);
+	}
+
+	ReadStore(int capacity) {
+		capacity = Math.max(capacity, 1);
+		index = new int[capacity];
+		contig = new int[capacity];
+		start = new int[capacity];
+		end = new int[capacity];
+		strand = new byte[capacity];
+		readLength = new int[capacity];
+		matches = new int[capacity];
+	}
+
+	/*
+	 * Adds a read and returns its position in the store
+	 */
+	int add(int idx, int c, int s, int e, int str, int rl, int numMatches) {
+		if (size == start.length) {
+			grow();
+		}
+		index[size] = idx;
+		contig[size] = c;
+		start[size] = s;
+		end[size] = e;
+		strand[size] = (byte) str;
+		readLength[size] = rl;
+		matches[size] = numMatches;
+		return size++;
+	}
+
+	/*
+	 * Replaces the read at a position in the store, keeping its index
+	 */
+	void set(int i, int c, int s, int e, int str, int rl, int numMatches) {
+		contig[i] = c;
+		start[i] = s;
+		end[i] = e;
+		strand[i] = (byte) str;
+		readLength[i] = rl;
+		matches[i] = numMatches;
+	}
+
+	void grow() {
+		int capacity = start.length * 2;
+		index = Arrays.copyOf(index, capacity);
+		contig = Arrays.copyOf(contig, capacity);
+		start = Arrays.copyOf(start, capacity);
+		end = Arrays.copyOf(end, capacity);
+		strand = Arrays.copyOf(strand, capacity);
+		readLength = Arrays.copyOf(readLength, capacity);
+		matches = Arrays.copyOf(matches, capacity);
+	}
+
+	/*
+	 * Alignment accuracy of a read
+	 */
+	double qual(int i) {
+		return qual(matches[i], readLength[i]);
+	}
+
+	/*
+	 * The alignment quality of a read with the given number of matching bases and
+	 * length, which is 0 for a read with no bases
+	 */
+	static double qual(int matches, int readLength) {
+		return readLength == 0 ? 0 : 1.0 * matches / readLength;
+	}
+
+	/*
+	 * The positions 0, 1, ..., n-1 sorted by decreasing key, with ties kept in
+	 * their original order
+	 */
+	static int[] descendingOrder(double[] keys, int n) {
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+		}
+		int[] tmp = new int[n];
+
+		// Bottom-up merge sort, which is stable
+		for (int width = 1; width < n; width *= 2) {
+			for (int lo = 0; lo < n; lo += 2 * width) {
+				int mid = Math.min(lo + width, n), hi = Math.min(lo + 2 * width, n);
+				int a = lo, b = mid, k = lo;
+				while (a < mid && b < hi) {
+					if (Double.compare(keys[order[b]], keys[order[a]]) > 0) {
+						tmp[k++] = order[b++];
+					} else {
+						tmp[k++] = order[a++];
+					}
+				}
+				while (a < mid) {
+					tmp[k++] = order[a++];
+				}
+				while (b < hi) {
+					tmp[k++] = order[b++];
+				}
+			}
+			int[] swap = order;
+			order = tmp;
+			tmp = swap;
+		}
+		return order;
+	}
+
+	/*
+	 * The positions 0, 1, ..., n-1 sorted by increasing key, with ties kept in
+	 * their original order
+	 */
+	static int[] ascendingOrder(long[] keys, int n) {
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+		}
+		int[] tmp = new int[n];
+
+		// Bottom-up merge sort, which is stable
+		for (int width = 1; width < n; width *= 2) {
+			for (int lo = 0; lo < n; lo += 2 * width) {
+				int mid = Math.min(lo + width, n), hi = Math.min(lo + 2 * width, n);
+				int a = lo, b = mid, k = lo;
+				while (a < mid && b < hi) {
+					if (keys[order[b]] < keys[order[a]]) {
+						tmp[k++] = order[b++];
+					} else {
+						tmp[k++] = order[a++];
+					}
+				}
+				while (a < mid) {
+					tmp[k++] = order[a++];
+				}
+				while (b < hi) {
+					tmp[k++] = order[b++];
+				}
+			}
+			int[] swap = order;
+			order = tmp;
+			tmp = swap;
+		}
+		return order;
+	}
+}
@@ -0,0 +1,198 @@
+/*
+ * Byte offsets and lengths of the lines in an input file, so that records can be copied to the output without parsing them again
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+public class RecordIndex {
+
+	// Offset and length (including the line terminator) of each record, in the
+	// order they appear in the file
+	long[] offsets = new long[1024];
+	int[] lengths = new int[1024];
+	int size = 0;
+
+	// Instead of the arrays above, the offsets and lengths may be left in a mapped
+	// read cache, in chunks of ReadCache.CHUNK_SIZE records
+	LongBuffer[] mappedOffsets;
+	IntBuffer[] mappedLengths;
+
+	// Same for header lines, which are always copied to the output
+	long[] headerOffsets = new long[16];
+	int[] headerLengths = new int[16];
+	int numHeaders = 0;
+
+	/*
+	 * Whether each record is kept, asked for once per record in the order they
+	 * appear in the input, so that the flags don't all need to be in memory
+	 */
+	interface KeptFlags {
+		boolean next() throws IOException;
+	}
+
+	/*
+	 * The flags of an array indexed by position in the input
+	 */
+	static KeptFlags flags(final boolean[] used) {
+		return new KeptFlags() {
+			int i = 0;
+
+			@Override
+			public boolean next() {
+				return used[i++];
+			}
+		};
+	}
+
+	long offset(int i) {
+		if (mappedOffsets != null) {
+			return mappedOffsets[i >>> ReadCache.CHUNK_BITS].get(i & (ReadCache.CHUNK_SIZE - 1));
+		}
+		return offsets[i];
+	}
+
+	int length(int i) {
+		if (mappedLengths != null) {
+			return mappedLengths[i >>> ReadCache.CHUNK_BITS].get(i & (ReadCache.CHUNK_SIZE - 1));
+		}
+		return lengths[i];
+	}
+
+	void addRecord(long offset, int length) {
+		if (size == offsets.length) {
+			offsets = Arrays.copyOf(offsets, size * 2);
+			lengths = Arrays.copyOf(lengths, size * 2);
+		}
+		offsets[size] = offset;
+		lengths[size] = length;
+		size++;
+	}
+
+	void addHeader(long offset, int length) {
+		if (numHeaders == headerOffsets.length) {
+			headerOffsets = Arrays.copyOf(headerOffsets, numHeaders * 2);
+			headerLengths = Arrays.copyOf(headerLengths, numHeaders * 2);
+		}
+		headerOffsets[numHeaders] = offset;
+		headerLengths[numHeaders] = length;
+		numHeaders++;
+	}
+
+	/*
+	 * Puts the records in the order they appear in the file, if they were added in
+	 * a different order
+	 */
+	void sortRecords() {
+		int[] order = ReadStore.ascendingOrder(offsets, size);
+		long[] sortedOffsets = new long[offsets.length];
+		int[] sortedLengths = new int[lengths.length];
+		for (int i = 0; i < size; i++) {
+			sortedOffsets[i] = offsets[order[i]];
+			sortedLengths[i] = lengths[order[i]];
+		}
+		offsets = sortedOffsets;
+		lengths = sortedLengths;
+	}
+
+	/*
+	 * Copies all header lines and the records marked as used from the input file to
+	 * the output file, in the order they appear in the input
+	 */
+	void writeKept(String inFn, String outFn, KeptFlags used) throws IOException {
+		KeptRecordWriter writer = new KeptRecordWriter(inFn, outFn);
+		int h = 0;
+		for (int i = 0; i < size; i++) {
+			long offset = offset(i);
+			while (h < numHeaders && headerOffsets[h] < offset) {
+				writer.keep(headerOffsets[h], headerLengths[h]);
+				h++;
+			}
+			if (used.next()) {
+				writer.keep(offset, length(i));
+			}
+		}
+		while (h < numHeaders) {
+			writer.keep(headerOffsets[h], headerLengths[h]);
+			h++;
+		}
+		writer.close();
+	}
+
+	/*
+	 * Same as writeKept, but finds the records by reading the input again rather
+	 * than keeping their offsets in memory
+	 */
+	static void copyKept(String inFn, String outFn, KeptFlags used) throws IOException {
+		KeptRecordWriter writer = new KeptRecordWriter(inFn, outFn);
+		RecordTokenizer tokenizer = new RecordTokenizer(inFn, false);
+		while (tokenizer.next()) {
+			if (tokenizer.isSamHeader() || used.next()) {
+				writer.keep(tokenizer.offset, tokenizer.length);
+			}
+		}
+		tokenizer.close();
+		writer.close();
+	}
+
+	/*
+	 * Copies byte ranges of the input file to the output file, merging ranges which
+	 * touch so that long runs of kept records are transferred at once
+	 */
+	static class KeptRecordWriter {
+		String inFn;
+		FileChannel in, out;
+
+		// The range which has been kept but not yet copied
+		long runStart = 0, runEnd = 0;
+
+		KeptRecordWriter(String inFn, String outFn) throws IOException {
+			this.inFn = inFn;
+			in = new FileInputStream(new File(inFn)).getChannel();
+			out = new FileOutputStream(new File(outFn)).getChannel();
+		}
+
+		void keep(long offset, long length) throws IOException {
+			if (offset != runEnd) {
+				flush();
+				runStart = offset;
+			}
+			runEnd = offset + length;
+		}
+
+		void flush() throws IOException {
+			while (runStart < runEnd) {
+				long copied = in.transferTo(runStart, runEnd - runStart, out);
+
+				// Nothing is copied past the end of the input, so it must have shrunk
+				if (copied == 0) {
+					throw new IOException("Input file " + inFn + " ended at byte " + in.size()
+							+ " before the kept record ending at byte " + runEnd);
+				}
+				runStart += copied;
+			}
+		}
+
+		void close() throws IOException {
+			flush();
+
+			// If the last line copied had no line terminator, add one
+			if (runEnd > 0 && runEnd == in.size()) {
+				ByteBuffer last = ByteBuffer.allocate(1);
+				in.read(last, runEnd - 1);
+				if (last.get(0) != '\n') {
+					out.write(ByteBuffer.wrap(new byte[] { '\n' }));
+				}
+			}
+			in.close();
+			out.close();
+		}
+	}
+}
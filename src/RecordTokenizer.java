@@ -0,0 +1,433 @@
+/*
+ * Reads SAM or Rampart CSV records straight from the bytes of a file, parsing only the fields needed for normalization
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+public class RecordTokenizer {
+
+	// Size of the buffer used to hold the part of the file being parsed - grows if
+	// a single line is longer than this
+	static int BUFFER_SIZE = 1 << 20;
+
+	ReadableByteChannel channel;
+	ByteBuffer buf;
+
+	// The offset in the file of the first byte in the buffer
+	long bufOffset = 0;
+
+	// Whether or not the whole file has been read into the buffer
+	boolean eof = false;
+
+	// Whether or not to wait for more to be written at the end of the file rather
+	// than stopping, in which case next() returns false until a whole line is
+	// available
+	boolean follow = false;
+
+	// Whether or not to parse lines as Rampart CSV rather than SAM
+	boolean csv;
+
+	// The number of lines read so far
+	long lineCount = 0;
+
+	// Offset of the current line in the file, and its length including the line
+	// terminator
+	long offset;
+	int length;
+
+	// Start and end (exclusive, before any line terminator) of the current line in
+	// the buffer
+	int lineStart, lineEnd;
+
+	// Fields of the current record - only meaningful after parse() is called
+	int flag, pos, refLength, queryLength, numMatches;
+
+	// Location of the read name and reference name in the buffer
+	int nameStart, nameEnd;
+	int refNameStart, refNameEnd;
+
+	// Location of the mate's reference name and its position, set by parseMate()
+	int mateRefStart, mateRefEnd;
+	int matePos;
+
+	// The last reference name looked up and its contig ID, so that sorted input
+	// rarely needs to build a string for it
+	byte[] lastRefName = new byte[0];
+	int lastContig = -1;
+
+	// Scratch space for copying lines out of the buffer
+	byte[] scratch = new byte[0];
+
+	// Holds the name of the current record for nameBytes()
+	byte[] nameScratch = new byte[256];
+
+	RecordTokenizer(String fn, boolean csv) throws IOException {
+		this(new FileInputStream(new File(fn)).getChannel(), csv);
+	}
+
+	RecordTokenizer(ReadableByteChannel channel, boolean csv) {
+		this.csv = csv;
+		this.channel = channel;
+		buf = BufferPool.takeBuffer(BUFFER_SIZE);
+		buf.limit(0);
+	}
+
+	/*
+	 * Moves to the next line, returning false if there are no lines left
+	 */
+	boolean next() throws IOException {
+		int from = buf.position();
+		int scanned = from;
+		while (true) {
+			int limit = buf.limit();
+			int nl = -1;
+			for (int i = scanned; i < limit; i++) {
+				if (buf.get(i) == '\n') {
+					nl = i;
+					break;
+				}
+			}
+			if (nl != -1) {
+				setLine(from, nl, nl + 1);
+				return true;
+			}
+			scanned = limit;
+			if (eof && follow) {
+				// Keep any partial line until the rest of it is written
+				eof = false;
+				return false;
+			}
+			if (eof) {
+				if (from == limit) {
+					return false;
+				}
+
+				// Last line without a line terminator
+				setLine(from, limit, limit);
+				return true;
+			}
+
+			// Move the partial line to the front of the buffer and read more
+			int shift = from;
+			scanned -= shift;
+			fill();
+			from = 0;
+		}
+	}
+
+	/*
+	 * Whether the next line has already been read into the buffer, so that next()
+	 * won't need to wait for more input
+	 */
+	boolean lineBuffered() {
+		for (int i = buf.position(); i < buf.limit(); i++) {
+			if (buf.get(i) == '\n') {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	void setLine(int start, int end, int next) {
+		lineStart = start;
+		lineEnd = end;
+		if (lineEnd > lineStart && buf.get(lineEnd - 1) == '\r') {
+			lineEnd--;
+		}
+		offset = bufOffset + start;
+		length = next - start;
+		buf.position(next);
+		lineCount++;
+	}
+
+	/*
+	 * Compacts the unread part of the buffer to the front and reads more from the
+	 * file, growing the buffer if it's already full
+	 */
+	void fill() throws IOException {
+		int pos = buf.position();
+		bufOffset += pos;
+		buf.compact();
+		if (!buf.hasRemaining()) {
+			ByteBuffer bigger = ByteBuffer.allocateDirect(buf.capacity() * 2);
+			buf.flip();
+			bigger.put(buf);
+			BufferPool.giveBuffer(buf);
+			buf = bigger;
+		}
+		if (channel.read(buf) == -1) {
+			eof = true;
+		}
+		buf.flip();
+	}
+
+	/*
+	 * Whether the current line is a SAM header line
+	 */
+	boolean isSamHeader() {
+		return lineEnd > lineStart && buf.get(lineStart) == '@';
+	}
+
+	/*
+	 * Whether the current line is a header which should be copied through rather
+	 * than treated as a record: SAM lines starting with '@' or the first line of a
+	 * CSV file
+	 */
+	boolean isHeader() {
+		return csv ? lineCount == 1 : isSamHeader();
+	}
+
+	/*
+	 * Parses the fields of the current line needed for normalization
+	 */
+	void parse() {
+		if (csv) {
+			parseCsv();
+		} else {
+			parseSam();
+		}
+	}
+
+	/*
+	 * Parses the name, flag, position, and CIGAR string of a SAM line, ignoring all
+	 * later fields
+	 */
+	void parseSam() {
+		int i = lineStart;
+		nameStart = i;
+		i = fieldEnd(i, '\t');
+		nameEnd = i;
+		i++;
+		flag = parseInt(i);
+		i = fieldEnd(i, '\t') + 1;
+
+		refNameStart = i;
+		i = fieldEnd(i, '\t');
+		refNameEnd = i;
+		i++;
+		pos = parseInt(i);
+		i = fieldEnd(i, '\t') + 1;
+
+		// Skip mapping quality
+		i = fieldEnd(i, '\t') + 1;
+		parseCigar(i);
+	}
+
+	/*
+	 * Parses the reference name and position of the mate from a SAM line, which
+	 * must already have been parsed
+	 */
+	void parseMate() {
+		int i = lineStart;
+		for (int field = 0; field < 6; field++) {
+			i = fieldEnd(i, '\t') + 1;
+		}
+		mateRefStart = i;
+		i = fieldEnd(i, '\t');
+		mateRefEnd = i;
+		i++;
+		matePos = parseInt(i);
+	}
+
+	/*
+	 * Computes reference span, query length, and number of matches from a CIGAR
+	 * string in one pass
+	 */
+	void parseCigar(int i) {
+		refLength = queryLength = numMatches = 0;
+		int curLen = 0;
+		for (; i < lineEnd; i++) {
+			byte c = buf.get(i);
+			if (c == '\t') {
+				break;
+			}
+			if (c >= '0' && c <= '9') {
+				curLen = curLen * 10 + (c - '0');
+			} else {
+				if (c == 'M' || c == '=') {
+					numMatches += curLen;
+				}
+				if (c == 'M' || c == 'D' || c == 'N' || c == '=' || c == 'X') {
+					refLength += curLen;
+				}
+				if (c == 'M' || c == 'I' || c == 'S' || c == '=' || c == 'X') {
+					queryLength += curLen;
+				}
+				curLen = 0;
+			}
+		}
+	}
+
+	/*
+	 * Parses the read length, start, end, and number of matches from a
+	 * Rampart-formatted CSV line
+	 */
+	void parseCsv() {
+		int i = lineStart;
+		nameStart = i;
+		i = fieldEnd(i, ',');
+		nameEnd = i;
+		i++;
+		queryLength = parseInt(i);
+		for (int field = 1; field < 4; field++) {
+			i = fieldEnd(i, ',') + 1;
+		}
+		refNameStart = i;
+		i = fieldEnd(i, ',');
+		refNameEnd = i;
+		for (int field = 4; field < 6; field++) {
+			i = fieldEnd(i, ',') + 1;
+		}
+		pos = parseInt(i);
+		i = fieldEnd(i, ',') + 1;
+		refLength = parseInt(i) - pos;
+		i = fieldEnd(i, ',') + 1;
+		numMatches = parseInt(i);
+		flag = 0;
+	}
+
+	/*
+	 * The index of the first delimiter at or after i, or the end of the line
+	 */
+	int fieldEnd(int i, char delim) {
+		while (i < lineEnd && buf.get(i) != delim) {
+			i++;
+		}
+		return i;
+	}
+
+	/*
+	 * Parses a (possibly negative) integer starting at index i
+	 */
+	int parseInt(int i) {
+		boolean negative = false;
+		if (i < lineEnd && buf.get(i) == '-') {
+			negative = true;
+			i++;
+		}
+		int res = 0;
+		for (; i < lineEnd; i++) {
+			byte c = buf.get(i);
+			if (c < '0' || c > '9') {
+				break;
+			}
+			res = res * 10 + (c - '0');
+		}
+		return negative ? -res : res;
+	}
+
+	/*
+	 * Start and end on the reference of the current record
+	 */
+	int start() {
+		return pos;
+	}
+
+	int end() {
+		return pos + refLength;
+	}
+
+	/*
+	 * 0 for forward strand, 1 for reverse strand
+	 */
+	int strand() {
+		return (flag & 16) > 0 ? 1 : 0;
+	}
+
+	/*
+	 * Alignment accuracy of the current record
+	 */
+	double qual() {
+		return ReadStore.qual(numMatches, queryLength);
+	}
+
+	/*
+	 * The ID of the contig the current record is aligned to, or -1 if it is
+	 * unaligned
+	 */
+	int contig(ReferenceIndex refs) {
+		int len = refNameEnd - refNameStart;
+		boolean same = len == lastRefName.length;
+		for (int i = 0; i < len && same; i++) {
+			same = buf.get(refNameStart + i) == lastRefName[i];
+		}
+		if (!same) {
+			lastRefName = new byte[len];
+			buf.get(refNameStart, lastRefName);
+			lastContig = refs.id(new String(lastRefName));
+		}
+		return lastContig;
+	}
+
+	/*
+	 * The name of the current record - this allocates a new string
+	 */
+	String name() {
+		byte[] bytes = new byte[nameEnd - nameStart];
+		buf.get(nameStart, bytes);
+		return new String(bytes);
+	}
+
+	/*
+	 * The ID of the contig the mate of the current record is aligned to, or -1 if
+	 * it is unaligned
+	 */
+	int mateContig(ReferenceIndex refs) {
+		int len = mateRefEnd - mateRefStart;
+		if (len == 1 && buf.get(mateRefStart) == '=') {
+			return contig(refs);
+		}
+		byte[] bytes = new byte[len];
+		buf.get(mateRefStart, bytes);
+		return refs.id(new String(bytes));
+	}
+
+	/*
+	 * Copies the name of the current record into an array which is reused for
+	 * every record, returning the array - the name is its first nameEnd - nameStart
+	 * bytes
+	 */
+	byte[] nameBytes() {
+		int len = nameEnd - nameStart;
+		if (nameScratch.length < len) {
+			nameScratch = new byte[Math.max(len, 2 * nameScratch.length)];
+		}
+		buf.get(nameStart, nameScratch, 0, len);
+		return nameScratch;
+	}
+
+	/*
+	 * The current line as a string, without its line terminator
+	 */
+	String line() {
+		byte[] bytes = new byte[lineEnd - lineStart];
+		buf.get(lineStart, bytes);
+		return new String(bytes);
+	}
+
+	/*
+	 * Writes the current line followed by a newline
+	 */
+	void writeLine(OutputStream out) throws IOException {
+		int len = lineEnd - lineStart;
+		if (scratch.length < len + 1) {
+			scratch = new byte[Math.max(len + 1, 2 * scratch.length)];
+		}
+		buf.get(lineStart, scratch, 0, len);
+		scratch[len] = '\n';
+		out.write(scratch, 0, len + 1);
+	}
+
+	void close() throws IOException {
+		channel.close();
+		if (buf != null) {
+			BufferPool.giveBuffer(buf);
+			buf = null;
+		}
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ * The reference sequences (contigs) that reads can align to, with their lengths taken from @SQ header lines
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+public class ReferenceIndex {
+
+	// Name and length of each contig, in the order they were added
+	ArrayList<String> names = new ArrayList<String>();
+	int[] lengths = new int[16];
+
+	// Contig ID for each name
+	HashMap<String, Integer> ids = new HashMap<String, Integer>();
+
+	// Length to use for contigs which weren't described in the header
+	int defaultLength;
+
+	/*
+	 * Makes an index where contigs with unknown length can have positions up to
+	 * (but not including) maxLen
+	 */
+	ReferenceIndex(int maxLen) {
+		defaultLength = maxLen - 1;
+	}
+
+	int size() {
+		return names.size();
+	}
+
+	String name(int contig) {
+		return names.get(contig);
+	}
+
+	/*
+	 * The size of a per-position array for a contig - positions are 1-based, so
+	 * this is one more than the contig length
+	 */
+	int arraySize(int contig) {
+		return lengths[contig] + 1;
+	}
+
+	/*
+	 * Adds a contig if it isn't present yet, and returns its ID
+	 */
+	int add(String name, int length) {
+		Integer id = ids.get(name);
+		if (id != null) {
+			return id;
+		}
+		int res = names.size();
+		if (res == lengths.length) {
+			lengths = Arrays.copyOf(lengths, res * 2);
+		}
+		names.add(name);
+		lengths[res] = length;
+		ids.put(name, res);
+		return res;
+	}
+
+	/*
+	 * Gets the ID of a contig by name, adding it with the default length if it
+	 * wasn't in the header, or returns -1 for unaligned reads
+	 */
+	int id(String name) {
+		if (name.equals("*")) {
+			return -1;
+		}
+		Integer id = ids.get(name);
+		if (id != null) {
+			return id;
+		}
+		return add(name, defaultLength);
+	}
+
+	/*
+	 * Adds the contig described by a SAM header line if it's an @SQ line
+	 */
+	void parseHeader(String line) {
+		if (!line.startsWith("@SQ")) {
+			return;
+		}
+		String name = null;
+		int length = -1;
+		for (String token : line.split("\t")) {
+			if (token.startsWith("SN:")) {
+				name = token.substring(3);
+			} else if (token.startsWith("LN:")) {
+				length = Integer.parseInt(token.substring(3));
+			}
+		}
+		if (name != null && length >= 0) {
+			add(name, length);
+		}
+	}
+}
@@ -0,0 +1,327 @@
+/*
+ * Single-pass normalization for coordinate-sorted input, deciding on each read once the input has moved past every position it covers
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+public class StreamingNormalizer implements CoverageSweep.Listener, SweepSelection.Decisions {
+
+	/*
+	 * Where the kept reads go, given in input order by where they are in the input
+	 */
+	interface KeptReads {
+		void keep(long offset, int length) throws IOException;
+	}
+
+	NormalizeCoverage settings;
+	int threshold;
+	boolean evenStrand;
+
+	PrintWriter allLengthsOut, sampleLengthsOut;
+
+	ReferenceIndex refs;
+
+	// Reads waiting to be decided on, each with its offset in the input as its ID
+	// and its line length as its other value
+	SweepSelection selection;
+	KeptReads keptReads;
+
+	// Total and kept coverage just behind the reads which have been decided on,
+	// only used for reporting, so that memory doesn't grow with the length of the
+	// contigs
+	CoverageSweep sweep;
+	NormalizeCoverage.CoverageChecks checks;
+	NormalizeCoverage.CoverageLogs logs;
+
+	// Old and new coverage of the first and last 50 positions of the contig being
+	// swept, counting in from each end, for the checks near the ends
+	int[][] ends = new int[4][50];
+
+	double totalQual = 0, usedTotalQual = 0;
+	int totalCount = 0, usedCount = 0;
+	int totalBases = 0, usedBases = 0;
+
+	// Contig and start of the last read seen, used to make sure the input is
+	// sorted
+	int lastContig = -1, lastStart = 0;
+
+	// Whether all reads on each contig have been seen
+	boolean[] finished = new boolean[0];
+
+	StreamingNormalizer(NormalizeCoverage settings) throws IOException {
+		this.settings = settings;
+		threshold = settings.COV_THRESHOLD;
+		evenStrand = settings.evenStrand;
+		refs = new ReferenceIndex(settings.MAX_LEN);
+		selection = new SweepSelection(refs, threshold, evenStrand, this);
+		sweep = new CoverageSweep(refs, this);
+		checks = settings.new CoverageChecks(settings.out);
+
+		if (settings.coverageFn != null && settings.coverageFn.length() > 0) {
+			settings.out.println("Warning: covfile is not supported in streaming mode and will be ignored");
+		}
+
+		if (settings.logStats) {
+			allLengthsOut = new PrintWriter(new File(settings.logPrefix + "lengths_all.txt"));
+			sampleLengthsOut = new PrintWriter(new File(settings.logPrefix + "lengths_sample.txt"));
+			logs = settings.new CoverageLogs();
+		}
+	}
+
+	/*
+	 * Streams through the input file once, copying out the header lines and each
+	 * read that is kept in input order
+	 */
+	static void run(NormalizeCoverage settings) throws Exception {
+		if (settings.externalSort) {
+			ExternalSort.run(settings);
+			return;
+		}
+
+		StreamingNormalizer normalizer = new StreamingNormalizer(settings);
+		ReferenceIndex refs = normalizer.refs;
+		boolean inputCsv = settings.INPUT_CSV;
+
+		RecordTokenizer input = new RecordTokenizer(settings.fn, inputCsv);
+		final RecordIndex.KeptRecordWriter writer = new RecordIndex.KeptRecordWriter(settings.fn,
+				settings.outputFilename());
+		normalizer.keptReads = new KeptReads() {
+			@Override
+			public void keep(long offset, int length) throws IOException {
+				writer.keep(offset, length);
+			}
+		};
+
+		try {
+			while (input.next()) {
+				// Header lines are copied to the output as-is
+				if (input.isHeader()) {
+					writer.keep(input.offset, input.length);
+					if (!inputCsv) {
+						refs.parseHeader(input.line());
+					}
+					continue;
+				}
+
+				input.parse();
+				int contig = input.contig(refs);
+				int start = 0, end = 0;
+				if (contig != -1) {
+					start = input.start();
+					end = Math.min(input.end(), refs.arraySize(contig));
+				}
+				normalizer.offer(contig, start, end, input.strand(), input.queryLength, input.numMatches,
+						input.lineCount, input.offset, input.length);
+			}
+			normalizer.selection.finish();
+		} finally {
+			input.close();
+			writer.close();
+		}
+
+		normalizer.finish();
+	}
+
+	/*
+	 * Adds the next read to the window of reads waiting to be decided on. Because
+	 * reads on each contig arrive in order of their start position, a position can
+	 * be decided on once a read starts after it: if fewer of the kept reads cover
+	 * it than needed, the waiting reads covering it which reach furthest right are
+	 * kept, since they do the most for the positions still to come. The window
+	 * only holds reads which overlap the last position decided on. The line number
+	 * of the read is used in the error if reads are out of order, and its offset
+	 * and length in the input are passed on if it's kept.
+	 */
+	void offer(int contig, int start, int end, int strand, int rl, int numMatches, long line, long offset,
+			int length) throws IOException {
+		totalCount++;
+		totalQual += ReadStore.qual(numMatches, rl);
+		totalBases += end - start;
+		if (allLengthsOut != null) {
+			allLengthsOut.println(rl);
+		}
+
+		// Reads which don't cover anything (e.g., unmapped) are never kept
+		if (end <= start) {
+			return;
+		}
+
+		if (finished.length < refs.size()) {
+			finished = Arrays.copyOf(finished, refs.size());
+		}
+
+		if (contig != lastContig) {
+			if (finished[contig]) {
+				throw new IllegalArgumentException("Input must be sorted by position in streaming mode, but read on line "
+						+ line + " is on contig " + refs.name(contig) + " after reads on other contigs");
+			}
+			if (lastContig != -1) {
+				finished[lastContig] = true;
+			}
+			lastContig = contig;
+			lastStart = 0;
+		}
+
+		if (start < lastStart) {
+			throw new IllegalArgumentException("Input must be sorted by position in streaming mode, but read on line "
+					+ line + " starts at " + start + " after a read starting at " + lastStart);
+		}
+		lastStart = start;
+
+		selection.add(contig, start, end, strand, rl, numMatches, offset, length);
+		sweep.add(CoverageSweep.TOTAL + strand, start, end, 1);
+	}
+
+	@Override
+	public void kept(int i) {
+		sweep.add(CoverageSweep.KEPT + selection.strand[i], selection.start[i], selection.end[i], 1);
+	}
+
+	@Override
+	public void released(int i) throws IOException {
+		if (!selection.kept[i]) {
+			return;
+		}
+		usedCount++;
+		usedTotalQual += ReadStore.qual(selection.matches[i], selection.readLength[i]);
+		usedBases += selection.end[i] - selection.start[i];
+		if (sampleLengthsOut != null) {
+			sampleLengthsOut.println(selection.readLength[i]);
+		}
+		keptReads.keep(selection.id[i], selection.aux[i]);
+	}
+
+	@Override
+	public void passed(int contig, int pos) throws IOException {
+		sweep.moveTo(contig, pos);
+	}
+
+	/*
+	 * Prints statistics and closes the logging files once all reads have been seen
+	 */
+	void finish() throws Exception {
+		sweep.finish();
+		checks.print(totalCount, usedCount, totalQual, usedTotalQual, totalBases, usedBases);
+
+		if (allLengthsOut != null) {
+			logs.close();
+			allLengthsOut.close();
+			sampleLengthsOut.close();
+		}
+	}
+
+	/*
+	 * Checks and logs each position once the input has moved past it
+	 */
+	@Override
+	public void position(int contig, int pos, int[] depth) {
+		int len = refs.arraySize(contig);
+		int plus = depth[CoverageSweep.TOTAL], minus = depth[CoverageSweep.TOTAL + 1];
+		int keptPlus = depth[CoverageSweep.KEPT], keptMinus = depth[CoverageSweep.KEPT + 1];
+		int cov = plus + minus, readCov = keptPlus + keptMinus;
+		if (pos >= 50 && pos < len - 50) {
+			checks.position(contigLabel(contig), pos, cov, readCov, plus, minus, keptPlus, keptMinus);
+		}
+		if (pos < 50) {
+			ends[0][pos] = cov;
+			ends[1][pos] = readCov;
+		}
+		if (len - pos - 1 < 50) {
+			ends[2][len - pos - 1] = cov;
+			ends[3][len - pos - 1] = readCov;
+		}
+		if (logs != null) {
+			logs.position(cov, readCov, plus, keptPlus);
+		}
+	}
+
+	@Override
+	public void contigDone(int contig) {
+		int len = refs.arraySize(contig);
+		int[][] contigEnds = ends;
+		if (len < 50) {
+			contigEnds = new int[4][];
+			for (int j = 0; j < 4; j++) {
+				contigEnds[j] = Arrays.copyOf(ends[j], len);
+			}
+		}
+		checks.ends(contigLabel(contig), len, contigEnds);
+	}
+
+	/*
+	 * Only name the contig in messages if there's more than one
+	 */
+	String contigLabel(int contig) {
+		return refs.size() > 1 ? (refs.name(contig) + ":") : "";
+	}
+
+	/*
+	 * Sorted multiset of the end positions of kept reads which are still in the
+	 * window, stored in a sliding region of an array
+	 */
+	static class KeptEnds {
+		int[] ends = new int[16];
+		int lo = 0, hi = 0;
+
+		/*
+		 * Removes all ends which are at or before the given position
+		 */
+		void evict(int pos) {
+			while (lo < hi && ends[lo] <= pos) {
+				lo++;
+			}
+		}
+
+		/*
+		 * Removes all ends
+		 */
+		void clear() {
+			lo = hi = 0;
+		}
+
+		/*
+		 * The number of ends which are at or after the given position
+		 */
+		int countAtLeast(int pos) {
+			return hi - lowerBound(pos);
+		}
+
+		/*
+		 * Adds a new end position, keeping the ends sorted
+		 */
+		void add(int pos) {
+			if (hi == ends.length) {
+				// Slide the window back to the front, and grow it if it's mostly full
+				int size = hi - lo;
+				int[] dest = size * 2 > ends.length ? new int[ends.length * 2] : ends;
+				System.arraycopy(ends, lo, dest, 0, size);
+				ends = dest;
+				lo = 0;
+				hi = size;
+			}
+			int idx = lowerBound(pos + 1);
+			System.arraycopy(ends, idx, ends, idx + 1, hi - idx);
+			ends[idx] = pos;
+			hi++;
+		}
+
+		/*
+		 * The first index in the window whose end is at least pos
+		 */
+		int lowerBound(int pos) {
+			int a = lo, b = hi;
+			while (a < b) {
+				int mid = (a + b) >>> 1;
+				if (ends[mid] < pos) {
+					a = mid + 1;
+				} else {
+					b = mid;
+				}
+			}
+			return a;
+		}
+	}
+}
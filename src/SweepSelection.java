@@ -0,0 +1,325 @@
+/*
+ * Chooses reads from coordinate-sorted input within a sliding window: each read waits until the input has moved past every position it covers, and wherever the kept coverage of a position is below what's needed there, the waiting reads covering it which reach furthest right are kept
+ */
+
+import java.io.IOException;
+import java.util.Arrays;
+
+public class SweepSelection implements CoverageSweep.Listener {
+
+	/*
+	 * Told what happens to the reads which were added
+	 */
+	interface Decisions {
+		/*
+		 * Called when a read in the window is kept, either as the window passes a
+		 * position it covers or when whoever added it keeps it
+		 */
+		void kept(int i) throws IOException;
+
+		/*
+		 * Called for each read in the order they were added, once it's kept or the
+		 * window has passed all of it
+		 */
+		void released(int i) throws IOException;
+
+		/*
+		 * Called once every read covering the positions of a contig before the given
+		 * one has been released, so their kept coverage won't change anymore
+		 */
+		void passed(int contig, int pos) throws IOException;
+	}
+
+	int threshold;
+	boolean evenStrand;
+	Decisions decisions;
+
+	// Total coverage on each strand of the reads added so far, passed on once no
+	// read still to come can start at a position
+	CoverageSweep sweep;
+
+	// The reads in the window in the order they were added, in ring buffers
+	// indexed by their sequence numbers, from head (inclusive) to tail
+	// (exclusive). Besides their intervals and strands, each read has an ID and
+	// another value for whoever added it, and its length and number of matches for
+	// statistics.
+	int[] start, end, readLength, matches, aux;
+	long[] id;
+	byte[] strand;
+	boolean[] kept;
+	long head = 0, tail = 0;
+	int mask = 1023;
+
+	// The reads which haven't been kept on each strand, as max-heaps on how far
+	// right they reach with ties going to the earlier read, holding the end and
+	// sequence number of each. Reads which have since been kept or released are
+	// skipped when they come to the top.
+	int[][] heapEnds = new int[][] { new int[1024], new int[1024] };
+	long[][] heapSeqs = new long[][] { new long[1024], new long[1024] };
+	int[] heapSize = new int[2];
+
+	// End positions of the kept reads covering the current position, split by
+	// strand
+	StreamingNormalizer.KeptEnds[] keptEnds = new StreamingNormalizer.KeptEnds[] {
+			new StreamingNormalizer.KeptEnds(), new StreamingNormalizer.KeptEnds() };
+
+	/*
+	 * Makes a selection which brings coverage up to the threshold, or with
+	 * evenStrand, up to the coverage wanted from each strand
+	 */
+	SweepSelection(ReferenceIndex refs, int threshold, boolean evenStrand, Decisions decisions) {
+		this.threshold = threshold;
+		this.evenStrand = evenStrand;
+		this.decisions = decisions;
+		sweep = new CoverageSweep(refs, this);
+		start = new int[mask + 1];
+		end = new int[mask + 1];
+		readLength = new int[mask + 1];
+		matches = new int[mask + 1];
+		aux = new int[mask + 1];
+		id = new long[mask + 1];
+		strand = new byte[mask + 1];
+		kept = new boolean[mask + 1];
+	}
+
+	/*
+	 * Adds the next read, covering [s, e) of contig c, which must be on the same
+	 * contig as the last read and not start before it, or on a contig with no
+	 * reads so far. Positions before s are decided first. Returns the sequence
+	 * number of the read.
+	 */
+	long add(int c, int s, int e, int str, int rl, int numMatches, long readId, int readAux) throws IOException {
+		sweep.moveTo(c, s);
+		decisions.passed(c, head < tail ? Math.min(s, start[index(head)]) : s);
+		sweep.add(CoverageSweep.TOTAL + str, s, e, 1);
+
+		if (tail - head == mask + 1) {
+			grow();
+		}
+		long seq = tail++;
+		int i = index(seq);
+		start[i] = s;
+		end[i] = e;
+		strand[i] = (byte) str;
+		readLength[i] = rl;
+		matches[i] = numMatches;
+		id[i] = readId;
+		aux[i] = readAux;
+		kept[i] = false;
+		push(str, seq);
+		return seq;
+	}
+
+	int index(long seq) {
+		return (int) (seq & mask);
+	}
+
+	/*
+	 * Whether a read is still in the window
+	 */
+	boolean inWindow(long seq) {
+		return seq >= head && seq < tail;
+	}
+
+	/*
+	 * Keeps a read in the window if it isn't kept already
+	 */
+	void keep(long seq) throws IOException {
+		int i = index(seq);
+		if (kept[i]) {
+			return;
+		}
+		kept[i] = true;
+		keptEnds[strand[i]].add(end[i]);
+		decisions.kept(i);
+	}
+
+	/*
+	 * Decides on every read left once all of them have been added
+	 */
+	void finish() throws IOException {
+		sweep.finish();
+	}
+
+	/*
+	 * Brings the kept coverage of a position which no read still to come can
+	 * cover up to what's needed, then releases the reads which can't be kept
+	 * anymore
+	 */
+	@Override
+	public void position(int c, int pos, int[] depth) throws IOException {
+		keptEnds[0].evict(pos);
+		keptEnds[1].evict(pos);
+		int plus = depth[CoverageSweep.TOTAL], minus = depth[CoverageSweep.TOTAL + 1];
+		if (evenStrand) {
+			for (int j = 0; j < 2; j++) {
+				int needed = ContigCoverage.desired(plus, minus, threshold, j);
+				while (keptEnds[j].countAtLeast(pos + 1) < needed && top(j, pos) != -1) {
+					keep(pop(j));
+				}
+			}
+		} else {
+			int needed = Math.min(threshold, plus + minus);
+			while (keptEnds[0].countAtLeast(pos + 1) + keptEnds[1].countAtLeast(pos + 1) < needed) {
+				long plusTop = top(0, pos), minusTop = top(1, pos);
+				if (plusTop == -1 && minusTop == -1) {
+					break;
+				}
+				keep(pop(plusTop != -1 && (minusTop == -1 || before(plusTop, minusTop)) ? 0 : 1));
+			}
+		}
+
+		// Reads ending here can't be kept by any later position
+		while (head < tail && (kept[index(head)] || end[index(head)] <= pos + 1)) {
+			decisions.released(index(head));
+			head++;
+		}
+		decisions.passed(c, head < tail ? Math.min(pos + 1, start[index(head)]) : pos + 1);
+	}
+
+	@Override
+	public void contigDone(int c) throws IOException {
+		while (head < tail) {
+			decisions.released(index(head));
+			head++;
+		}
+		keptEnds[0].clear();
+		keptEnds[1].clear();
+		heapSize[0] = heapSize[1] = 0;
+	}
+
+	/*
+	 * The read on a strand's heap which reaches furthest right past the given
+	 * position, dropping any above it which were kept or don't reach past it, or -1
+	 * if there are none
+	 */
+	long top(int j, int pos) {
+		while (heapSize[j] > 0) {
+			long seq = heapSeqs[j][0];
+			if (seq >= head && !kept[index(seq)] && heapEnds[j][0] > pos) {
+				return seq;
+			}
+			pop(j);
+		}
+		return -1;
+	}
+
+	/*
+	 * Whether a read is kept before the other when both are at the top of their
+	 * heaps
+	 */
+	boolean before(long a, long b) {
+		int ea = end[index(a)], eb = end[index(b)];
+		return ea != eb ? ea > eb : a < b;
+	}
+
+	/*
+	 * Whether the entry at k of a heap comes before the entry at l
+	 */
+	boolean before(int j, int k, int l) {
+		int ek = heapEnds[j][k], el = heapEnds[j][l];
+		return ek != el ? ek > el : heapSeqs[j][k] < heapSeqs[j][l];
+	}
+
+	void push(int j, long seq) {
+		// Reads which were kept or released pile up below the top, so clear them out
+		// once they could be most of the heap
+		if (heapSize[j] > 2 * (tail - head) + 64) {
+			int n = 0;
+			for (int k = 0; k < heapSize[j]; k++) {
+				long s = heapSeqs[j][k];
+				if (s >= head && !kept[index(s)]) {
+					heapSeqs[j][n] = s;
+					heapEnds[j][n] = heapEnds[j][k];
+					n++;
+				}
+			}
+			heapSize[j] = n;
+			for (int k = n / 2 - 1; k >= 0; k--) {
+				siftDown(j, k);
+			}
+		}
+		if (heapSize[j] == heapSeqs[j].length) {
+			heapSeqs[j] = Arrays.copyOf(heapSeqs[j], heapSize[j] * 2);
+			heapEnds[j] = Arrays.copyOf(heapEnds[j], heapSize[j] * 2);
+		}
+		int k = heapSize[j]++;
+		heapSeqs[j][k] = seq;
+		heapEnds[j][k] = end[index(seq)];
+		while (k > 0) {
+			int parent = (k - 1) / 2;
+			if (!before(j, k, parent)) {
+				break;
+			}
+			swap(j, k, parent);
+			k = parent;
+		}
+	}
+
+	long pop(int j) {
+		long res = heapSeqs[j][0];
+		int last = --heapSize[j];
+		heapSeqs[j][0] = heapSeqs[j][last];
+		heapEnds[j][0] = heapEnds[j][last];
+		siftDown(j, 0);
+		return res;
+	}
+
+	void siftDown(int j, int k) {
+		while (true) {
+			int best = k;
+			for (int child = 2 * k + 1; child <= 2 * k + 2 && child < heapSize[j]; child++) {
+				if (before(j, child, best)) {
+					best = child;
+				}
+			}
+			if (best == k) {
+				return;
+			}
+			swap(j, k, best);
+			k = best;
+		}
+	}
+
+	void swap(int j, int k, int l) {
+		long seq = heapSeqs[j][k];
+		heapSeqs[j][k] = heapSeqs[j][l];
+		heapSeqs[j][l] = seq;
+		int e = heapEnds[j][k];
+		heapEnds[j][k] = heapEnds[j][l];
+		heapEnds[j][l] = e;
+	}
+
+	/*
+	 * Doubles the size of the ring buffers, keeping each read at the index of its
+	 * sequence number
+	 */
+	void grow() {
+		int n = 2 * (mask + 1);
+		int[] newStart = new int[n], newEnd = new int[n], newLength = new int[n], newMatches = new int[n];
+		int[] newAux = new int[n];
+		long[] newId = new long[n];
+		byte[] newStrand = new byte[n];
+		boolean[] newKept = new boolean[n];
+		for (long seq = head; seq < tail; seq++) {
+			int from = index(seq), to = (int) (seq & (n - 1));
+			newStart[to] = start[from];
+			newEnd[to] = end[from];
+			newLength[to] = readLength[from];
+			newMatches[to] = matches[from];
+			newAux[to] = aux[from];
+			newId[to] = id[from];
+			newStrand[to] = strand[from];
+			newKept[to] = kept[from];
+		}
+		start = newStart;
+		end = newEnd;
+		readLength = newLength;
+		matches = newMatches;
+		aux = newAux;
+		id = newId;
+		strand = newStrand;
+		kept = newKept;
+		mask = n - 1;
+	}
+}
@@ -0,0 +1,280 @@
+/*
+ * Keeps a random sample of the reads overlapping each window of the genome while the input is read, large enough to give each position a set number of candidates, so that selection only needs to consider a bounded number of candidates in very deep regions
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+public class WindowReservoir {
+
+	// The reads held by at least one window, where the index of each read is its
+	// position in the store - some positions may be free once reads are replaced
+	ReadStore reads = new ReadStore();
+
+	// Where each read in the store is in the input: its record number, and the
+	// offset and length of its line for text input, along with the number of
+	// windows holding it
+	int[] record = new int[1024];
+	long[] offset = new long[1024];
+	int[] length = new int[1024];
+	int[] holders = new int[1024];
+
+	// Positions in the store which no window holds anymore
+	int[] freeRows = new int[1024];
+	int numFree = 0;
+
+	int windowSize;
+
+	// The number of candidates wanted covering each position
+	int depth;
+
+	Random rand;
+	ReferenceIndex refs;
+
+	// For each contig, the number and total span of the reads seen overlapping
+	// each window, the positions in the store of the candidates held by each
+	// window, and the capacity of each window once it's full (0 before then)
+	ArrayList<int[]> seen = new ArrayList<int[]>();
+	ArrayList<long[]> spans = new ArrayList<long[]>();
+	ArrayList<int[][]> rows = new ArrayList<int[][]>();
+	ArrayList<int[]> capacities = new ArrayList<int[]>();
+
+	// For each contig, the coverage of all aligned reads in total and on the +
+	// strand, as the change from the position before until finish() adds them up,
+	// so that statistics can compare the kept reads to all of them rather than
+	// just the candidates
+	ArrayList<int[][]> coverage = new ArrayList<int[][]>();
+
+	// Number of records and aligned reads seen, windows which had more reads than
+	// they needed, and the total quality and bases of all records
+	int numRecords = 0;
+	long totalReads = 0;
+	int fullWindows = 0;
+	double totalQual = 0;
+	int totalBases = 0;
+
+	WindowReservoir(ReferenceIndex refs, int windowSize, int depth, Random rand) {
+		this.refs = refs;
+		this.windowSize = Math.max(windowSize, 1);
+		this.depth = Math.max(depth, 1);
+		this.rand = rand;
+	}
+
+	/*
+	 * Offers a read to the reservoir of each window it overlaps. A window holds
+	 * every read until it has seen more than its capacity, which is enough reads
+	 * that a uniform sample of them covers each position about depth times: a
+	 * window of W bases overlapped by reads spanning m bases on average needs
+	 * depth * (W + m) / m of them. From then on the capacity is fixed, and each new
+	 * read replaces a random candidate with probability capacity / (reads seen), so
+	 * the candidates of each window are a uniform sample of the reads overlapping
+	 * it. A read is a candidate while any window holds it, so a window which never
+	 * fills up keeps every read covering any of its positions. Reads which aren't
+	 * aligned can never be kept, so they aren't stored, but all records count
+	 * towards the totals. Every record in the input must be offered, in order.
+	 */
+	void add(long off, int len, int c, int s, int e, int str, int rl, int numMatches) {
+		int rec = numRecords++;
+		totalQual += ReadStore.qual(numMatches, rl);
+		if (c == -1 || e <= s) {
+			return;
+		}
+		totalReads++;
+		totalBases += e - s;
+		addContigs();
+		int[][] contigCov = coverage.get(c);
+		contigCov[0][s]++;
+		contigCov[0][e]--;
+		if (str == 0) {
+			contigCov[1][s]++;
+			contigCov[1][e]--;
+		}
+
+		int[] windowSeen = seen.get(c), windowCapacity = capacities.get(c);
+		long[] windowSpan = spans.get(c);
+		int[][] windowRows = rows.get(c);
+		int row = -1;
+		for (int w = s / windowSize; w <= (e - 1) / windowSize; w++) {
+			int n = ++windowSeen[w];
+			windowSpan[w] += e - s;
+			if (windowCapacity[w] == 0 && n > capacity(n, windowSpan[w])) {
+				windowCapacity[w] = n - 1;
+				fullWindows++;
+			}
+			int j = n - 1;
+			if (windowCapacity[w] != 0) {
+				j = rand.nextInt(n);
+				if (j >= windowCapacity[w]) {
+					continue;
+				}
+				release(windowRows[w][j]);
+			} else if (windowRows[w] == null) {
+				windowRows[w] = new int[16];
+			} else if (j == windowRows[w].length) {
+				windowRows[w] = Arrays.copyOf(windowRows[w], 2 * j);
+			}
+			if (row == -1) {
+				row = store(rec, off, len, c, s, e, str, rl, numMatches);
+			}
+			windowRows[w][j] = row;
+			holders[row]++;
+		}
+	}
+
+	/*
+	 * The number of reads a window needs to hold, given how many reads overlapping
+	 * it were seen and how many bases they span in total
+	 */
+	int capacity(int n, long span) {
+		return (int) Math.min(Integer.MAX_VALUE - 8, depth + Math.ceil((double) depth * windowSize * n / span));
+	}
+
+	/*
+	 * Adds the windows and coverage of any contigs which don't have them yet
+	 */
+	void addContigs() {
+		while (seen.size() < refs.size()) {
+			int size = refs.arraySize(seen.size());
+			int numWindows = size / windowSize + 1;
+			seen.add(new int[numWindows]);
+			spans.add(new long[numWindows]);
+			rows.add(new int[numWindows][]);
+			capacities.add(new int[numWindows]);
+			coverage.add(new int[2][size + 1]);
+		}
+	}
+
+	/*
+	 * Puts a read in a free position of the store, or a new one at the end
+	 */
+	int store(int rec, long off, int len, int c, int s, int e, int str, int rl, int numMatches) {
+		int row;
+		if (numFree > 0) {
+			row = freeRows[--numFree];
+			reads.set(row, c, s, e, str, rl, numMatches);
+		} else {
+			row = reads.add(reads.size, c, s, e, str, rl, numMatches);
+			if (row == record.length) {
+				record = Arrays.copyOf(record, row * 2);
+				offset = Arrays.copyOf(offset, row * 2);
+				length = Arrays.copyOf(length, row * 2);
+				holders = Arrays.copyOf(holders, row * 2);
+				freeRows = Arrays.copyOf(freeRows, row * 2);
+			}
+		}
+		record[row] = rec;
+		offset[row] = off;
+		length[row] = len;
+		holders[row] = 0;
+		return row;
+	}
+
+	/*
+	 * Called when a window lets go of a read, freeing its position in the store if
+	 * no other window holds it
+	 */
+	void release(int row) {
+		if (--holders[row] == 0) {
+			freeRows[numFree++] = row;
+		}
+	}
+
+	/*
+	 * Moves the candidates to the front of the store, in the order they appear in
+	 * the input, once every record has been offered
+	 */
+	void finish() {
+		addContigs();
+		for (int[][] contigCov : coverage) {
+			for (int[] cov : contigCov) {
+				for (int i = 1; i < cov.length; i++) {
+					cov[i] += cov[i - 1];
+				}
+			}
+		}
+
+		int[] order = new int[reads.size - numFree];
+		int n = 0;
+		for (int row = 0; row < reads.size; row++) {
+			if (holders[row] > 0) {
+				order[n++] = row;
+			}
+		}
+		long[] keys = new long[n];
+		for (int i = 0; i < n; i++) {
+			keys[i] = record[order[i]];
+		}
+		int[] byRecord = ReadStore.ascendingOrder(keys, n);
+
+		ReadStore candidates = new ReadStore();
+		int[] newRecord = new int[Math.max(n, 1)];
+		long[] newOffset = new long[Math.max(n, 1)];
+		int[] newLength = new int[Math.max(n, 1)];
+		for (int i = 0; i < n; i++) {
+			int row = order[byRecord[i]];
+			candidates.add(i, reads.contig[row], reads.start[row], reads.end[row], reads.strand[row],
+					reads.readLength[row], reads.matches[row]);
+			newRecord[i] = record[row];
+			newOffset[i] = offset[row];
+			newLength[i] = length[row];
+		}
+		reads = candidates;
+		record = newRecord;
+		offset = newOffset;
+		length = newLength;
+		holders = null;
+		freeRows = null;
+		numFree = 0;
+		rows = null;
+		seen = null;
+		spans = null;
+		capacities = null;
+	}
+
+	/*
+	 * The coverage of all aligned reads at a position, once every record has been
+	 * offered
+	 */
+	int totalCoverage(int c, int i) {
+		return coverage.get(c)[0][i];
+	}
+
+	/*
+	 * The coverage of all aligned reads on the + strand at a position, once every
+	 * record has been offered
+	 */
+	int plusCoverage(int c, int i) {
+		return coverage.get(c)[1][i];
+	}
+
+	/*
+	 * Which records of the input are kept, given which candidates are
+	 */
+	boolean[] usedRecords(boolean[] used) {
+		boolean[] res = new boolean[numRecords];
+		for (int i = 0; i < reads.size; i++) {
+			if (used[i]) {
+				res[record[i]] = true;
+			}
+		}
+		return res;
+	}
+
+	/*
+	 * An index of the header lines from the given index and the kept candidates,
+	 * in the order they appear in the input
+	 */
+	RecordIndex keptIndex(boolean[] used, RecordIndex headers) {
+		RecordIndex res = new RecordIndex();
+		for (int h = 0; h < headers.numHeaders; h++) {
+			res.addHeader(headers.headerOffsets[h], headers.headerLengths[h]);
+		}
+		for (int i = 0; i < reads.size; i++) {
+			if (used[i]) {
+				res.addRecord(offset[i], length[i]);
+			}
+		}
+		return res;
+	}
+}
@@ -0,0 +1,270 @@
+/*
+ * Selects reads in parallel by splitting each contig into windows of doubling sizes, giving each read to the smallest window holding it, and choosing among the reads of all windows of the same size independently
+ */
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+public class WindowedSelection {
+
+	// Number of median read lengths in an automatically sized window
+	static final int READ_LENGTHS_PER_WINDOW = 4;
+
+	// Most reads to sample when estimating the median read length
+	static final int MEDIAN_SAMPLE = 1 << 16;
+
+	ReadStore reads;
+	ContigCoverage[] coverage;
+	String engine;
+	int threshold;
+
+	// Size of the smallest windows - windows at level k are windowSize * 2^k long,
+	// and the top level has one window per contig
+	int windowSize;
+	int numLevels;
+
+	// For each level, the first window of each contig and the total number of
+	// windows
+	int[][] firstWindow;
+
+	// For each level and window, the reads which lie inside it but cross a
+	// boundary of the level below, in the order they should be considered, and
+	// the ones which were kept (null if there are none)
+	ContigCoverage.IntList[][] windowReads;
+	ContigCoverage.IntList[][] keptReads;
+
+	// True for reads we want to keep, indexed by position in the input
+	boolean[] used;
+
+	WindowedSelection(ReadStore reads, ContigCoverage[] coverage, String engine, int threshold, int windowSize) {
+		this.reads = reads;
+		this.coverage = coverage;
+		this.engine = engine;
+		this.threshold = threshold;
+		this.windowSize = Math.max(windowSize, 1);
+
+		int maxSize = 1;
+		for (ContigCoverage cc : coverage) {
+			maxSize = Math.max(maxSize, cc.size);
+		}
+		numLevels = 1;
+		while (windowLength(numLevels - 1) < maxSize) {
+			numLevels++;
+		}
+		firstWindow = new int[numLevels][coverage.length + 1];
+		for (int level = 0; level < numLevels; level++) {
+			for (int c = 0; c < coverage.length; c++) {
+				firstWindow[level][c + 1] = firstWindow[level][c] + numWindows(c, level);
+			}
+		}
+	}
+
+	/*
+	 * The length of the windows at a level
+	 */
+	long windowLength(int level) {
+		return (long) windowSize << level;
+	}
+
+	int numWindows(int c, int level) {
+		return (int) ((coverage[c].size + windowLength(level) - 1) / windowLength(level));
+	}
+
+	/*
+	 * A window size of a few median read lengths so that most reads lie inside a
+	 * single window, made smaller if needed so that there are at least as many
+	 * windows as threads, but never smaller than the median read length
+	 */
+	static int defaultWindowSize(ReadStore reads, long totalLength, int threads) {
+		int numAligned = 0;
+		for (int i = 0; i < reads.size; i++) {
+			if (reads.contig[i] != -1) {
+				numAligned++;
+			}
+		}
+
+		// Take the median of evenly spaced reads
+		int stride = Math.max(1, numAligned / MEDIAN_SAMPLE);
+		int[] lengths = new int[Math.min(numAligned, MEDIAN_SAMPLE)];
+		int n = 0, seen = 0;
+		for (int i = 0; i < reads.size && n < lengths.length; i++) {
+			if (reads.contig[i] != -1 && seen++ % stride == 0) {
+				lengths[n++] = reads.end[i] - reads.start[i];
+			}
+		}
+		Arrays.sort(lengths, 0, n);
+		long median = n == 0 ? 1 : Math.max(1, lengths[n / 2]);
+
+		long size = READ_LENGTHS_PER_WINDOW * median;
+		size = Math.min(size, totalLength / Math.max(threads, 1));
+		size = Math.max(size, median);
+		return (int) Math.min(size, Integer.MAX_VALUE);
+	}
+
+	/*
+	 * Decides which reads to keep, considering them in the given order. Each read
+	 * belongs to the lowest level with a window holding all of it. Levels are
+	 * selected on from the top down, so reads crossing a boundary get the first
+	 * chance to cover it, and the windows of a level don't overlap, so they are
+	 * all selected on at the same time. A window starts from the coverage of the
+	 * reads kept in the windows above it, and a read is only skipped when every
+	 * position it covers already has enough coverage, so the coverage guarantee
+	 * of the sequential selection still holds.
+	 */
+	void select(int[] order, boolean[] used, int threads) {
+		this.used = used;
+
+		windowReads = new ContigCoverage.IntList[numLevels][];
+		keptReads = new ContigCoverage.IntList[numLevels][];
+		for (int level = 0; level < numLevels; level++) {
+			windowReads[level] = new ContigCoverage.IntList[firstWindow[level][coverage.length]];
+			keptReads[level] = new ContigCoverage.IntList[firstWindow[level][coverage.length]];
+		}
+		for (int r : order) {
+			int contig = reads.contig[r];
+			if (contig == -1) {
+				continue;
+			}
+
+			// Find the lowest level where the read's first and last bases share a window
+			int startWindow = reads.start[r] / windowSize;
+			int endWindow = (reads.end[r] - 1) / windowSize;
+			int level = 0;
+			while (startWindow != endWindow) {
+				startWindow >>= 1;
+				endWindow >>= 1;
+				level++;
+			}
+			int w = firstWindow[level][contig] + startWindow;
+			if (windowReads[level][w] == null) {
+				windowReads[level][w] = new ContigCoverage.IntList();
+			}
+			windowReads[level][w].add(r);
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(Math.max(threads, 1));
+		try {
+			for (int level = numLevels - 1; level >= 0; level--) {
+				pool.invoke(new WindowTask(level, 0, firstWindow[level][coverage.length]));
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/*
+	 * Selects among the reads of one window, using coverage counters for just that
+	 * window which include the reads kept in the windows above it
+	 */
+	void selectWindow(int level, int c, int w) {
+		ContigCoverage.IntList list = windowReads[level][w];
+		if (list == null) {
+			return;
+		}
+		ContigCoverage cc = coverage[c];
+		int index = w - firstWindow[level][c];
+		int offset = (int) (index * windowLength(level));
+		int len = (int) Math.min(windowLength(level), cc.size - offset);
+
+		// Changes in the coverage of the reads kept above, overall and on each strand
+		int[] keptDiff = new int[len + 1];
+		int[][] strandDiff = cc.desiredStrandCov == null ? null : new int[2][len + 1];
+		for (int upper = level + 1; upper < numLevels; upper++) {
+			ContigCoverage.IntList kept = keptReads[upper][firstWindow[upper][c] + (int) (offset / windowLength(upper))];
+			for (int i = 0; kept != null && i < kept.size; i++) {
+				int r = kept.vals[i];
+				int s = Math.max(reads.start[r] - offset, 0), e = Math.min(reads.end[r] - offset, len);
+				if (s >= e) {
+					continue;
+				}
+				keptDiff[s]++;
+				keptDiff[e]--;
+				if (strandDiff != null) {
+					strandDiff[reads.strand[r]][s]++;
+					strandDiff[reads.strand[r]][e]--;
+				}
+			}
+		}
+
+		CoverageCounter initialCov = CoverageCounter.create(len, cc.compact, threshold);
+		int keptSoFar = 0;
+		for (int i = 0; i < len; i++) {
+			keptSoFar += keptDiff[i];
+			int val = cc.readCov.get(offset + i) + keptSoFar;
+			if (val != 0) {
+				initialCov.set(i, val);
+			}
+		}
+
+		// With strands, the reads kept above count towards what each strand still needs
+		CoverageCounter[] desiredStrandCov = null;
+		if (strandDiff != null) {
+			desiredStrandCov = new CoverageCounter[] { initialCov.empty(), initialCov.empty() };
+			for (int j = 0; j < 2; j++) {
+				int strandSoFar = 0;
+				for (int i = 0; i < len; i++) {
+					strandSoFar += strandDiff[j][i];
+					desiredStrandCov[j].set(i, cc.desiredStrandCov[j].get(offset + i) - strandSoFar);
+				}
+			}
+		}
+
+		ReadSelector selector = ReadSelector.create(engine, initialCov, threshold, desiredStrandCov);
+		ContigCoverage.IntList kept = new ContigCoverage.IntList();
+		for (int i = 0; i < list.size; i++) {
+			int r = list.vals[i];
+			int start = reads.start[r] - offset, end = reads.end[r] - offset, strand = reads.strand[r];
+			if (selector.wantRead(start, end, strand)) {
+				used[reads.index[r]] = true;
+				selector.keepRead(start, end, strand);
+				kept.add(r);
+			}
+		}
+		keptReads[level][w] = kept;
+		initialCov.release();
+	}
+
+	/*
+	 * The contig of a window at a level
+	 */
+	int contigOf(int level, int w) {
+		int c = Arrays.binarySearch(firstWindow[level], w);
+		if (c < 0) {
+			return -c - 2;
+		}
+
+		// Skip contigs which have no windows
+		while (firstWindow[level][c + 1] == w) {
+			c++;
+		}
+		return c;
+	}
+
+	/*
+	 * Selects within a range of the windows of a level, splitting the range in
+	 * half until it is a single window
+	 */
+	class WindowTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		int level, from, to;
+
+		WindowTask(int level, int from, int to) {
+			this.level = level;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= 1) {
+				if (from < to) {
+					selectWindow(level, contigOf(level, from), from);
+				}
+				return;
+			}
+			int mid = (from + to) / 2;
+			invokeAll(new WindowTask(level, from, mid), new WindowTask(level, mid, to));
+		}
+	}
+}
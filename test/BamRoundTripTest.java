@@ -0,0 +1,581 @@
+/*
+ * Checks that SAM records written with BamWriter read back unchanged and in coordinate order with BamReader - whether they arrive sorted, are sorted in memory, are spilled to more sorted runs than can be merged at once, or are spilled after some were already written out - including a record with too many CIGAR operations for the CIGAR field, and that the BAI index agrees with the virtual offsets of the records
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.zip.Inflater;
+
+public class BamRoundTripTest {
+
+	static final String[] REF_NAMES = new String[] { "chrA", "chrB" };
+	static final int[] REF_LENGTHS = new int[] { 300000, 100000 };
+
+	public static void main(String[] args) throws Exception {
+		File dir = Files.createTempDirectory("bamroundtrip").toFile();
+		try {
+			ArrayList<String> lines = samLines(new Random(9));
+			ArrayList<String> shuffled = new ArrayList<String>(lines);
+			Collections.shuffle(shuffled, new Random(10));
+			ArrayList<String> sorted = expectedOrder(lines);
+
+			// Sorted records are written straight to the output
+			BamWriter writer = newWriter(dir, "sorted.bam");
+			addAll(writer, sorted);
+			check(writer, new File(dir, "sorted.bam"), sorted);
+
+			// Unsorted records which fit in memory are sorted there
+			writer = newWriter(dir, "memory.bam");
+			addAll(writer, shuffled);
+			TestUtil.check(writer.runs.isEmpty(), "records were spilled without reaching the buffer limit");
+			check(writer, new File(dir, "memory.bam"), expectedOrder(shuffled));
+
+			// A small buffer makes more runs than are merged at once
+			writer = newWriter(dir, "spilled.bam");
+			writer.maxBufferBytes = 16 << 10;
+			addAll(writer, shuffled);
+			TestUtil.check(writer.runs.size() > BamWriter.MAX_FAN_IN,
+					"only " + writer.runs.size() + " runs were made, so they were merged in one pass");
+			check(writer, new File(dir, "spilled.bam"), expectedOrder(shuffled));
+
+			// Records written out while they were in order become the first run once
+			// one arrives out of order
+			ArrayList<String> lateUnsorted = new ArrayList<String>(sorted.subList(0, sorted.size() / 2));
+			ArrayList<String> rest = new ArrayList<String>(sorted.subList(sorted.size() / 2, sorted.size()));
+			Collections.shuffle(rest, new Random(11));
+			writer = newWriter(dir, "late.bam");
+			writer.maxBufferBytes = 256 << 10;
+			addAll(writer, lateUnsorted);
+			TestUtil.check(writer.out != null, "sorted records weren't written straight to the output");
+			addAll(writer, rest);
+			TestUtil.check(writer.out == null && !writer.runs.isEmpty(), "the output so far wasn't turned into a run");
+			lateUnsorted.addAll(rest);
+			check(writer, new File(dir, "late.bam"), expectedOrder(lateUnsorted));
+
+			for (File f : dir.listFiles()) {
+				TestUtil.check(!f.getName().startsWith("records"), "temporary run " + f + " was left behind");
+			}
+		} finally {
+			TestUtil.deleteDir(dir);
+		}
+		System.out.println("BamRoundTripTest passed");
+	}
+
+	/*
+	 * Reads on both contigs with a variety of CIGARs, optional fields, and mate
+	 * information, along with many reads at the same position, unmapped reads with
+	 * and without a position, and one read with more than 65535 CIGAR operations
+	 */
+	static ArrayList<String> samLines(Random rand) {
+		ArrayList<String> lines = new ArrayList<String>();
+		for (int i = 0; i < 5000; i++) {
+			int ref = rand.nextInt(10) < 8 ? 0 : 1;
+			int pos = i < 200 ? 1000 : 1 + rand.nextInt(REF_LENGTHS[ref] - 50000);
+			int len = 30 + rand.nextInt(rand.nextInt(10) == 0 ? 2000 : 300);
+			String cigar;
+			int kind = rand.nextInt(6);
+			if (kind == 0) {
+				cigar = "5S" + (len - 5) + "M";
+			} else if (kind == 1) {
+				cigar = (len / 2) + "M" + (1 + rand.nextInt(20)) + "D" + (len - len / 2) + "M";
+			} else if (kind == 2) {
+				cigar = (len / 2) + "M" + (20000 + rand.nextInt(20000)) + "N" + (len - len / 2) + "M";
+			} else if (kind == 3) {
+				cigar = (len / 2) + "M2I" + (len - len / 2 - 2) + "M";
+			} else {
+				cigar = len + "M";
+			}
+			String mate = rand.nextBoolean()
+					? "=\t" + (1 + rand.nextInt(REF_LENGTHS[ref])) + "\t" + (rand.nextInt(2001) - 1000)
+					: "*\t0\t0";
+			String qual = rand.nextInt(20) == 0 ? "*" : randomString(rand, len, "ABCDEFGHIJ");
+			String tags = "\tNM:i:" + rand.nextInt(300) + "\tXS:i:" + (-rand.nextInt(100000)) + "\tRG:Z:group"
+					+ rand.nextInt(3);
+			if (rand.nextInt(4) == 0) {
+				tags += "\tXF:f:1.5\tZB:B:s,1,-2,300\tXC:A:q\tXH:H:1AE3";
+			}
+			int flag = (rand.nextBoolean() ? 16 : 0) + (mate.startsWith("=") ? 1 : 0);
+			lines.add("read" + i + "\t" + flag + "\t" + REF_NAMES[ref] + "\t" + pos + "\t" + rand.nextInt(61) + "\t"
+					+ cigar + "\t" + mate + "\t" + randomString(rand, len, "ACGTN") + "\t" + qual + tags);
+		}
+		for (int i = 0; i < 20; i++) {
+			lines.add("placed" + i + "\t4\t" + REF_NAMES[i % 2] + "\t" + (1 + rand.nextInt(40000))
+					+ "\t0\t*\t*\t0\t0\tACGTA\tIIIII");
+		}
+		for (int i = 0; i < 10; i++) {
+			lines.add("unplaced" + i + "\t4\t*\t0\t0\t*\t*\t0\t0\tACGT\t*");
+		}
+
+		StringBuilder cigar = new StringBuilder();
+		for (int i = 0; i < 35000; i++) {
+			cigar.append("1M1I");
+		}
+		lines.add("long\t0\tchrB\t5000\t60\t" + cigar + "\t*\t0\t0\t" + randomString(rand, 70000, "ACGT") + "\t"
+				+ randomString(rand, 70000, "ABCDEFGHIJ") + "\tNM:i:35000");
+		return lines;
+	}
+
+	static String randomString(Random rand, int len, String chars) {
+		char[] res = new char[len];
+		for (int i = 0; i < len; i++) {
+			res[i] = chars.charAt(rand.nextInt(chars.length()));
+		}
+		return new String(res);
+	}
+
+	/*
+	 * SAM lines in the order they should be written: by reference and position,
+	 * with reads that have no reference at the end, and ties in the order they
+	 * were added
+	 */
+	static ArrayList<String> expectedOrder(ArrayList<String> lines) {
+		ArrayList<String> res = new ArrayList<String>(lines);
+		Collections.sort(res, new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) {
+				return Long.compare(key(a), key(b));
+			}
+		});
+		return res;
+	}
+
+	static long key(String line) {
+		String[] tokens = line.split("\t", 5);
+		if (tokens[2].equals("*")) {
+			return Long.MAX_VALUE;
+		}
+		return ((long) refId(tokens[2]) << 32) + Integer.parseInt(tokens[3]);
+	}
+
+	static int refId(String name) {
+		for (int i = 0; i < REF_NAMES.length; i++) {
+			if (REF_NAMES[i].equals(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	static BamWriter newWriter(File dir, String name) {
+		BamWriter writer = new BamWriter(new File(dir, name).getPath(), REF_NAMES, REF_LENGTHS, 2);
+		writer.tmpDir = dir;
+		writer.addHeaderLine("@HD\tVN:1.6\tSO:unsorted");
+		writer.addHeaderLine("@RG\tID:group0");
+		return writer;
+	}
+
+	static void addAll(BamWriter writer, ArrayList<String> lines) throws Exception {
+		for (String line : lines) {
+			writer.addSamRecord(line);
+		}
+	}
+
+	/*
+	 * Closes a writer and checks that its output reads back as the expected SAM
+	 * lines, and that its index matches the records
+	 */
+	static void check(BamWriter writer, File bam, ArrayList<String> expected) throws Exception {
+		writer.close();
+		BamReader reader = new BamReader(bam.getPath(), 2);
+		TestUtil.check(reader.headerText.startsWith("@HD\tVN:1.6\tSO:coordinate\n@RG\tID:group0\n"),
+				"unexpected header in " + bam + ":\n" + reader.headerText);
+		ArrayList<byte[]> records = new ArrayList<byte[]>();
+		while (reader.next()) {
+			records.add(Arrays.copyOf(reader.rec, reader.recLength));
+		}
+		reader.close();
+
+		TestUtil.check(records.size() == expected.size(),
+				bam + " has " + records.size() + " records rather than " + expected.size());
+		for (int i = 0; i < records.size(); i++) {
+			String line = toSam(records.get(i));
+			TestUtil.check(line.equals(expected.get(i)), "record " + i + " of " + bam + " reads back as\n"
+					+ abbreviate(line) + "\nrather than\n" + abbreviate(expected.get(i)));
+		}
+
+		BgzfLayout layout = new BgzfLayout(bam);
+		TestUtil.check(layout.recordStarts.size() == records.size(), "the BGZF blocks of " + bam + " hold "
+				+ layout.recordStarts.size() + " records rather than " + records.size());
+		checkIndex(new File(bam.getPath() + ".bai"), layout, records);
+	}
+
+	static String abbreviate(String s) {
+		return s.length() > 300 ? s.substring(0, 300) + "..." : s;
+	}
+
+	/*
+	 * Decodes a binary record back into a SAM line, checking its bin and taking the
+	 * CIGAR from the CG tag if the CIGAR field has a placeholder
+	 */
+	static String toSam(byte[] rec) {
+		ByteBuffer b = ByteBuffer.wrap(rec).order(ByteOrder.LITTLE_ENDIAN);
+		int refId = b.getInt(), pos = b.getInt();
+		int nameLength = b.get() & 0xff, mapq = b.get() & 0xff, bin = b.getShort() & 0xffff;
+		int numOps = b.getShort() & 0xffff, flag = b.getShort() & 0xffff;
+		int seqLength = b.getInt(), nextRefId = b.getInt(), nextPos = b.getInt(), tlen = b.getInt();
+		String name = new String(rec, 32, nameLength - 1);
+		b.position(32 + nameLength);
+		int[] ops = new int[numOps];
+		for (int i = 0; i < numOps; i++) {
+			ops[i] = b.getInt();
+		}
+		StringBuilder seq = new StringBuilder();
+		for (int i = 0; i < seqLength; i++) {
+			int code = rec[b.position() + i / 2] >> (i % 2 == 0 ? 4 : 0) & 0xf;
+			seq.append(BamWriter.SEQ_CODES.charAt(code));
+		}
+		b.position(b.position() + (seqLength + 1) / 2);
+		StringBuilder qual = new StringBuilder();
+		for (int i = 0; i < seqLength; i++) {
+			qual.append((char) ((rec[b.position() + i] & 0xff) + 33));
+		}
+		b.position(b.position() + seqLength);
+		if (seqLength > 0 && (rec[b.position() - seqLength] & 0xff) == 0xff) {
+			qual = new StringBuilder("*");
+		}
+
+		StringBuilder tags = new StringBuilder();
+		int[] longOps = null;
+		while (b.hasRemaining()) {
+			String tag = "" + (char) b.get() + (char) b.get();
+			char type = (char) b.get();
+			if (type == 'B') {
+				char subtype = (char) b.get();
+				int count = b.getInt();
+				if (tag.equals("CG") && subtype == 'I') {
+					longOps = new int[count];
+					for (int i = 0; i < count; i++) {
+						longOps[i] = b.getInt();
+					}
+					continue;
+				}
+				tags.append("\t" + tag + ":B:" + subtype);
+				for (int i = 0; i < count; i++) {
+					tags.append("," + (subtype == 'f' ? "" + b.getFloat() : "" + arrayValue(b, subtype)));
+				}
+			} else if (type == 'Z' || type == 'H') {
+				int start = b.position();
+				while (rec[b.position()] != 0) {
+					b.get();
+				}
+				tags.append("\t" + tag + ":" + type + ":" + new String(rec, start, b.position() - start));
+				b.get();
+			} else if (type == 'A') {
+				tags.append("\t" + tag + ":A:" + (char) b.get());
+			} else if (type == 'f') {
+				tags.append("\t" + tag + ":f:" + b.getFloat());
+			} else {
+				tags.append("\t" + tag + ":i:" + arrayValue(b, type));
+			}
+		}
+
+		int refLength = refLength(ops);
+		if (longOps != null) {
+			TestUtil.check(numOps == 2 && ops[0] == (seqLength << 4 | 4) && ops[1] == (refLength(longOps) << 4 | 3),
+					"read " + name + " has a CG tag but its CIGAR field isn't the placeholder");
+			ops = longOps;
+			refLength = refLength(longOps);
+		}
+		TestUtil.check(bin == (pos < 0 ? 4680 : BamWriter.reg2bin(pos, pos + Math.max(refLength, 1))),
+				"read " + name + " has the wrong bin");
+		StringBuilder cigar = new StringBuilder();
+		for (int op : ops) {
+			cigar.append(op >>> 4).append(BamReader.CIGAR_OPS.charAt(op & 0xf));
+		}
+
+		String refName = refId < 0 ? "*" : REF_NAMES[refId];
+		String nextRef = nextRefId < 0 ? "*" : nextRefId == refId ? "=" : REF_NAMES[nextRefId];
+		return name + "\t" + flag + "\t" + refName + "\t" + (pos + 1) + "\t" + mapq + "\t"
+				+ (ops.length == 0 ? "*" : cigar.toString()) + "\t" + nextRef + "\t" + (nextPos + 1) + "\t" + tlen
+				+ "\t" + (seqLength == 0 ? "*" : seq.toString()) + "\t" + qual + tags;
+	}
+
+	static long arrayValue(ByteBuffer b, char type) {
+		switch (type) {
+		case 'c':
+			return b.get();
+		case 'C':
+			return b.get() & 0xff;
+		case 's':
+			return b.getShort();
+		case 'S':
+			return b.getShort() & 0xffff;
+		case 'i':
+			return b.getInt();
+		default:
+			return b.getInt() & 0xffffffffL;
+		}
+	}
+
+	static int refLength(int[] ops) {
+		int res = 0;
+		for (int op : ops) {
+			char type = BamReader.CIGAR_OPS.charAt(op & 0xf);
+			if (type == 'M' || type == 'D' || type == 'N' || type == '=' || type == 'X') {
+				res += op >>> 4;
+			}
+		}
+		return res;
+	}
+
+	/*
+	 * The 0-based start and exclusive end of a record on its reference, where
+	 * records covering no bases are treated as covering one
+	 */
+	static int[] span(byte[] rec) {
+		ByteBuffer b = ByteBuffer.wrap(rec).order(ByteOrder.LITTLE_ENDIAN);
+		int pos = b.getInt(4);
+		return new int[] { pos, pos + Math.max(BamWriter.refLength(rec, 0, rec.length), 1) };
+	}
+
+	/*
+	 * Checks the index against the records: each record is in a chunk of its bin,
+	 * each linear index window starts at the first record overlapping it, the
+	 * metadata counts and offsets are right, and querying regions through the bins
+	 * and linear index finds every record overlapping them
+	 */
+	static void checkIndex(File bai, BgzfLayout layout, ArrayList<byte[]> records) throws Exception {
+		ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(bai.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+		TestUtil.check(b.get() == 'B' && b.get() == 'A' && b.get() == 'I' && b.get() == 1, "bad BAI magic");
+		TestUtil.check(b.getInt() == REF_NAMES.length, "wrong number of references in the index");
+		Random rand = new Random(12);
+		for (int r = 0; r < REF_NAMES.length; r++) {
+			HashMap<Integer, long[]> bins = new HashMap<Integer, long[]>();
+			long[] metadata = null;
+			int numBins = b.getInt();
+			for (int i = 0; i < numBins; i++) {
+				int bin = b.getInt();
+				long[] chunks = new long[2 * b.getInt()];
+				for (int j = 0; j < chunks.length; j++) {
+					chunks[j] = b.getLong();
+				}
+				if (bin == BamWriter.METADATA_BIN) {
+					metadata = chunks;
+					continue;
+				}
+				for (int j = 0; j < chunks.length; j++) {
+					chunks[j] = layout.uncompressed(chunks[j]);
+				}
+				bins.put(bin, chunks);
+			}
+			long[] linear = new long[b.getInt()];
+			for (int w = 0; w < linear.length; w++) {
+				linear[w] = layout.uncompressed(b.getLong());
+			}
+
+			// Records on this reference, with where they start and end in the
+			// uncompressed data
+			ArrayList<Integer> onRef = new ArrayList<Integer>();
+			int mapped = 0, unmapped = 0;
+			for (int i = 0; i < records.size(); i++) {
+				if (ByteBuffer.wrap(records.get(i)).order(ByteOrder.LITTLE_ENDIAN).getInt(0) == r) {
+					onRef.add(i);
+					if ((records.get(i)[14] & 4) != 0) {
+						unmapped++;
+					} else {
+						mapped++;
+					}
+				}
+			}
+
+			// The metadata bin holds the offsets of the first and last records and the
+			// numbers of mapped and unmapped reads
+			TestUtil.check(metadata != null && metadata.length == 4, "reference " + r + " has no metadata bin");
+			int first = onRef.get(0), last = onRef.get(onRef.size() - 1);
+			TestUtil.check(layout.uncompressed(metadata[0]) == layout.recordStarts.get(first)
+					&& layout.uncompressed(metadata[1]) == layout.recordEnds.get(last),
+					"reference " + r + " has the wrong first or last offset in its metadata");
+			TestUtil.check(metadata[2] == mapped && metadata[3] == unmapped,
+					"reference " + r + " has the wrong read counts in its metadata");
+
+			int[] firstInWindow = new int[linear.length];
+			Arrays.fill(firstInWindow, -1);
+			for (int i : onRef) {
+				int[] span = span(records.get(i));
+				long start = layout.recordStarts.get(i);
+				int bin = BamWriter.reg2bin(span[0], span[1]);
+				TestUtil.check(inChunks(bins.get(bin), start, Long.MIN_VALUE),
+						"record " + i + " isn't in a chunk of its bin");
+				TestUtil.check((span[1] - 1) >> BamWriter.LINEAR_SHIFT < linear.length,
+						"the linear index doesn't reach record " + i);
+				for (int w = span[0] >> BamWriter.LINEAR_SHIFT; w <= (span[1] - 1) >> BamWriter.LINEAR_SHIFT; w++) {
+					if (firstInWindow[w] == -1) {
+						firstInWindow[w] = i;
+					}
+				}
+			}
+			for (int w = 0; w < linear.length; w++) {
+				if (firstInWindow[w] != -1) {
+					TestUtil.check(linear[w] == layout.recordStarts.get(firstInWindow[w]), "window " + w
+							+ " of reference " + r + " doesn't start at the first record overlapping it");
+				}
+			}
+
+			// Regions at the start, around the reads at the same position, around the long
+			// read, past the last read, and at random
+			ArrayList<int[]> regions = new ArrayList<int[]>();
+			regions.add(new int[] { 0, 100 });
+			regions.add(new int[] { 990, 1010 });
+			regions.add(new int[] { 20000, 20001 });
+			regions.add(new int[] { REF_LENGTHS[r] - 100, REF_LENGTHS[r] });
+			regions.add(new int[] { 0, REF_LENGTHS[r] });
+			for (int i = 0; i < 200; i++) {
+				int beg = rand.nextInt(REF_LENGTHS[r]);
+				regions.add(new int[] { beg, Math.min(REF_LENGTHS[r], beg + 1 + rand.nextInt(i < 100 ? 500 : 50000)) });
+			}
+			for (int[] region : regions) {
+				int w = Math.min(region[0] >> BamWriter.LINEAR_SHIFT, linear.length - 1);
+				long minOffset = w < 0 ? 0 : linear[w];
+				ArrayList<long[]> candidates = new ArrayList<long[]>();
+				for (int bin : reg2bins(region[0], region[1])) {
+					if (bins.containsKey(bin)) {
+						candidates.add(bins.get(bin));
+					}
+				}
+				for (int i : onRef) {
+					int[] span = span(records.get(i));
+					if (span[0] >= region[1] || span[1] <= region[0]) {
+						continue;
+					}
+					boolean found = false;
+					for (long[] chunks : candidates) {
+						found |= inChunks(chunks, layout.recordStarts.get(i), minOffset);
+					}
+					TestUtil.check(found, "querying " + REF_NAMES[r] + ":" + region[0] + "-" + region[1]
+							+ " through the index misses record " + i);
+				}
+			}
+		}
+		TestUtil.check(b.getLong() == records.size() - countOnRefs(records), "wrong number of reads with no reference");
+		TestUtil.check(!b.hasRemaining(), "extra data at the end of the index");
+	}
+
+	static int countOnRefs(ArrayList<byte[]> records) {
+		int res = 0;
+		for (byte[] rec : records) {
+			if (ByteBuffer.wrap(rec).order(ByteOrder.LITTLE_ENDIAN).getInt(0) >= 0) {
+				res++;
+			}
+		}
+		return res;
+	}
+
+	/*
+	 * Whether a position is in one of a bin's chunks which end after the minimum
+	 * offset from the linear index
+	 */
+	static boolean inChunks(long[] chunks, long pos, long minOffset) {
+		if (chunks == null) {
+			return false;
+		}
+		for (int i = 0; i < chunks.length; i += 2) {
+			if (chunks[i + 1] > minOffset && chunks[i] <= pos && pos < chunks[i + 1]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * The bins which may hold records overlapping the 0-based interval [beg, end)
+	 */
+	static ArrayList<Integer> reg2bins(int beg, int end) {
+		ArrayList<Integer> res = new ArrayList<Integer>();
+		end--;
+		res.add(0);
+		int[] offsets = new int[] { 1, 9, 73, 585, 4681 };
+		int[] shifts = new int[] { 26, 23, 20, 17, 14 };
+		for (int level = 0; level < offsets.length; level++) {
+			for (int k = offsets[level] + (beg >> shifts[level]); k <= offsets[level] + (end >> shifts[level]); k++) {
+				res.add(k);
+			}
+		}
+		return res;
+	}
+
+	/*
+	 * The blocks of a BGZF file, inflated independently of BgzfReader, for turning
+	 * virtual offsets into positions in the uncompressed data and finding where
+	 * each record of a BAM file starts and ends
+	 */
+	static class BgzfLayout {
+		// Where each block starts in the file, and its number in the file
+		HashMap<Long, Integer> blocks = new HashMap<Long, Integer>();
+
+		// Where each block's data starts in the uncompressed data, and how long it is
+		ArrayList<Long> dataStarts = new ArrayList<Long>();
+		ArrayList<Integer> dataLengths = new ArrayList<Integer>();
+
+		ArrayList<Long> recordStarts = new ArrayList<Long>(), recordEnds = new ArrayList<Long>();
+
+		BgzfLayout(File f) throws Exception {
+			byte[] file = Files.readAllBytes(f.toPath());
+			ByteBuffer b = ByteBuffer.wrap(file).order(ByteOrder.LITTLE_ENDIAN);
+			ByteArrayOutputStream data = new ByteArrayOutputStream();
+			int offset = 0;
+			while (offset < file.length) {
+				TestUtil.check((file[offset] & 0xff) == 31 && (file[offset + 1] & 0xff) == 139,
+						"no BGZF block at " + offset);
+				int extraLength = b.getShort(offset + 10) & 0xffff;
+				int blockSize = -1;
+				for (int i = offset + 12; i < offset + 12 + extraLength; i += 4 + (b.getShort(i + 2) & 0xffff)) {
+					if (file[i] == 'B' && file[i + 1] == 'C') {
+						blockSize = (b.getShort(i + 4) & 0xffff) + 1;
+					}
+				}
+				int dataLength = b.getInt(offset + blockSize - 4);
+				byte[] inflated = new byte[dataLength];
+				Inflater inflater = new Inflater(true);
+				inflater.setInput(file, offset + 12 + extraLength, blockSize - 12 - extraLength - 8);
+				TestUtil.check(inflater.inflate(inflated) == dataLength, "short block at " + offset);
+				inflater.end();
+
+				blocks.put((long) offset, dataStarts.size());
+				dataStarts.add((long) data.size());
+				dataLengths.add(dataLength);
+				data.write(inflated);
+				offset += blockSize;
+			}
+			TestUtil.check(dataLengths.get(dataLengths.size() - 1) == 0, "no end-of-file block");
+
+			// Skip the header, then follow the block sizes of the records
+			ByteBuffer d = ByteBuffer.wrap(data.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+			d.position(4);
+			skip(d, d.getInt());
+			int numRefs = d.getInt();
+			for (int i = 0; i < numRefs; i++) {
+				skip(d, d.getInt() + 4);
+			}
+			while (d.hasRemaining()) {
+				recordStarts.add((long) d.position());
+				skip(d, d.getInt());
+				recordEnds.add((long) d.position());
+			}
+		}
+
+		static void skip(ByteBuffer b, int n) {
+			b.position(b.position() + n);
+		}
+
+		/*
+		 * The position in the uncompressed data of a virtual offset, which must point
+		 * to the start of a block and not past its end
+		 */
+		long uncompressed(long virtualOffset) {
+			Integer block = blocks.get(virtualOffset >>> 16);
+			TestUtil.check(block != null, "virtual offset " + virtualOffset + " isn't in a block");
+			int offset = (int) (virtualOffset & 0xffff);
+			TestUtil.check(offset <= dataLengths.get(block), "virtual offset " + virtualOffset + " is past its block");
+			return dataStarts.get(block) + offset;
+		}
+	}
+}
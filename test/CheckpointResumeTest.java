@@ -0,0 +1,85 @@
+/*
+ * Checks that a run which stops partway through selection can be resumed from its checkpoint, keeping the same reads as a run with the same seed which was never interrupted
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+public class CheckpointResumeTest {
+
+	public static void main(String[] args) throws Exception {
+		File dir = Files.createTempDirectory("checkpoint").toFile();
+		try {
+			File input = new File(dir, "sorted.sam");
+			TestUtil.writeSortedSam(input, 4000, 17);
+			File checkpointFile = new File(dir, "run.ckpt");
+
+			byte[] uninterrupted = TestUtil.normalize(input, new File(dir, "full.sam"), "seed=5");
+
+			// Stop halfway through each contig, as if the process had been killed
+			// right after a snapshot
+			InterruptedRun interrupted = new InterruptedRun();
+			interrupted.out = new PrintStream(new ByteArrayOutputStream());
+			try {
+				interrupted.run(new String[] { "input=" + input.getPath(),
+						"output=" + new File(dir, "resumed.sam").getPath(), "coverage_threshold=20", "--no_logging",
+						"seed=5", "threads=1", "checkpoint=" + checkpointFile.getPath(),
+						"checkpoint_interval=3600" });
+				TestUtil.check(false, "the interrupted run finished");
+			} catch (IllegalStateException e) {
+			}
+			TestUtil.check(checkpointFile.exists(), "the interrupted run left no checkpoint");
+			TestUtil.check(interrupted.checkpoint.timer.isTerminated(),
+					"the interrupted run kept writing snapshots");
+			TestUtil.check(interrupted.considered > 0 && interrupted.considered < interrupted.total,
+					"the interrupted run didn't stop partway");
+
+			// Resuming finishes the selection and removes the checkpoint
+			byte[] resumed = TestUtil.normalize(input, new File(dir, "resumed.sam"), "seed=5",
+					"resume=" + checkpointFile.getPath());
+			TestUtil.check(TestUtil.lastLog.contains("Resuming from checkpoint"), "the checkpoint wasn't used");
+			TestUtil.check(!checkpointFile.exists(), "the checkpoint wasn't removed after resuming");
+			TestUtil.check(Arrays.equals(uninterrupted, resumed),
+					"the resumed run kept different reads than an uninterrupted one");
+		} finally {
+			TestUtil.deleteDir(dir);
+		}
+		System.out.println("CheckpointResumeTest passed");
+	}
+
+	/*
+	 * Considers only the first half of each contig's reads, then fails, leaving
+	 * the run to write its last snapshot
+	 */
+	static class InterruptedRun extends NormalizeCoverage {
+		int considered = 0, total = 0;
+		Checkpoint checkpoint;
+
+		@Override
+		void selectContig(ReadStore reads, ContigCoverage.IntList contigReads, ContigCoverage cc, String engine,
+				boolean[] used, Checkpoint checkpoint, int contig) {
+			ContigCoverage.IntList firstHalf = new ContigCoverage.IntList();
+			for (int i = 0; i < contigReads.size / 2; i++) {
+				firstHalf.add(contigReads.vals[i]);
+			}
+			super.selectContig(reads, firstHalf, cc, engine, used, checkpoint, contig);
+			considered += firstHalf.size;
+			total += contigReads.size;
+
+			// A snapshot can catch a read kept just after its recorded progress, which
+			// has to be considered again when resuming
+			used[reads.index[contigReads.vals[firstHalf.size]]] = true;
+		}
+
+		@Override
+		boolean[] selectReads(ReadStore reads, int[] order, ContigCoverage[] coverage, String selectionEngine,
+				long totalLength, int threads, Checkpoint checkpoint) throws Exception {
+			super.selectReads(reads, order, coverage, selectionEngine, totalLength, threads, checkpoint);
+			this.checkpoint = checkpoint;
+			throw new IllegalStateException("interrupted");
+		}
+	}
+}
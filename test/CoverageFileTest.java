@@ -0,0 +1,166 @@
+/*
+ * Checks that runs updating the same coverage file at once, from threads of one process and from separate processes, all have their kept coverage added to it, and that a file in the original one-byte-per-position format is converted with its counts kept for the first contig
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Random;
+
+public class CoverageFileTest {
+
+	static final int[] LENGTHS = new int[] { 5000, 3000 };
+
+	// Each run adds its kept coverage this many times, so that their updates
+	// overlap
+	static final int ROUNDS = 20;
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 3 && args[0].equals("worker")) {
+			addKept(args[1], Long.parseLong(args[2]));
+			return;
+		}
+		File dir = Files.createTempDirectory("coveragefile").toFile();
+		try {
+			checkConcurrentUpdates(new File(dir, "shared.cov"));
+			checkUpgrade(new File(dir, "old.cov"));
+		} finally {
+			TestUtil.deleteDir(dir);
+		}
+		System.out.println("CoverageFileTest passed");
+	}
+
+	/*
+	 * Starts several runs on a file which doesn't exist yet, so that they also
+	 * race to create it, and checks that it ends up with the sum of their kept
+	 * coverage
+	 */
+	static void checkConcurrentUpdates(File f) throws Exception {
+		int numThreads = 4, numProcesses = 2;
+		ArrayList<Process> processes = new ArrayList<Process>();
+		for (int p = 0; p < numProcesses; p++) {
+			String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+			processes.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "CoverageFileTest",
+					"worker", f.getPath(), "" + (numThreads + p)).inheritIO().start());
+		}
+		Thread[] threads = new Thread[numThreads];
+		Throwable[] errors = new Throwable[numThreads];
+		for (int t = 0; t < numThreads; t++) {
+			final int seed = t;
+			threads[t] = new Thread(() -> {
+				try {
+					addKept(f.getPath(), seed);
+				} catch (Throwable e) {
+					errors[seed] = e;
+				}
+			});
+			threads[t].start();
+		}
+		for (int t = 0; t < numThreads; t++) {
+			threads[t].join();
+			if (errors[t] != null) {
+				throw new AssertionError("thread " + t + " failed", errors[t]);
+			}
+		}
+		for (Process p : processes) {
+			TestUtil.check(p.waitFor() == 0, "a worker process failed");
+		}
+
+		int[][] expected = new int[LENGTHS.length][];
+		for (int c = 0; c < LENGTHS.length; c++) {
+			expected[c] = new int[LENGTHS[c] + 1];
+		}
+		for (int seed = 0; seed < numThreads + numProcesses; seed++) {
+			ContigCoverage[] coverage = keptCoverage(seed);
+			for (int c = 0; c < LENGTHS.length; c++) {
+				for (int i = 0; i < expected[c].length; i++) {
+					expected[c][i] += ROUNDS * coverage[c].keptCoverage(i);
+				}
+			}
+		}
+		CoverageFile file = new CoverageFile(f.getPath(), refs(), System.out);
+		for (int c = 0; c < LENGTHS.length; c++) {
+			for (int i = 0; i < expected[c].length; i++) {
+				TestUtil.check(file.get(c, i) == expected[c][i], "coverage at " + c + ":" + i + " is " + file.get(c, i)
+						+ " but the runs kept " + expected[c][i]);
+			}
+		}
+		file.close();
+	}
+
+	/*
+	 * Writes a file in the original format, where each byte is the coverage of a
+	 * position of the only genome, padded past its end, and checks that opening it
+	 * converts it and keeps those counts
+	 */
+	static void checkUpgrade(File f) throws Exception {
+		byte[] old = new byte[LENGTHS[0] + 1000];
+		for (int i = 0; i <= LENGTHS[0]; i++) {
+			old[i] = (byte) (i % 120);
+		}
+		FileOutputStream fileOut = new FileOutputStream(f);
+		fileOut.write(old);
+		fileOut.close();
+
+		ByteArrayOutputStream log = new ByteArrayOutputStream();
+		CoverageFile file = new CoverageFile(f.getPath(), refs(), new PrintStream(log));
+		TestUtil.check(log.toString().contains("Converting coverage file to version " + CoverageFile.VERSION),
+				"the conversion wasn't reported");
+		for (int i = 0; i <= LENGTHS[0]; i++) {
+			TestUtil.check(file.get(0, i) == i % 120, "converted coverage at " + i + " is " + file.get(0, i));
+		}
+		for (int i = 0; i <= LENGTHS[1]; i++) {
+			TestUtil.check(file.get(1, i) == 0, "the second contig has coverage from the old file at " + i);
+		}
+		file.close();
+
+		// Once converted, the file is opened as it is
+		log.reset();
+		file = new CoverageFile(f.getPath(), refs(), new PrintStream(log));
+		TestUtil.check(log.size() == 0, "the converted file was converted again:\n" + log);
+		TestUtil.check(file.get(0, 119) == 119 && file.get(0, LENGTHS[0]) == LENGTHS[0] % 120,
+				"reopening changed the converted coverage");
+		file.close();
+	}
+
+	/*
+	 * Opens the file and adds the kept coverage for a seed to it, repeatedly
+	 */
+	static void addKept(String fn, long seed) throws Exception {
+		ContigCoverage[] coverage = keptCoverage(seed);
+		CoverageFile file = new CoverageFile(fn, refs(), System.out);
+		for (int round = 0; round < ROUNDS; round++) {
+			file.addKept(coverage);
+		}
+		file.close();
+	}
+
+	/*
+	 * The coverage of some randomly placed kept reads on each contig
+	 */
+	static ContigCoverage[] keptCoverage(long seed) {
+		Random rand = new Random(seed);
+		ContigCoverage[] coverage = new ContigCoverage[LENGTHS.length];
+		for (int c = 0; c < LENGTHS.length; c++) {
+			coverage[c] = new ContigCoverage(LENGTHS[c] + 1);
+			for (int r = 0; r < LENGTHS[c] / 20; r++) {
+				int start = 1 + rand.nextInt(LENGTHS[c]);
+				coverage[c].addKeptRead(start, Math.min(start + 50 + rand.nextInt(100), LENGTHS[c] + 1),
+						rand.nextInt(2));
+			}
+			coverage[c].finishKept();
+		}
+		return coverage;
+	}
+
+	static ReferenceIndex refs() {
+		ReferenceIndex refs = new ReferenceIndex(LENGTHS[0] + 1);
+		for (int c = 0; c < LENGTHS.length; c++) {
+			refs.add("contig" + c, LENGTHS[c]);
+		}
+		return refs;
+	}
+}
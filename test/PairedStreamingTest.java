@@ -0,0 +1,130 @@
+/*
+ * Checks streaming paired normalization with a small max_pending that forces reads waiting for their mates to be spilled to disk: the output matches a run without spills, pairs stay together, coverage is kept at the threshold, about as many reads are kept as in memory, and the statistics agree with the in-memory NormalizePairedReads
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+public class PairedStreamingTest {
+
+	static final int THRESHOLD = 20;
+
+	public static void main(String[] args) throws Exception {
+		File dir = Files.createTempDirectory("pairedstreaming").toFile();
+		try {
+			// Deep enough that the lowest kept coverage is under reads waiting for their
+			// mates rather than at the ends of the contigs
+			File input = new File(dir, "in.sam");
+			TestUtil.writePairedSam(input, 20000, 3);
+
+			String inMemoryLog = normalizePairs(input, new File(dir, "memory.sam"), "seed=1");
+			String log = normalizePairs(input, new File(dir, "stream.sam"), "--streaming");
+			String spilledLog = normalizePairs(input, new File(dir, "spilled.sam"), "--streaming", "max_pending=16",
+					"tmp_dir=" + dir.getPath());
+			TestUtil.check(!log.contains("Spilled") && spilledLog.contains("Spilled"),
+					"max_pending didn't decide whether reads were spilled");
+
+			// Spilling only changes where waiting reads are held, not which are kept
+			byte[] streamed = Files.readAllBytes(new File(dir, "stream.sam").toPath());
+			TestUtil.check(Arrays.equals(streamed, Files.readAllBytes(new File(dir, "spilled.sam").toPath())),
+					"spilling changed the output");
+			TestUtil.check(log.equals(spilledLog.substring(spilledLog.indexOf('\n') + 1)),
+					"spilling changed the statistics");
+
+			// Both modes see the same reads, and neither brings coverage below the
+			// threshold
+			String total = "Total read count (unfiltered)";
+			TestUtil.check(TestUtil.stat(log, total) == TestUtil.stat(inMemoryLog, total),
+					"streaming counted a different number of reads");
+			TestUtil.check(TestUtil.stat(log, "Old min coverage") == TestUtil.stat(inMemoryLog, "Old min coverage"),
+					"streaming found a different minimum coverage");
+			// Keeping the reads which reach furthest keeps about as many as the random
+			// order, even though mates are kept along with them
+			int keptInMemory = TestUtil.stat(inMemoryLog, "Downsampled read count");
+			int kept = TestUtil.stat(log, "Downsampled read count");
+			TestUtil.check(kept >= keptInMemory / 2 && kept <= keptInMemory * 5 / 4,
+					"streaming kept " + kept + " reads where in-memory selection kept " + keptInMemory);
+			checkOutput(input, new File(dir, "memory.sam"), inMemoryLog);
+			checkOutput(input, new File(dir, "spilled.sam"), spilledLog);
+		} finally {
+			TestUtil.deleteDir(dir);
+		}
+		System.out.println("PairedStreamingTest passed");
+	}
+
+	/*
+	 * Runs paired normalization with the given extra arguments and returns what it
+	 * printed
+	 */
+	static String normalizePairs(File input, File output, String... extraArgs) throws Exception {
+		String[] args = new String[] { "input=" + input.getPath(), "output=" + output.getPath(),
+				"coverage_threshold=" + THRESHOLD };
+		args = Arrays.copyOf(args, args.length + extraArgs.length);
+		System.arraycopy(extraArgs, 0, args, 3, extraArgs.length);
+
+		NormalizePairedReads normalizer = new NormalizePairedReads();
+		ByteArrayOutputStream log = new ByteArrayOutputStream();
+		normalizer.out = new PrintStream(log);
+		int status = normalizer.run(args);
+		TestUtil.check(status == 0, "run with " + Arrays.toString(extraArgs) + " failed:\n" + log);
+		return log.toString();
+	}
+
+	/*
+	 * Checks that both reads of every pair with two aligned reads are kept or
+	 * dropped together, that positions with at least the threshold coverage keep
+	 * that much, and that the printed minimum matches the kept reads
+	 */
+	static void checkOutput(File input, File output, String log) throws Exception {
+		HashMap<String, Integer> inputReads = new HashMap<String, Integer>(), keptReads = new HashMap<String, Integer>();
+		int[][] cov = coverage(input, inputReads), keptCov = coverage(output, keptReads);
+		for (String name : keptReads.keySet()) {
+			TestUtil.check(keptReads.get(name).equals(inputReads.get(name)),
+					"only one read of pair " + name + " was kept");
+		}
+
+		TestUtil.check(!log.contains("Coverage dropped below threshold"), "coverage dropped below the threshold");
+		int min = Integer.MAX_VALUE;
+		for (int c = 0; c < cov.length; c++) {
+			for (int i = 50; i < cov[c].length - 50; i++) {
+				TestUtil.check(keptCov[c][i] >= Math.min(cov[c][i], THRESHOLD), "coverage at " + c + ":" + i + " is "
+						+ keptCov[c][i] + " of " + cov[c][i]);
+				if (cov[c][i] > 0) {
+					min = Math.min(min, keptCov[c][i]);
+				}
+			}
+		}
+		TestUtil.check(TestUtil.stat(log, "Downsampled min coverage") == min, "the downsampled minimum was printed as "
+				+ TestUtil.stat(log, "Downsampled min coverage") + " but is " + min);
+	}
+
+	/*
+	 * The coverage of each position of the two contigs in a SAM file, counting the
+	 * reads with each name
+	 */
+	static int[][] coverage(File f, HashMap<String, Integer> reads) throws Exception {
+		int[][] cov = new int[][] { new int[20001], new int[8001] };
+		List<String> lines = Files.readAllLines(f.toPath());
+		for (String line : lines) {
+			if (line.startsWith("@")) {
+				continue;
+			}
+			String[] fields = line.split("\t");
+			Integer count = reads.get(fields[0]);
+			reads.put(fields[0], count == null ? 1 : count + 1);
+			int[] contigCov = cov[fields[2].equals("segA") ? 0 : 1];
+			int start = Integer.parseInt(fields[3]);
+			int span = Integer.parseInt(fields[5].substring(0, fields[5].indexOf('M')));
+			int end = Math.min(start + span, contigCov.length);
+			for (int i = start; i < end; i++) {
+				contigCov[i]++;
+			}
+		}
+		return cov;
+	}
+}
@@ -0,0 +1,40 @@
+/*
+ * Checks that the read name table gives each name one pair ID as the table grows, whatever buffer the name is looked up in
+ */
+
+import java.nio.charset.StandardCharsets;
+
+public class ReadNameTableTest {
+
+	public static void main(String[] args) throws Exception {
+		// Enough names to make the table grow several times, looked up from inside a
+		// larger buffer as the tokenizer does
+		int numNames = 300000;
+		ReadNameTable table = new ReadNameTable();
+		for (int i = 0; i < numNames; i++) {
+			byte[] line = ("xx\tread" + i + "\tyy").getBytes(StandardCharsets.US_ASCII);
+			int length = ("read" + i).length();
+			TestUtil.check(table.getOrAdd(line, 3, length, i) == i, "a new name got an old pair ID: read" + i);
+		}
+
+		// Mates are looked up in their own buffers, in the opposite order
+		for (int i = numNames - 1; i >= 0; i--) {
+			byte[] name = ("read" + i).getBytes(StandardCharsets.US_ASCII);
+			TestUtil.check(table.getOrAdd(name, 0, name.length, -2) == i,
+					"the mate of read" + i + " got a different pair ID");
+		}
+
+		// Names which are prefixes of other names, or differ only in the bytes around
+		// them, are still different names
+		byte[] padded = "read12read1".getBytes(StandardCharsets.US_ASCII);
+		TestUtil.check(table.getOrAdd(padded, 0, 6, -2) == 12, "a name read from the start of a buffer changed");
+		TestUtil.check(table.getOrAdd(padded, 6, 5, -2) == 1, "a name read from the end of a buffer changed");
+		TestUtil.check(table.getOrAdd(padded, 0, 11, numNames) == numNames,
+				"two names next to each other matched an old name");
+		TestUtil.check(table.getOrAdd(padded, 0, 3, numNames + 1) == numNames + 1,
+				"a prefix of a name matched an old name");
+		TestUtil.check(table.getOrAdd(padded, 0, 11, -2) == numNames, "a new name's mate got a different pair ID");
+
+		System.out.println("ReadNameTableTest passed");
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * Checks that a seed gives the same read order every time, and that the radix sort by quality matches a comparison sort
+ */
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+public class ReadOrderingTest {
+
+	public static void main(String[] args) throws Exception {
+		// The same seed gives the same permutation, and another seed a different one
+		int[] first = ReadOrdering.shuffled(1000, new Random(7));
+		int[] second = ReadOrdering.shuffled(1000, new Random(7));
+		int[] other = ReadOrdering.shuffled(1000, new Random(8));
+		TestUtil.check(Arrays.equals(first, second), "the same seed gave different orders");
+		TestUtil.check(!Arrays.equals(first, other), "different seeds gave the same order");
+		int[] sorted = first.clone();
+		Arrays.sort(sorted);
+		for (int i = 0; i < sorted.length; i++) {
+			TestUtil.check(sorted[i] == i, "the shuffled order is not a permutation");
+		}
+
+		// Qualities with many ties, and reads with no bases, sort the same way as
+		// with a stable comparison sort
+		Random rand = new Random(3);
+		ReadStore reads = new ReadStore();
+		for (int i = 0; i < 5000; i++) {
+			int readLength = rand.nextInt(10) == 0 ? 0 : 50 + rand.nextInt(5);
+			int matches = readLength == 0 ? 0 : readLength - rand.nextInt(4);
+			reads.add(i, 0, i, i + readLength, rand.nextInt(2), readLength, matches);
+		}
+		double[] quals = new double[reads.size];
+		for (int i = 0; i < reads.size; i++) {
+			quals[i] = reads.qual(i);
+		}
+		TestUtil.check(Arrays.equals(ReadOrdering.byQuality(reads), ReadStore.descendingOrder(quals, reads.size)),
+				"the radix sort by quality differs from a comparison sort");
+
+		// Keys order special values the same way as Double.compare
+		double[] special = new double[] { 2.5, Double.NaN, -0.0, 0.0, -1.0, Double.POSITIVE_INFINITY,
+				Double.NEGATIVE_INFINITY, 2.5, -0.0, Double.MIN_VALUE, -3.0 };
+		TestUtil.check(Arrays.equals(ReadOrdering.sortedOrder(keys(special), special.length),
+				ReadStore.descendingOrder(special, special.length)), "special values sort differently from Double.compare");
+
+		// Groups of reads sort by their total quality
+		int numGroups = reads.size / 2;
+		int[] firstRead = new int[numGroups], next = new int[reads.size];
+		double[] totals = new double[numGroups];
+		for (int g = 0; g < numGroups; g++) {
+			firstRead[g] = 2 * g;
+			next[2 * g] = 2 * g + 1;
+			next[2 * g + 1] = -1;
+			totals[g] = reads.qual(2 * g) + reads.qual(2 * g + 1);
+		}
+		TestUtil.check(Arrays.equals(ReadOrdering.byTotalQuality(reads, firstRead, next, numGroups),
+				ReadStore.descendingOrder(totals, numGroups)), "the radix sort of pairs differs from a comparison sort");
+
+		// A seeded run keeps the same reads every time
+		File dir = Files.createTempDirectory("ordering").toFile();
+		File input = new File(dir, "reads.sam");
+		TestUtil.writeSortedSam(input, 3000, 11);
+		byte[] run1 = TestUtil.normalize(input, new File(dir, "run1.sam"), "seed=5");
+		byte[] run2 = TestUtil.normalize(input, new File(dir, "run2.sam"), "seed=5");
+		TestUtil.check(run1.length > 0 && Arrays.equals(run1, run2), "runs with the same seed kept different reads");
+		TestUtil.deleteDir(dir);
+
+		System.out.println("ReadOrderingTest passed");
+	}
+
+	static long[] keys(double[] values) {
+		long[] keys = new long[values.length];
+		for (int i = 0; i < values.length; i++) {
+			keys[i] = ReadOrdering.descendingKey(values[i]);
+		}
+		return keys;
+	}
+}
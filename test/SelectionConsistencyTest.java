@@ -0,0 +1,99 @@
+/*
+ * Checks that streaming mode and external sorting keep the same reads from a small coordinate-sorted input, that external sorting of the same reads in a random order keeps reads at the same places, that they keep the threshold coverage wherever the input has it, and that they keep about as many reads as in-memory selection
+ */
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+public class SelectionConsistencyTest {
+
+	static final int THRESHOLD = 20;
+
+	public static void main(String[] args) throws Exception {
+		File dir = Files.createTempDirectory("selection").toFile();
+		try {
+			File input = new File(dir, "sorted.sam");
+			TestUtil.writeSortedSam(input, 3000, 42);
+			byte[] streaming = TestUtil.normalize(input, new File(dir, "streaming.sam"), "--streaming");
+
+			// A small sort buffer makes the external sort write and merge several runs
+			byte[] external = TestUtil.normalize(input, new File(dir, "external.sam"), "--external_sort",
+					"sort_memory=0");
+			TestUtil.check(TestUtil.lastLog.contains("sorted runs"),
+					"external sorting didn't merge runs:\n" + TestUtil.lastLog);
+
+			TestUtil.check(TestUtil.countReads(streaming) > 0, "streaming wrote no reads");
+			TestUtil.check(Arrays.equals(streaming, external), "external sorting kept different reads than streaming");
+			checkCoverage(Files.readAllBytes(input.toPath()), streaming);
+
+			// With reads of one length, keeping the ones which reach furthest should
+			// tile the contigs with about as many reads as a random selection needs
+			File fixed = new File(dir, "fixed.sam");
+			TestUtil.writeSortedSam(fixed, 12000, 7, 150, 150);
+			int inMemory = TestUtil.countReads(TestUtil.normalize(fixed, new File(dir, "fixedmemory.sam")));
+			byte[] fixedStreaming = TestUtil.normalize(fixed, new File(dir, "fixedstreaming.sam"), "--streaming");
+			int kept = TestUtil.countReads(fixedStreaming);
+			TestUtil.check(kept >= inMemory / 2 && kept <= inMemory * 5 / 4,
+					"streaming kept " + kept + " reads where in-memory selection kept " + inMemory);
+			checkCoverage(Files.readAllBytes(fixed.toPath()), fixedStreaming);
+
+			// Reads at the same position are considered in input order, so shuffling
+			// can change which of them are kept, but not where the kept reads are
+			File shuffled = new File(dir, "shuffled.sam");
+			shuffle(fixed, shuffled, 3);
+			byte[] fixedExternal = TestUtil.normalize(shuffled, new File(dir, "fixedexternal.sam"), "--external_sort",
+					"sort_memory=0");
+			TestUtil.check(placements(fixedExternal).equals(placements(fixedStreaming)),
+					"external sorting of shuffled reads kept reads at different places than streaming");
+		} finally {
+			TestUtil.deleteDir(dir);
+		}
+		System.out.println("SelectionConsistencyTest passed");
+	}
+
+	/*
+	 * Checks that every position keeps the threshold coverage, or all of its
+	 * coverage if it had less
+	 */
+	static void checkCoverage(byte[] input, byte[] output) {
+		int[][] cov = TestUtil.coverage(input), keptCov = TestUtil.coverage(output);
+		for (int c = 0; c < cov.length; c++) {
+			for (int i = 0; i < cov[c].length; i++) {
+				TestUtil.check(keptCov[c][i] >= Math.min(cov[c][i], THRESHOLD),
+						"coverage at " + c + ":" + i + " is " + keptCov[c][i] + " of " + cov[c][i]);
+			}
+		}
+	}
+
+	/*
+	 * Writes the header lines of a SAM file followed by its reads in a random order
+	 */
+	static void shuffle(File input, File output, long seed) throws Exception {
+		ArrayList<String> header = new ArrayList<String>(), reads = new ArrayList<String>();
+		for (String line : Files.readAllLines(input.toPath())) {
+			(line.startsWith("@") ? header : reads).add(line);
+		}
+		Collections.shuffle(reads, new Random(seed));
+		header.addAll(reads);
+		Files.write(output.toPath(), header);
+	}
+
+	/*
+	 * The contig, position and CIGAR of each read in SAM output, sorted
+	 */
+	static ArrayList<String> placements(byte[] sam) {
+		ArrayList<String> res = new ArrayList<String>();
+		for (String line : new String(sam).split("\n")) {
+			if (!line.startsWith("@")) {
+				String[] fields = line.split("\t");
+				res.add(fields[2] + ":" + fields[3] + ":" + fields[5]);
+			}
+		}
+		Collections.sort(res);
+		return res;
+	}
+}
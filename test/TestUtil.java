@@ -0,0 +1,210 @@
+/*
+ * Helpers shared by the tests in this directory
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+
+public class TestUtil {
+
+	// What the last normalization run printed
+	static String lastLog;
+
+	/*
+	 * Fails the test with the given message unless the condition holds
+	 */
+	static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+	/*
+	 * Writes reads of varying lengths on both strands of two contigs, sorted by
+	 * position
+	 */
+	static void writeSortedSam(File f, int numReads, long seed) throws Exception {
+		writeSortedSam(f, numReads, seed, 100, 500);
+	}
+
+	/*
+	 * Writes reads spanning from minSpan up to but not including maxSpan bases, or
+	 * exactly minSpan if they're the same, on both strands of two contigs, sorted
+	 * by position
+	 */
+	static void writeSortedSam(File f, int numReads, long seed, int minSpan, int maxSpan) throws Exception {
+		Random rand = new Random(seed);
+		PrintWriter out = new PrintWriter(f);
+		out.println("@HD\tVN:1.6\tSO:coordinate");
+		out.println("@SQ\tSN:segA\tLN:20000");
+		out.println("@SQ\tSN:segB\tLN:8000");
+		String[] contigs = new String[] { "segA", "segB" };
+		int[] lengths = new int[] { 20000, 8000 };
+		for (int c = 0; c < contigs.length; c++) {
+			int n = numReads * lengths[c] / 28000;
+			int[] starts = new int[n];
+			for (int i = 0; i < n; i++) {
+				starts[i] = 1 + rand.nextInt(lengths[c] - 500);
+			}
+			Arrays.sort(starts);
+			for (int i = 0; i < n; i++) {
+				int flag = rand.nextBoolean() ? 16 : 0;
+				int span = maxSpan > minSpan ? minSpan + rand.nextInt(maxSpan - minSpan) : minSpan;
+				out.println("r" + c + "_" + i + "\t" + flag + "\t" + contigs[c] + "\t" + starts[i] + "\t60\t" + span
+						+ "M\t*\t0\t0\t*\t*");
+			}
+		}
+		out.close();
+	}
+
+	/*
+	 * Writes read pairs on two contigs sorted by position, with inserts of up to a
+	 * few thousand bases. Some pairs have mates on the other contig, some have an
+	 * unaligned mate, and some name a mate which never turns up.
+	 */
+	static void writePairedSam(File f, int numPairs, long seed) throws Exception {
+		Random rand = new Random(seed);
+		String[] contigs = new String[] { "segA", "segB" };
+		int[] lengths = new int[] { 20000, 8000 };
+		ArrayList<long[]> order = new ArrayList<long[]>();
+		ArrayList<String> lines = new ArrayList<String>();
+		for (int i = 0; i < numPairs; i++) {
+			int c = rand.nextInt(28000) < lengths[0] ? 0 : 1;
+			int s = 1 + rand.nextInt(lengths[c] - 100);
+			int mateContig = c, mateStart = Math.min(s + 200 + rand.nextInt(3000), lengths[c] - 100);
+			int kind = rand.nextInt(100);
+			if (kind < 4) {
+				mateContig = 1 - c;
+				mateStart = 1 + rand.nextInt(lengths[mateContig] - 100);
+			}
+			boolean mateUnaligned = kind >= 4 && kind < 7, mateMissing = kind >= 7 && kind < 10;
+			int strand = rand.nextBoolean() ? 16 : 0;
+			String name = "p" + i;
+			String mateRef = mateContig == c ? "=" : contigs[mateContig];
+			int flag = 1 | 64 | strand | (mateUnaligned ? 8 : 0);
+			addRead(order, lines, c, s, name + "\t" + flag + "\t" + contigs[c] + "\t" + s + "\t60\t"
+					+ cigar(rand, lengths[c] + 1 - s) + "\t" + mateRef + "\t" + (mateUnaligned ? s : mateStart));
+			if (!mateUnaligned && !mateMissing) {
+				String ref = mateContig == c ? "=" : contigs[c];
+				int mateFlag = 1 | 128 | (16 - strand);
+				addRead(order, lines, mateContig, mateStart, name + "\t" + mateFlag + "\t" + contigs[mateContig] + "\t"
+						+ mateStart + "\t60\t" + cigar(rand, lengths[mateContig] + 1 - mateStart) + "\t" + ref + "\t" + s);
+			}
+		}
+		Collections.sort(order, new Comparator<long[]>() {
+			@Override
+			public int compare(long[] a, long[] b) {
+				return a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]);
+			}
+		});
+		PrintWriter out = new PrintWriter(f);
+		out.println("@HD\tVN:1.6\tSO:coordinate");
+		for (int c = 0; c < contigs.length; c++) {
+			out.println("@SQ\tSN:" + contigs[c] + "\tLN:" + lengths[c]);
+		}
+		for (long[] read : order) {
+			out.println(lines.get((int) read[1]) + "\t0\t*\t*");
+		}
+		out.close();
+	}
+
+	/*
+	 * Adds a record's line along with its position, for sorting by position
+	 */
+	static void addRead(ArrayList<long[]> order, ArrayList<String> lines, int c, int s, String line) {
+		order.add(new long[] { ((long) c << 32) | s, lines.size() });
+		lines.add(line);
+	}
+
+	/*
+	 * A random alignment of 100 to 300 bases with a few insertions, cut short at
+	 * the end of the contig
+	 */
+	static String cigar(Random rand, int maxSpan) {
+		int span = Math.min(100 + rand.nextInt(200), maxSpan), ins = rand.nextInt(10);
+		return span + "M" + (ins > 0 ? ins + "I" : "");
+	}
+
+	/*
+	 * Normalizes the input with the given extra arguments and returns the output
+	 */
+	static byte[] normalize(File input, File output, String... extraArgs) throws Exception {
+		String[] args = new String[] { "input=" + input.getPath(), "output=" + output.getPath(),
+				"coverage_threshold=20", "--no_logging" };
+		args = Arrays.copyOf(args, args.length + extraArgs.length);
+		System.arraycopy(extraArgs, 0, args, 4, extraArgs.length);
+
+		NormalizeCoverage normalizer = new NormalizeCoverage();
+		ByteArrayOutputStream log = new ByteArrayOutputStream();
+		normalizer.out = new PrintStream(log);
+		int status = normalizer.run(args);
+		lastLog = log.toString();
+		check(status == 0, "run with " + Arrays.toString(extraArgs) + " failed:\n" + lastLog);
+		return Files.readAllBytes(output.toPath());
+	}
+
+	/*
+	 * The number of reads in SAM output, not counting header lines
+	 */
+	static int countReads(byte[] sam) {
+		int count = 0;
+		boolean lineStart = true;
+		for (byte b : sam) {
+			if (lineStart && b != '@') {
+				count++;
+			}
+			lineStart = b == '\n';
+		}
+		return count;
+	}
+
+	/*
+	 * The value of a statistic printed as "name: value"
+	 */
+	static int stat(String log, String name) {
+		for (String line : log.split("\n")) {
+			if (line.startsWith(name + ": ")) {
+				return Integer.parseInt(line.substring(name.length() + 2).trim());
+			}
+		}
+		throw new AssertionError("no " + name + " in:\n" + log);
+	}
+
+	/*
+	 * The coverage of each position of the two contigs written by writeSortedSam
+	 */
+	static int[][] coverage(byte[] sam) {
+		int[][] cov = new int[][] { new int[20001], new int[8001] };
+		for (String line : new String(sam).split("\n")) {
+			if (line.startsWith("@")) {
+				continue;
+			}
+			String[] fields = line.split("\t");
+			int[] contigCov = cov[fields[2].equals("segA") ? 0 : 1];
+			int start = Integer.parseInt(fields[3]);
+			int span = Integer.parseInt(fields[5].substring(0, fields[5].indexOf('M')));
+			for (int i = start; i < Math.min(start + span, contigCov.length); i++) {
+				contigCov[i]++;
+			}
+		}
+		return cov;
+	}
+
+	/*
+	 * Deletes a temporary directory and the files in it
+	 */
+	static void deleteDir(File dir) {
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * Checks that downsampling to several thresholds at once, where each threshold only considers the reads kept at the one above it, keeps the same reads as separate runs with the same read order, and writes logging files for each threshold
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+public class ThresholdNestingTest {
+
+	static final int[] THRESHOLDS = new int[] { 40, 5, 20, 10 };
+
+	public static void main(String[] args) throws Exception {
+		File dir = Files.createTempDirectory("thresholds").toFile();
+		try {
+			File input = new File(dir, "sorted.sam");
+			TestUtil.writeSortedSam(input, 4000, 11);
+
+			// Shuffled, and by quality, which keeps these reads in input order since
+			// they all have the same quality
+			checkNesting(input, dir, "seed=3");
+			checkNesting(input, dir, "--qual_sort");
+			checkLogs(input, dir);
+		} finally {
+			TestUtil.deleteDir(dir);
+		}
+		System.out.println("ThresholdNestingTest passed");
+	}
+
+	/*
+	 * Runs all of the thresholds together and each one on its own with the given
+	 * ordering argument, and compares the kept reads
+	 */
+	static void checkNesting(File input, File dir, String orderArg) throws Exception {
+		String list = "";
+		for (int threshold : THRESHOLDS) {
+			list += (list.length() == 0 ? "" : ",") + threshold;
+		}
+		run(new NormalizeCoverage(), "input=" + input.getPath(), "output=" + new File(dir, "all.sam").getPath(),
+				"coverage_threshold=" + list, "--no_logging", orderArg);
+
+		for (int threshold : THRESHOLDS) {
+			byte[] nested = Files.readAllBytes(new File(dir, "all_" + threshold + ".sam").toPath());
+			byte[] single = TestUtil.normalize(input, new File(dir, "single.sam"), "coverage_threshold=" + threshold,
+					orderArg);
+			TestUtil.check(nested.length > 0, "nothing was kept at threshold " + threshold);
+			TestUtil.check(Arrays.equals(nested, single), "threshold " + threshold + " with " + orderArg
+					+ " kept different reads than a run on its own");
+		}
+	}
+
+	/*
+	 * Checks that every threshold gets its own coverage log, describing its own
+	 * kept reads
+	 */
+	static void checkLogs(File input, File dir) throws Exception {
+		NormalizeCoverage normalizer = new NormalizeCoverage();
+		normalizer.logPrefix = dir.getPath() + File.separator;
+		run(normalizer, "input=" + input.getPath(), "output=" + new File(dir, "logged.sam").getPath(),
+				"coverage_threshold=5,20", "seed=3");
+
+		File low = new File(dir, "5_coverage.txt"), high = new File(dir, "20_coverage.txt");
+		TestUtil.check(low.exists() && high.exists(), "a threshold is missing its coverage log");
+		TestUtil.check(!Arrays.equals(Files.readAllBytes(low.toPath()), Files.readAllBytes(high.toPath())),
+				"both thresholds logged the same coverage");
+	}
+
+	/*
+	 * Runs normalization with several thresholds, which writes numbered outputs
+	 * rather than the output file itself
+	 */
+	static void run(NormalizeCoverage normalizer, String... args) throws Exception {
+		ByteArrayOutputStream log = new ByteArrayOutputStream();
+		normalizer.out = new PrintStream(log);
+		TestUtil.check(normalizer.run(args) == 0, "run with " + Arrays.toString(args) + " failed:\n" + log);
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * Checks which reads the pre-thinning reservoir keeps as candidates: every read in windows which never fill up, a full sample in windows which do, enough candidates covering each deep position, and the candidates in input order, along with the coverage of all reads it counts
+ */
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+public class WindowReservoirTest {
+
+	static final int WINDOW_SIZE = 1000;
+	static final int DEPTH = 40;
+
+	// The threshold TestUtil.normalize runs with
+	static final int THRESHOLD = 20;
+
+	public static void main(String[] args) throws Exception {
+		ReferenceIndex refs = new ReferenceIndex(1 << 20);
+		refs.add("deep", 10000);
+		refs.add("shallow", 5000);
+
+		// The first half of the deep contig has many more reads than its windows need
+		// and the shallow contig has fewer, with some unaligned records in between
+		Random rand = new Random(5);
+		int numRecords = 6000;
+		int[] contig = new int[numRecords], start = new int[numRecords], end = new int[numRecords];
+		WindowReservoir reservoir = new WindowReservoir(refs, WINDOW_SIZE, DEPTH, new Random(9));
+		for (int i = 0; i < numRecords; i++) {
+			if (i % 50 == 0) {
+				contig[i] = -1;
+			} else if (i % 200 == 1) {
+				contig[i] = 1;
+				start[i] = rand.nextInt(4800);
+			} else {
+				contig[i] = 0;
+				start[i] = rand.nextInt(4800);
+			}
+			end[i] = start[i] + 50 + rand.nextInt(150);
+			reservoir.add(100L * i, 99, contig[i], start[i], end[i], i % 2, 100, 95);
+		}
+		TestUtil.check(reservoir.numRecords == numRecords, "not every record was counted");
+		TestUtil.check(reservoir.fullWindows > 0, "no window was filled");
+		reservoir.finish();
+
+		// Candidates are in input order and come from aligned records
+		boolean[] candidate = new boolean[numRecords];
+		for (int i = 0; i < reservoir.reads.size; i++) {
+			int rec = reservoir.record[i];
+			TestUtil.check(i == 0 || reservoir.record[i - 1] < rec, "candidates aren't in input order");
+			TestUtil.check(contig[rec] != -1, "an unaligned record was kept as a candidate");
+			TestUtil.check(reservoir.offset[i] == 100L * rec && reservoir.reads.start[i] == start[rec],
+					"a candidate lost the position of its record");
+			candidate[rec] = true;
+		}
+
+		// A window which never filled up keeps every read overlapping it, and a full
+		// window holds a candidate in every place of its reservoir, though reads held
+		// by the windows next to it may overlap it too. A window fills up once it has
+		// seen more reads than it needs for the reads seen so far.
+		for (int c = 0; c < refs.size(); c++) {
+			for (int w = 0; w * WINDOW_SIZE < refs.arraySize(c); w++) {
+				int overlapping = 0, candidates = 0, capacity = 0;
+				long span = 0;
+				for (int i = 0; i < numRecords; i++) {
+					if (contig[i] == c && start[i] < (w + 1) * WINDOW_SIZE && end[i] > w * WINDOW_SIZE) {
+						overlapping++;
+						span += end[i] - start[i];
+						if (capacity == 0 && overlapping > reservoir.capacity(overlapping, span)) {
+							capacity = overlapping - 1;
+						}
+						if (candidate[i]) {
+							candidates++;
+						}
+					}
+				}
+				TestUtil.check(capacity == 0 ? candidates == overlapping : candidates >= capacity,
+						"window " + w + " of contig " + c + " has " + candidates + " candidates out of " + overlapping
+								+ " reads");
+			}
+		}
+
+		// The reservoir counts the coverage of every aligned read, and deep positions
+		// keep enough candidates to select from, except where coverage ramps up or
+		// down within a window near where the reads start and end, since the sample
+		// is uniform over the window
+		int[][] cov = new int[refs.size()][], candidateCov = new int[refs.size()][];
+		for (int c = 0; c < refs.size(); c++) {
+			cov[c] = new int[refs.arraySize(c)];
+			candidateCov[c] = new int[refs.arraySize(c)];
+		}
+		for (int i = 0; i < numRecords; i++) {
+			for (int p = start[i]; contig[i] != -1 && p < end[i]; p++) {
+				cov[contig[i]][p]++;
+				if (candidate[i]) {
+					candidateCov[contig[i]][p]++;
+				}
+			}
+		}
+		for (int c = 0; c < refs.size(); c++) {
+			for (int p = 0; p < refs.arraySize(c); p++) {
+				TestUtil.check(reservoir.totalCoverage(c, p) == cov[c][p], "total coverage at " + c + ":" + p + " is "
+						+ reservoir.totalCoverage(c, p) + " rather than " + cov[c][p]);
+				TestUtil.check(p < 200 || p >= 4600 || cov[c][p] < 2 * DEPTH || candidateCov[c][p] >= DEPTH / 2,
+						"position " + c + ":" + p + " has " + candidateCov[c][p] + " candidates out of " + cov[c][p]
+								+ " reads");
+			}
+		}
+
+		// Keeping every candidate keeps exactly the candidates' records
+		boolean[] used = new boolean[reservoir.reads.size];
+		Arrays.fill(used, true);
+		boolean[] usedRecords = reservoir.usedRecords(used);
+		TestUtil.check(usedRecords.length == numRecords, "the kept records don't cover the input");
+		for (int i = 0; i < numRecords; i++) {
+			TestUtil.check(usedRecords[i] == candidate[i], "record " + i + " was kept without being a candidate");
+		}
+
+		checkStatistics();
+		System.out.println("WindowReservoirTest passed");
+	}
+
+	/*
+	 * Normalizes a deep input with pre-thinning down to about the threshold, and
+	 * checks that the statistics and warnings compare the kept reads to every read
+	 * rather than just the candidates
+	 */
+	static void checkStatistics() throws Exception {
+		File dir = Files.createTempDirectory("prethin").toFile();
+		try {
+			File input = new File(dir, "in.sam");
+			TestUtil.writeSortedSam(input, 12000, 13, 150, 150);
+			TestUtil.normalize(input, new File(dir, "all.sam"));
+			String allLog = TestUtil.lastLog;
+			byte[] kept = TestUtil.normalize(input, new File(dir, "thinned.sam"), "prethin=1", "seed=2");
+			String log = TestUtil.lastLog;
+			TestUtil.check(log.contains("Pre-thinning kept"), "pre-thinning didn't run:\n" + log);
+			for (String name : new String[] { "Total read count (unfiltered)", "Total bases covered (unfiltered)",
+					"Old min coverage", "Old min + strand coverage", "Old min - strand coverage" }) {
+				int thinned = TestUtil.stat(log, name), all = TestUtil.stat(allLog, name);
+				TestUtil.check(thinned == all, name + " is " + thinned + " with pre-thinning but " + all + " without");
+			}
+
+			int[][] cov = TestUtil.coverage(Files.readAllBytes(input.toPath())), keptCov = TestUtil.coverage(kept);
+			int dropped = 0;
+			for (int c = 0; c < cov.length; c++) {
+				for (int i = 50; i < cov[c].length - 50; i++) {
+					if (cov[c][i] >= THRESHOLD && keptCov[c][i] < THRESHOLD) {
+						dropped++;
+					}
+				}
+			}
+			int warnings = log.split("Coverage dropped below threshold", -1).length - 1;
+			TestUtil.check(warnings == dropped,
+					warnings + " positions were reported below the threshold, but " + dropped + " are");
+		} finally {
+			TestUtil.deleteDir(dir);
+		}
+	}
+}
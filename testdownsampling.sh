@@ -11,13 +11,10 @@ OUTDIR=$2
 mkdir $OUTDIR
 echo 'Testing downsampling with coverage: '$COVERAGE
 echo 'Output directory: '$OUTDIR
+java -cp src NormalizeCoverage coverage_threshold=$COVERAGE input=jhu004.sam --qual_sort replicates=10 seed=1 output=$OUTDIR/jhu004.covfiltered.bam
 for i in {1..10}
 do
   echo $i
-  java -cp src NormalizeCoverage coverage_threshold=$COVERAGE input=jhu004.sam --qual_sort
-  mv jhu004.covfiltered.sam $OUTDIR/jhu004.covfiltered_$i"_"$COVERAGE".sam"
-  samtools view -hb $OUTDIR/jhu004.covfiltered_$i"_"$COVERAGE".sam" > $OUTDIR/jhu004.covfiltered_$i.bam
-  samtools index $OUTDIR/jhu004.covfiltered_$i.bam
   if [ -r $OUTDIR/consensus_$i.hdf ]
   then
     rm $OUTDIR/consensus_$i.hdf